@@ -31,6 +31,7 @@ import java.util.List;
 import com.sun.jna.Library;
 import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 import com.sun.jna.Structure.FieldOrder;
 import com.sun.jna.platform.unix.LibCAPI;
@@ -167,4 +168,64 @@ public interface LibC extends LibCAPI, Library {
      *         is set appropriately.
      */
     int statvfs(String path, Statvfs buf);
+
+    /**
+     * Opens the file specified by pathname.
+     *
+     * @param path
+     *            the file to open
+     * @param flags
+     *            one of the access modes {@code O_RDONLY}, {@code O_WRONLY} or
+     *            {@code O_RDWR} of {@link Fcntl}, possibly combined with other
+     *            flags not requiring a mode argument
+     * @return On success, the new file descriptor. On error, -1 is returned,
+     *         and errno is set appropriately.
+     */
+    int open(String path, int flags);
+
+    /**
+     * Advises the kernel how the memory in the given range will be used, so
+     * that it can choose appropriate read-ahead and caching techniques.
+     *
+     * @param addr
+     *            the start of the range; must be page aligned
+     * @param length
+     *            the length of the range
+     * @param advice
+     *            one of the {@code MADV_*} constants of {@link Mman}
+     * @return On success, zero is returned. On error, -1 is returned, and errno
+     *         is set appropriately.
+     */
+    int madvise(Pointer addr, size_t length, int advice);
+
+    /**
+     * Locks the pages in the given range into RAM, faulting them in if
+     * necessary, so that they cannot be paged to the swap area.
+     *
+     * @param addr
+     *            the start of the range
+     * @param length
+     *            the length of the range
+     * @return On success, zero is returned. On error, -1 is returned, and errno
+     *         is set appropriately.
+     */
+    int mlock(Pointer addr, size_t length);
+
+    /**
+     * Unlocks the pages in the given range, locked by
+     * {@link #mlock(Pointer, size_t)}.
+     *
+     * @param addr
+     *            the start of the range
+     * @param length
+     *            the length of the range
+     * @return On success, zero is returned. On error, -1 is returned, and errno
+     *         is set appropriately.
+     */
+    int munlock(Pointer addr, size_t length);
+
+    /**
+     * @return the number of bytes in a memory page
+     */
+    int getpagesize();
 }
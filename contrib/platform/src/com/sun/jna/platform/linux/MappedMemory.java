@@ -0,0 +1,300 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0.
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna.platform.linux;
+
+import static com.sun.jna.platform.linux.Fcntl.O_RDONLY;
+import static com.sun.jna.platform.linux.Fcntl.O_RDWR;
+import static com.sun.jna.platform.linux.Mman.MAP_ANONYMOUS;
+import static com.sun.jna.platform.linux.Mman.MAP_FAILED;
+import static com.sun.jna.platform.linux.Mman.MAP_PRIVATE;
+import static com.sun.jna.platform.linux.Mman.MAP_SHARED;
+import static com.sun.jna.platform.linux.Mman.MS_ASYNC;
+import static com.sun.jna.platform.linux.Mman.MS_SYNC;
+import static com.sun.jna.platform.linux.Mman.PROT_READ;
+import static com.sun.jna.platform.linux.Mman.PROT_WRITE;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.internal.Cleaner;
+import com.sun.jna.platform.unix.LibCAPI.size_t;
+import com.sun.jna.platform.unix.LibCUtil;
+
+/**
+ * {@link Memory} backed by a memory mapping ({@code mmap}) instead of
+ * {@code malloc}: anonymous memory, which can use huge pages and whose pages
+ * can be returned to the kernel with {@link #advise(int)}, or the contents of a
+ * file.
+ * <p>
+ * Like any {@link Memory}, accesses are bounds-checked and {@link #share}
+ * views keep the mapping alive.  The mapping is removed by {@link #close()},
+ * or once the object is no longer reachable.
+ * <pre><code>
+ * try (MappedMemory table = MappedMemory.anonymous(1L &lt;&lt; 30, Mman.MAP_NORESERVE)) {
+ *     table.advise(Mman.MADV_HUGEPAGE);
+ *     ...
+ * }
+ * </code></pre>
+ * Prefaulting is requested with the {@link Mman#MAP_POPULATE} flag or
+ * {@link #lock()}; explicit huge pages with {@link Mman#MAP_HUGETLB}, or
+ * transparent huge pages with {@link Mman#MADV_HUGEPAGE}.
+ */
+public class MappedMemory extends Memory {
+
+    private static final LibC LIBC = LibC.INSTANCE;
+
+    private final Cleaner.Cleanable cleanable;
+
+    /** Removes the mapping, shared with the {@link Cleaner}. */
+    private static final class Unmapper implements Runnable {
+        private final long peer;
+        private final long size;
+
+        Unmapper(long peer, long size) {
+            this.peer = peer;
+            this.size = size;
+        }
+
+        @Override
+        public void run() {
+            LIBC.munmap(new Pointer(peer), new size_t(size));
+        }
+    }
+
+    /**
+     * Map memory with {@code mmap}.
+     *
+     * @param size
+     *            the length of the mapping
+     * @param prot
+     *            the memory protection, {@code PROT_*} of {@link Mman}
+     * @param flags
+     *            the {@code MAP_*} flags of {@link Mman}
+     * @param fd
+     *            the file to map, or -1 for anonymous mappings
+     * @param offset
+     *            the offset in the file; a multiple of the page size
+     * @throws LastErrorException
+     *             if the mapping fails
+     */
+    protected MappedMemory(long size, int prot, int flags, int fd, long offset) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Mapping size must be greater than zero");
+        }
+        Pointer p = LibCUtil.mmap(null, size, prot, flags, fd, offset);
+        if (p == null || MAP_FAILED.equals(p)) {
+            throw new LastErrorException(Native.getLastError());
+        }
+        this.peer = Pointer.nativeValue(p);
+        this.size = size;
+        this.cleanable = Cleaner.getCleaner().register(this, new Unmapper(peer, size));
+    }
+
+    /**
+     * Map zero-filled, private memory.
+     *
+     * @param size
+     *            the length of the mapping
+     * @param flags
+     *            additional {@code MAP_*} flags of {@link Mman}, for example
+     *            {@link Mman#MAP_POPULATE}, {@link Mman#MAP_HUGETLB} or
+     *            {@link Mman#MAP_NORESERVE}
+     * @return the mapped memory
+     * @throws LastErrorException
+     *             if the mapping fails
+     */
+    public static MappedMemory anonymous(long size, int flags) {
+        return new MappedMemory(size, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS | flags, -1, 0);
+    }
+
+    /**
+     * Map (part of) a file, sharing changes with the file if writable.
+     *
+     * @param path
+     *            the file to map
+     * @param offset
+     *            the offset in the file; a multiple of the page size
+     * @param size
+     *            the length of the mapping
+     * @param writable
+     *            whether the memory can be written
+     * @param flags
+     *            additional {@code MAP_*} flags of {@link Mman}, for example
+     *            {@link Mman#MAP_POPULATE}
+     * @return the mapped memory
+     * @throws LastErrorException
+     *             if the file cannot be opened or mapped
+     */
+    public static MappedMemory map(String path, long offset, long size, boolean writable, int flags) {
+        int fd = LIBC.open(path, writable ? O_RDWR : O_RDONLY);
+        if (fd == -1) {
+            throw new LastErrorException(Native.getLastError());
+        }
+        try {
+            return map(fd, offset, size, writable ? PROT_READ | PROT_WRITE : PROT_READ, MAP_SHARED | flags);
+        } finally {
+            // The mapping keeps its own reference to the file
+            LIBC.close(fd);
+        }
+    }
+
+    /**
+     * Map (part of) an open file.
+     *
+     * @param fd
+     *            the file descriptor; may be closed once mapped
+     * @param offset
+     *            the offset in the file; a multiple of the page size
+     * @param size
+     *            the length of the mapping
+     * @param prot
+     *            the memory protection, {@code PROT_*} of {@link Mman}
+     * @param flags
+     *            the {@code MAP_*} flags of {@link Mman}, including one of
+     *            {@link Mman#MAP_SHARED} or {@link Mman#MAP_PRIVATE}
+     * @return the mapped memory
+     * @throws LastErrorException
+     *             if the mapping fails
+     */
+    public static MappedMemory map(int fd, long offset, long size, int prot, int flags) {
+        return new MappedMemory(size, prot, flags, fd, offset);
+    }
+
+    /**
+     * Advise the kernel how the whole mapping will be used.
+     *
+     * @param advice
+     *            one of the {@code MADV_*} constants of {@link Mman}, for
+     *            example {@link Mman#MADV_WILLNEED},
+     *            {@link Mman#MADV_SEQUENTIAL}, {@link Mman#MADV_DONTNEED} or
+     *            {@link Mman#MADV_HUGEPAGE}
+     * @throws LastErrorException
+     *             if the advice is rejected
+     */
+    public void advise(int advice) {
+        advise(0, size, advice);
+    }
+
+    /**
+     * Advise the kernel how a range of the mapping will be used.  The range is
+     * extended to the enclosing pages.
+     *
+     * @param offset
+     *            the start of the range
+     * @param length
+     *            the length of the range
+     * @param advice
+     *            one of the {@code MADV_*} constants of {@link Mman}
+     * @throws LastErrorException
+     *             if the advice is rejected
+     */
+    public void advise(long offset, long length, int advice) {
+        boundsCheck(offset, length);
+        long start = pageStart(offset);
+        check(LIBC.madvise(new Pointer(start), new size_t(peer + offset + length - start), advice));
+    }
+
+    /**
+     * Lock the whole mapping into RAM, faulting in all pages.
+     *
+     * @throws LastErrorException
+     *             if the pages cannot be locked, for example because of
+     *             {@code RLIMIT_MEMLOCK}
+     */
+    public void lock() {
+        checkMapped();
+        check(LIBC.mlock(this, new size_t(size)));
+    }
+
+    /**
+     * Unlock the mapping locked by {@link #lock()}.
+     *
+     * @throws LastErrorException
+     *             if the pages cannot be unlocked
+     */
+    public void unlock() {
+        checkMapped();
+        check(LIBC.munlock(this, new size_t(size)));
+    }
+
+    /**
+     * Write the changes to the whole mapping back to the file, waiting for the
+     * write to complete.
+     *
+     * @throws LastErrorException
+     *             if the changes cannot be written
+     */
+    public void sync() {
+        sync(0, size, false);
+    }
+
+    /**
+     * Write the changes to a range of the mapping back to the file.  The range
+     * is extended to the enclosing pages.
+     *
+     * @param offset
+     *            the start of the range
+     * @param length
+     *            the length of the range
+     * @param async
+     *            whether to only schedule the write instead of waiting for it
+     * @throws LastErrorException
+     *             if the changes cannot be written
+     */
+    public void sync(long offset, long length, boolean async) {
+        boundsCheck(offset, length);
+        long start = pageStart(offset);
+        check(LIBC.msync(new Pointer(start), new size_t(peer + offset + length - start), async ? MS_ASYNC : MS_SYNC));
+    }
+
+    private long pageStart(long offset) {
+        checkMapped();
+        long pageSize = LIBC.getpagesize();
+        return (peer + offset) & ~(pageSize - 1);
+    }
+
+    private void checkMapped() {
+        if (peer == 0) {
+            throw new IllegalStateException("Mapping has been closed");
+        }
+    }
+
+    private static void check(int result) {
+        if (result == -1) {
+            throw new LastErrorException(Native.getLastError());
+        }
+    }
+
+    /** Remove the mapping and set peer to zero. */
+    @Override
+    public void close() {
+        peer = 0;
+        cleanable.clean();
+    }
+
+    @Override
+    public String toString() {
+        return "mapped@0x" + Long.toHexString(peer) + " (" + size + " bytes)";
+    }
+}
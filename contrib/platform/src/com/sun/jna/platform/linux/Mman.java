@@ -74,4 +74,21 @@ public interface Mman {
     int MS_ASYNC = 1;
     int MS_SYNC = 2;
     int MS_INVALIDATE = 4;
+
+    /* Advice for madvise. */
+    int MADV_NORMAL = 0; // No further special treatment.
+    int MADV_RANDOM = 1; // Expect random page references.
+    int MADV_SEQUENTIAL = 2; // Expect sequential page references.
+    int MADV_WILLNEED = 3; // Will need these pages.
+    int MADV_DONTNEED = 4; // Don't need these pages.
+    int MADV_FREE = 8; // Free pages only if memory pressure.
+    int MADV_REMOVE = 9; // Remove these pages and resources.
+    int MADV_DONTFORK = 10; // Do not inherit across fork.
+    int MADV_DOFORK = 11; // Do inherit across fork.
+    int MADV_MERGEABLE = 12; // KSM may merge identical pages.
+    int MADV_UNMERGEABLE = 13; // KSM may not merge identical pages.
+    int MADV_HUGEPAGE = 14; // Worth backing with hugepages.
+    int MADV_NOHUGEPAGE = 15; // Not worth backing with hugepages.
+    int MADV_DONTDUMP = 16; // Explicity exclude from the core dump.
+    int MADV_DODUMP = 17; // Clear the MADV_DONTDUMP flag.
 }
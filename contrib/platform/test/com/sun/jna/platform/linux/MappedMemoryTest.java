@@ -0,0 +1,113 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0.
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna.platform.linux;
+
+import static com.sun.jna.platform.linux.Mman.MADV_DONTNEED;
+import static com.sun.jna.platform.linux.Mman.MADV_SEQUENTIAL;
+import static com.sun.jna.platform.linux.Mman.MADV_WILLNEED;
+import static com.sun.jna.platform.linux.Mman.MAP_POPULATE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.sun.jna.Pointer;
+
+import junit.framework.TestCase;
+
+public class MappedMemoryTest extends TestCase {
+
+    @Test
+    public void testAnonymous() {
+        int pageSize = LibC.INSTANCE.getpagesize();
+        try (MappedMemory m = MappedMemory.anonymous(4L * pageSize, MAP_POPULATE)) {
+            assertEquals("Mapping not page aligned", 0, Pointer.nativeValue(m) % pageSize);
+            assertEquals("Anonymous memory should be zero-filled", 0, m.getLong(pageSize));
+            m.setInt(pageSize + 4, 42);
+            m.advise(MADV_WILLNEED);
+            assertEquals("Wrong value", 42, m.getInt(pageSize + 4));
+            // Dropping private anonymous pages zero-fills them again
+            m.advise(pageSize + 4, 4, MADV_DONTNEED);
+            assertEquals("Pages not released", 0, m.getInt(pageSize + 4));
+            try {
+                m.getInt(4L * pageSize - 2);
+                fail("Access beyond the mapping should fail");
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+            Pointer shared = m.share(pageSize);
+            shared.setByte(0, (byte) 1);
+            assertEquals("Shared view should use the mapping", 1, m.getByte(pageSize));
+        }
+    }
+
+    @Test
+    public void testLock() {
+        try (MappedMemory m = MappedMemory.anonymous(LibC.INSTANCE.getpagesize(), 0)) {
+            try {
+                m.lock();
+                m.unlock();
+            } catch (com.sun.jna.LastErrorException e) {
+                // RLIMIT_MEMLOCK may forbid locking, but not with EINVAL
+                assertTrue("Unexpected error " + e.getErrorCode(), e.getErrorCode() != ErrNo.EINVAL);
+            }
+        }
+    }
+
+    @Test
+    public void testClose() {
+        MappedMemory m = MappedMemory.anonymous(16, 0);
+        m.close();
+        assertFalse("Closed mapping should be invalid", m.valid());
+        m.close();
+        try {
+            m.advise(MADV_WILLNEED);
+            fail("Closed mapping cannot be advised");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMapFile() throws IOException {
+        File file = File.createTempFile("mapped", ".bin");
+        try {
+            Files.write(file.toPath(), new byte[8192]);
+            try (MappedMemory m = MappedMemory.map(file.getAbsolutePath(), 0, 8192, true, 0)) {
+                m.advise(MADV_SEQUENTIAL);
+                m.setString(4096, "mapped");
+                m.sync(4096, 7, false);
+                m.sync();
+            }
+            byte[] contents = Files.readAllBytes(file.toPath());
+            assertEquals("Changes not written to the file", "mapped", new String(contents, 4096, 6, "US-ASCII"));
+            try (MappedMemory m = MappedMemory.map(file.getAbsolutePath(), 0, 8192, false, 0)) {
+                assertEquals("Wrong file contents", "mapped", m.getString(4096));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
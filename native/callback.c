@@ -99,6 +99,19 @@ typedef struct _tls {
   char name[256];
 } thread_storage;
 
+// Global policy for native threads attached to call back: keep them
+// attached as daemon threads after the first callback, detaching them at
+// thread exit.
+static volatile jboolean keep_attached = JNI_FALSE;
+static volatile long attach_count = 0;
+static volatile long detach_count = 0;
+
+#if defined(_MSC_VER)
+#  define ATOMIC_INC(P) InterlockedIncrement((volatile LONG *)(P))
+#else
+#  define ATOMIC_INC(P) __sync_add_and_fetch((P), 1)
+#endif
+
 static void dispatch_callback(ffi_cif*, void*, void**, void*);
 static jclass classObject;
 
@@ -330,9 +343,24 @@ create_callback(JNIEnv* env, jobject obj, jobject method,
 
   return NULL;
 }
+/** Point an existing closure at another Java object (or none), so that it
+ * can be reused for a callback with the same signature.
+ */
+void
+rebind_callback(JNIEnv* env, callback *cb, jobject obj) {
+  jobject old = cb->object;
+  cb->object = obj ? (*env)->NewWeakGlobalRef(env, obj) : NULL;
+  cb->behavior_flags = 0;
+  if (old) {
+    (*env)->DeleteWeakGlobalRef(env, old);
+  }
+}
+
 void 
 free_callback(JNIEnv* env, callback *cb) {
-  (*env)->DeleteWeakGlobalRef(env, cb->object);
+  if (cb->object) {
+    (*env)->DeleteWeakGlobalRef(env, cb->object);
+  }
   ffi_closure_free(cb->closure);
   free(cb->arg_types);
   if (cb->arg_classes) {
@@ -604,6 +632,9 @@ static void dispose_thread_data(void* data) {
       fprintf(stderr, "JNA: could not detach native thread (automatic)\n");
       detached = JNI_FALSE;
     }
+    else if (!tls->jvm_thread) {
+      ATOMIC_INC(&detach_count);
+    }
   }
   if (tls->termination_flag && detached) {
     *(tls->termination_flag) = JNI_TRUE;
@@ -661,6 +692,18 @@ JNA_detach(JNIEnv* env, jboolean needs_detach, void* termination_flag) {
   }
 }
 
+/** Set the global attach policy for native threads calling back. */
+void
+JNA_set_attach_policy(jboolean keep) {
+  keep_attached = keep;
+}
+
+/** Number of native threads attached (or detached) for callbacks. */
+jlong
+JNA_callback_thread_count(jboolean detached) {
+  return detached ? detach_count : attach_count;
+}
+
 /** Store the value of errno/GetLastError in TLS */
 void
 JNA_set_last_error(JNIEnv* env, int err) {
@@ -692,11 +735,14 @@ dispatch_callback(ffi_cif* cif, void* resp, void** cbargs, void* user_data) {
   if (!was_attached) {
     int attach_status = 0;
     JavaVMAttachArgs args;
-    int daemon = JNI_FALSE;
+    jboolean policy = keep_attached;
+    // Threads kept attached must not prevent the JVM from exiting
+    int daemon = policy ? JNI_TRUE : JNI_FALSE;
 
     args.version = JNI_VERSION_1_2;
     args.name = NULL;
     args.group = NULL;
+    needs_detach = policy ? JNI_FALSE : JNI_TRUE;
     if (cb->behavior_flags & CB_HAS_INITIALIZER) {
       AttachOptions options;
       options.daemon = JNI_FALSE; // default non-daemon
@@ -704,6 +750,7 @@ dispatch_callback(ffi_cif* cif, void* resp, void** cbargs, void* user_data) {
       options.name = NULL;
       args.group = initializeThread(cb, &options);
       daemon = options.daemon ? JNI_TRUE : JNI_FALSE;
+      // An explicit initializer takes precedence over the global policy
       needs_detach = options.detach ? JNI_TRUE : JNI_FALSE;
       args.name = options.name;
     }
@@ -721,6 +768,7 @@ dispatch_callback(ffi_cif* cif, void* resp, void** cbargs, void* user_data) {
       fprintf(stderr, "JNA: Can't attach native thread to VM for callback: %d (check stacksize for callbacks)\n", attach_status);
       return;
     }
+    ATOMIC_INC(&attach_count);
     tls = get_thread_storage(env);
     if (tls) {
       snprintf(tls->name, sizeof(tls->name), "%s", args.name ? args.name : "<unconfigured native thread>");
@@ -755,6 +803,9 @@ dispatch_callback(ffi_cif* cif, void* resp, void** cbargs, void* user_data) {
     if ((*jvm)->DetachCurrentThread(jvm) != 0) {
       fprintf(stderr, "JNA: could not detach thread\n");
     }
+    else {
+      ATOMIC_INC(&detach_count);
+    }
   }
 }
 
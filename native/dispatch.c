@@ -36,6 +36,7 @@
 #define WIN32_LEAN_AND_MEAN
 #include <windows.h>
 #include <psapi.h>
+#include <malloc.h>
 #define STRTYPE wchar_t*
 #define NAME2CSTR(ENV,JSTR) newWideCString(ENV,JSTR)
 #ifdef _WIN32_WCE
@@ -175,6 +176,8 @@ static jclass classDoubleBuffer;
 #endif /* NO_NIO_BUFFERS */
 
 static jclass classPointer;
+static jclass classFunction;
+static jclass classFunctionArrayArgument;
 static jclass classNative;
 static jclass classStructure;
 static jclass classStructureByValue;
@@ -253,6 +256,9 @@ static jfieldID FID_Float_value;
 static jfieldID FID_Double_value;
 
 static jfieldID FID_Pointer_peer;
+static jfieldID FID_Function_cifCache;
+static jfieldID FID_FunctionArrayArgument_array;
+static jfieldID FID_FunctionArrayArgument_mode;
 static jfieldID FID_Structure_memory;
 static jfieldID FID_Structure_typeInfo;
 static jfieldID FID_IntegerType_value;
@@ -458,25 +464,292 @@ ffi_error(JNIEnv* env, const char* op, ffi_status status) {
   }
 }
 
+/* Prepared call interfaces are cached per Function, keyed by calling
+ * convention, fixed argument count and argument/return types.  Entries are
+ * published once and never modified or removed until the owning cache is
+ * freed, so lookups require no locking.
+ */
+#define CIF_CACHE_SIZE 8
+
+typedef struct _cif_cache_entry {
+  ffi_cif cif;
+  ffi_abi abi;
+  int fixed_args;
+  ffi_type* return_type;
+  ffi_type* arg_types[1];
+} cif_cache_entry;
+
+typedef struct _cif_cache {
+  cif_cache_entry* volatile entries[CIF_CACHE_SIZE];
+} cif_cache;
+
+#ifdef _WIN32
+#define CAS_PTR(PTR,OLD,NEW) \
+  (InterlockedCompareExchangePointer((PVOID volatile*)(PTR),(NEW),(OLD)) == (OLD))
+#else
+#define CAS_PTR(PTR,OLD,NEW) __sync_bool_compare_and_swap((PTR),(OLD),(NEW))
+#endif
+
+/* Structure types are owned by Java objects and may be released, so calls
+ * involving them are never cached.
+ */
+static int
+is_cacheable_signature(ffi_type* return_type, int nargs, ffi_type** arg_types) {
+  int i;
+  if (return_type->type == FFI_TYPE_STRUCT) {
+    return 0;
+  }
+  for (i=0;i < nargs;i++) {
+    if (arg_types[i]->type == FFI_TYPE_STRUCT) {
+      return 0;
+    }
+  }
+  return 1;
+}
+
+/* Return a cached call interface matching the given signature, preparing
+ * and adding a new one if there is room.  Returns NULL if the signature can
+ * not be cached, in which case the caller should prepare its own.
+ */
+static ffi_cif*
+get_cached_cif(cif_cache* cache, ffi_abi abi, int fixed_args, int nargs,
+               ffi_type* return_type, ffi_type** arg_types) {
+  cif_cache_entry* entry;
+  ffi_status status;
+  int i;
+
+  for (i=0;i < CIF_CACHE_SIZE;i++) {
+    entry = cache->entries[i];
+    if (entry == NULL) {
+      break;
+    }
+    if (entry->abi == abi
+        && entry->fixed_args == fixed_args
+        && (int)entry->cif.nargs == nargs
+        && entry->return_type == return_type
+        && memcmp(entry->arg_types, arg_types, nargs * sizeof(ffi_type*)) == 0) {
+      return &entry->cif;
+    }
+  }
+  if (i == CIF_CACHE_SIZE
+      || !is_cacheable_signature(return_type, nargs, arg_types)) {
+    return NULL;
+  }
+
+  entry = (cif_cache_entry*)malloc(sizeof(cif_cache_entry)
+                                   + nargs * sizeof(ffi_type*));
+  if (entry == NULL) {
+    return NULL;
+  }
+  entry->abi = abi;
+  entry->fixed_args = fixed_args;
+  entry->return_type = return_type;
+  memcpy(entry->arg_types, arg_types, nargs * sizeof(ffi_type*));
+  status = fixed_args
+    ? ffi_prep_cif_var(&entry->cif, abi, fixed_args, nargs, return_type, entry->arg_types)
+    : ffi_prep_cif(&entry->cif, abi, nargs, return_type, entry->arg_types);
+  if (status != FFI_OK) {
+    // Let the caller report the error
+    free(entry);
+    return NULL;
+  }
+  for (;i < CIF_CACHE_SIZE;i++) {
+    if (CAS_PTR(&cache->entries[i], NULL, entry)) {
+      return &entry->cif;
+    }
+  }
+  // Cache filled up by other threads; use the entry for this call only
+  free(entry);
+  return NULL;
+}
+
+static void
+free_cif_cache(cif_cache* cache) {
+  int i;
+  if (cache != NULL) {
+    for (i=0;i < CIF_CACHE_SIZE;i++) {
+      free(cache->entries[i]);
+    }
+    free(cache);
+  }
+}
+
+/* Map a JNA calling convention to the libffi ABI.  Returns zero if the
+ * calling convention is not recognized.
+ */
+static int
+get_abi(callconv_t callconv, ffi_abi* abi) {
+  switch (callconv) {
+  case CALLCONV_C:
+    *abi = FFI_DEFAULT_ABI;
+    break;
+#ifdef _WIN32
+  case CALLCONV_STDCALL:
+#if defined(_WIN64) || defined(_WIN32_WCE)
+    // Ignore requests for stdcall on win64/wince
+    *abi = FFI_DEFAULT_ABI;
+#else
+    *abi = FFI_STDCALL;
+#endif
+    break;
+#endif // _WIN32
+  default:
+    *abi = (int)callconv;
+    if (!(*abi > FFI_FIRST_ABI && *abi < FFI_LAST_ABI)) {
+      return 0;
+    }
+    break;
+  }
+  return 1;
+}
+
+/* Native memory backing a primitive array argument */
+typedef struct _array_arg {
+  jarray array;
+  void* elems;
+  release_t release;
+  int mode;
+  char type;
+  /* where to store the address of a pinned array once acquired */
+  void** target;
+} array_arg;
+
+static size_t
+get_array_element_size(char type) {
+  switch (type) {
+  case 'Z': return sizeof(jboolean);
+  case 'B': return sizeof(jbyte);
+  case 'C': return sizeof(jchar);
+  case 'S': return sizeof(jshort);
+  case 'I': return sizeof(jint);
+  case 'J': return sizeof(jlong);
+  case 'F': return sizeof(jfloat);
+  case 'D': return sizeof(jdouble);
+  default: return 0;
+  }
+}
+
+/* Obtain native memory for the given primitive array, honoring the ARRAY_*
+ * flags in mode.  Pinned arrays are only recorded here; they must be acquired
+ * with acquire_critical_array immediately before the native call, since no
+ * other JNI functions may be called while they are held.  Returns zero if
+ * the memory could not be obtained.
+ */
+static int
+get_array_arg(JNIEnv* env, array_arg* a, jarray array, char type, int mode) {
+  a->array = array;
+  a->elems = NULL;
+  a->release = NULL;
+  a->mode = mode;
+  a->type = type;
+  a->target = NULL;
+  if (mode & ARRAY_PINNED) {
+    return 1;
+  }
+  if (mode & ARRAY_OUT) {
+    // The contents are copied back after the call, so don't bother copying
+    // them in
+    jsize len = (*env)->GetArrayLength(env, array);
+    size_t size = len * get_array_element_size(type);
+    a->elems = malloc(size ? size : 1);
+    return a->elems != NULL;
+  }
+
+#define GET_ARRAY_ELEMS(TYPE) do {a->elems=(*env)->Get##TYPE##ArrayElements(env,array,NULL); a->release=(void*)(*env)->Release##TYPE##ArrayElements; }while(0)
+  switch (type) {
+  case 'Z': GET_ARRAY_ELEMS(Boolean); break;
+  case 'B': GET_ARRAY_ELEMS(Byte); break;
+  case 'C': GET_ARRAY_ELEMS(Char); break;
+  case 'S': GET_ARRAY_ELEMS(Short); break;
+  case 'I': GET_ARRAY_ELEMS(Int); break;
+  case 'J': GET_ARRAY_ELEMS(Long); break;
+  case 'F': GET_ARRAY_ELEMS(Float); break;
+  case 'D': GET_ARRAY_ELEMS(Double); break;
+  }
+#undef GET_ARRAY_ELEMS
+  return a->elems != NULL;
+}
+
+/* Acquire a pinned array.  Returns zero on failure. */
+static int
+acquire_critical_array(JNIEnv* env, array_arg* a) {
+  if ((a->mode & ARRAY_PINNED) && a->elems == NULL) {
+    a->elems = (*env)->GetPrimitiveArrayCritical(env, a->array, NULL);
+    *a->target = a->elems;
+    return a->elems != NULL;
+  }
+  return 1;
+}
+
+/* Release a pinned array; must be called before any other JNI function
+ * after the native call.
+ */
+static void
+release_critical_array(JNIEnv* env, array_arg* a) {
+  if ((a->mode & ARRAY_PINNED) && a->elems != NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, a->array, a->elems,
+                                          (a->mode & ARRAY_IN) ? JNI_ABORT : 0);
+    a->elems = NULL;
+  }
+}
+
+/* Release the native memory of an array argument, copying its contents back
+ * into the Java array unless it was input only.  Nothing is copied back
+ * unless commit is set, i.e. the native call completed, since output only
+ * buffers are not initialized before the call.
+ */
+static void
+release_array_arg(JNIEnv* env, array_arg* a, int commit) {
+  if (a->elems == NULL) {
+    return;
+  }
+  if (a->mode & ARRAY_PINNED) {
+    release_critical_array(env, a);
+  }
+  else if ((a->mode & ARRAY_OUT) && !commit) {
+    free(a->elems);
+  }
+  else if (a->mode & ARRAY_OUT) {
+    jsize len = (*env)->GetArrayLength(env, a->array);
+#define SET_ARRAY_REGION(TYPE,JTYPE) (*env)->Set##TYPE##ArrayRegion(env,a->array,0,len,(JTYPE*)a->elems)
+    switch (a->type) {
+    case 'Z': SET_ARRAY_REGION(Boolean, jboolean); break;
+    case 'B': SET_ARRAY_REGION(Byte, jbyte); break;
+    case 'C': SET_ARRAY_REGION(Char, jchar); break;
+    case 'S': SET_ARRAY_REGION(Short, jshort); break;
+    case 'I': SET_ARRAY_REGION(Int, jint); break;
+    case 'J': SET_ARRAY_REGION(Long, jlong); break;
+    case 'F': SET_ARRAY_REGION(Float, jfloat); break;
+    case 'D': SET_ARRAY_REGION(Double, jdouble); break;
+    }
+#undef SET_ARRAY_REGION
+    free(a->elems);
+  }
+  else if (a->release != NULL) {
+    a->release(env, a->array, a->elems, (!commit || (a->mode & ARRAY_IN)) ? JNI_ABORT : 0);
+  }
+  a->elems = NULL;
+}
+
 /* invoke the real native function */
 static void
-dispatch(JNIEnv *env, void* func, jint flags, jobjectArray args,
+dispatch(JNIEnv *env, jobject function, void* func, jint flags, jobjectArray args,
          ffi_type *return_type, void *presult)
 {
   int i, nargs;
   jvalue* c_args;
   char array_pt;
-  struct _array_elements {
-    jobject array;
-    void *elems;
-    release_t release;
-  } *array_elements;
+  array_arg* arrays;
   volatile int array_count = 0;
+  volatile int completed = 0;
+  int critical_count = 0;
   ffi_cif cif;
+  ffi_cif* pcif = NULL;
+  cif_cache* cache;
   ffi_type** arg_types;
   void** arg_values;
   ffi_abi abi;
-  ffi_status status;
+  ffi_status status = FFI_OK;
   char msg[MSG_SIZE];
   callconv_t callconv = flags & MASK_CC;
   const char* volatile throw_type = NULL;
@@ -492,8 +765,7 @@ dispatch(JNIEnv *env, void* func, jint flags, jobjectArray args,
   }
 
   c_args = (jvalue*)alloca(nargs * sizeof(jvalue));
-  array_elements = (struct _array_elements*)
-    alloca(nargs * sizeof(struct _array_elements));
+  arrays = (array_arg*)alloca(nargs * sizeof(array_arg));
   arg_types = (ffi_type**)alloca(nargs * sizeof(ffi_type*));
   arg_values = (void**)alloca(nargs * sizeof(void*));
 
@@ -606,10 +878,11 @@ dispatch(JNIEnv *env, void* func, jint flags, jobjectArray args,
       arg_types[i] = &ffi_type_pointer;
       arg_values[i] = &c_args[i].l;
       if (c_args[i].l == NULL) {
+        arrays[array_count].mode = 0;
         c_args[i].l =
-          getBufferArray(env, arg, &array_elements[array_count].array,
-                         &array_elements[array_count].elems,
-                         (void**)&array_elements[array_count].release);
+          getBufferArray(env, arg, (jobject*)&arrays[array_count].array,
+                         &arrays[array_count].elems,
+                         (void**)&arrays[array_count].release);
         if (c_args[i].l == NULL) {
           throw_type = EIllegalArgument;
           throw_msg = "Buffer arguments must be direct or have a primitive backing array";
@@ -619,33 +892,41 @@ dispatch(JNIEnv *env, void* func, jint flags, jobjectArray args,
       }
     }
 #endif /* NO_NIO_BUFFERS */
+    else if ((*env)->IsInstanceOf(env, arg, classFunctionArrayArgument)) {
+      // Primitive array with direction flags
+      jobject array = (*env)->GetObjectField(env, arg, FID_FunctionArrayArgument_array);
+      jint mode = (*env)->GetIntField(env, arg, FID_FunctionArrayArgument_mode);
+      array_pt = getArrayComponentType(env, array);
+      if (array_pt == 0 || array_pt == 'L') {
+        throw_type = EIllegalArgument;
+        throw_msg = "Array argument flags require a primitive array";
+        goto cleanup;
+      }
+      if (!get_array_arg(env, &arrays[array_count], array, array_pt, mode)) {
+        throw_type = EOutOfMemory;
+        throw_msg = "Could not obtain memory for primitive buffer";
+        goto cleanup;
+      }
+      c_args[i].l = arrays[array_count].elems;
+      arrays[array_count].target = (void **)&c_args[i].l;
+      if (mode & ARRAY_PINNED) {
+        ++critical_count;
+      }
+      arg_types[i] = &ffi_type_pointer;
+      arg_values[i] = &c_args[i].l;
+      ++array_count;
+    }
     else if ((array_pt = getArrayComponentType(env, arg)) != 0
              && array_pt != 'L') {
-      void *ptr = NULL;
-      release_t release = NULL;
-
-#define GET_ELEMS(TYPE) do {ptr=(*env)->Get##TYPE##ArrayElements(env,arg,NULL); release=(void*)(*env)->Release##TYPE##ArrayElements; }while(0)
-      switch(array_pt) {
-      case 'Z': GET_ELEMS(Boolean); break;
-      case 'B': GET_ELEMS(Byte); break;
-      case 'C': GET_ELEMS(Char); break;
-      case 'S': GET_ELEMS(Short); break;
-      case 'I': GET_ELEMS(Int); break;
-      case 'J': GET_ELEMS(Long); break;
-      case 'F': GET_ELEMS(Float); break;
-      case 'D': GET_ELEMS(Double); break;
-      }
-      if (!ptr) {
+      if (!get_array_arg(env, &arrays[array_count], arg, array_pt, 0)) {
         throw_type = EOutOfMemory;
         throw_msg = "Could not obtain memory for primitive buffer";
         goto cleanup;
       }
-      c_args[i].l = ptr;
+      c_args[i].l = arrays[array_count].elems;
       arg_types[i] = &ffi_type_pointer;
       arg_values[i] = &c_args[i].l;
-      array_elements[array_count].array = arg;
-      array_elements[array_count].elems = ptr;
-      array_elements[array_count++].release = release;
+      ++array_count;
     }
     else {
       // Anything else, pass directly as a pointer
@@ -655,43 +936,48 @@ dispatch(JNIEnv *env, void* func, jint flags, jobjectArray args,
     }
   }
 
-  switch (callconv) {
-  case CALLCONV_C:
-    abi = FFI_DEFAULT_ABI;
-    break;
-#ifdef _WIN32
-  case CALLCONV_STDCALL:
-#if defined(_WIN64) || defined(_WIN32_WCE)
-    // Ignore requests for stdcall on win64/wince
-    abi = FFI_DEFAULT_ABI;
-#else
-    abi = FFI_STDCALL;
-#endif
-    break;
-#endif // _WIN32
-  default:
-    abi = (int)callconv;
-    if (!(abi > FFI_FIRST_ABI && abi < FFI_LAST_ABI)) {
-      snprintf(msg, sizeof(msg),
-               "Unrecognized calling convention: %d", abi);
-      throw_type = EIllegalArgument;
-      throw_msg = msg;
+  if (!get_abi(callconv, &abi)) {
+    snprintf(msg, sizeof(msg),
+             "Unrecognized calling convention: %d", abi);
+    throw_type = EIllegalArgument;
+    throw_msg = msg;
+    goto cleanup;
+  }
+
+  cache = (cif_cache*)L2A((*env)->GetLongField(env, function, FID_Function_cifCache));
+  if (cache != NULL) {
+    pcif = get_cached_cif(cache, abi, fixed_args, nargs, return_type, arg_types);
+  }
+  if (pcif == NULL) {
+    pcif = &cif;
+    status = fixed_args
+      ? ffi_prep_cif_var(&cif, abi, fixed_args, nargs, return_type, arg_types)
+      : ffi_prep_cif(&cif, abi, nargs, return_type, arg_types);
+  }
+  if (ffi_error(env, "Native call setup", status)) {
+    goto cleanup;
+  }
+  // Pinned arrays are acquired last, since no other JNI calls are allowed
+  // until they are released
+  for (i=0;i < array_count && critical_count;i++) {
+    if (!acquire_critical_array(env, &arrays[i])) {
+      throw_type = EOutOfMemory;
+      throw_msg = "Could not pin primitive array";
       goto cleanup;
     }
-    break;
   }
-
-  status = fixed_args
-    ? ffi_prep_cif_var(&cif, abi, fixed_args, nargs, return_type, arg_types)
-    : ffi_prep_cif(&cif, abi, nargs, return_type, arg_types);
-  if (!ffi_error(env, "Native call setup", status)) {
+  {
     PSTART();
     if ((flags & THROW_LAST_ERROR) != 0) {
       SET_LAST_ERROR(0);
     }
-    ffi_call(&cif, FFI_FN(func), presult, arg_values);
+    ffi_call(pcif, FFI_FN(func), presult, arg_values);
+    completed = 1;
     {
       int err = GET_LAST_ERROR();
+      for (i=0;i < array_count && critical_count;i++) {
+        release_critical_array(env, &arrays[i]);
+      }
       JNA_set_last_error(env, err);
       if ((flags & THROW_LAST_ERROR) && err) {
         char* emsg = STR_ERROR(err);
@@ -707,10 +993,12 @@ dispatch(JNIEnv *env, void* func, jint flags, jobjectArray args,
 
  cleanup:
 
-  // Release array elements
+  // Release array elements, pinned ones first
+  for (i=0;i < array_count && critical_count;i++) {
+    release_critical_array(env, &arrays[i]);
+  }
   for (i=0;i < array_count;i++) {
-    array_elements[i].release(env, array_elements[i].array,
-                              array_elements[i].elems, 0);
+    release_array_arg(env, &arrays[i], completed);
   }
 
   // Must raise any exception *after* all other JNI operations
@@ -1761,6 +2049,7 @@ typedef struct _method_data {
   ffi_type** arg_types;
   ffi_type** closure_arg_types;
   int*    flags;
+  int*    array_modes;
   int     rflag;
   jobject closure_method;
   jobject* to_native;
@@ -1782,6 +2071,9 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
   void** volatile objects = NULL;
   release_t* volatile release = NULL;
   void** volatile elems = NULL;
+  array_arg* volatile arrays = NULL;
+  volatile int critical_count = 0;
+  volatile int completed = 0;
   unsigned i;
   void* oldresp = resp;
   const char* volatile throw_type = NULL;
@@ -1794,6 +2086,10 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
     release = alloca(data->cif.nargs * sizeof(release_t));
     memset(release, 0, data->cif.nargs * sizeof(release_t));
     elems = alloca(data->cif.nargs * sizeof(void*));
+    if (data->array_modes) {
+      arrays = alloca(data->cif.nargs * sizeof(array_arg));
+      memset(arrays, 0, data->cif.nargs * sizeof(array_arg));
+    }
     for (i=0;i < data->cif.nargs;i++) {
       if (data->flags[i] == CVT_DEFAULT) {
         continue;
@@ -1802,6 +2098,30 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
           && *(void **)args[i] == NULL) {
         continue;
       }
+      if (arrays && data->array_modes[i]) {
+        char type = 0;
+        switch(data->flags[i]) {
+        case CVT_ARRAY_BOOLEAN: type = 'Z'; break;
+        case CVT_ARRAY_BYTE: type = 'B'; break;
+        case CVT_ARRAY_SHORT: type = 'S'; break;
+        case CVT_ARRAY_CHAR: type = 'C'; break;
+        case CVT_ARRAY_INT: type = 'I'; break;
+        case CVT_ARRAY_LONG: type = 'J'; break;
+        case CVT_ARRAY_FLOAT: type = 'F'; break;
+        case CVT_ARRAY_DOUBLE: type = 'D'; break;
+        }
+        if (!get_array_arg(env, &arrays[i], *(jarray *)args[i], type, data->array_modes[i])) {
+          throw_type = EOutOfMemory;
+          throw_msg = "Could not obtain memory for primitive buffer";
+          goto cleanup;
+        }
+        *(void **)args[i] = arrays[i].elems;
+        arrays[i].target = (void **)args[i];
+        if (data->array_modes[i] & ARRAY_PINNED) {
+          ++critical_count;
+        }
+        continue;
+      }
       switch(data->flags[i]) {
       case CVT_INTEGER_TYPE:
         {
@@ -1931,14 +2251,28 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
     resp = alloca(data->cif.rtype->size);
   }
 
+  // Pinned arrays are acquired last, since no other JNI calls are allowed
+  // until they are released
+  for (i=0;i < data->cif.nargs && critical_count;i++) {
+    if (!acquire_critical_array(env, &arrays[i])) {
+      throw_type = EOutOfMemory;
+      throw_msg = "Could not pin primitive array";
+      goto cleanup;
+    }
+  }
+
   {
     PSTART();
     if (data->throw_last_error) {
       SET_LAST_ERROR(0);
     }
     ffi_call(&data->cif, FFI_FN(data->fptr), resp, args);
+    completed = 1;
     {
       int err = GET_LAST_ERROR();
+      for (i=0;i < data->cif.nargs && critical_count;i++) {
+        release_critical_array(env, &arrays[i]);
+      }
       JNA_set_last_error(env, err);
       if (data->throw_last_error && err) {
         char* emsg = STR_ERROR(err);
@@ -2012,8 +2346,15 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
   }
 
   cleanup:
+  for (i=0;i < data->cif.nargs && critical_count;i++) {
+    release_critical_array(env, &arrays[i]);
+  }
   if (data->flags) {
     for (i=0;i < data->cif.nargs;i++) {
+      if (arrays && data->array_modes[i]) {
+        release_array_arg(env, &arrays[i], completed);
+        continue;
+      }
       switch(data->flags[i]) {
       case CVT_STRUCTURE:
         if (objects[i] && !(*env)->ExceptionCheck(env)) {
@@ -2105,11 +2446,11 @@ closure_handler(ffi_cif* cif, void* resp, void** argp, void *cdata)
  */
 JNIEXPORT jlong JNICALL 
 Java_com_sun_jna_Native_invokePointer (JNIEnv *env, jclass UNUSED(cls),
-                                       jobject UNUSED(function), jlong fp,
+                                       jobject function, jlong fp,
                                        jint callconv, jobjectArray arr)
 {
     jvalue result;
-    dispatch(env, L2A(fp), callconv, arr, &ffi_type_pointer, &result);
+    dispatch(env, function, L2A(fp), callconv, arr, &ffi_type_pointer, &result);
     return A2L(result.l);
 }
 
@@ -2121,11 +2462,11 @@ Java_com_sun_jna_Native_invokePointer (JNIEnv *env, jclass UNUSED(cls),
  */
 JNIEXPORT jobject 
 JNICALL Java_com_sun_jna_Native_invokeObject(JNIEnv *env, jclass UNUSED(cls),
-                                             jobject UNUSED(function), jlong fp,
+                                             jobject function, jlong fp,
                                              jint callconv, jobjectArray arr)
 {
     jvalue result;
-    dispatch(env, L2A(fp), callconv, arr, &ffi_type_pointer, &result);
+    dispatch(env, function, L2A(fp), callconv, arr, &ffi_type_pointer, &result);
     return result.l;
 }
 
@@ -2137,7 +2478,7 @@ JNICALL Java_com_sun_jna_Native_invokeObject(JNIEnv *env, jclass UNUSED(cls),
  */
 JNIEXPORT void JNICALL 
 Java_com_sun_jna_Native_invokeStructure(JNIEnv *env, jclass UNUSED(cls), 
-                                        jobject UNUSED(function), jlong fp,
+                                        jobject function, jlong fp,
                                         jint callconv, jobjectArray arr,
                                         jlong memory, jlong type_info)
 {
@@ -2146,10 +2487,154 @@ Java_com_sun_jna_Native_invokeStructure(JNIEnv *env, jclass UNUSED(cls),
     throwByName(env, EIllegalState, "Return structure type info not initialized");
   }
   else {
-    dispatch(env, L2A(fp), callconv, arr, rtype, L2A(memory));
+    dispatch(env, function, L2A(fp), callconv, arr, rtype, L2A(memory));
+  }
+}
+
+static ffi_type*
+get_raw_type(int code) {
+  switch (code) {
+  case RAW_VOID: return &ffi_type_void;
+  case RAW_INT: return &ffi_type_sint32;
+  case RAW_LONG: return &ffi_type_sint64;
+  case RAW_POINTER: return &ffi_type_pointer;
+  case RAW_FLOAT: return &ffi_type_float;
+  case RAW_DOUBLE: return &ffi_type_double;
+  default: return NULL;
   }
 }
 
+/*
+ * Class:     com_sun_jna_Native
+ * Method:    invokeRaw
+ * Signature: (Lcom/sun/jna/Function;JIIJJJJ)J
+ */
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_invokeRaw(JNIEnv *env, jclass UNUSED(cls),
+                                  jobject function, jlong fp, jint flags,
+                                  jint signature, jlong a0, jlong a1,
+                                  jlong a2, jlong a3)
+{
+  jlong raw_args[RAW_MAX_NARGS];
+  jvalue c_args[RAW_MAX_NARGS];
+  ffi_type* arg_types[RAW_MAX_NARGS];
+  void* arg_values[RAW_MAX_NARGS];
+  ffi_type* return_type = get_raw_type(signature & 0xF);
+  int nargs = (signature >> 4) & 0xF;
+  jvalue result;
+  ffi_arg int_result = 0;
+  jlong value = 0;
+  ffi_cif cif;
+  ffi_cif* pcif = NULL;
+  cif_cache* cache;
+  ffi_abi abi;
+  ffi_status status = FFI_OK;
+  char msg[MSG_SIZE];
+  const char* volatile throw_type = NULL;
+  const char* volatile throw_msg = NULL;
+  int i;
+
+  raw_args[0] = a0; raw_args[1] = a1; raw_args[2] = a2; raw_args[3] = a3;
+  if (return_type == NULL || nargs > RAW_MAX_NARGS) {
+    throwByName(env, EIllegalArgument, "Invalid signature");
+    return 0;
+  }
+  for (i=0;i < nargs;i++) {
+    int code = (signature >> (8 + 4 * i)) & 0xF;
+    switch (code) {
+    case RAW_INT:
+      c_args[i].i = (jint)raw_args[i];
+      arg_values[i] = &c_args[i].i;
+      break;
+    case RAW_LONG:
+      c_args[i].j = raw_args[i];
+      arg_values[i] = &c_args[i].j;
+      break;
+    case RAW_POINTER:
+      c_args[i].l = L2A(raw_args[i]);
+      arg_values[i] = &c_args[i].l;
+      break;
+    case RAW_FLOAT: {
+      jint bits = (jint)raw_args[i];
+      memcpy(&c_args[i].f, &bits, sizeof(jfloat));
+      arg_values[i] = &c_args[i].f;
+      break;
+    }
+    case RAW_DOUBLE:
+      memcpy(&c_args[i].d, &raw_args[i], sizeof(jdouble));
+      arg_values[i] = &c_args[i].d;
+      break;
+    default:
+      throwByName(env, EIllegalArgument, "Invalid signature");
+      return 0;
+    }
+    arg_types[i] = get_raw_type(code);
+  }
+
+  if (!get_abi(flags & MASK_CC, &abi)) {
+    snprintf(msg, sizeof(msg),
+             "Unrecognized calling convention: %d", abi);
+    throwByName(env, EIllegalArgument, msg);
+    return 0;
+  }
+
+  cache = (cif_cache*)L2A((*env)->GetLongField(env, function, FID_Function_cifCache));
+  if (cache != NULL) {
+    pcif = get_cached_cif(cache, abi, 0, nargs, return_type, arg_types);
+  }
+  if (pcif == NULL) {
+    pcif = &cif;
+    status = ffi_prep_cif(&cif, abi, nargs, return_type, arg_types);
+  }
+  if (!ffi_error(env, "Native call setup", status)) {
+    PSTART();
+    if ((flags & THROW_LAST_ERROR) != 0) {
+      SET_LAST_ERROR(0);
+    }
+    if (return_type == &ffi_type_sint32) {
+      // Integral results smaller than a register are widened to ffi_arg
+      ffi_call(pcif, FFI_FN(L2A(fp)), &int_result, arg_values);
+      value = (jint)int_result;
+    }
+    else {
+      ffi_call(pcif, FFI_FN(L2A(fp)), &result, arg_values);
+      if (return_type == &ffi_type_sint64) {
+        value = result.j;
+      }
+      else if (return_type == &ffi_type_pointer) {
+        value = A2L(result.l);
+      }
+      else if (return_type == &ffi_type_float) {
+        jint bits;
+        memcpy(&bits, &result.f, sizeof(jint));
+        value = bits;
+      }
+      else if (return_type == &ffi_type_double) {
+        memcpy(&value, &result.d, sizeof(jlong));
+      }
+    }
+    {
+      int err = GET_LAST_ERROR();
+      JNA_set_last_error(env, err);
+      if ((flags & THROW_LAST_ERROR) && err) {
+        char* emsg = STR_ERROR(err);
+        snprintf(msg, MSG_SIZE, "[%d] %s", err, emsg);
+        free(emsg);
+        throw_type = ELastError;
+        throw_msg = msg;
+      }
+    }
+
+    PROTECTED_END(do { throw_type=EError;throw_msg="Invalid memory access";} while(0));
+  }
+
+  // Must raise any exception *after* all other JNI operations
+  if (throw_type) {
+    throwByName(env, throw_type, throw_msg);
+  }
+  return value;
+}
+
 /*
  * Class:     com_sun_jna_Native
  * Method:    invokeDouble
@@ -2157,11 +2642,11 @@ Java_com_sun_jna_Native_invokeStructure(JNIEnv *env, jclass UNUSED(cls),
  */
 JNIEXPORT jdouble JNICALL
 Java_com_sun_jna_Native_invokeDouble(JNIEnv *env, jclass UNUSED(cls), 
-                                     jobject UNUSED(function), jlong fp, 
+                                     jobject function, jlong fp, 
                                      jint callconv, jobjectArray arr)
 {
     jvalue result;
-    dispatch(env, L2A(fp), callconv, arr, &ffi_type_double, &result);
+    dispatch(env, function, L2A(fp), callconv, arr, &ffi_type_double, &result);
     return result.d;
 }
 
@@ -2172,11 +2657,11 @@ Java_com_sun_jna_Native_invokeDouble(JNIEnv *env, jclass UNUSED(cls),
  */
 JNIEXPORT jfloat JNICALL
 Java_com_sun_jna_Native_invokeFloat(JNIEnv *env, jclass UNUSED(cls), 
-                                    jobject UNUSED(function), jlong fp,
+                                    jobject function, jlong fp,
                                     jint callconv, jobjectArray arr)
 {
     jvalue result;
-    dispatch(env, L2A(fp), callconv, arr, &ffi_type_float, &result);
+    dispatch(env, function, L2A(fp), callconv, arr, &ffi_type_float, &result);
     return result.f;
 }
 
@@ -2187,11 +2672,11 @@ Java_com_sun_jna_Native_invokeFloat(JNIEnv *env, jclass UNUSED(cls),
  */
 JNIEXPORT jint JNICALL
 Java_com_sun_jna_Native_invokeInt(JNIEnv *env, jclass UNUSED(cls), 
-                                  jobject UNUSED(function), jlong fp, jint callconv,
+                                  jobject function, jlong fp, jint callconv,
                                   jobjectArray arr)
 {
     ffi_arg result;
-    dispatch(env, L2A(fp), callconv, arr, &ffi_type_sint32, &result);
+    dispatch(env, function, L2A(fp), callconv, arr, &ffi_type_sint32, &result);
     return (jint)result;
 }
 
@@ -2202,11 +2687,11 @@ Java_com_sun_jna_Native_invokeInt(JNIEnv *env, jclass UNUSED(cls),
  */
 JNIEXPORT jlong JNICALL
 Java_com_sun_jna_Native_invokeLong(JNIEnv *env, jclass UNUSED(cls),
-                                   jobject UNUSED(function), jlong fp, jint callconv,
+                                   jobject function, jlong fp, jint callconv,
                                    jobjectArray arr)
 {
     jvalue result;
-    dispatch(env, L2A(fp), callconv, arr, &ffi_type_sint64, &result);
+    dispatch(env, function, L2A(fp), callconv, arr, &ffi_type_sint64, &result);
     return result.j;
 }
 
@@ -2217,11 +2702,27 @@ Java_com_sun_jna_Native_invokeLong(JNIEnv *env, jclass UNUSED(cls),
  */
 JNIEXPORT void JNICALL
 Java_com_sun_jna_Native_invokeVoid(JNIEnv *env, jclass UNUSED(cls),
-                                   jobject UNUSED(function), jlong fp, jint callconv,
+                                   jobject function, jlong fp, jint callconv,
                                    jobjectArray arr)
 {
     jvalue result;
-    dispatch(env, L2A(fp), callconv, arr, &ffi_type_void, &result);
+    dispatch(env, function, L2A(fp), callconv, arr, &ffi_type_void, &result);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_createCallInterfaceCache(JNIEnv *env, jclass UNUSED(cls)) {
+  cif_cache* cache = (cif_cache*)calloc(1, sizeof(cif_cache));
+  if (cache == NULL) {
+    throwByName(env, EOutOfMemory, "Can't allocate call interface cache");
+  }
+  return A2L(cache);
+}
+
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_freeCallInterfaceCache(JNIEnv *UNUSED(env),
+                                               jclass UNUSED(cls),
+                                               jlong ptr) {
+  free_cif_cache((cif_cache*)L2A(ptr));
 }
 
 JNIEXPORT jlong JNICALL
@@ -2248,6 +2749,14 @@ Java_com_sun_jna_Native_freeNativeCallback(JNIEnv *env,
   free_callback(env, (callback*)L2A(ptr));
 }
 
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_rebindNativeCallback(JNIEnv *env,
+                                             jclass UNUSED(cls),
+                                             jlong ptr,
+                                             jobject obj) {
+  rebind_callback(env, (callback*)L2A(ptr), obj);
+}
+
 /*
  * Class:     Native
  * Method:    open
@@ -2434,9 +2943,72 @@ JNIEXPORT jlong JNICALL Java_com_sun_jna_Native_indexOf
   volatile jlong result = -1L;
   PSTART();
   while (i >= 0 && result == -1L) {
-    if (peer[i] == value)
-      result = i;
-    ++i;
+    // Search up to the end of the current (at least 4k) page, which is
+    // readable if its first byte is
+    size_t chunk = 4096 - (((size_t)(peer + i)) & 4095);
+    jbyte *found = (jbyte *)memchr(peer + i, value, chunk);
+    if (found != NULL)
+      result = found - peer;
+    i += chunk;
+  }
+  PEND(env);
+
+  return result;
+}
+
+/*
+ * Class:     com_sun_jna_Native
+ * Method:    indexOfRange
+ * Signature: (Lcom/sun/jna/Pointer;JJJB)J
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_jna_Native_indexOfRange
+(JNIEnv * UNUSED_ENV(env), jclass UNUSED(cls), jobject UNUSED(pointer), jlong addr, jlong offset, jlong length, jbyte value)
+{
+  jbyte *peer = (jbyte *)L2A(addr + offset);
+  jbyte * volatile found = NULL;
+  PSTART();
+  found = (jbyte *)memchr(peer, value, (size_t)length);
+  PEND(env);
+
+  return found != NULL ? (jlong)(found - peer) : -1L;
+}
+
+/*
+ * Class:     com_sun_jna_Native
+ * Method:    moveMemory
+ * Signature: (Lcom/sun/jna/Pointer;JJJJ)V
+ */
+JNIEXPORT void JNICALL Java_com_sun_jna_Native_moveMemory
+(JNIEnv * UNUSED_ENV(env), jclass UNUSED(cls), jobject UNUSED(pointer), jlong addr, jlong offset, jlong dstaddr, jlong length)
+{
+  PSTART();
+  memmove(L2A(dstaddr), L2A(addr + offset), (size_t)length);
+  PEND(env);
+}
+
+/*
+ * Class:     com_sun_jna_Native
+ * Method:    mismatch
+ * Signature: (Lcom/sun/jna/Pointer;JJJJ)J
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_jna_Native_mismatch
+(JNIEnv * UNUSED_ENV(env), jclass UNUSED(cls), jobject UNUSED(pointer), jlong addr, jlong offset, jlong otheraddr, jlong length)
+{
+  const unsigned char *a = (const unsigned char *)L2A(addr + offset);
+  const unsigned char *b = (const unsigned char *)L2A(otheraddr);
+  volatile jlong i = 0;
+  volatile jlong result = -1L;
+  PSTART();
+  // Let memcmp find the block containing the first difference
+  while (i < length && result == -1L) {
+    size_t chunk = (size_t)(length - i < 256 ? length - i : 256);
+    if (memcmp(a + i, b + i, chunk) != 0) {
+      jlong j = i;
+      while (a[j] == b[j])
+        ++j;
+      result = j;
+    }
+    i += chunk;
   }
   PEND(env);
 
@@ -2829,6 +3401,42 @@ JNIEXPORT void JNICALL Java_com_sun_jna_Native_free
     free(L2A(ptr));
 }
 
+/*
+ * Class:     Native
+ * Method:    mallocAligned
+ * Signature: (JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_jna_Native_mallocAligned
+(JNIEnv *UNUSED(env), jclass UNUSED(cls), jlong size, jlong alignment)
+{
+#if defined(_WIN32_WCE)
+    return 0;
+#elif defined(_WIN32)
+    return A2L(_aligned_malloc((size_t)size, (size_t)alignment));
+#else
+    void* ptr = NULL;
+    if (posix_memalign(&ptr, (size_t)alignment, (size_t)size) != 0) {
+        return 0;
+    }
+    return A2L(ptr);
+#endif
+}
+
+/*
+ * Class:     Native
+ * Method:    freeAligned
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_sun_jna_Native_freeAligned
+(JNIEnv *UNUSED(env), jclass UNUSED(cls), jlong ptr)
+{
+#if defined(_WIN32) && !defined(_WIN32_WCE)
+    _aligned_free(L2A(ptr));
+#else
+    free(L2A(ptr));
+#endif
+}
+
 
 /*
  * Class:     Native
@@ -2873,6 +3481,26 @@ Java_com_sun_jna_Native_initIDs(JNIEnv *env, jclass cls) {
     throwByName(env, EUnsatisfiedLink,
                 "Can't obtain peer field ID for class com.sun.jna.Pointer");
   }
+  else if (!LOAD_CREF(env, Function, "com/sun/jna/Function")) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain class com.sun.jna.Function");
+  }
+  else if (!LOAD_FID(env, FID_Function_cifCache, classFunction, "cifCache", "J")) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain cifCache field ID for class com.sun.jna.Function");
+  }
+  else if (!LOAD_CREF(env, FunctionArrayArgument, "com/sun/jna/Function$ArrayArgument")) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain class com.sun.jna.Function$ArrayArgument");
+  }
+  else if (!LOAD_FID(env, FID_FunctionArrayArgument_array, classFunctionArrayArgument, "array", "Ljava/lang/Object;")) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain array field ID for class com.sun.jna.Function$ArrayArgument");
+  }
+  else if (!LOAD_FID(env, FID_FunctionArrayArgument_mode, classFunctionArrayArgument, "mode", "I")) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain mode field ID for class com.sun.jna.Function$ArrayArgument");
+  }
   else if (!(classNative = (*env)->NewWeakGlobalRef(env, cls))) {
     throwByName(env, EUnsatisfiedLink,
                 "Can't obtain global reference for class com.sun.jna.Native");
@@ -3296,12 +3924,12 @@ Java_com_sun_jna_Native__1getDirectBufferPointer(JNIEnv *env, jclass UNUSED(clas
 
 #ifdef HAVE_PROTECTION
 JNIEXPORT void JNICALL
-Java_com_sun_jna_Native_setProtected(JNIEnv *UNUSED(env), jclass UNUSED(classp), jboolean protect_access) {
+Java_com_sun_jna_Native__1setProtected(JNIEnv *UNUSED(env), jclass UNUSED(classp), jboolean protect_access) {
   _protect = protect_access;
 }
 #else
 JNIEXPORT void JNICALL
-Java_com_sun_jna_Native_setProtected(JNIEnv *UNUSED(env), jclass UNUSED(classp), jboolean UNUSED(protect_access)) {
+Java_com_sun_jna_Native__1setProtected(JNIEnv *UNUSED(env), jclass UNUSED(classp), jboolean UNUSED(protect_access)) {
   /* Unsupported */
 }
 #endif
@@ -3396,7 +4024,8 @@ JNI_OnUnload(JavaVM *vm, void *UNUSED(reserved)) {
     &classLong, &classPrimitiveLong,
     &classFloat, &classPrimitiveFloat,
     &classDouble, &classPrimitiveDouble,
-    &classPointer, &classNative, &classWString,
+    &classPointer, &classFunction, &classFunctionArrayArgument,
+    &classNative, &classWString,
     &classStructure, &classStructureByValue,
     &classCallbackReference, &classAttachOptions, &classNativeMapped,
     &classIntegerType, &classPointerType,
@@ -3462,6 +4091,7 @@ Java_com_sun_jna_Native_unregister(JNIEnv *env, jclass UNUSED(ncls), jclass cls,
     free(md->arg_types);
     free(md->closure_arg_types);
     free(md->flags);
+    free(md->array_modes);
     free((void *)md->encoding);
     free(md);
   }
@@ -3525,6 +4155,7 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
   data->closure_arg_types[1] = &ffi_type_pointer;
   data->closure_method = NULL;
   data->flags = cvts ? calloc(argc, sizeof(jint)) : NULL;
+  data->array_modes = NULL;
   data->rflag = rconversion;
   data->to_native = NULL;
   data->from_native = from_native ? (*env)->NewWeakGlobalRef(env, from_native) : NULL;
@@ -3534,7 +4165,13 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
     data->closure_arg_types[i+2] = (ffi_type*)L2A(closure_types[i]);
     data->arg_types[i] = (ffi_type*)L2A(types[i]);
     if (cvts) {
-      data->flags[i] = cvts[i];
+      data->flags[i] = cvts[i] & CVT_MASK;
+      if (cvts[i] >> ARRAY_MODE_SHIFT) {
+        if (!data->array_modes) {
+          data->array_modes = calloc(argc, sizeof(int));
+        }
+        data->array_modes[i] = cvts[i] >> ARRAY_MODE_SHIFT;
+      }
       // Type mappers only apply to non-primitive arguments
       if (cvts[i] == CVT_TYPE_MAPPER
           || cvts[i] == CVT_TYPE_MAPPER_STRING
@@ -3583,6 +4220,7 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
   if (status != FFI_OK) {
     free(data->arg_types);
     free(data->flags);
+    free(data->array_modes);
     free(data);
     data = NULL;
   }
@@ -3671,6 +4309,16 @@ Java_com_sun_jna_Native_setDetachState(JNIEnv* env, jclass UNUSED(cls), jboolean
   JNA_detach(env, d, L2A(flag));
 }
 
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_setCallbackAttachPolicy(JNIEnv* UNUSED_ENV(env), jclass UNUSED(cls), jboolean keep) {
+  JNA_set_attach_policy(keep);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_getCallbackThreadCount(JNIEnv* UNUSED_ENV(env), jclass UNUSED(cls), jboolean detached) {
+  return JNA_callback_thread_count(detached);
+}
+
 #ifdef __cplusplus
 }
 #endif
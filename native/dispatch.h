@@ -121,6 +121,26 @@ enum {
   CVT_BYTE = com_sun_jna_Native_CVT_BYTE,
 };
 
+/* primitive array argument flags (In/Out/Pinned annotations) */
+enum {
+  ARRAY_IN = com_sun_jna_Native_ARRAY_IN,
+  ARRAY_OUT = com_sun_jna_Native_ARRAY_OUT,
+  ARRAY_PINNED = com_sun_jna_Native_ARRAY_PINNED,
+};
+#define ARRAY_MODE_SHIFT com_sun_jna_Native_ARRAY_MODE_SHIFT
+#define CVT_MASK ((1 << ARRAY_MODE_SHIFT) - 1)
+
+/* argument and return type codes for Native.invokeRaw */
+enum {
+  RAW_VOID = com_sun_jna_Native_RAW_VOID,
+  RAW_INT = com_sun_jna_Native_RAW_INT,
+  RAW_LONG = com_sun_jna_Native_RAW_LONG,
+  RAW_POINTER = com_sun_jna_Native_RAW_POINTER,
+  RAW_FLOAT = com_sun_jna_Native_RAW_FLOAT,
+  RAW_DOUBLE = com_sun_jna_Native_RAW_DOUBLE,
+};
+#define RAW_MAX_NARGS com_sun_jna_Native_RAW_MAX_NARGS
+
 /* callback behavior flags */
 enum {
   CB_HAS_INITIALIZER = com_sun_jna_Native_CB_HAS_INITIALIZER,
@@ -212,10 +232,13 @@ extern void JNA_set_last_error(JNIEnv*,int);
 extern int JNA_get_last_error(JNIEnv*);
 extern void JNA_callback_dispose(JNIEnv*);
 extern void JNA_detach(JNIEnv*,jboolean,void*);
+extern void JNA_set_attach_policy(jboolean);
+extern jlong JNA_callback_thread_count(jboolean);
 extern callback* create_callback(JNIEnv*, jobject, jobject,
                                  jobjectArray, jclass,
                                  callconv_t, jint, jstring);
 extern void free_callback(JNIEnv*, callback*);
+extern void rebind_callback(JNIEnv*, callback*, jobject);
 extern void extract_value(JNIEnv*, jobject, void*, size_t, jboolean, const char*);
 extern jobject new_object(JNIEnv*, char, void*, jboolean, const char*);
 extern jboolean is_protected();
@@ -840,6 +840,16 @@ fillInt16Buffer(int16_t *buf, int len, short value) {
   return len;
 }
 
+EXPORT int32_t
+sumInt16Buffer(const int16_t *buf, int len) {
+  int32_t sum = 0;
+  int i;
+  for (i=0;i < len;i++) {
+    sum += buf[i];
+  }
+  return sum;
+}
+
 EXPORT int32_t 
 fillInt32Buffer(int32_t *buf, int len, int32_t value) {
   int i;
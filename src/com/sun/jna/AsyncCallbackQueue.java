@@ -0,0 +1,324 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue which decouples <code>void</code> callbacks from the native
+ * threads invoking them.  Use {@link Native#setAsyncCallbackQueue} to
+ * dispatch a callback through a queue:
+ * <pre><code>
+ * AsyncCallbackQueue queue = new AsyncCallbackQueue(Executors.newVirtualThreadPerTaskExecutor(),
+ *                                                   4096, AsyncCallbackQueue.Backpressure.DROP_OLDEST);
+ * Native.setAsyncCallbackQueue(listener, queue);
+ * lib.register_listener(listener);
+ * </code></pre>
+ * The native caller only converts the arguments to their Java types (so
+ * that strings and structure contents are copied while the native memory
+ * is still valid) and stores them in a ring buffer, then returns
+ * immediately.  The buffer is drained in order by a single task at a time
+ * on the given {@link Executor}, so a slow callback delays later events
+ * instead of the native caller.  A queue may be shared by several
+ * callbacks, which are then invoked in the order of their events.
+ * <p>
+ * Since the callback runs after the native call has returned, changes to
+ * {@link Structure} arguments are not written back to native memory, and
+ * {@link Pointer} arguments may no longer be valid when the callback runs.
+ * Exceptions thrown by the callback are passed to the
+ * {@link Native#getCallbackExceptionHandler() callback exception handler}.
+ * When the buffer is full, events are handled according to the
+ * {@link Backpressure} policy.  If the executor rejects the task draining
+ * the buffer (e.g. after it has been shut down), the native caller drains
+ * it instead.
+ */
+public class AsyncCallbackQueue {
+
+    /** How to handle a callback event when the queue is full. */
+    public enum Backpressure {
+        /** Block the native caller until there is room in the queue.  An
+         * event raised by a callback of the same queue is run on the
+         * calling thread instead, since that thread is the one draining
+         * the queue.
+         */
+        BLOCK,
+        /** Discard the new event. */
+        DROP_NEWEST,
+        /** Discard the oldest queued event to make room for the new one. */
+        DROP_OLDEST,
+        /** Invoke the callback on the native caller's thread, out of order
+         * with the queued events.
+         */
+        CALLER_RUNS,
+    }
+
+    private final Executor executor;
+    private final Backpressure backpressure;
+    private final Runnable[] ring;
+    private final Callback[] owners;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    // Guarded by lock
+    private int head;
+    private int size;
+    private int peakSize;
+    private boolean scheduled;
+    private Thread drainThread;
+    private long dispatched;
+    private long dropped;
+    private long callerRuns;
+    private long rejected;
+
+    /**
+     * @param executor runs the callbacks
+     * @param capacity maximum number of queued events
+     * @param backpressure what to do with an event when the queue is full
+     */
+    public AsyncCallbackQueue(Executor executor, int capacity, Backpressure backpressure) {
+        if (executor == null || backpressure == null) {
+            throw new NullPointerException("Executor and backpressure policy must not be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+        this.executor = executor;
+        this.backpressure = backpressure;
+        this.ring = new Runnable[capacity];
+        this.owners = new Callback[capacity];
+    }
+
+    /** Uses {@link Backpressure#BLOCK}, so that no event is lost. */
+    public AsyncCallbackQueue(Executor executor, int capacity) {
+        this(executor, capacity, Backpressure.BLOCK);
+    }
+
+    /** Queue a callback invocation; called on the native thread. */
+    void dispatch(Callback cb, Runnable task) {
+        boolean runNow = false;
+        boolean schedule = false;
+        lock.lock();
+        try {
+            if (size == ring.length) {
+                switch(backpressure) {
+                case BLOCK:
+                    if (drainThread == Thread.currentThread()) {
+                        // Only this thread makes room in the queue
+                        ++callerRuns;
+                        runNow = true;
+                        break;
+                    }
+                    boolean interrupted = false;
+                    while (size == ring.length) {
+                        try {
+                            notFull.await();
+                        }
+                        catch(InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+                case DROP_NEWEST:
+                    ++dropped;
+                    return;
+                case DROP_OLDEST:
+                    ring[head] = null;
+                    owners[head] = null;
+                    head = (head + 1) % ring.length;
+                    --size;
+                    ++dropped;
+                    break;
+                default:
+                    ++callerRuns;
+                    runNow = true;
+                }
+            }
+            if (!runNow) {
+                int tail = (head + size) % ring.length;
+                ring[tail] = task;
+                owners[tail] = cb;
+                if (++size > peakSize) {
+                    peakSize = size;
+                }
+                schedule = !scheduled;
+                scheduled = true;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if (runNow) {
+            run(cb, task);
+        }
+        else if (schedule) {
+            try {
+                executor.execute(drainer);
+            }
+            catch(RejectedExecutionException e) {
+                // Nothing else would drain the queue, and callers blocked
+                // on a full queue would wait forever
+                lock.lock();
+                try {
+                    ++rejected;
+                }
+                finally {
+                    lock.unlock();
+                }
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            Callback cb;
+            lock.lock();
+            try {
+                if (size == 0) {
+                    scheduled = false;
+                    drainThread = null;
+                    return;
+                }
+                drainThread = Thread.currentThread();
+                task = ring[head];
+                cb = owners[head];
+                ring[head] = null;
+                owners[head] = null;
+                head = (head + 1) % ring.length;
+                --size;
+                ++dispatched;
+                notFull.signal();
+            }
+            finally {
+                lock.unlock();
+            }
+            run(cb, task);
+        }
+    }
+
+    private static void run(Callback cb, Runnable task) {
+        try {
+            task.run();
+        }
+        catch(Throwable t) {
+            Native.getCallbackExceptionHandler().uncaughtException(cb, t);
+        }
+    }
+
+    /** @return the maximum number of queued events */
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /** @return the backpressure policy */
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /** @return the number of events currently queued */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the highest number of events queued at once */
+    public int getPeakQueueDepth() {
+        lock.lock();
+        try {
+            return peakSize;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of events taken from the queue by the executor */
+    public long getDispatchedCount() {
+        lock.lock();
+        try {
+            return dispatched;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of events discarded because the queue was full */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of events run on the native caller's thread
+     * because the queue was full
+     */
+    public long getCallerRunsCount() {
+        lock.lock();
+        try {
+            return callerRuns;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of times the executor rejected the task draining
+     * the queue, which then ran on the native caller's thread
+     */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncCallbackQueue[" + getQueueDepth() + "/" + ring.length + ", " + backpressure + "]";
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A {@link Pointer} to the contents of a Java <code>byte[]</code> or
+ * {@link ByteBuffer} (heap, direct or mapped) instead of native memory.
+ * <p>
+ * Its main use is decoding and encoding binary formats with existing
+ * {@link Structure} definitions, without allocating native memory and
+ * copying the data into it:
+ * <pre><code>
+ * Header header = Structure.newInstance(Header.class, new BufferPointer(packet));
+ * // or, with a Pointer constructor: new Header(new BufferPointer(packet))
+ * </code></pre>
+ * <code>read()</code> and <code>write()</code> of a structure backed by a
+ * buffer behave as with native memory, nested structures and arrays
+ * included.  Values use native byte order unless another order is given.
+ * Accesses are bounds-checked against the buffer's remaining bytes at
+ * construction; later changes of its position or limit are ignored.
+ * <p>
+ * A Java buffer has no native address, so pointer values
+ * (<code>Pointer</code>, <code>String</code>, callback, structure
+ * <code>ByReference</code> and NIO buffer fields) can only be
+ * <code>NULL</code>: reading any other value and writing a non-null one
+ * throw {@link UnsupportedOperationException}.  For the same reason a
+ * <code>BufferPointer</code>, or a structure using one, must not be passed
+ * to native code.
+ */
+public class BufferPointer extends Pointer {
+
+    private final ByteBuffer buffer;
+    private final int size;
+
+    /** Access the given array in native byte order. */
+    public BufferPointer(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /** Access the remaining bytes of the given buffer in native byte order.
+     */
+    public BufferPointer(ByteBuffer data) {
+        this(data, ByteOrder.nativeOrder());
+    }
+
+    /** Access the remaining bytes of the given buffer in the given byte
+     * order, for example {@link ByteOrder#BIG_ENDIAN} for network formats.
+     */
+    public BufferPointer(ByteBuffer data, ByteOrder order) {
+        super(0);
+        this.buffer = data.slice().order(order);
+        this.size = buffer.capacity();
+    }
+
+    /** @return the number of bytes accessible through this pointer */
+    public long size() {
+        return size;
+    }
+
+    /** @return the byte order of multi-byte values */
+    public ByteOrder order() {
+        return buffer.order();
+    }
+
+    private int index(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException("Bounds exceeds available space : size="
+                                                + size + ", offset=" + (offset + length));
+        }
+        return (int) offset;
+    }
+
+    /** @return a buffer positioned at the given range */
+    private ByteBuffer range(long offset, long length) {
+        int index = index(offset, length);
+        ByteBuffer b = buffer.duplicate().order(buffer.order());
+        ((Buffer) b).limit(index + (int) length).position(index);
+        return b;
+    }
+
+    @Override
+    public Pointer share(long offset, long sz) {
+        if (offset == 0 && (sz == 0 || sz == size)) {
+            return this;
+        }
+        return new BufferPointer(range(offset, sz == 0 ? size - offset : sz), buffer.order());
+    }
+
+    @Override
+    public long indexOf(long offset, byte value) {
+        return indexOf(offset, size - offset, value);
+    }
+
+    @Override
+    public long indexOf(long offset, long length, byte value) {
+        int start = index(offset, length);
+        for (int i=0;i < length;i++) {
+            if (buffer.get(start + i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void copyTo(long offset, Pointer dst, long dstOffset, long length) {
+        byte[] data = getByteArray(offset, (int) length);
+        dst.write(dstOffset, data, 0, data.length);
+    }
+
+    /** Copy from another, possibly native, pointer into this buffer. */
+    void copyFrom(long offset, Pointer src, long srcOffset, long length) {
+        index(offset, length);
+        byte[] data = src.getByteArray(srcOffset, (int) length);
+        write(offset, data, 0, data.length);
+    }
+
+    @Override
+    public long mismatch(long offset, Pointer other, long otherOffset, long length) {
+        index(offset, length);
+        byte[] theirs = other.getByteArray(otherOffset, (int) length);
+        for (int i=0;i < theirs.length;i++) {
+            if (buffer.get((int) offset + i) != theirs[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void read(long offset, byte[] buf, int index, int length) {
+        range(offset, length).get(buf, index, length);
+    }
+
+    @Override
+    public void read(long offset, short[] buf, int index, int length) {
+        range(offset, length * 2L).asShortBuffer().get(buf, index, length);
+    }
+
+    @Override
+    public void read(long offset, char[] buf, int index, int length) {
+        for (int i=0;i < length;i++) {
+            buf[index + i] = getChar(offset + (long) i * Native.WCHAR_SIZE);
+        }
+    }
+
+    @Override
+    public void read(long offset, int[] buf, int index, int length) {
+        range(offset, length * 4L).asIntBuffer().get(buf, index, length);
+    }
+
+    @Override
+    public void read(long offset, long[] buf, int index, int length) {
+        range(offset, length * 8L).asLongBuffer().get(buf, index, length);
+    }
+
+    @Override
+    public void read(long offset, float[] buf, int index, int length) {
+        range(offset, length * 4L).asFloatBuffer().get(buf, index, length);
+    }
+
+    @Override
+    public void read(long offset, double[] buf, int index, int length) {
+        range(offset, length * 8L).asDoubleBuffer().get(buf, index, length);
+    }
+
+    @Override
+    public void write(long offset, byte[] buf, int index, int length) {
+        range(offset, length).put(buf, index, length);
+    }
+
+    @Override
+    public void write(long offset, short[] buf, int index, int length) {
+        range(offset, length * 2L).asShortBuffer().put(buf, index, length);
+    }
+
+    @Override
+    public void write(long offset, char[] buf, int index, int length) {
+        for (int i=0;i < length;i++) {
+            setChar(offset + (long) i * Native.WCHAR_SIZE, buf[index + i]);
+        }
+    }
+
+    @Override
+    public void write(long offset, int[] buf, int index, int length) {
+        range(offset, length * 4L).asIntBuffer().put(buf, index, length);
+    }
+
+    @Override
+    public void write(long offset, long[] buf, int index, int length) {
+        range(offset, length * 8L).asLongBuffer().put(buf, index, length);
+    }
+
+    @Override
+    public void write(long offset, float[] buf, int index, int length) {
+        range(offset, length * 4L).asFloatBuffer().put(buf, index, length);
+    }
+
+    @Override
+    public void write(long offset, double[] buf, int index, int length) {
+        range(offset, length * 8L).asDoubleBuffer().put(buf, index, length);
+    }
+
+    @Override
+    public byte getByte(long offset) {
+        return buffer.get(index(offset, 1));
+    }
+
+    @Override
+    public char getChar(long offset) {
+        return Native.WCHAR_SIZE == 2
+            ? buffer.getChar(index(offset, 2))
+            : (char) buffer.getInt(index(offset, 4));
+    }
+
+    @Override
+    public short getShort(long offset) {
+        return buffer.getShort(index(offset, 2));
+    }
+
+    @Override
+    public int getInt(long offset) {
+        return buffer.getInt(index(offset, 4));
+    }
+
+    @Override
+    public long getLong(long offset) {
+        return buffer.getLong(index(offset, 8));
+    }
+
+    @Override
+    public float getFloat(long offset) {
+        return buffer.getFloat(index(offset, 4));
+    }
+
+    @Override
+    public double getDouble(long offset) {
+        return buffer.getDouble(index(offset, 8));
+    }
+
+    /** @return <code>null</code> for a <code>NULL</code> value
+     * @throws UnsupportedOperationException for any other value, which is
+     * not an address in this buffer
+     */
+    @Override
+    public Pointer getPointer(long offset) {
+        long value = Native.POINTER_SIZE == 8 ? getLong(offset) : getInt(offset);
+        if (value != 0) {
+            throw new UnsupportedOperationException("Can't read a pointer value from a Java buffer: " + this);
+        }
+        return null;
+    }
+
+    /** Returns a view of the buffer, without copying. */
+    @Override
+    public ByteBuffer getByteBuffer(long offset, long length) {
+        return range(offset, length).slice().order(buffer.order());
+    }
+
+    @Override
+    public String getString(long offset, String encoding) {
+        long length = indexOf(offset, (byte) 0);
+        return Native.toString(getByteArray(offset, (int) (length == -1 ? size - offset : length)), encoding);
+    }
+
+    @Override
+    public String getWideString(long offset) {
+        StringBuilder sb = new StringBuilder();
+        for (long o=offset;o < size;o += Native.WCHAR_SIZE) {
+            char c = getChar(o);
+            if (c == 0) {
+                break;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void setMemory(long offset, long length, byte value) {
+        int start = index(offset, length);
+        for (int i=0;i < length;i++) {
+            buffer.put(start + i, value);
+        }
+    }
+
+    @Override
+    public void setByte(long offset, byte value) {
+        buffer.put(index(offset, 1), value);
+    }
+
+    @Override
+    public void setChar(long offset, char value) {
+        if (Native.WCHAR_SIZE == 2) {
+            buffer.putChar(index(offset, 2), value);
+        } else {
+            buffer.putInt(index(offset, 4), value);
+        }
+    }
+
+    @Override
+    public void setShort(long offset, short value) {
+        buffer.putShort(index(offset, 2), value);
+    }
+
+    @Override
+    public void setInt(long offset, int value) {
+        buffer.putInt(index(offset, 4), value);
+    }
+
+    @Override
+    public void setLong(long offset, long value) {
+        buffer.putLong(index(offset, 8), value);
+    }
+
+    @Override
+    public void setFloat(long offset, float value) {
+        buffer.putFloat(index(offset, 4), value);
+    }
+
+    @Override
+    public void setDouble(long offset, double value) {
+        buffer.putDouble(index(offset, 8), value);
+    }
+
+    /** Only <code>null</code> can be written.
+     * @throws UnsupportedOperationException for any other value
+     */
+    @Override
+    public void setPointer(long offset, Pointer value) {
+        if (value != null) {
+            throw new UnsupportedOperationException("Can't write a pointer value to a Java buffer: " + this);
+        }
+        if (Native.POINTER_SIZE == 8) {
+            setLong(offset, 0);
+        } else {
+            setInt(offset, 0);
+        }
+    }
+
+    @Override
+    public void setWideString(long offset, String value) {
+        write(offset, value.toCharArray(), 0, value.length());
+        setChar(offset + (long) value.length() * Native.WCHAR_SIZE, (char) 0);
+    }
+
+    /** Pointers are equal if they access the same buffer offset. */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof BufferPointer)) {
+            return false;
+        }
+        BufferPointer other = (BufferPointer) o;
+        return other.size == size && sameMemory(other);
+    }
+
+    private boolean sameMemory(BufferPointer other) {
+        if (buffer.hasArray() && other.buffer.hasArray()) {
+            return buffer.array() == other.buffer.array()
+                && buffer.arrayOffset() == other.buffer.arrayOffset();
+        }
+        return buffer == other.buffer;
+    }
+
+    @Override
+    public int hashCode() {
+        return buffer.hasArray()
+            ? System.identityHashCode(buffer.array()) + buffer.arrayOffset()
+            : System.identityHashCode(buffer);
+    }
+
+    @Override
+    public String toString() {
+        return "buffer@" + (buffer.hasArray() ? buffer.arrayOffset() : 0) + " (" + size + " bytes)";
+    }
+}
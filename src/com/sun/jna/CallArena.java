@@ -0,0 +1,237 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread-local bump-pointer arena for the native memory of argument
+ * temporaries which only need to live for the duration of a single
+ * {@link Function} call (converted <code>String</code>, <code>WString</code>
+ * and array arguments).
+ * <p>
+ * Allocating these from a per-thread block avoids a <code>malloc</code>, the
+ * bookkeeping of {@link Memory} and a {@link com.sun.jna.internal.Cleaner}
+ * registration per argument.  Calls bracket their use of the arena with
+ * {@link #mark()} and {@link #reset(long)}; since a native call may re-enter
+ * Java through a callback, frames nest like a stack.  Requests that do not
+ * fit into the remaining space return nothing, and the caller falls back to
+ * a regular {@link Memory} allocation.
+ * <p>
+ * The block is only allocated once an argument needs native memory.  It
+ * starts small and is replaced by a larger one, while the arena is unused,
+ * after requests did not fit.  Virtual threads get no arena, since they are
+ * too many and too short-lived to amortize a block each.
+ * <p>
+ * Memory handed out by the arena is invalidated when its frame is reset, so
+ * pointers to converted arguments retained after a call no longer refer to
+ * the reused block.
+ * <p>
+ * The maximum size of the per-thread block is set with the system property
+ * <code>jna.call_arena_size</code> (default 8192 bytes); a size of zero
+ * disables the arena.
+ */
+final class CallArena {
+
+    static final int SIZE = Integer.getInteger("jna.call_arena_size", 8192);
+
+    /** Size of the first block allocated for a thread. */
+    static final int INITIAL_SIZE = 256;
+
+    /** Alignment of each allocation, matching that of <code>malloc</code>. */
+    private static final int ALIGN = 16;
+
+    private static final Method IS_VIRTUAL;
+    static {
+        Method isVirtual;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            isVirtual = null;
+        }
+        IS_VIRTUAL = isVirtual;
+    }
+
+    private static final ThreadLocal<CallArena> ARENAS = new ThreadLocal<CallArena>() {
+        @Override
+        protected CallArena initialValue() {
+            return new CallArena(SIZE);
+        }
+    };
+
+    /** Arena-owned view on part of the block; not freed individually. */
+    private static final class Slice extends Memory {
+        Slice(long peer, long size) {
+            this.peer = peer;
+            this.size = size;
+        }
+    }
+
+    private final long limit;
+    private Memory block;
+    private long base;
+    private long capacity;
+    private long offset;
+    /** Space needed by the largest frame which did not fit. */
+    private long wanted;
+    /** Memory objects handed out, in allocation order. */
+    private final List<Memory> issued = new ArrayList<>();
+
+    /** @param limit maximum size of the block */
+    CallArena(int limit) {
+        this.limit = limit;
+    }
+
+    /** @return the current thread's arena, or <code>null</code> if the
+     * arena is disabled or the current thread is virtual.
+     */
+    static CallArena current() {
+        if (SIZE <= 0 || isVirtual(Thread.currentThread())) {
+            return null;
+        }
+        return ARENAS.get();
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /** @return the size of the current block, zero if none is allocated */
+    long capacity() {
+        return capacity;
+    }
+
+    /** Start a frame.
+     * @return a value to pass to {@link #reset(long)} to release everything
+     * allocated after this call
+     */
+    long mark() {
+        return ((long)issued.size() << 32) | offset;
+    }
+
+    /** Release everything allocated since the given {@link #mark()},
+     * invalidating the memory objects handed out in the meantime.
+     */
+    void reset(long mark) {
+        int count = (int)(mark >>> 32);
+        for (int i=issued.size()-1;i >= count;i--) {
+            issued.remove(i).close();
+        }
+        offset = mark & 0xFFFFFFFFL;
+    }
+
+    /** Reserve native memory for a memory object which is then passed to
+     * {@link #track(Memory)}.
+     * @return the address of the reserved memory, or zero if it does not
+     * fit into the arena
+     */
+    long allocate(long size) {
+        if (size <= 0 || size > limit) {
+            return 0;
+        }
+        if (offset == 0 && Math.max(size, wanted) > capacity) {
+            grow(Math.max(size, wanted));
+        }
+        long aligned = (size + ALIGN - 1) & ~(long)(ALIGN - 1);
+        if (size > capacity - offset) {
+            // Try to fit the whole frame into the next block
+            wanted = Math.min(limit, Math.max(wanted, offset + aligned));
+            return 0;
+        }
+        long address = base + offset;
+        offset = Math.min(capacity, offset + aligned);
+        return address;
+    }
+
+    /** Replace the unused block with one of at least the given size. */
+    private void grow(long size) {
+        long newCapacity = Math.max(INITIAL_SIZE, capacity * 2);
+        while (newCapacity < size) {
+            newCapacity *= 2;
+        }
+        newCapacity = Math.min(newCapacity, limit);
+        if (block != null) {
+            block.close();
+        }
+        // Align the base so that offsets within the block stay aligned
+        block = new Memory(newCapacity + ALIGN);
+        base = (Pointer.nativeValue(block) + ALIGN - 1) & ~(long)(ALIGN - 1);
+        capacity = newCapacity;
+        wanted = 0;
+    }
+
+    /** Register memory obtained from {@link #allocate(long)}, to be
+     * invalidated when its frame is reset.
+     */
+    <T extends Memory> T track(T memory) {
+        issued.add(memory);
+        return memory;
+    }
+
+    /** @return memory of the given size from the arena, or <code>null</code>
+     * if it does not fit
+     */
+    Memory slice(long size) {
+        long address = allocate(size);
+        return address != 0 ? track(new Slice(address, size)) : null;
+    }
+
+    /** Copy the given string into the arena as a NUL-terminated
+     * <code>char</code> or (for {@link NativeString#WIDE_STRING})
+     * <code>wchar_t</code> array.
+     * @return the native string, or <code>null</code> if it does not fit
+     */
+    Pointer string(String s, String encoding) {
+        if (NativeString.WIDE_STRING.equals(encoding)) {
+            Memory m = slice((s.length() + 1L) * Native.WCHAR_SIZE);
+            if (m != null) {
+                m.setWideString(0, s);
+            }
+            return m;
+        }
+        byte[] data = Native.getBytes(s, encoding);
+        Memory m = slice(data.length + 1L);
+        if (m != null) {
+            m.write(0, data, 0, data.length);
+            m.setByte(data.length, (byte)0);
+        }
+        return m;
+    }
+
+    /** Convert a string argument to native memory, using the given arena
+     * (if any) when the string fits.
+     */
+    static Pointer toNative(CallArena arena, String s, String encoding) {
+        Pointer p = arena != null ? arena.string(s, encoding) : null;
+        return p != null ? p : new NativeString(s, encoding).getPointer();
+    }
+}
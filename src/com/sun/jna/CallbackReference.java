@@ -23,6 +23,7 @@
  */
 package com.sun.jna;
 
+import com.sun.jna.internal.CallbackInvoker;
 import com.sun.jna.internal.Cleaner;
 import java.io.Closeable;
 import java.lang.ref.Reference;
@@ -43,6 +44,7 @@ import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Provides a reference to an association between a native callback closure
@@ -51,19 +53,20 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class CallbackReference extends WeakReference<Callback> implements Closeable {
 
-    // Access to callbackMap, directCallbackMap, pointerCallbackMap is protected
-    // by synchonizing on pointerCallbackMap
-    static final Map<Callback, CallbackReference> callbackMap = new WeakHashMap<>();
-    static final Map<Callback, CallbackReference> directCallbackMap = new WeakHashMap<>();
-    //callbacks with different signatures sharing the same pointer
-    static final Map<Pointer, Reference<Callback>[]> pointerCallbackMap = new WeakHashMap<>();
+    // Lookups in callbackMap, directCallbackMap and pointerCallbackMap do
+    // not lock; creating a CallbackReference synchronizes on its map
+    static final Map<Callback, CallbackReference> callbackMap = new WeakConcurrentMap<>();
+    static final Map<Callback, CallbackReference> directCallbackMap = new WeakConcurrentMap<>();
+    //callbacks with different signatures sharing the same pointer; arrays
+    //are replaced, never modified
+    static final ConcurrentMap<Pointer, Reference<Callback>[]> pointerCallbackMap = new WeakConcurrentMap<>();
     // Track memory allocations associated with this closure (usually String args)
     static final Map<Object, Object> allocations =
             Collections.synchronizedMap(new WeakHashMap<>());
     // Global map of allocated closures to facilitate centralized cleanup
     private static final Map<Long, Reference<CallbackReference>> allocatedMemory =
             new ConcurrentHashMap<>();
-    private static final Method PROXY_CALLBACK_METHOD;
+    static final Method PROXY_CALLBACK_METHOD;
 
     static {
         try {
@@ -87,7 +90,7 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
         }
     }
 
-    private static final Map<Callback, CallbackThreadInitializer> initializers = new WeakHashMap<>();
+    private static final Map<Callback, CallbackThreadInitializer> initializers = new WeakConcurrentMap<>();
     /**
      * @param cb The {@link Callback} instance
      * @param initializer The {@link CallbackThreadInitializer} - if {@code null} then the
@@ -95,12 +98,34 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
      * @return The previous initializer instance (may be {@code null})
      */
     static CallbackThreadInitializer setCallbackThreadInitializer(Callback cb, CallbackThreadInitializer initializer) {
-        synchronized(initializers) {
-            if (initializer != null) {
-                return initializers.put(cb, initializer);
-            } else {
-                return initializers.remove(cb);
+        if (initializer != null) {
+            return initializers.put(cb, initializer);
+        } else {
+            return initializers.remove(cb);
+        }
+    }
+
+    private static final Map<Callback, AsyncCallbackQueue> asyncQueues = new WeakConcurrentMap<>();
+    /**
+     * @param cb The {@link Callback} instance
+     * @param queue The {@link AsyncCallbackQueue} - if {@code null} then the
+     * callback is invoked synchronously again
+     * @return The previous queue (may be {@code null})
+     */
+    static AsyncCallbackQueue setAsyncCallbackQueue(Callback cb, AsyncCallbackQueue queue) {
+        if (queue != null) {
+            if (cb instanceof CallbackProxy) {
+                throw new IllegalArgumentException("Asynchronous dispatch is not supported for CallbackProxy");
             }
+            Method m = getCallbackMethod(cb);
+            if (m.getReturnType() != void.class) {
+                throw new IllegalArgumentException("Only void callbacks may be invoked asynchronously: " + m);
+            }
+        }
+        if (queue != null) {
+            return asyncQueues.put(cb, queue);
+        } else {
+            return asyncQueues.remove(cb);
         }
     }
 
@@ -126,9 +151,7 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
         if (cb instanceof DefaultCallbackProxy) {
             cb = ((DefaultCallbackProxy)cb).getCallback();
         }
-        synchronized(initializers) {
-            init = initializers.get(cb);
-        }
+        init = initializers.get(cb);
         ThreadGroup group = null;
         if (init != null) {
             group = init.getThreadGroup(cb);
@@ -159,18 +182,25 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
         if (!type.isInterface())
             throw new IllegalArgumentException("Callback type must be an interface");
         Map<Callback, CallbackReference> map = direct ? directCallbackMap : callbackMap;
-        synchronized(pointerCallbackMap) {
+        Callback created = null;
+        while (true) {
             Reference<Callback>[] array = pointerCallbackMap.get(p);
             Callback cb = getTypeAssignableCallback(type, array);
             if (cb != null) {
                 return cb;
             }
-            cb = createCallback(type, p);
-            pointerCallbackMap.put(p, addCallbackToArray(cb,array));
-
-            // No CallbackReference for this callback
-            map.remove(cb);
-            return cb;
+            if (created == null) {
+                created = createCallback(type, p);
+            }
+            Reference<Callback>[] updated = addCallbackToArray(created, array);
+            // Retry if another thread registered a callback meanwhile
+            if (array == null
+                ? pointerCallbackMap.putIfAbsent(p, updated) == null
+                : pointerCallbackMap.replace(p, array, updated)) {
+                // No CallbackReference for this callback
+                map.remove(created);
+                return created;
+            }
         }
     }
 
@@ -187,32 +217,22 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
     }
 
 
+    /** @return a copy of the array with the given callback added, without
+     * any freed reference; the array itself is not modified
+     */
     private static Reference<Callback>[] addCallbackToArray(Callback cb,Reference<Callback>[] array) {
-        int reqArraySize = 1; //space for the new item
-        if (array != null) {
-            //drop any freed reference
-            for (int i=0;i < array.length;i++) {
-                if( array[i].get() == null ) {
-                    array[i] = null;
-                }
-                else {
-                    reqArraySize++;
-                }
-            }
-        }
+        int length = array == null ? 0 : array.length;
         @SuppressWarnings( "unchecked" )
-        Reference<Callback>[] newArray = new Reference[reqArraySize];
+        Reference<Callback>[] newArray = new Reference[length + 1];
         int nidx=0;
-        if (array != null) {
-            //shift items if needed
-            for (int i=0;i < array.length;i++) {
-                if (array[i] != null) {
-                    newArray[nidx++] = array[i];
-                }
+        for (int i=0;i < length;i++) {
+            //drop any freed reference
+            if (array[i].get() != null) {
+                newArray[nidx++] = array[i];
             }
         }
-        newArray[nidx] = new WeakReference<>(cb);
-        return newArray;
+        newArray[nidx++] = new WeakReference<>(cb);
+        return nidx == newArray.length ? newArray : Arrays.copyOf(newArray, nidx);
     }
 
     private static Callback createCallback(Class<?> type, Pointer p) {
@@ -232,6 +252,8 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
     CallbackProxy proxy;
     Method method;
     int callingConvention;
+    // Native signature of a proxy closure, which may be pooled
+    private ClosurePool.Signature signature;
     private CallbackReference(Callback callback, int callingConvention, boolean direct) {
         super(callback);
         TypeMapper mapper = Native.getTypeMapper(callback.getClass());
@@ -239,9 +261,14 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
         Class<?>[] nativeParamTypes;
         Class<?> returnType;
 
+        AsyncCallbackQueue queue = asyncQueues.get(callback);
         // Check whether direct mapping may be used, or whether
         // we need to fall back to conventional mapping
         boolean ppc = Platform.isPPC();
+        if (queue != null) {
+            // Only the proxy can queue the invocation
+            direct = false;
+        }
         if (direct) {
             Method m = getCallbackMethod(callback);
             Class<?>[] ptypes = m.getParameterTypes();
@@ -286,56 +313,83 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
                 proxy = (CallbackProxy)callback;
             }
             else {
-                proxy = new DefaultCallbackProxy(getCallbackMethod(callback), mapper, encoding);
-            }
-            nativeParamTypes = proxy.getParameterTypes();
-            returnType = proxy.getReturnType();
-
-            // Generate a list of parameter types that the native code can
-            // handle.  Let the CallbackProxy do any further conversion
-            // to match the true Java callback method signature
-            if (mapper != null) {
-                for (int i=0;i < nativeParamTypes.length;i++) {
-                    FromNativeConverter rc = mapper.getFromNativeConverter(nativeParamTypes[i]);
-                    if (rc != null) {
-                        nativeParamTypes[i] = rc.nativeType();
-                    }
-                }
-                ToNativeConverter tn = mapper.getToNativeConverter(returnType);
-                if (tn != null) {
-                    returnType = tn.nativeType();
-                }
-            }
-            for (int i=0;i < nativeParamTypes.length;i++) {
-                nativeParamTypes[i] = getNativeType(nativeParamTypes[i]);
-                if (!isAllowableNativeType(nativeParamTypes[i])) {
-                    String msg = "Callback argument " + nativeParamTypes[i]
-                        + " requires custom type conversion";
-                    throw new IllegalArgumentException(msg);
-                }
-            }
-            returnType = getNativeType(returnType);
-            if (!isAllowableNativeType(returnType)) {
-                String msg = "Callback return type " + returnType
-                    + " requires custom type conversion";
-                throw new IllegalArgumentException(msg);
+                proxy = new DefaultCallbackProxy(getCallbackMethod(callback), mapper, encoding, queue);
             }
             int flags = DLL_CALLBACK_CLASS != null
                 && DLL_CALLBACK_CLASS.isInstance(callback)
                 ? Native.CB_OPTION_IN_DLL : 0;
-            peer = Native.createNativeCallback(proxy, PROXY_CALLBACK_METHOD,
-                                               nativeParamTypes, returnType,
-                                               callingConvention, flags,
-                                               encoding);
+            signature = getProxySignature(proxy.getParameterTypes(), proxy.getReturnType(),
+                                          mapper, callingConvention, flags, encoding);
+            peer = ClosurePool.acquire(signature, proxy);
+            if (peer == 0) {
+                peer = Native.createNativeCallback(proxy, PROXY_CALLBACK_METHOD,
+                                                   signature.getParameterTypes(), signature.getReturnType(),
+                                                   callingConvention, flags,
+                                                   encoding);
+            }
         }
         cbstruct = peer != 0 ? new Pointer(peer) : null;
         if(peer != 0) {
             allocatedMemory.put(peer, new WeakReference<>(this));
-            cleanable = Cleaner.getCleaner().register(this, new CallbackReferenceDisposer(cbstruct));
+            MemoryAccounting.callbackAllocated();
+            cleanable = Cleaner.getCleaner().register(this, new CallbackReferenceDisposer(cbstruct, signature));
         }
     }
 
-    private Class<?> getNativeType(Class<?> cls) {
+    /** Native signature of a closure dispatching to a {@link CallbackProxy}
+     * with the given Java signature.
+     */
+    private static ClosurePool.Signature getProxySignature(Class<?>[] nativeParamTypes, Class<?> returnType,
+                                                           TypeMapper mapper, int callingConvention,
+                                                           int flags, String encoding) {
+        // Generate a list of parameter types that the native code can
+        // handle.  Let the CallbackProxy do any further conversion
+        // to match the true Java callback method signature
+        nativeParamTypes = nativeParamTypes.clone();
+        if (mapper != null) {
+            for (int i=0;i < nativeParamTypes.length;i++) {
+                FromNativeConverter rc = mapper.getFromNativeConverter(nativeParamTypes[i]);
+                if (rc != null) {
+                    nativeParamTypes[i] = rc.nativeType();
+                }
+            }
+            ToNativeConverter tn = mapper.getToNativeConverter(returnType);
+            if (tn != null) {
+                returnType = tn.nativeType();
+            }
+        }
+        for (int i=0;i < nativeParamTypes.length;i++) {
+            nativeParamTypes[i] = getNativeType(nativeParamTypes[i]);
+            if (!isAllowableNativeType(nativeParamTypes[i])) {
+                String msg = "Callback argument " + nativeParamTypes[i]
+                    + " requires custom type conversion";
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        returnType = getNativeType(returnType);
+        if (!isAllowableNativeType(returnType)) {
+            String msg = "Callback return type " + returnType
+                + " requires custom type conversion";
+            throw new IllegalArgumentException(msg);
+        }
+        return new ClosurePool.Signature(nativeParamTypes, returnType, callingConvention, flags, encoding);
+    }
+
+    /** Prepare native closures for callbacks of the given type, so that
+     * callbacks passed to native code later reuse them.
+     */
+    static void prepareClosures(Class<? extends Callback> type, int count) {
+        Method m = getCallbackMethod(findCallbackClass(type));
+        ClosurePool.Signature signature =
+            getProxySignature(m.getParameterTypes(), m.getReturnType(),
+                              Native.getTypeMapper(type), getCallingConvention(type),
+                              DLL_CALLBACK_CLASS != null && DLL_CALLBACK_CLASS.isAssignableFrom(type)
+                              ? Native.CB_OPTION_IN_DLL : 0,
+                              Native.getStringEncoding(type));
+        ClosurePool.prepare(signature, count);
+    }
+
+    private static Class<?> getNativeType(Class<?> cls) {
         if (Structure.class.isAssignableFrom(cls)) {
             // Make sure we can instantiate an argument of this type
             Structure.validate((Class<? extends Structure>)cls);
@@ -463,6 +517,7 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
                 ref.close();
             }
         }
+        ClosurePool.disposeAll();
     }
 
     private Callback getCallback() {
@@ -490,6 +545,15 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
     }
 
     /** Native code may call this method with direct=true. */
+    private static int getCallingConvention(Class<?> type) {
+        Map<String, ?> options = Native.getLibraryOptions(type);
+        return AltCallingConvention.class.isAssignableFrom(type)
+            ? Function.ALT_CONVENTION
+            : (options != null && options.containsKey(Library.OPTION_CALLING_CONVENTION)
+               ? ((Integer)options.get(Library.OPTION_CALLING_CONVENTION)).intValue()
+               : Function.C_CONVENTION);
+    }
+
     private static Pointer getFunctionPointer(Callback cb, boolean direct) {
         Pointer fp = null;
         if (cb == null) {
@@ -498,25 +562,26 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
         if ((fp = getNativeFunctionPointer(cb)) != null) {
             return fp;
         }
-        Map<String, ?> options = Native.getLibraryOptions(cb.getClass());
-        int callingConvention = cb instanceof AltCallingConvention
-            ? Function.ALT_CONVENTION
-            : (options != null && options.containsKey(Library.OPTION_CALLING_CONVENTION)
-               ? ((Integer)options.get(Library.OPTION_CALLING_CONVENTION)).intValue()
-               : Function.C_CONVENTION);
+        int callingConvention = getCallingConvention(cb.getClass());
 
         Map<Callback, CallbackReference> map = direct ? directCallbackMap : callbackMap;
-        synchronized(pointerCallbackMap) {
-            CallbackReference cbref = map.get(cb);
+        CallbackReference cbref = map.get(cb);
+        if (cbref != null && cbref.cbstruct != null) {
+            return cbref.getTrampoline();
+        }
+        // Only creation is serialized, so that a callback gets one closure
+        synchronized(map) {
+            cbref = map.get(cb);
             if (cbref == null || cbref.cbstruct == null) {
                 cbref = new CallbackReference(cb, callingConvention, direct);
-                map.put(cb, cbref);
                 pointerCallbackMap.put(cbref.getTrampoline(),
                         addCallbackToArray(cb, null));
 
                 if (initializers.containsKey(cb)) {
                     cbref.setCallbackOptions(Native.CB_HAS_INITIALIZER);
                 }
+                // Publish once fully initialized
+                map.put(cb, cbref);
             }
             return cbref.getTrampoline();
         }
@@ -524,29 +589,53 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
 
     private class DefaultCallbackProxy implements CallbackProxy {
         private final Method callbackMethod;
+        private final Class<?>[] paramTypes;
         private ToNativeConverter toNative;
         private final FromNativeConverter[] fromNative;
+        // Conversion plan, computed once: whether any argument uses a
+        // FromNativeConverter, needs a basic conversion or may be a
+        // Structure to synch back after the call
+        private final boolean mapped;
+        private final boolean[] convert;
+        private final boolean structureArgs;
+        // Direct call of the callback method, or null to use reflection
+        private CallbackInvoker invoker;
         private final String encoding;
-        public DefaultCallbackProxy(Method callbackMethod, TypeMapper mapper, String encoding) {
+        // Queue of asynchronous invocations, or null to invoke on the
+        // native thread
+        private final AsyncCallbackQueue queue;
+        public DefaultCallbackProxy(Method callbackMethod, TypeMapper mapper, String encoding, AsyncCallbackQueue queue) {
             this.callbackMethod = callbackMethod;
             this.encoding = encoding;
+            this.queue = queue;
             Class<?>[] argTypes = callbackMethod.getParameterTypes();
             Class<?> returnType = callbackMethod.getReturnType();
+            this.paramTypes = argTypes;
             fromNative = new FromNativeConverter[argTypes.length];
+            convert = new boolean[argTypes.length];
             if (NativeMapped.class.isAssignableFrom(returnType)) {
                 toNative = NativeMappedConverter.getInstance(returnType);
             }
             else if (mapper != null) {
                 toNative = mapper.getToNativeConverter(returnType);
             }
+            boolean anyMapped = false;
+            boolean anyStructure = false;
             for (int i=0;i < fromNative.length;i++) {
-                if (NativeMapped.class.isAssignableFrom(argTypes[i])) {
-                    fromNative[i] = new NativeMappedConverter(argTypes[i]);
+                Class<?> type = argTypes[i];
+                if (NativeMapped.class.isAssignableFrom(type)) {
+                    fromNative[i] = new NativeMappedConverter(type);
                 }
                 else if (mapper != null) {
-                    fromNative[i] = mapper.getFromNativeConverter(argTypes[i]);
+                    fromNative[i] = mapper.getFromNativeConverter(type);
                 }
+                anyMapped |= fromNative[i] != null;
+                convert[i] = fromNative[i] == null && needsConversion(type);
+                anyStructure |= Structure.class.isAssignableFrom(type)
+                    || type.isAssignableFrom(Structure.class);
             }
+            this.mapped = anyMapped;
+            this.structureArgs = anyStructure;
             if (!callbackMethod.isAccessible()) {
                 try {
                     callbackMethod.setAccessible(true);
@@ -555,52 +644,102 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
                     throw new IllegalArgumentException("Callback method is inaccessible, make sure the interface is public: " + callbackMethod);
                 }
             }
+            this.invoker = CallbackInvoker.create(callbackMethod);
         }
 
         public Callback getCallback() {
             return CallbackReference.this.getCallback();
         }
 
-        private Object invokeCallback(Object[] args) {
-            Class<?>[] paramTypes = callbackMethod.getParameterTypes();
-            Object[] callbackArgs = new Object[args.length];
+        private Object[] convertArguments(Object[] args) {
+            // The array is created by native code for this call only, so
+            // arguments are converted in place unless a converter may look
+            // at the other native arguments
+            Object[] callbackArgs = mapped ? new Object[args.length] : args;
 
             // convert basic supported types to appropriate Java parameter types
             for (int i=0;i < args.length;i++) {
-                Class<?> type = paramTypes[i];
-                Object arg = args[i];
                 if (fromNative[i] != null) {
                     FromNativeContext context =
-                        new CallbackParameterContext(type, callbackMethod, args, i);
-                    callbackArgs[i] = fromNative[i].fromNative(arg, context);
+                        new CallbackParameterContext(paramTypes[i], callbackMethod, args, i);
+                    callbackArgs[i] = fromNative[i].fromNative(args[i], context);
+                } else if (convert[i]) {
+                    callbackArgs[i] = convertArgument(args[i], paramTypes[i]);
                 } else {
-                    callbackArgs[i] = convertArgument(arg, type);
+                    callbackArgs[i] = args[i];
                 }
             }
+            return callbackArgs;
+        }
 
-            Object result = null;
-            Callback cb = DefaultCallbackProxy.this.getCallback();
-            if (cb != null) {
+        private Object invoke(Callback cb, Object[] callbackArgs) {
+            CallbackInvoker invoker = this.invoker;
+            if (invoker != null) {
                 try {
-                    result = convertResult(callbackMethod.invoke(cb, callbackArgs));
+                    return convertResult(invoker.invoke(cb, callbackArgs));
                 }
-                catch (IllegalArgumentException | IllegalAccessException e) {
-                    Native.getCallbackExceptionHandler().uncaughtException(cb, e);
+                catch (LinkageError e) {
+                    if (!invoker.isLinkageFailure(e)) {
+                        Native.getCallbackExceptionHandler().uncaughtException(cb, e);
+                        return null;
+                    }
+                    // The method was not called, use reflection from now on
+                    this.invoker = null;
                 }
-                catch (InvocationTargetException e) {
-                    Native.getCallbackExceptionHandler().uncaughtException(cb, e.getTargetException());
+                catch (Throwable t) {
+                    Native.getCallbackExceptionHandler().uncaughtException(cb, t);
+                    return null;
                 }
             }
+            Object result = null;
+            try {
+                result = convertResult(callbackMethod.invoke(cb, callbackArgs));
+            }
+            catch (IllegalArgumentException | IllegalAccessException e) {
+                Native.getCallbackExceptionHandler().uncaughtException(cb, e);
+            }
+            catch (InvocationTargetException e) {
+                Native.getCallbackExceptionHandler().uncaughtException(cb, e.getTargetException());
+            }
+            return result;
+        }
+
+        private Object invokeCallback(Object[] args) {
+            Object[] callbackArgs = convertArguments(args);
+            Object result = null;
+            Callback cb = DefaultCallbackProxy.this.getCallback();
+            if (cb != null) {
+                result = invoke(cb, callbackArgs);
+            }
             // Synch any structure arguments back to native memory
-            for (int i=0;i < callbackArgs.length;i++) {
-                if (callbackArgs[i] instanceof Structure
-                    && !(callbackArgs[i] instanceof Structure.ByValue)) {
-                    ((Structure)callbackArgs[i]).autoWrite();
+            if (structureArgs) {
+                for (int i=0;i < callbackArgs.length;i++) {
+                    if (callbackArgs[i] instanceof Structure
+                        && !(callbackArgs[i] instanceof Structure.ByValue)) {
+                        ((Structure)callbackArgs[i]).autoWrite();
+                    }
                 }
             }
 
             return result;
         }
+
+        /** Convert the arguments on the native thread, while the native
+         * memory they refer to is valid, and queue the invocation.
+         */
+        private void queueCallback(Object[] args) {
+            final Object[] callbackArgs = convertArguments(args);
+            final Callback cb = DefaultCallbackProxy.this.getCallback();
+            if (cb != null) {
+                queue.dispatch(cb, new Runnable() {
+                    @Override
+                    public void run() {
+                        invoke(cb, callbackArgs);
+                    }
+                });
+            }
+        }
+
         /** Called from native code.  All arguments are in an array of
          * Object as the first argument.  Converts all arguments to types
          * required by the actual callback method signature, and converts
@@ -610,6 +749,10 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
         @Override
         public Object callback(Object[] args) {
             try {
+                if (queue != null) {
+                    queueCallback(args);
+                    return null;
+                }
                 return invokeCallback(args);
             }
             catch (Throwable t) {
@@ -618,6 +761,17 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
             }
         }
 
+        /** @return whether {@link #convertArgument} may change an
+         * argument of the given type
+         */
+        private boolean needsConversion(Class<?> dstType) {
+            return dstType == String.class || dstType == WString.class
+                || dstType == String[].class || dstType == WString[].class
+                || Callback.class.isAssignableFrom(dstType)
+                || Structure.class.isAssignableFrom(dstType)
+                || boolean.class == dstType || Boolean.class == dstType;
+        }
+
         /** Convert argument from its basic native type to the given
          * Java parameter type.
          */
@@ -777,19 +931,26 @@ public class CallbackReference extends WeakReference<Callback> implements Closea
     private static final class CallbackReferenceDisposer implements Runnable {
 
         private Pointer cbstruct;
+        private final ClosurePool.Signature signature;
 
-        public CallbackReferenceDisposer(Pointer cbstruct) {
+        public CallbackReferenceDisposer(Pointer cbstruct, ClosurePool.Signature signature) {
             this.cbstruct = cbstruct;
+            this.signature = signature;
         }
 
         public synchronized void run() {
             if (cbstruct != null) {
-                try {
-                    Native.freeNativeCallback(cbstruct.peer);
-                } finally {
-                    allocatedMemory.remove(cbstruct.peer);
-                    cbstruct.peer = 0;
-                    cbstruct = null;
+                long peer = cbstruct.peer;
+                // Forget the closure before it is released, since another
+                // thread may take it from the pool right away
+                allocatedMemory.remove(peer);
+                MemoryAccounting.callbackFreed();
+                cbstruct.peer = 0;
+                cbstruct = null;
+                if (signature != null) {
+                    ClosurePool.release(signature, peer);
+                } else {
+                    Native.freeNativeCallback(peer);
                 }
             }
         }
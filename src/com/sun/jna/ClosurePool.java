@@ -0,0 +1,316 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Idle native callback closures, kept for reuse by callbacks with the same
+ * native signature.  Preparing a closure (<code>ffi_prep_closure</code> and
+ * the associated call interfaces) is costly compared to pointing an existing
+ * one at another callback object, which matters for short-lived callbacks
+ * such as per-request completion handlers.
+ * <p>
+ * Only closures dispatching through a {@link CallbackProxy} are pooled,
+ * since they do not depend on the callback class.  An idle closure no
+ * longer refers to any callback object, so native calls through it are
+ * ignored while it is idle.  Once it is reused, however, a native caller
+ * still holding the pointer of the previous callback reaches the new
+ * callback instead, so native code must not call a callback after it has
+ * been released.  The number of
+ * idle closures kept per signature is set by the system property
+ * <code>jna.callback_pool_size</code> (default 16), or the count given to
+ * {@link #prepare}, whichever is larger; closures beyond that are freed.
+ * <p>
+ * Signatures refer to their types weakly, so that the pool does not keep
+ * classes (e.g. {@link Structure} arguments) and their class loaders
+ * alive.  The closures of a signature are freed once one of its types has
+ * been collected, and signatures without idle closures are dropped unless
+ * {@link #prepare} raised their capacity.
+ */
+final class ClosurePool {
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("jna.callback_pool_size", 16);
+
+    /** Native signature of a proxy closure.  Equal signatures have the
+     * same (reachable) types.
+     */
+    static final class Signature {
+        private final TypeReference[] parameterTypes;
+        private final TypeReference returnType;
+        final int callingConvention;
+        final int flags;
+        final String encoding;
+        private final int hash;
+
+        Signature(Class<?>[] parameterTypes, Class<?> returnType, int callingConvention, int flags, String encoding) {
+            this.parameterTypes = new TypeReference[parameterTypes.length];
+            for (int i=0;i < parameterTypes.length;i++) {
+                this.parameterTypes[i] = new TypeReference(parameterTypes[i], this);
+            }
+            this.returnType = new TypeReference(returnType, this);
+            this.callingConvention = callingConvention;
+            this.flags = flags;
+            this.encoding = encoding;
+            this.hash = (Arrays.hashCode(parameterTypes) * 31 + returnType.hashCode()) * 31
+                + callingConvention * 7 + flags;
+        }
+
+        /** @return the parameter types; only valid while the caller keeps
+         * them reachable
+         */
+        Class<?>[] getParameterTypes() {
+            Class<?>[] types = new Class<?>[parameterTypes.length];
+            for (int i=0;i < types.length;i++) {
+                types[i] = parameterTypes[i].get();
+            }
+            return types;
+        }
+
+        /** @return the return type; only valid while the caller keeps it
+         * reachable
+         */
+        Class<?> getReturnType() {
+            return returnType.get();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Signature)) {
+                return false;
+            }
+            Signature other = (Signature) o;
+            if (other.hash != hash
+                || other.callingConvention != callingConvention
+                || other.flags != flags
+                || !(encoding == null ? other.encoding == null : encoding.equals(other.encoding))
+                || other.parameterTypes.length != parameterTypes.length
+                || !returnType.sameType(other.returnType)) {
+                return false;
+            }
+            for (int i=0;i < parameterTypes.length;i++) {
+                if (!parameterTypes[i].sameType(other.parameterTypes[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return getReturnType() + Arrays.toString(getParameterTypes()) + "@" + callingConvention;
+        }
+    }
+
+    /** Weak reference to a type of a signature, queued once the type has
+     * been collected so that the signature is removed from the pool.
+     */
+    private static final class TypeReference extends WeakReference<Class<?>> {
+        final Signature signature;
+
+        TypeReference(Class<?> type, Signature signature) {
+            super(type, queue);
+            this.signature = signature;
+        }
+
+        boolean sameType(TypeReference other) {
+            Class<?> type = get();
+            return type != null && type == other.get();
+        }
+    }
+
+    /** Idle closures of one signature; guarded by itself. */
+    private static final class Entry {
+        final ArrayDeque<Long> idle = new ArrayDeque<>();
+        int capacity = DEFAULT_CAPACITY;
+        // Set once the entry is no longer in the pool
+        boolean removed;
+    }
+
+    private static final ReferenceQueue<Class<?>> queue = new ReferenceQueue<>();
+    private static final Map<Signature, Entry> pool = new ConcurrentHashMap<>();
+
+    private ClosurePool() {
+    }
+
+    private static Entry entry(Signature signature) {
+        Entry e = pool.get(signature);
+        if (e == null) {
+            Entry created = new Entry();
+            e = pool.putIfAbsent(signature, created);
+            if (e == null) {
+                e = created;
+            }
+        }
+        return e;
+    }
+
+    /** Remove the signatures with collected types and free their closures. */
+    private static void expunge() {
+        TypeReference ref;
+        while ((ref = (TypeReference) queue.poll()) != null) {
+            Entry e = pool.remove(ref.signature);
+            if (e != null) {
+                synchronized(e) {
+                    e.removed = true;
+                    freeIdle(e);
+                }
+            }
+        }
+    }
+
+    /** Free the idle closures of an entry; the caller holds its lock. */
+    private static void freeIdle(Entry e) {
+        for (Long peer : e.idle) {
+            Native.freeNativeCallback(peer);
+        }
+        e.idle.clear();
+    }
+
+    /**
+     * Take an idle closure for the given signature and point it at the
+     * given proxy.
+     * @return the closure, or 0 if none is available
+     */
+    static long acquire(Signature signature, CallbackProxy proxy) {
+        expunge();
+        Entry e = pool.get(signature);
+        if (e == null) {
+            return 0;
+        }
+        Long peer;
+        synchronized(e) {
+            peer = e.idle.pollLast();
+            if (e.idle.isEmpty() && e.capacity == DEFAULT_CAPACITY && !e.removed) {
+                e.removed = true;
+                pool.remove(signature, e);
+            }
+        }
+        if (peer == null) {
+            return 0;
+        }
+        Native.rebindNativeCallback(peer, proxy);
+        return peer;
+    }
+
+    /**
+     * Detach a closure from its callback and keep it for reuse, or free it
+     * if the pool for its signature is full.
+     */
+    static void release(Signature signature, long peer) {
+        Native.rebindNativeCallback(peer, null);
+        expunge();
+        if (!offer(signature, peer, false)) {
+            Native.freeNativeCallback(peer);
+        }
+    }
+
+    /** Add an idle closure to the entry of the given signature.
+     * @param raise whether to keep the closure even if the entry is full
+     * @return whether the closure was added
+     */
+    private static boolean offer(Signature signature, long peer, boolean raise) {
+        while (true) {
+            Entry e = entry(signature);
+            synchronized(e) {
+                if (e.removed) {
+                    // Dropped concurrently, use a new entry
+                    continue;
+                }
+                if (!raise && e.idle.size() >= e.capacity) {
+                    return false;
+                }
+                e.idle.addLast(peer);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Create closures for the given signature until at least
+     * <code>count</code> are idle, raising the number of idle closures kept
+     * for it if needed.
+     */
+    static void prepare(Signature signature, int count) {
+        expunge();
+        Class<?>[] parameterTypes = signature.getParameterTypes();
+        Class<?> returnType = signature.getReturnType();
+        while (true) {
+            Entry e = entry(signature);
+            synchronized(e) {
+                if (e.removed) {
+                    continue;
+                }
+                e.capacity = Math.max(e.capacity, count);
+                if (e.idle.size() >= count) {
+                    return;
+                }
+            }
+            long peer = Native.createNativeCallback(null, CallbackReference.PROXY_CALLBACK_METHOD,
+                                                    parameterTypes, returnType,
+                                                    signature.callingConvention, signature.flags,
+                                                    signature.encoding);
+            if (peer == 0) {
+                return;
+            }
+            offer(signature, peer, true);
+        }
+    }
+
+    /** @return the number of idle closures */
+    static int size() {
+        int size = 0;
+        for (Entry e : pool.values()) {
+            synchronized(e) {
+                size += e.idle.size();
+            }
+        }
+        return size;
+    }
+
+    /** Free all idle closures and forget all signatures. */
+    static void disposeAll() {
+        for (Signature signature : pool.keySet()) {
+            Entry e = pool.remove(signature);
+            if (e != null) {
+                synchronized(e) {
+                    e.removed = true;
+                    freeIdle(e);
+                }
+            }
+        }
+    }
+}
@@ -22,6 +22,9 @@
  */
 package com.sun.jna;
 
+import com.sun.jna.internal.ClassFileWriter;
+import com.sun.jna.internal.Cleaner;
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.Collections;
 import java.util.Map;
@@ -31,6 +34,13 @@ import java.util.Map;
  * <code>Function</code> represents a pointer to some native function.
  * {@link #invoke(Class,Object[],Map)} is the primary means to call
  * the function. </p>
+ * <p>For functions whose arguments (at most four) all have the same
+ * primitive type, the <code>invokeVoid</code>, <code>invokeInt</code>,
+ * <code>invokeLong</code>, <code>invokeFloat</code>,
+ * <code>invokeDouble</code> and <code>invokePointer</code> overloads taking
+ * primitive arguments skip the argument array and boxing.  Only the
+ * argument type of each overload is supported; mixed signatures must use
+ * the <code>Object[]</code> variants. </p>
  * <a name=callflags></a>
  * Function call behavior may be modified by passing one of the following call
  * flags:
@@ -215,6 +225,12 @@ public class Function extends Pointer {
     /** For internal JNA use. */
     static final String OPTION_INVOKING_METHOD = "invoking-method";
 
+    // Native cache of prepared call interfaces (ffi_cif), keyed by argument
+    // signature.  Allocated on first invocation and read by native dispatch.
+    // Native calls keep this object reachable, so the cache is only freed by
+    // the Cleaner once no call can be using it.
+    private volatile long cifCache;
+
     /** For checking if methods declare varargs */
     private static final VarArgsChecker IS_VARARGS = VarArgsChecker.create();
 
@@ -339,14 +355,28 @@ public class Function extends Pointer {
         boolean allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
         boolean isVarArgs = args.length > 0 && invokingMethod != null ? isVarArgs(invokingMethod) : false;
         int fixedArgs = args.length > 0 && invokingMethod != null ? fixedArgs(invokingMethod) : 0;
-        for (int i=0; i < args.length; i++) {
-            Class<?> paramType = invokingMethod != null
-                ? (isVarArgs && i >= paramTypes.length-1
-                   ? paramTypes[paramTypes.length-1].getComponentType()
-                   : paramTypes[i])
-                : null;
-            args[i] = convertArgument(args, i, invokingMethod, mapper, allowObjects, paramType);
+        // Converted arguments only need to live until the call returns
+        CallArena arena = args.length > 0 ? CallArena.current() : null;
+        long mark = arena != null ? arena.mark() : 0;
+        try {
+            for (int i=0; i < args.length; i++) {
+                Class<?> paramType = invokingMethod != null
+                    ? (isVarArgs && i >= paramTypes.length-1
+                       ? paramTypes[paramTypes.length-1].getComponentType()
+                       : paramTypes[i])
+                    : null;
+                args[i] = convertArgument(args, i, invokingMethod, mapper, allowObjects, paramType, arena);
+            }
+            return invoke(invokingMethod, returnType, inArgs, args, mapper, allowObjects, fixedArgs);
+        } finally {
+            if (arena != null) {
+                arena.reset(mark);
+            }
         }
+    }
+
+    private Object invoke(Method invokingMethod, Class<?> returnType, Object[] inArgs, Object[] args,
+                          TypeMapper mapper, boolean allowObjects, int fixedArgs) {
 
         Class<?> nativeReturnType = returnType;
         FromNativeConverter resultConverter = null;
@@ -375,31 +405,7 @@ public class Function extends Pointer {
 
         // Sync all memory which might have been modified by the native call
         if (inArgs != null) {
-            for (int i=0; i < inArgs.length; i++) {
-                Object inArg = inArgs[i];
-                if (inArg == null)
-                    continue;
-                if (inArg instanceof Structure) {
-                    if (!(inArg instanceof Structure.ByValue)) {
-                        ((Structure)inArg).autoRead();
-                    }
-                } else if (args[i] instanceof PostCallRead) {
-                    ((PostCallRead)args[i]).read();
-                    if (args[i] instanceof PointerArray) {
-                        PointerArray array = (PointerArray)args[i];
-                        if (Structure.ByReference[].class.isAssignableFrom(inArg.getClass())) {
-                            Class<? extends Structure> type = (Class<? extends Structure>) inArg.getClass().getComponentType();
-                            Structure[] ss = (Structure[])inArg;
-                            for (int si=0;si < ss.length;si++) {
-                                Pointer p = array.getPointer(Native.POINTER_SIZE * si);
-                                ss[si] = Structure.updateStructureByReference((Class<Structure>)type, ss[si], p);
-                            }
-                        }
-                    }
-                } else if (Structure[].class.isAssignableFrom(inArg.getClass())) {
-                    Structure.autoRead((Structure[])inArg);
-                }
-            }
+            postCallRead(inArgs, args);
         }
 
         return result;
@@ -412,62 +418,134 @@ public class Function extends Pointer {
 
     /* @see NativeLibrary#NativeLibrary(String,String,long,Map) implementation */
     Object invoke(Object[] args, Class<?> returnType, boolean allowObjects, int fixedArgs) {
+        return invoke(args, returnType, returnKind(returnType), allowObjects, fixedArgs);
+    }
+
+    /** Dispatch category of a (native) return type. */
+    private enum ReturnKind {
+        VOID, BOOLEAN, BYTE, SHORT, CHAR, INT, LONG, FLOAT, DOUBLE, STRING,
+        WSTRING, POINTER, STRUCTURE_BY_VALUE, STRUCTURE, CALLBACK,
+        STRING_ARRAY, WSTRING_ARRAY, POINTER_ARRAY, OBJECT
+    }
+
+    /** Classify the given (native) return type for dispatch. */
+    private static ReturnKind returnKind(Class<?> returnType) {
+        if (returnType == null || returnType==void.class || returnType==Void.class) {
+            return ReturnKind.VOID;
+        } else if (returnType==boolean.class || returnType==Boolean.class) {
+            return ReturnKind.BOOLEAN;
+        } else if (returnType==byte.class || returnType==Byte.class) {
+            return ReturnKind.BYTE;
+        } else if (returnType==short.class || returnType==Short.class) {
+            return ReturnKind.SHORT;
+        } else if (returnType==char.class || returnType==Character.class) {
+            return ReturnKind.CHAR;
+        } else if (returnType==int.class || returnType==Integer.class) {
+            return ReturnKind.INT;
+        } else if (returnType==long.class || returnType==Long.class) {
+            return ReturnKind.LONG;
+        } else if (returnType==float.class || returnType==Float.class) {
+            return ReturnKind.FLOAT;
+        } else if (returnType==double.class || returnType==Double.class) {
+            return ReturnKind.DOUBLE;
+        } else if (returnType==String.class) {
+            return ReturnKind.STRING;
+        } else if (returnType==WString.class) {
+            return ReturnKind.WSTRING;
+        } else if (Pointer.class.isAssignableFrom(returnType)) {
+            return ReturnKind.POINTER;
+        } else if (Structure.class.isAssignableFrom(returnType)) {
+            return Structure.ByValue.class.isAssignableFrom(returnType)
+                ? ReturnKind.STRUCTURE_BY_VALUE : ReturnKind.STRUCTURE;
+        } else if (Callback.class.isAssignableFrom(returnType)) {
+            return ReturnKind.CALLBACK;
+        } else if (returnType==String[].class) {
+            return ReturnKind.STRING_ARRAY;
+        } else if (returnType==WString[].class) {
+            return ReturnKind.WSTRING_ARRAY;
+        } else if (returnType==Pointer[].class) {
+            return ReturnKind.POINTER_ARRAY;
+        }
+        return ReturnKind.OBJECT;
+    }
+
+    private Object invoke(Object[] args, Class<?> returnType, ReturnKind returnKind, boolean allowObjects, int fixedArgs) {
+        if (cifCache == 0) {
+            createCallInterfaceCache();
+        }
         Object result = null;
         int callFlags = this.callFlags | ((fixedArgs & USE_VARARGS) << USE_VARARGS_SHIFT);
-        if (returnType == null || returnType==void.class || returnType==Void.class) {
+        switch(returnKind) {
+        case VOID:
             Native.invokeVoid(this, this.peer, callFlags, args);
-            result = null;
-        } else if (returnType==boolean.class || returnType==Boolean.class) {
+            break;
+        case BOOLEAN:
             result = valueOf(Native.invokeInt(this, this.peer, callFlags, args) != 0);
-        } else if (returnType==byte.class || returnType==Byte.class) {
+            break;
+        case BYTE:
             result = Byte.valueOf((byte)Native.invokeInt(this, this.peer, callFlags, args));
-        } else if (returnType==short.class || returnType==Short.class) {
+            break;
+        case SHORT:
             result = Short.valueOf((short)Native.invokeInt(this, this.peer, callFlags, args));
-        } else if (returnType==char.class || returnType==Character.class) {
+            break;
+        case CHAR:
             result = Character.valueOf((char)Native.invokeInt(this, this.peer, callFlags, args));
-        } else if (returnType==int.class || returnType==Integer.class) {
+            break;
+        case INT:
             result = Integer.valueOf(Native.invokeInt(this, this.peer, callFlags, args));
-        } else if (returnType==long.class || returnType==Long.class) {
+            break;
+        case LONG:
             result = Long.valueOf(Native.invokeLong(this, this.peer, callFlags, args));
-        } else if (returnType==float.class || returnType==Float.class) {
+            break;
+        case FLOAT:
             result = Float.valueOf(Native.invokeFloat(this, this.peer, callFlags, args));
-        } else if (returnType==double.class || returnType==Double.class) {
+            break;
+        case DOUBLE:
             result = Double.valueOf(Native.invokeDouble(this, this.peer, callFlags, args));
-        } else if (returnType==String.class) {
+            break;
+        case STRING:
             result = invokeString(callFlags, args, false);
-        } else if (returnType==WString.class) {
+            break;
+        case WSTRING: {
             String s = invokeString(callFlags, args, true);
             if (s != null) {
                 result = new WString(s);
             }
-        } else if (Pointer.class.isAssignableFrom(returnType)) {
-            return invokePointer(callFlags, args);
-        } else if (Structure.class.isAssignableFrom(returnType)) {
-            if (Structure.ByValue.class.isAssignableFrom(returnType)) {
-                Structure s =
-                    Native.invokeStructure(this, this.peer, callFlags, args,
-                                           Structure.newInstance((Class<? extends Structure>)returnType));
-                s.autoRead();
+            break;
+        }
+        case POINTER:
+            result = invokePointer(callFlags, args);
+            break;
+        case STRUCTURE_BY_VALUE: {
+            Structure s =
+                Native.invokeStructure(this, this.peer, callFlags, args,
+                                       Structure.newInstance((Class<? extends Structure>)returnType));
+            s.autoRead();
+            result = s;
+            break;
+        }
+        case STRUCTURE:
+            result = invokePointer(callFlags, args);
+            if (result != null) {
+                Structure s = Structure.newInstance((Class<? extends Structure>)returnType, (Pointer)result);
+                s.conditionalAutoRead();
                 result = s;
-            } else {
-                result = invokePointer(callFlags, args);
-                if (result != null) {
-                    Structure s = Structure.newInstance((Class<? extends Structure>)returnType, (Pointer)result);
-                    s.conditionalAutoRead();
-                    result = s;
-                }
             }
-        } else if (Callback.class.isAssignableFrom(returnType)) {
+            break;
+        case CALLBACK:
             result = invokePointer(callFlags, args);
             if (result != null) {
                 result = CallbackReference.getCallback(returnType, (Pointer)result);
             }
-        } else if (returnType==String[].class) {
+            break;
+        case STRING_ARRAY: {
             Pointer p = invokePointer(callFlags, args);
             if (p != null) {
                 result = p.getStringArray(0, encoding);
             }
-        } else if (returnType==WString[].class) {
+            break;
+        }
+        case WSTRING_ARRAY: {
             Pointer p = invokePointer(callFlags, args);
             if (p != null) {
                 String[] arr = p.getWideStringArray(0);
@@ -477,12 +555,19 @@ public class Function extends Pointer {
                 }
                 result = warr;
             }
-        } else if (returnType==Pointer[].class) {
+            break;
+        }
+        case POINTER_ARRAY: {
             Pointer p = invokePointer(callFlags, args);
             if (p != null) {
                 result = p.getPointerArray(0);
             }
-        } else if (allowObjects) {
+            break;
+        }
+        default:
+            if (!allowObjects) {
+                throw new IllegalArgumentException("Unsupported return type " + returnType + " in function " + getName());
+            }
             result = Native.invokeObject(this, this.peer, callFlags, args);
             if (result != null
                 && !returnType.isAssignableFrom(result.getClass())) {
@@ -490,20 +575,61 @@ public class Function extends Pointer {
                                              + " does not match result "
                                              + result.getClass());
             }
-        } else {
-            throw new IllegalArgumentException("Unsupported return type " + returnType + " in function " + getName());
+            break;
         }
         return result;
     }
 
+    private synchronized void createCallInterfaceCache() {
+        if (cifCache == 0) {
+            long cache = Native.createCallInterfaceCache();
+            Cleaner.getCleaner().register(this, new CallInterfaceCacheDisposer(cache));
+            cifCache = cache;
+        }
+    }
+
     private Pointer invokePointer(int callFlags, Object[] args) {
         long ptr = Native.invokePointer(this, this.peer, callFlags, args);
         return ptr == 0 ? null : new Pointer(ptr);
     }
 
+    /** Synchronize Java-side argument values with any changes made to
+     * native memory by the native call.
+     * @param inArgs original arguments
+     * @param args converted arguments passed to native code
+     */
+    private static void postCallRead(Object[] inArgs, Object[] args) {
+        for (int i=0; i < inArgs.length; i++) {
+            Object inArg = inArgs[i];
+            if (inArg == null)
+                continue;
+            if (inArg instanceof Structure) {
+                if (!(inArg instanceof Structure.ByValue)) {
+                    ((Structure)inArg).autoRead();
+                }
+            } else if (args[i] instanceof PostCallRead) {
+                ((PostCallRead)args[i]).read();
+                if (args[i] instanceof PointerArray) {
+                    PointerArray array = (PointerArray)args[i];
+                    if (Structure.ByReference[].class.isAssignableFrom(inArg.getClass())) {
+                        Class<? extends Structure> type = (Class<? extends Structure>) inArg.getClass().getComponentType();
+                        Structure[] ss = (Structure[])inArg;
+                        for (int si=0;si < ss.length;si++) {
+                            Pointer p = array.getPointer(Native.POINTER_SIZE * si);
+                            ss[si] = Structure.updateStructureByReference((Class<Structure>)type, ss[si], p);
+                        }
+                    }
+                }
+            } else if (Structure[].class.isAssignableFrom(inArg.getClass())) {
+                Structure.autoRead((Structure[])inArg);
+            }
+        }
+    }
+
     private Object convertArgument(Object[] args, int index,
                                    Method invokingMethod, TypeMapper mapper,
-                                   boolean allowObjects, Class<?> expectedType) {
+                                   boolean allowObjects, Class<?> expectedType,
+                                   CallArena arena) {
         Object arg = args[index];
         if (arg != null) {
             Class<?> type = arg.getClass();
@@ -564,22 +690,22 @@ public class Function extends Pointer {
             // than in native code so that the values will be valid until
             // this method returns.
             // Convert String to native pointer (const)
-            return new NativeString((String)arg, encoding).getPointer();
+            return CallArena.toNative(arena, (String)arg, encoding);
         } else if (arg instanceof WString) {
             // Convert WString to native pointer (const)
-            return new NativeString(arg.toString(), true).getPointer();
+            return CallArena.toNative(arena, arg.toString(), NativeString.WIDE_STRING);
         } else if (arg instanceof Boolean) {
             // Default conversion of boolean to int; if you want something
             // different, use a ToNativeConverter
             return Boolean.TRUE.equals(arg) ? INTEGER_TRUE : INTEGER_FALSE;
         } else if (String[].class == argClass) {
-            return new StringArray((String[])arg, encoding);
+            return newStringArray((String[])arg, encoding, arena);
         } else if (WString[].class == argClass) {
-            return new StringArray((WString[])arg);
+            return newStringArray((WString[])arg, NativeString.WIDE_STRING, arena);
         } else if (Pointer[].class == argClass) {
-            return new PointerArray((Pointer[])arg);
+            return newPointerArray((Pointer[])arg, arena);
         } else if (NativeMapped[].class.isAssignableFrom(argClass)) {
-            return new NativeMappedArray((NativeMapped[])arg);
+            return newNativeMappedArray((NativeMapped[])arg, arena);
         } else if (Structure[].class.isAssignableFrom(argClass)) {
             // If the signature is Structure[], disallow
             // Structure.ByReference[] and Structure.ByReference elements
@@ -610,7 +736,7 @@ public class Function extends Pointer {
                 for (int i=0;i < ss.length;i++) {
                     pointers[i] = ss[i] != null ? ss[i].getPointer() : null;
                 }
-                return new PointerArray(pointers);
+                return newPointerArray(pointers, arena);
             } else if (ss.length == 0) {
                 throw new IllegalArgumentException("Structure array must have non-zero length");
             } else if (ss[0] == null) {
@@ -740,6 +866,237 @@ public class Function extends Pointer {
         invoke(Void.class, args);
     }
 
+    private static int rawSignature(int returnType, int argType, int nargs) {
+        int signature = returnType | (nargs << 4);
+        for (int i=0;i < nargs;i++) {
+            signature |= argType << (8 + 4 * i);
+        }
+        return signature;
+    }
+
+    private long invokeRaw(int signature, long a0, long a1, long a2, long a3) {
+        if (cifCache == 0) {
+            createCallInterfaceCache();
+        }
+        return Native.invokeRaw(this, this.peer, this.callFlags, signature, a0, a1, a2, a3);
+    }
+
+    /** Call the native function without arguments, avoiding the
+     * argument array and boxing of {@link #invokeInt(Object[])}.
+     * @return the <code>int</code> result
+     */
+    public int invokeInt() {
+        long r = invokeRaw(rawSignature(Native.RAW_INT, Native.RAW_INT, 0), 0, 0, 0, 0);
+        return (int)r;
+    }
+
+    /** Call the native function with <code>int</code> arguments, avoiding the
+     * argument array and boxing of {@link #invokeInt(Object[])}.  All
+     * arguments of the native function must have this type; use the
+     * <code>Object[]</code> variant for other signatures.
+     */
+    public int invokeInt(int a0) {
+        long r = invokeRaw(rawSignature(Native.RAW_INT, Native.RAW_INT, 1), a0, 0, 0, 0);
+        return (int)r;
+    }
+
+    /** @see #invokeInt(int) */
+    public int invokeInt(int a0, int a1) {
+        long r = invokeRaw(rawSignature(Native.RAW_INT, Native.RAW_INT, 2), a0, a1, 0, 0);
+        return (int)r;
+    }
+
+    /** @see #invokeInt(int) */
+    public int invokeInt(int a0, int a1, int a2) {
+        long r = invokeRaw(rawSignature(Native.RAW_INT, Native.RAW_INT, 3), a0, a1, a2, 0);
+        return (int)r;
+    }
+
+    /** @see #invokeInt(int) */
+    public int invokeInt(int a0, int a1, int a2, int a3) {
+        long r = invokeRaw(rawSignature(Native.RAW_INT, Native.RAW_INT, 4), a0, a1, a2, a3);
+        return (int)r;
+    }
+
+    /** Call the native function without arguments, avoiding the
+     * argument array and boxing of {@link #invokeLong(Object[])}.
+     * @return the <code>long</code> result
+     */
+    public long invokeLong() {
+        long r = invokeRaw(rawSignature(Native.RAW_LONG, Native.RAW_LONG, 0), 0, 0, 0, 0);
+        return r;
+    }
+
+    /** Call the native function with <code>long</code> arguments, avoiding the
+     * argument array and boxing of {@link #invokeLong(Object[])}.  All
+     * arguments of the native function must have this type; use the
+     * <code>Object[]</code> variant for other signatures.
+     */
+    public long invokeLong(long a0) {
+        long r = invokeRaw(rawSignature(Native.RAW_LONG, Native.RAW_LONG, 1), a0, 0, 0, 0);
+        return r;
+    }
+
+    /** @see #invokeLong(long) */
+    public long invokeLong(long a0, long a1) {
+        long r = invokeRaw(rawSignature(Native.RAW_LONG, Native.RAW_LONG, 2), a0, a1, 0, 0);
+        return r;
+    }
+
+    /** @see #invokeLong(long) */
+    public long invokeLong(long a0, long a1, long a2) {
+        long r = invokeRaw(rawSignature(Native.RAW_LONG, Native.RAW_LONG, 3), a0, a1, a2, 0);
+        return r;
+    }
+
+    /** @see #invokeLong(long) */
+    public long invokeLong(long a0, long a1, long a2, long a3) {
+        long r = invokeRaw(rawSignature(Native.RAW_LONG, Native.RAW_LONG, 4), a0, a1, a2, a3);
+        return r;
+    }
+
+    /** Call the native function without arguments, avoiding the
+     * argument array and boxing of {@link #invokeDouble(Object[])}.
+     * @return the <code>double</code> result
+     */
+    public double invokeDouble() {
+        long r = invokeRaw(rawSignature(Native.RAW_DOUBLE, Native.RAW_DOUBLE, 0), 0, 0, 0, 0);
+        return Double.longBitsToDouble(r);
+    }
+
+    /** Call the native function with <code>double</code> arguments, avoiding the
+     * argument array and boxing of {@link #invokeDouble(Object[])}.  All
+     * arguments of the native function must have this type; use the
+     * <code>Object[]</code> variant for other signatures.
+     */
+    public double invokeDouble(double a0) {
+        long r = invokeRaw(rawSignature(Native.RAW_DOUBLE, Native.RAW_DOUBLE, 1), Double.doubleToRawLongBits(a0), 0, 0, 0);
+        return Double.longBitsToDouble(r);
+    }
+
+    /** @see #invokeDouble(double) */
+    public double invokeDouble(double a0, double a1) {
+        long r = invokeRaw(rawSignature(Native.RAW_DOUBLE, Native.RAW_DOUBLE, 2), Double.doubleToRawLongBits(a0), Double.doubleToRawLongBits(a1), 0, 0);
+        return Double.longBitsToDouble(r);
+    }
+
+    /** @see #invokeDouble(double) */
+    public double invokeDouble(double a0, double a1, double a2) {
+        long r = invokeRaw(rawSignature(Native.RAW_DOUBLE, Native.RAW_DOUBLE, 3), Double.doubleToRawLongBits(a0), Double.doubleToRawLongBits(a1), Double.doubleToRawLongBits(a2), 0);
+        return Double.longBitsToDouble(r);
+    }
+
+    /** @see #invokeDouble(double) */
+    public double invokeDouble(double a0, double a1, double a2, double a3) {
+        long r = invokeRaw(rawSignature(Native.RAW_DOUBLE, Native.RAW_DOUBLE, 4), Double.doubleToRawLongBits(a0), Double.doubleToRawLongBits(a1), Double.doubleToRawLongBits(a2), Double.doubleToRawLongBits(a3));
+        return Double.longBitsToDouble(r);
+    }
+
+    /** Call the native function without arguments, avoiding the
+     * argument array of {@link #invokeVoid(Object[])}.
+     */
+    public void invokeVoid() {
+        invokeRaw(rawSignature(Native.RAW_VOID, Native.RAW_INT, 0), 0, 0, 0, 0);
+    }
+
+    /** Call the native function with <code>int</code> arguments, avoiding the
+     * argument array and boxing of {@link #invokeVoid(Object[])}.  All
+     * arguments of the native function must have this type; use the
+     * <code>Object[]</code> variant for other signatures.
+     */
+    public void invokeVoid(int a0) {
+        invokeRaw(rawSignature(Native.RAW_VOID, Native.RAW_INT, 1), a0, 0, 0, 0);
+    }
+
+    /** @see #invokeVoid(int) */
+    public void invokeVoid(int a0, int a1) {
+        invokeRaw(rawSignature(Native.RAW_VOID, Native.RAW_INT, 2), a0, a1, 0, 0);
+    }
+
+    /** @see #invokeVoid(int) */
+    public void invokeVoid(int a0, int a1, int a2) {
+        invokeRaw(rawSignature(Native.RAW_VOID, Native.RAW_INT, 3), a0, a1, a2, 0);
+    }
+
+    /** @see #invokeVoid(int) */
+    public void invokeVoid(int a0, int a1, int a2, int a3) {
+        invokeRaw(rawSignature(Native.RAW_VOID, Native.RAW_INT, 4), a0, a1, a2, a3);
+    }
+
+    /** Call the native function without arguments, avoiding the
+     * argument array and boxing of {@link #invokeFloat(Object[])}.
+     * @return the <code>float</code> result
+     */
+    public float invokeFloat() {
+        long r = invokeRaw(rawSignature(Native.RAW_FLOAT, Native.RAW_FLOAT, 0), 0, 0, 0, 0);
+        return Float.intBitsToFloat((int)r);
+    }
+
+    /** Call the native function with <code>float</code> arguments, avoiding the
+     * argument array and boxing of {@link #invokeFloat(Object[])}.  All
+     * arguments of the native function must have this type; use the
+     * <code>Object[]</code> variant for other signatures.
+     */
+    public float invokeFloat(float a0) {
+        long r = invokeRaw(rawSignature(Native.RAW_FLOAT, Native.RAW_FLOAT, 1), Float.floatToRawIntBits(a0), 0, 0, 0);
+        return Float.intBitsToFloat((int)r);
+    }
+
+    /** @see #invokeFloat(float) */
+    public float invokeFloat(float a0, float a1) {
+        long r = invokeRaw(rawSignature(Native.RAW_FLOAT, Native.RAW_FLOAT, 2), Float.floatToRawIntBits(a0), Float.floatToRawIntBits(a1), 0, 0);
+        return Float.intBitsToFloat((int)r);
+    }
+
+    /** @see #invokeFloat(float) */
+    public float invokeFloat(float a0, float a1, float a2) {
+        long r = invokeRaw(rawSignature(Native.RAW_FLOAT, Native.RAW_FLOAT, 3), Float.floatToRawIntBits(a0), Float.floatToRawIntBits(a1), Float.floatToRawIntBits(a2), 0);
+        return Float.intBitsToFloat((int)r);
+    }
+
+    /** @see #invokeFloat(float) */
+    public float invokeFloat(float a0, float a1, float a2, float a3) {
+        long r = invokeRaw(rawSignature(Native.RAW_FLOAT, Native.RAW_FLOAT, 4), Float.floatToRawIntBits(a0), Float.floatToRawIntBits(a1), Float.floatToRawIntBits(a2), Float.floatToRawIntBits(a3));
+        return Float.intBitsToFloat((int)r);
+    }
+
+    /** Call the native function without arguments, avoiding the
+     * argument array and boxing of {@link #invokePointer(Object[])}.
+     * @return the pointer result (<code>null</code> if zero)
+     */
+    public Pointer invokePointer() {
+        long r = invokeRaw(rawSignature(Native.RAW_POINTER, Native.RAW_POINTER, 0), 0, 0, 0, 0);
+        return r == 0 ? null : new Pointer(r);
+    }
+
+    /** Call the native function with pointer (address) arguments, avoiding the
+     * argument array and boxing of {@link #invokePointer(Object[])}.  All
+     * arguments of the native function must have this type; use the
+     * <code>Object[]</code> variant for other signatures.
+     */
+    public Pointer invokePointer(long a0) {
+        long r = invokeRaw(rawSignature(Native.RAW_POINTER, Native.RAW_POINTER, 1), a0, 0, 0, 0);
+        return r == 0 ? null : new Pointer(r);
+    }
+
+    /** @see #invokePointer(long) */
+    public Pointer invokePointer(long a0, long a1) {
+        long r = invokeRaw(rawSignature(Native.RAW_POINTER, Native.RAW_POINTER, 2), a0, a1, 0, 0);
+        return r == 0 ? null : new Pointer(r);
+    }
+
+    /** @see #invokePointer(long) */
+    public Pointer invokePointer(long a0, long a1, long a2) {
+        long r = invokeRaw(rawSignature(Native.RAW_POINTER, Native.RAW_POINTER, 3), a0, a1, a2, 0);
+        return r == 0 ? null : new Pointer(r);
+    }
+
+    /** @see #invokePointer(long) */
+    public Pointer invokePointer(long a0, long a1, long a2, long a3) {
+        long r = invokeRaw(rawSignature(Native.RAW_POINTER, Native.RAW_POINTER, 4), a0, a1, a2, a3);
+        return r == 0 ? null : new Pointer(r);
+    }
+
     /** Two function pointers are equal if they share the same peer address
      * and calling convention.
      */
@@ -807,6 +1164,217 @@ public class Function extends Pointer {
         return IS_VARARGS.fixedArgs(m);
     }
 
+    /** Conversion applied to an argument by {@link MethodInvoker}. */
+    private enum ArgConversion {
+        /** Argument is converted by {@link Function#convertArgument}. */
+        CONVERT,
+        /** Argument is passed to native code as is. */
+        NONE,
+        /** Primitive array passed with the flags from its annotations. */
+        ARRAY,
+        BOOLEAN, STRING, WSTRING
+    }
+
+    /** Primitive array argument carrying the {@link In}, {@link Out} and
+     * {@link Pinned} flags of its parameter to native dispatch.
+     */
+    static final class ArrayArgument {
+        final Object array;
+        final int mode;
+
+        ArrayArgument(Object array, int mode) {
+            this.array = array;
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * Invocation plan for calls through an interface method.  Everything
+     * which depends only on the method signature and the library options
+     * (varargs, type mapping, argument conversions, result conversion and
+     * post-call synchronization) is derived once, so that each call only
+     * performs the conversions it actually needs.
+     */
+    static final class MethodInvoker {
+        private final Function function;
+        private final Method method;
+        private final Class<?>[] paramTypes;
+        private final Class<?> returnType;
+        private final TypeMapper mapper;
+        private final boolean allowObjects;
+        private final boolean isVarArgs;
+        private final int fixedArgs;
+        private final ArgConversion[] argConversions;
+        private final int[] arrayModes;
+        private final boolean postCallRead;
+        private final FromNativeConverter resultConverter;
+        private final Class<?> nativeReturnType;
+        private final ReturnKind returnKind;
+
+        MethodInvoker(Function function, Method method, Map<String, ?> options) {
+            this.function = function;
+            this.method = method;
+            this.paramTypes = method.getParameterTypes();
+            this.returnType = method.getReturnType();
+            this.mapper = (TypeMapper)options.get(Library.OPTION_TYPE_MAPPER);
+            this.allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
+            this.isVarArgs = Function.isVarArgs(method);
+            this.fixedArgs = Function.fixedArgs(method);
+
+            argConversions = new ArgConversion[paramTypes.length];
+            arrayModes = new int[paramTypes.length];
+            Annotation[][] paramAnnotations = method.getParameterAnnotations();
+            boolean needsRead = false;
+            for (int i=0;i < paramTypes.length;i++) {
+                argConversions[i] = isVarArgs && i == paramTypes.length-1
+                    ? ArgConversion.CONVERT : argConversion(paramTypes[i], mapper);
+                arrayModes[i] = Native.getArrayMode(paramTypes[i], paramAnnotations[i]);
+                if (arrayModes[i] != 0 && argConversions[i] == ArgConversion.NONE) {
+                    argConversions[i] = ArgConversion.ARRAY;
+                }
+                if (argConversions[i] == ArgConversion.CONVERT) {
+                    needsRead = true;
+                }
+            }
+            this.postCallRead = needsRead;
+
+            Class<?> nativeType = returnType;
+            FromNativeConverter converter = null;
+            if (NativeMapped.class.isAssignableFrom(returnType)) {
+                NativeMappedConverter tc = NativeMappedConverter.getInstance(returnType);
+                converter = tc;
+                nativeType = tc.nativeType();
+            } else if (mapper != null) {
+                converter = mapper.getFromNativeConverter(returnType);
+                if (converter != null) {
+                    nativeType = converter.nativeType();
+                }
+            }
+            this.resultConverter = converter;
+            this.nativeReturnType = nativeType;
+            this.returnKind = returnKind(nativeType);
+        }
+
+        /** Determine the conversion needed for a declared parameter type.
+         * Only types whose runtime class is known from the declaration
+         * may bypass {@link Function#convertArgument}.
+         */
+        private static ArgConversion argConversion(Class<?> type, TypeMapper mapper) {
+            Class<?> cls = type.isPrimitive() ? ClassFileWriter.boxedType(type) : type;
+            if (mapper != null && mapper.getToNativeConverter(cls) != null) {
+                return ArgConversion.CONVERT;
+            }
+            if (cls == Boolean.class) {
+                return ArgConversion.BOOLEAN;
+            }
+            if (cls == Byte.class || cls == Short.class || cls == Character.class
+                || cls == Integer.class || cls == Long.class
+                || cls == Float.class || cls == Double.class
+                || (cls.isArray() && cls.getComponentType().isPrimitive())) {
+                return ArgConversion.NONE;
+            }
+            if (cls == String.class) {
+                return ArgConversion.STRING;
+            }
+            if (cls == WString.class) {
+                return ArgConversion.WSTRING;
+            }
+            return ArgConversion.CONVERT;
+        }
+
+        Object invoke(Object[] inArgs) {
+            // Clone the argument array to obtain a scratch space for modified
+            // types/values
+            Object[] args = { };
+            if (inArgs != null) {
+                if (inArgs.length > MAX_NARGS) {
+                    throw new UnsupportedOperationException("Maximum argument count is " + MAX_NARGS);
+                }
+                args = new Object[inArgs.length];
+                System.arraycopy(inArgs, 0, args, 0, args.length);
+            }
+
+            // Converted arguments only need to live until the call returns
+            CallArena arena = args.length > 0 ? CallArena.current() : null;
+            long mark = arena != null ? arena.mark() : 0;
+            try {
+                return invoke(inArgs, args, arena);
+            } finally {
+                if (arena != null) {
+                    arena.reset(mark);
+                }
+            }
+        }
+
+        private Object invoke(Object[] inArgs, Object[] args, CallArena arena) {
+            for (int i=0; i < args.length; i++) {
+                ArgConversion conversion = i < argConversions.length ? argConversions[i] : ArgConversion.CONVERT;
+                Object arg = args[i];
+                switch(conversion) {
+                case NONE:
+                    break;
+                case ARRAY:
+                    if (arg != null) {
+                        args[i] = new ArrayArgument(arg, arrayModes[i]);
+                    }
+                    break;
+                case BOOLEAN:
+                    if (arg != null) {
+                        args[i] = Boolean.TRUE.equals(arg) ? INTEGER_TRUE : INTEGER_FALSE;
+                    }
+                    break;
+                case STRING:
+                    if (arg != null) {
+                        args[i] = CallArena.toNative(arena, (String)arg, function.encoding);
+                    }
+                    break;
+                case WSTRING:
+                    if (arg != null) {
+                        args[i] = CallArena.toNative(arena, arg.toString(), NativeString.WIDE_STRING);
+                    }
+                    break;
+                default:
+                    Class<?> paramType = isVarArgs && i >= paramTypes.length-1
+                        ? paramTypes[paramTypes.length-1].getComponentType()
+                        : paramTypes[i];
+                    args[i] = function.convertArgument(args, i, method, mapper, allowObjects, paramType, arena);
+                    break;
+                }
+            }
+
+            Object result = function.invoke(args, nativeReturnType, returnKind, allowObjects,
+                                            args.length > 0 ? fixedArgs : 0);
+            // Convert the result to a custom value/type if appropriate
+            if (resultConverter != null) {
+                result = resultConverter.fromNative(result, new MethodResultContext(returnType, function, inArgs, method));
+            }
+
+            // Sync all memory which might have been modified by the native call
+            if (postCallRead && inArgs != null) {
+                Function.postCallRead(inArgs, args);
+            }
+
+            return result;
+        }
+    }
+
+    private static StringArray newStringArray(Object[] arg, String encoding, CallArena arena) {
+        long peer = arena != null ? arena.allocate(StringArray.size(arg)) : 0;
+        return peer != 0
+            ? arena.track(new StringArray(arg, encoding, arena, peer))
+            : new StringArray(arg, encoding, arena);
+    }
+
+    private static PointerArray newPointerArray(Pointer[] arg, CallArena arena) {
+        long peer = arena != null ? arena.allocate(PointerArray.size(arg)) : 0;
+        return peer != 0 ? arena.track(new PointerArray(arg, peer)) : new PointerArray(arg);
+    }
+
+    private static NativeMappedArray newNativeMappedArray(NativeMapped[] arg, CallArena arena) {
+        long peer = arena != null ? arena.allocate(Native.getNativeSize(arg.getClass(), arg)) : 0;
+        return peer != 0 ? arena.track(new NativeMappedArray(arg, peer)) : new NativeMappedArray(arg);
+    }
+
     private static class NativeMappedArray extends Memory implements PostCallRead {
         private final NativeMapped[] original;
         public NativeMappedArray(NativeMapped[] arg) {
@@ -814,6 +1382,13 @@ public class Function extends Pointer {
             this.original = arg;
             setValue(0, original, original.getClass());
         }
+        /** Use memory owned by a {@link CallArena}. */
+        NativeMappedArray(NativeMapped[] arg, long peer) {
+            this.peer = peer;
+            this.size = Native.getNativeSize(arg.getClass(), arg);
+            this.original = arg;
+            setValue(0, original, original.getClass());
+        }
         @Override
         public void read() {
             getValue(0, original.getClass(), original);
@@ -823,12 +1398,25 @@ public class Function extends Pointer {
     private static class PointerArray extends Memory implements PostCallRead {
         private final Pointer[] original;
         public PointerArray(Pointer[] arg) {
-            super(Native.POINTER_SIZE * (arg.length+1));
+            super(size(arg));
             this.original = arg;
-            for (int i=0;i < arg.length;i++) {
-                setPointer(i*Native.POINTER_SIZE, arg[i]);
+            init();
+        }
+        /** Use memory owned by a {@link CallArena}. */
+        PointerArray(Pointer[] arg, long peer) {
+            this.peer = peer;
+            this.size = size(arg);
+            this.original = arg;
+            init();
+        }
+        static long size(Pointer[] arg) {
+            return Native.POINTER_SIZE * (arg.length+1);
+        }
+        private void init() {
+            for (int i=0;i < original.length;i++) {
+                setPointer(i*Native.POINTER_SIZE, original[i]);
             }
-            setPointer(Native.POINTER_SIZE*arg.length, null);
+            setPointer(Native.POINTER_SIZE*original.length, null);
         }
         @Override
         public void read() {
@@ -836,6 +1424,26 @@ public class Function extends Pointer {
         }
     }
 
+    private static final class CallInterfaceCacheDisposer implements Runnable {
+
+        private long cache;
+
+        public CallInterfaceCacheDisposer(long cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (cache != 0) {
+                try {
+                    Native.freeCallInterfaceCache(cache);
+                } finally {
+                    cache = 0;
+                }
+            }
+        }
+    }
+
     /** Implementation of Boolean.valueOf for older VMs. */
     static Boolean valueOf(boolean b) {
         return b ? Boolean.TRUE : Boolean.FALSE;
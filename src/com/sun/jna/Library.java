@@ -28,7 +28,8 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /** Derive from this interface for all native library definitions.
  *
@@ -119,6 +120,20 @@ public interface Library {
      */
     String OPTION_SYMBOL_PROVIDER = "symbol-provider";
 
+    /** <p>Option key for a boolean flag to implement the library interface
+     * with a class generated at runtime instead of a
+     * {@link java.lang.reflect.Proxy}.  Methods whose signature is supported
+     * by direct mapping (see {@link Native#register(Class, NativeLibrary)})
+     * call straight into the native function, avoiding the argument array and
+     * the dispatch through the {@link InvocationHandler}; all other methods
+     * are invoked as they would be through the proxy.</p>
+     * The interface and all types used in its methods must be public,
+     * otherwise a proxy is used regardless of this option.  The returned
+     * object is not a proxy, so it cannot be passed to
+     * {@link Native#synchronizedLibrary(Library)}.
+     */
+    String OPTION_GENERATE_IMPLEMENTATION = "generate-implementation";
+
     static class Handler implements InvocationHandler {
 
         static final Method OBJECT_TOSTRING;
@@ -136,33 +151,27 @@ public interface Library {
         }
 
         /**
-         * FunctionInfo has to be immutable to to make the object visible
-         * to other threads fully initialized. This is a prerequisite for
-         * using the class in the double checked locking scenario of {@link Handler#invoke(Object, Method, Object[])}
+         * FunctionInfo is immutable, so instances published through
+         * {@link Handler#functions} are visible to other threads fully
+         * initialized.
          */
         private static final class FunctionInfo {
             final InvocationHandler handler;
-            final Function function;
+            final Function.MethodInvoker invoker;
             final boolean isVarArgs;
             final Object methodHandle;
-            final Map<String, ?> options;
-            final Class<?>[] parameterTypes;
 
             FunctionInfo(Object mh) {
                 this.handler = null;
-                this.function = null;
+                this.invoker = null;
                 this.isVarArgs = false;
-                this.options = null;
-                this.parameterTypes = null;
                 this.methodHandle = mh;
             }
 
-            FunctionInfo(InvocationHandler handler, Function function, Class<?>[] parameterTypes, boolean isVarArgs, Map<String, ?> options) {
+            FunctionInfo(InvocationHandler handler, Function.MethodInvoker invoker, boolean isVarArgs) {
                 this.handler = handler;
-                this.function = function;
+                this.invoker = invoker;
                 this.isVarArgs = isVarArgs;
-                this.options = options;
-                this.parameterTypes = parameterTypes;
                 this.methodHandle = null;
             }
         }
@@ -172,7 +181,10 @@ public interface Library {
         // Library invocation options
         private final Map<String, Object> options;
         private final InvocationMapper invocationMapper;
-        private final Map<Method, FunctionInfo> functions = new WeakHashMap<>();
+        // Keys are methods of the interface (or Object), whose class loader
+        // is already referenced through interfaceClass, so strong keys do not
+        // keep any additional class loader alive
+        private final ConcurrentMap<Method, FunctionInfo> functions = new ConcurrentHashMap<>();
         public Handler(String libname, Class<?> interfaceClass, Map<String, ?> options) {
 
             if (libname != null && "".equals(libname.trim())) {
@@ -210,6 +222,25 @@ public interface Library {
             return interfaceClass;
         }
 
+        private FunctionInfo createFunctionInfo(Method method) throws Exception {
+            if (ReflectionUtils.isDefault(method)) {
+                return new FunctionInfo(ReflectionUtils.getMethodHandle(method));
+            }
+            boolean isVarArgs = Function.isVarArgs(method);
+            InvocationHandler handler = null;
+            if (invocationMapper != null) {
+                handler = invocationMapper.getInvocationHandler(nativeLibrary, method);
+            }
+            Function.MethodInvoker invoker = null;
+            if (handler == null) {
+                // Find the function to invoke and prepare
+                // the conversions for its arguments
+                Function function = nativeLibrary.getFunction(method.getName(), method);
+                invoker = new Function.MethodInvoker(function, method, this.options);
+            }
+            return new FunctionInfo(handler, invoker, isVarArgs);
+        }
+
         @Override
         public Object invoke(Object proxy, Method method, Object[] inArgs)
             throws Throwable {
@@ -224,38 +255,17 @@ public interface Library {
                 if (o != null && Proxy.isProxyClass(o.getClass())) {
                     return Function.valueOf(Proxy.getInvocationHandler(o) == this);
                 }
-                return Boolean.FALSE;
+                return Function.valueOf(o != null && LibraryGenerator.getHandler(o) == this);
             }
 
-            // Using the double-checked locking pattern to speed up function calls
             FunctionInfo f = functions.get(method);
-            if(f == null) {
-                synchronized(functions) {
-                    f = functions.get(method);
-                    if (f == null) {
-                        boolean isDefault = ReflectionUtils.isDefault(method);
-                        if(! isDefault) {
-                            boolean isVarArgs = Function.isVarArgs(method);
-                            InvocationHandler handler = null;
-                            if (invocationMapper != null) {
-                                handler = invocationMapper.getInvocationHandler(nativeLibrary, method);
-                            }
-                            Function function = null;
-                            Class<?>[] parameterTypes = null;
-                            Map<String, Object> options = null;
-                            if (handler == null) {
-                                // Find the function to invoke
-                                function = nativeLibrary.getFunction(method.getName(), method);
-                                parameterTypes = method.getParameterTypes();
-                                options = new HashMap<>(this.options);
-                                options.put(Function.OPTION_INVOKING_METHOD, method);
-                            }
-                            f = new FunctionInfo(handler, function, parameterTypes, isVarArgs, options);
-                        } else {
-                            f = new FunctionInfo(ReflectionUtils.getMethodHandle(method));
-                        }
-                        functions.put(method, f);
-                    }
+            if (f == null) {
+                // Threads racing on the first call of a method may each
+                // create an instance, but all of them use the published one
+                f = createFunctionInfo(method);
+                FunctionInfo existing = functions.putIfAbsent(method, f);
+                if (existing != null) {
+                    f = existing;
                 }
             }
             if (f.methodHandle != null) {
@@ -267,7 +277,7 @@ public interface Library {
                 if (f.handler != null) {
                     return f.handler.invoke(proxy, method, inArgs);
                 }
-                return f.function.invoke(method, f.parameterTypes, method.getReturnType(), inArgs, f.options);
+                return f.invoker.invoke(inArgs);
             }
         }
     }
@@ -0,0 +1,337 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import com.sun.jna.internal.ClassFileWriter;
+import com.sun.jna.internal.ClassFileWriter.Code;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sun.jna.internal.ClassFileWriter.*;
+
+/**
+ * Generates concrete implementations of {@link Library} interfaces, used
+ * instead of a {@link java.lang.reflect.Proxy} when
+ * {@link Library#OPTION_GENERATE_IMPLEMENTATION} is set.
+ * <p>
+ * Methods whose signature is supported by direct mapping forward to a
+ * <code>static native</code> method of a generated companion class, which is
+ * bound with {@link Native#register(Class, NativeLibrary)} semantics.  All
+ * other methods (varargs, arrays of objects, methods handled by an
+ * {@link InvocationMapper}) box their arguments and call the
+ * {@link Library.Handler} as the proxy would, as do <code>toString</code>,
+ * <code>equals</code> and <code>hashCode</code>.
+ * <p>
+ * The native methods are bound to a {@link NativeLibrary}, so the generated
+ * classes are kept by that library and reused by every instance of the
+ * interface for it.  Their native methods are unregistered when the library
+ * is closed or collected; the registration does not keep the library
+ * reachable.
+ */
+final class LibraryGenerator {
+
+    private static final String HANDLER_FIELD = "handler";
+    private static final String METHODS_FIELD = "methods";
+    private static final String HANDLER_DESCRIPTOR = descriptor(InvocationHandler.class);
+    private static final String METHODS_DESCRIPTOR = descriptor(Method[].class);
+    private static final String INVOKE_DESCRIPTOR =
+        methodDescriptor(Object.class, Object.class, Method.class, Object[].class);
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    /** Implemented by all generated classes.  Public, since the classes
+     * are defined in their own class loader.
+     */
+    public interface Generated {
+        /** @return the handler of this instance */
+        InvocationHandler handler$jna();
+    }
+
+    /** Generated implementation of an interface for one library. */
+    static final class Implementation {
+        final Class<?> nativeClass;
+        final Constructor<?> constructor;
+        final Method[] proxiedMethods;
+
+        Implementation(Class<?> nativeClass, Class<?> cls, Method[] proxiedMethods) throws ReflectiveOperationException {
+            this.nativeClass = nativeClass;
+            this.constructor = cls.getConstructor(InvocationHandler.class, Method[].class);
+            this.proxiedMethods = proxiedMethods;
+        }
+    }
+
+    private LibraryGenerator() {
+    }
+
+    /** Returns whether an implementation of the given interface can be
+     * generated.  The generated classes live in their own class loader, so
+     * the interface and all types in its method signatures must be public.
+     */
+    static boolean canGenerate(Class<?> interfaceClass) {
+        if (!isAccessible(interfaceClass)) {
+            return false;
+        }
+        for (Method m : interfaceClass.getMethods()) {
+            if (!isAccessible(m.getReturnType())) {
+                return false;
+            }
+            for (Class<?> type : m.getParameterTypes()) {
+                if (!isAccessible(type)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAccessible(Class<?> cls) {
+        while (cls.isArray()) {
+            cls = cls.getComponentType();
+        }
+        for (Class<?> c = cls; c != null && !c.isPrimitive(); c = c.getDeclaringClass()) {
+            if (!Modifier.isPublic(c.getModifiers())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the handler backing a generated library implementation, or
+     * <code>null</code> if the given object is not one.
+     */
+    static Library.Handler getHandler(Object library) {
+        if (library instanceof Generated) {
+            return (Library.Handler) ((Generated) library).handler$jna();
+        }
+        return null;
+    }
+
+    /** Instantiate an implementation of the handler's interface, generating
+     * it on first use for the handler's library.
+     */
+    static Object newInstance(Library.Handler handler) {
+        Class<?> interfaceClass = handler.getInterfaceClass();
+        NativeLibrary lib = handler.getNativeLibrary();
+        Map<Class<?>, Implementation> implementations = lib.implementations;
+        try {
+            Implementation impl;
+            synchronized(implementations) {
+                impl = implementations.get(interfaceClass);
+                if (impl == null) {
+                    impl = generate(interfaceClass, lib);
+                    implementations.put(interfaceClass, impl);
+                }
+            }
+            return impl.constructor.newInstance(handler, impl.proxiedMethods);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to generate implementation of " + interfaceClass.getName(), e);
+        }
+    }
+
+    /** Unregister the native methods of the implementations generated for
+     * a library which is being closed or has been collected.
+     * @param implementations the generated implementations of the library
+     */
+    static void dispose(Map<Class<?>, Implementation> implementations) {
+        List<Implementation> disposed;
+        synchronized(implementations) {
+            disposed = new ArrayList<>(implementations.values());
+            implementations.clear();
+        }
+        for (Implementation impl : disposed) {
+            if (impl.nativeClass != null) {
+                Native.unregister(impl.nativeClass);
+            }
+        }
+    }
+
+    private static Implementation generate(Class<?> interfaceClass, NativeLibrary lib) throws ReflectiveOperationException {
+        Map<String, ?> options = lib.getOptions();
+        TypeMapper mapper = (TypeMapper) options.get(Library.OPTION_TYPE_MAPPER);
+        boolean allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
+        // An invocation mapper may intercept any method
+        boolean direct = options.get(Library.OPTION_INVOCATION_MAPPER) == null;
+
+        List<Method> directMethods = new ArrayList<>();
+        List<Method> proxiedMethods = new ArrayList<>();
+        for (Method m : abstractMethods(interfaceClass)) {
+            if (direct && !Function.isVarArgs(m)
+                && Native.isDirectMappable(m, mapper, allowObjects)) {
+                directMethods.add(m);
+            } else {
+                proxiedMethods.add(m);
+            }
+        }
+        // Same as java.lang.reflect.Proxy
+        proxiedMethods.add(Library.Handler.OBJECT_TOSTRING);
+        proxiedMethods.add(Library.Handler.OBJECT_HASHCODE);
+        proxiedMethods.add(Library.Handler.OBJECT_EQUALS);
+
+        GeneratedClassLoader loader = new GeneratedClassLoader(interfaceClass.getClassLoader());
+        String className = interfaceClass.getName() + "$$JNA" + counter.incrementAndGet();
+        String nativeClassName = className + "$Native";
+        Class<?> nativeClass = null;
+        if (!directMethods.isEmpty()) {
+            nativeClass = loader.define(nativeClassName, generateNativeClass(nativeClassName, directMethods));
+            Method[] nativeMethods = new Method[directMethods.size()];
+            for (int i = 0; i < nativeMethods.length; i++) {
+                Method m = directMethods.get(i);
+                for (Method nm : nativeClass.getDeclaredMethods()) {
+                    if (nm.getName().equals(m.getName())
+                        && nm.getReturnType() == m.getReturnType()
+                        && Arrays.equals(nm.getParameterTypes(), m.getParameterTypes())) {
+                        nativeMethods[i] = nm;
+                    }
+                }
+            }
+            // The library unregisters the class, so it must not be kept
+            // reachable by the registration
+            Native.register(nativeClass, lib, nativeMethods, directMethods.toArray(new Method[0]), false);
+        }
+        Class<?> cls = loader.define(className, generateClass(className, nativeClassName, interfaceClass, directMethods, proxiedMethods));
+        return new Implementation(nativeClass, cls, proxiedMethods.toArray(new Method[0]));
+    }
+
+    /** @return the methods to implement, i.e. all abstract methods of the
+     * interface not already implemented by {@link Object}, without duplicate
+     * signatures inherited from several super interfaces.
+     */
+    private static List<Method> abstractMethods(Class<?> interfaceClass) {
+        Map<String, Method> methods = new LinkedHashMap<>();
+        for (Method m : interfaceClass.getMethods()) {
+            if (!Modifier.isAbstract(m.getModifiers())) {
+                continue;
+            }
+            try {
+                Object.class.getMethod(m.getName(), m.getParameterTypes());
+                continue;
+            } catch (NoSuchMethodException e) {
+                // not an Object method
+            }
+            String key = m.getName() + methodDescriptor(m.getReturnType(), m.getParameterTypes());
+            if (!methods.containsKey(key)) {
+                methods.put(key, m);
+            }
+        }
+        return new ArrayList<>(methods.values());
+    }
+
+    private static byte[] generateNativeClass(String className, List<Method> methods) {
+        ClassFileWriter cw = new ClassFileWriter(ACC_PUBLIC | ACC_FINAL | ACC_SUPER,
+                                                 className.replace('.', '/'), "java/lang/Object");
+        for (Method m : methods) {
+            cw.addMethod(ACC_PUBLIC | ACC_STATIC | ACC_NATIVE, m.getName(),
+                         methodDescriptor(m.getReturnType(), m.getParameterTypes()));
+        }
+        return cw.toByteArray();
+    }
+
+    private static byte[] generateClass(String className, String nativeClassName, Class<?> interfaceClass,
+                                        List<Method> directMethods, List<Method> proxiedMethods) {
+        String owner = className.replace('.', '/');
+        String nativeOwner = nativeClassName.replace('.', '/');
+        ClassFileWriter cw = new ClassFileWriter(ACC_PUBLIC | ACC_FINAL | ACC_SUPER,
+                                                 owner, "java/lang/Object", internalName(interfaceClass),
+                                                 internalName(Generated.class));
+        cw.addField(ACC_PRIVATE | ACC_FINAL, HANDLER_FIELD, HANDLER_DESCRIPTOR);
+        cw.addField(ACC_PRIVATE | ACC_FINAL, METHODS_FIELD, METHODS_DESCRIPTOR);
+
+        Code init = cw.newMethod(ACC_PUBLIC, "<init>", "(" + HANDLER_DESCRIPTOR + METHODS_DESCRIPTOR + ")V");
+        init.load(Object.class, 0)
+            .invokespecial("java/lang/Object", "<init>", "()V")
+            .load(Object.class, 0).load(Object.class, 1)
+            .putfield(owner, HANDLER_FIELD, HANDLER_DESCRIPTOR)
+            .load(Object.class, 0).load(Object.class, 2)
+            .putfield(owner, METHODS_FIELD, METHODS_DESCRIPTOR)
+            .returnValue(void.class)
+            .end(2, 3);
+
+        cw.newMethod(ACC_PUBLIC | ACC_FINAL, "handler$jna", "()" + HANDLER_DESCRIPTOR)
+            .load(Object.class, 0).getfield(owner, HANDLER_FIELD, HANDLER_DESCRIPTOR)
+            .returnValue(Object.class)
+            .end(1, 1);
+
+        for (Method m : directMethods) {
+            Class<?> returnType = m.getReturnType();
+            Class<?>[] paramTypes = m.getParameterTypes();
+            String desc = methodDescriptor(returnType, paramTypes);
+            Code code = cw.newMethod(ACC_PUBLIC | ACC_FINAL, m.getName(), desc);
+            int slot = 1;
+            for (Class<?> type : paramTypes) {
+                code.load(type, slot);
+                slot += slots(type);
+            }
+            code.invokestatic(nativeOwner, m.getName(), desc)
+                .returnValue(returnType)
+                .end(Math.max(slot - 1, slots(returnType)), slot);
+        }
+
+        for (int i = 0; i < proxiedMethods.size(); i++) {
+            Method m = proxiedMethods.get(i);
+            Class<?> returnType = m.getReturnType();
+            Class<?>[] paramTypes = m.getParameterTypes();
+            Code code = cw.newMethod(ACC_PUBLIC | ACC_FINAL, m.getName(), methodDescriptor(returnType, paramTypes));
+            code.load(Object.class, 0).getfield(owner, HANDLER_FIELD, HANDLER_DESCRIPTOR)
+                .load(Object.class, 0)
+                .load(Object.class, 0).getfield(owner, METHODS_FIELD, METHODS_DESCRIPTOR)
+                .iconst(i).aaload();
+            int slot = 1;
+            if (paramTypes.length == 0) {
+                // Same as java.lang.reflect.Proxy
+                code.aconstNull();
+            } else {
+                code.iconst(paramTypes.length).anewarray("java/lang/Object");
+                for (int a = 0; a < paramTypes.length; a++) {
+                    Class<?> type = paramTypes[a];
+                    code.dup().iconst(a).load(type, slot);
+                    if (type.isPrimitive()) {
+                        Class<?> boxed = boxedType(type);
+                        code.invokestatic(internalName(boxed), "valueOf", methodDescriptor(boxed, type));
+                    }
+                    code.aastore();
+                    slot += slots(type);
+                }
+            }
+            code.invokeinterface("java/lang/reflect/InvocationHandler", "invoke", INVOKE_DESCRIPTOR, 4);
+            if (returnType == void.class) {
+                code.pop();
+            } else if (returnType.isPrimitive()) {
+                Class<?> boxed = boxedType(returnType);
+                code.checkcast(internalName(boxed))
+                    .invokevirtual(internalName(boxed), returnType.getName() + "Value", methodDescriptor(returnType));
+            } else if (returnType != Object.class) {
+                code.checkcast(internalName(returnType));
+            }
+            code.returnValue(returnType).end(8, slot);
+        }
+        return cw.toByteArray();
+    }
+}
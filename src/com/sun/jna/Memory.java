@@ -56,13 +56,13 @@ public class Memory extends Pointer implements Closeable {
     private static final Map<Long, Reference<Memory>> allocatedMemory =
             new ConcurrentHashMap<>();
 
-    private static final WeakMemoryHolder buffers = new WeakMemoryHolder();
-
     /** Force cleanup of memory that has associated NIO Buffers which have
         been GC'd.
+        @deprecated NIO Buffers now release their memory through the
+        {@link Cleaner}; this method does nothing.
     */
+    @Deprecated
     public static void purge() {
-        buffers.clean();
     }
 
     /** Dispose of all allocated memory. */
@@ -79,6 +79,7 @@ public class Memory extends Pointer implements Closeable {
 
     private final Cleaner.Cleanable cleanable;
     protected long size; // Size of the malloc'ed space
+    int alignment; // Guaranteed alignment of peer, 0 if unspecified
 
     /** Provide a view into the original memory.  Keeps an implicit reference
      * to the original to prevent GC.
@@ -87,6 +88,8 @@ public class Memory extends Pointer implements Closeable {
         public SharedMemory(long offset, long size) {
             this.size = size;
             this.peer = Memory.this.peer + offset;
+            int parent = Memory.this.alignment;
+            this.alignment = offset == 0 ? parent : (int) Math.min(parent, Long.lowestOneBit(offset));
         }
         /** No need to free memory. */
         @Override
@@ -110,16 +113,41 @@ public class Memory extends Pointer implements Closeable {
      * @param size number of <em>bytes</em> of space to allocate
      */
     public Memory(long size) {
+        this(size, 0);
+    }
+
+    private Memory(long size, int alignment) {
         this.size = size;
         if (size <= 0) {
             throw new IllegalArgumentException("Allocation size must be greater than zero");
         }
-        peer = malloc(size);
+        peer = alignment == 0 ? malloc(size) : Native.mallocAligned(size, alignment);
         if (peer == 0)
             throw new OutOfMemoryError("Cannot allocate " + size + " bytes");
 
+        this.alignment = alignment;
         allocatedMemory.put(peer, new WeakReference<>(this));
-        cleanable = Cleaner.getCleaner().register(this, new MemoryDisposer(peer));
+        MemoryAccounting.allocated(peer, size);
+        cleanable = Cleaner.getCleaner().register(this, new MemoryDisposer(peer, size, alignment != 0));
+    }
+
+    /**
+     * Allocate space in the native heap aligned to the given boundary, via
+     * <code>posix_memalign</code> (<code>_aligned_malloc</code> on Windows),
+     * for example page-aligned buffers for unbuffered I/O or cache-line
+     * aligned data, without over-allocating for {@link #align(int)}.
+     *
+     * @param size number of <em>bytes</em> of space to allocate
+     * @param alignment required alignment in bytes, a power of two; smaller
+     * values than {@link Native#POINTER_SIZE} are raised to it
+     * @throws IllegalArgumentException if the alignment is not a positive
+     * power of two.
+     */
+    public static Memory allocateAligned(long size, int alignment) {
+        if (alignment <= 0 || (alignment & (alignment - 1)) != 0) {
+            throw new IllegalArgumentException("Byte boundary must be a positive power of two: " + alignment);
+        }
+        return new Memory(size, Math.max(alignment, Native.POINTER_SIZE));
     }
 
     protected Memory() {
@@ -163,6 +191,9 @@ public class Memory extends Pointer implements Closeable {
         if (byteBoundary <= 0) {
             throw new IllegalArgumentException("Byte boundary must be positive: " + byteBoundary);
         }
+        if (byteBoundary <= alignment) {
+            return this;
+        }
         for (int i=0;i < 32;i++) {
             if (byteBoundary == (1<<i)) {
                 long mask = ~((long)byteBoundary - 1);
@@ -173,7 +204,9 @@ public class Memory extends Pointer implements Closeable {
                     if (newSize <= 0) {
                         throw new IllegalArgumentException("Insufficient memory to align to the requested boundary");
                     }
-                    return (Memory)share(newPeer - peer, newSize);
+                    Memory aligned = (Memory)share(newPeer - peer, newSize);
+                    aligned.alignment = Math.max(aligned.alignment, byteBoundary);
+                    return aligned;
                 }
                 return this;
             }
@@ -184,6 +217,9 @@ public class Memory extends Pointer implements Closeable {
     /** Free the native memory and set peer to zero */
     @Override
     public void close() {
+        if (cleanable != null && peer != 0) {
+            MemoryAccounting.closed(peer);
+        }
         peer = 0;
         if (cleanable != null) {
             cleanable.clean();
@@ -209,6 +245,16 @@ public class Memory extends Pointer implements Closeable {
         return size;
     }
 
+    /** Returns the alignment of this memory's address guaranteed by its
+     * allocation: the alignment requested from {@link #allocateAligned} or
+     * {@link #align(int)}, and for a {@link #share(long) shared} view, what
+     * remains of it at the view's offset.  Returns 0 if no alignment was
+     * requested.
+     */
+    public int alignment() {
+        return alignment;
+    }
+
     /**
      * Check that indirection won't cause us to write outside the
      * malloc'ed space.
@@ -243,6 +289,51 @@ public class Memory extends Pointer implements Closeable {
         super.read(bOff, buf, index, length);
     }
 
+    /** Search within the bounds of this memory.
+     * @see Pointer#indexOf(long,byte)
+     */
+    @Override
+    public long indexOf(long offset, byte value) {
+        boundsCheck(offset, 0);
+        return indexOf(offset, size - offset, value);
+    }
+
+    /**
+     * Bounds-checked {@link Pointer#indexOf(long,long,byte)}.
+     */
+    @Override
+    public long indexOf(long offset, long length, byte value) {
+        boundsCheck(offset, length);
+        return super.indexOf(offset, length, value);
+    }
+
+    /**
+     * Bounds-checked {@link Pointer#copyTo(long,Pointer,long,long)}.
+     */
+    @Override
+    public void copyTo(long offset, Pointer dst, long dstOffset, long length) {
+        boundsCheck(offset, length);
+        super.copyTo(offset, dst, dstOffset, length);
+    }
+
+    /**
+     * Bounds-checked {@link Pointer#mismatch(long,Pointer,long,long)}.
+     */
+    @Override
+    public long mismatch(long offset, Pointer other, long otherOffset, long length) {
+        boundsCheck(offset, length);
+        return super.mismatch(offset, other, otherOffset, length);
+    }
+
+    /**
+     * Bounds-checked {@link Pointer#setMemory(long,long,byte)}.
+     */
+    @Override
+    public void setMemory(long offset, long length, byte value) {
+        boundsCheck(offset, length);
+        super.setMemory(offset, length, value);
+    }
+
     /**
      * Indirect the native pointer to <code>malloc</code> space, a la
      * <code>Pointer.read</code>.  But this method performs a bounds
@@ -590,8 +681,9 @@ public class Memory extends Pointer implements Closeable {
         boundsCheck(offset, length);
         ByteBuffer b = super.getByteBuffer(offset, length);
         // Ensure this Memory object will not be GC'd (and its memory freed)
-        // if the Buffer is still extant.
-        buffers.put(b, this);
+        // if the Buffer (or a typed view of it) is still extant.  The
+        // registration is striped, so concurrent callers do not contend.
+        Cleaner.getCleaner().register(b, new BufferPin(this));
         return b;
     }
 
@@ -780,20 +872,48 @@ public class Memory extends Pointer implements Closeable {
         }
     }
 
+    /** Keeps the memory of a NIO Buffer reachable until the Buffer is
+     * GC'd.
+     */
+    private static final class BufferPin implements Runnable {
+
+        private Memory memory;
+
+        BufferPin(Memory memory) {
+            this.memory = memory;
+        }
+
+        @Override
+        public void run() {
+            memory = null;
+        }
+    }
+
     private static final class MemoryDisposer implements Runnable {
 
         private long peer;
+        private final long size;
+        private final boolean aligned;
 
-        public MemoryDisposer(long peer) {
+        public MemoryDisposer(long peer, long size, boolean aligned) {
             this.peer = peer;
+            this.size = size;
+            this.aligned = aligned;
         }
 
         @Override
         public synchronized void run() {
             try {
-                free(peer);
+                if (aligned) {
+                    Native.freeAligned(peer);
+                } else {
+                    free(peer);
+                }
             } finally {
                 allocatedMemory.remove(peer);
+                if (peer != 0) {
+                    MemoryAccounting.freed(peer, size);
+                }
                 peer = 0;
             }
         }
@@ -0,0 +1,431 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Accounting of the native memory allocated by JNA: {@link Memory} (including
+ * native strings and {@link Structure} memory), the chunks of
+ * {@link MemoryArena}s and the blocks of {@link MemoryPool}s, as well as the
+ * number of native callback trampolines.
+ * <p>
+ * The counters are also available through JMX as
+ * {@value #OBJECT_NAME}, once {@link #registerMBean()} has been called or
+ * automatically if the system property <code>jna.memory_mbean</code> is
+ * <code>true</code>.
+ * <p>
+ * Optionally, a sample of {@link Memory} allocations records the stack trace
+ * of the allocation.  Sampled allocations which are still in use after the
+ * {@link #getSamplingThreshold() threshold} are reported by
+ * {@link #getLongLivedAllocations()}; those which are freed by the cleaner
+ * after becoming unreachable instead of being {@link Memory#close() closed}
+ * are logged and reported by {@link #getReclaimedAllocations()}.  Sampling is
+ * disabled by default, and enabled with {@link #setSamplingInterval(int)} or
+ * the system property <code>jna.memory_sampling</code>, with the threshold (in
+ * milliseconds) set by <code>jna.memory_sampling_threshold</code>.
+ * <p>
+ * The counters are striped, so that accounting adds no contention between
+ * threads allocating memory.  As a consequence, live usage is derived from
+ * the totals allocated and freed, and the peak is approximate: it is only
+ * updated on a sample of allocations and whenever usage is queried.
+ */
+public final class MemoryAccounting {
+
+    /** Name under which the {@link MemoryAccountingMXBean} is registered. */
+    public static final String OBJECT_NAME = "com.sun.jna:type=MemoryAccounting";
+
+    private static final Logger LOG = Logger.getLogger(MemoryAccounting.class.getName());
+
+    /** Maximum number of reclaimed allocations kept for reporting. */
+    private static final int MAX_RECLAIMED = 256;
+    /** Minimum interval between two rate computations. */
+    private static final long RATE_INTERVAL = 1000000000L;
+    /** One in this many allocations updates the peak. */
+    private static final int PEAK_INTERVAL = 64;
+
+    private static final LongAdder allocations = new LongAdder();
+    private static final LongAdder frees = new LongAdder();
+    private static final LongAdder allocatedBytes = new LongAdder();
+    private static final LongAdder freedBytes = new LongAdder();
+    private static final AtomicLong peakBytes = new AtomicLong();
+    private static final LongAdder callbacks = new LongAdder();
+    private static final LongAdder freedCallbacks = new LongAdder();
+
+    private static volatile int samplingInterval = Integer.getInteger("jna.memory_sampling", 0);
+    private static volatile long samplingThreshold = Long.getLong("jna.memory_sampling_threshold", 60000);
+    // Set once sampling has been enabled, so that earlier samples are still
+    // removed after it is disabled again
+    private static volatile boolean tracking = samplingInterval > 0;
+    private static final Map<Long, Allocation> samples = new ConcurrentHashMap<>();
+    private static final ArrayDeque<Allocation> reclaimed = new ArrayDeque<>();
+
+    private static long rateTime;
+    private static long rateAllocated;
+    private static long rateFreed;
+    private static double allocationRate;
+    private static double freeRate;
+
+    private static boolean registered;
+
+    static {
+        if (Boolean.getBoolean("jna.memory_mbean")) {
+            try {
+                registerMBean();
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Cannot register " + OBJECT_NAME, t);
+            }
+        }
+    }
+
+    private MemoryAccounting() {
+    }
+
+    /** A sampled allocation. */
+    public static final class Allocation {
+        private final long size;
+        private final long timestamp;
+        private final Throwable site;
+        private volatile boolean wasReclaimed;
+
+        Allocation(long size) {
+            this.size = size;
+            this.timestamp = System.currentTimeMillis();
+            this.site = new Throwable("Allocation site");
+        }
+
+        /** @return size of the allocation in bytes */
+        public long getSize() {
+            return size;
+        }
+
+        /** @return time of the allocation, as {@link System#currentTimeMillis()} */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** @return stack trace of the allocation */
+        public StackTraceElement[] getStackTrace() {
+            return site.getStackTrace();
+        }
+
+        /** @return whether the memory was freed by the cleaner instead of
+         * being closed
+         */
+        public boolean isReclaimed() {
+            return wasReclaimed;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(size).append(" bytes allocated ").append(new Date(timestamp));
+            if (wasReclaimed) {
+                sb.append(", reclaimed without close()");
+            }
+            for (StackTraceElement e : getStackTrace()) {
+                sb.append(System.lineSeparator()).append("\tat ").append(e);
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Record a native allocation; <code>peer</code> is non-zero for
+     * {@link Memory} allocations eligible for sampling.
+     */
+    static void allocated(long peer, long size) {
+        allocations.increment();
+        allocatedBytes.add(size);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextInt(PEAK_INTERVAL) == 0) {
+            updatePeak();
+        }
+        int interval = samplingInterval;
+        if (interval > 0 && peer != 0
+            && (interval == 1 || random.nextInt(interval) == 0)) {
+            samples.put(peer, new Allocation(size));
+        }
+    }
+
+    /** Raise the peak to the current usage if it is higher.
+     * @return the current usage
+     */
+    private static long updatePeak() {
+        long live = allocatedBytes.sum() - freedBytes.sum();
+        long peak;
+        while (live > (peak = peakBytes.get()) && !peakBytes.compareAndSet(peak, live)) {
+            // retry
+        }
+        return live;
+    }
+
+    /** Record that a {@link Memory} allocation is freed explicitly. */
+    static void closed(long peer) {
+        if (tracking) {
+            samples.remove(peer);
+        }
+    }
+
+    /** Record that native memory is freed. */
+    static void freed(long peer, long size) {
+        frees.increment();
+        freedBytes.add(size);
+        if (tracking && peer != 0) {
+            Allocation allocation = samples.remove(peer);
+            if (allocation != null) {
+                allocation.wasReclaimed = true;
+                synchronized (reclaimed) {
+                    if (reclaimed.size() == MAX_RECLAIMED) {
+                        reclaimed.removeFirst();
+                    }
+                    reclaimed.addLast(allocation);
+                }
+                LOG.log(Level.WARNING, "Native memory of " + allocation.getSize()
+                        + " bytes was freed by the cleaner without being closed", allocation.site);
+            }
+        }
+    }
+
+    static void callbackAllocated() {
+        callbacks.increment();
+    }
+
+    static void callbackFreed() {
+        freedCallbacks.increment();
+    }
+
+    /** @return bytes of native memory currently allocated */
+    public static long getLiveBytes() {
+        return updatePeak();
+    }
+
+    /** @return number of native memory blocks currently allocated */
+    public static long getLiveBlocks() {
+        return allocations.sum() - frees.sum();
+    }
+
+    /** @return approximate highest value of {@link #getLiveBytes()} since
+     * startup or the last {@link #resetPeakBytes()}; short-lived peaks
+     * between samples may be missed
+     */
+    public static long getPeakBytes() {
+        updatePeak();
+        return peakBytes.get();
+    }
+
+    /** Reset the {@link #getPeakBytes() peak} to the current usage. */
+    public static void resetPeakBytes() {
+        peakBytes.set(allocatedBytes.sum() - freedBytes.sum());
+    }
+
+    /** @return total number of native memory blocks allocated */
+    public static long getAllocations() {
+        return allocations.sum();
+    }
+
+    /** @return total number of native memory blocks freed */
+    public static long getFrees() {
+        return frees.sum();
+    }
+
+    /** @return total bytes of native memory allocated */
+    public static long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /** @return total bytes of native memory freed */
+    public static long getFreedBytes() {
+        return freedBytes.sum();
+    }
+
+    /** @return bytes allocated per second, averaged between the two most
+     * recent queries of a rate at least one second apart
+     */
+    public static double getAllocationRate() {
+        updateRates();
+        synchronized (MemoryAccounting.class) {
+            return allocationRate;
+        }
+    }
+
+    /** @return bytes freed per second, averaged between the two most recent
+     * queries of a rate at least one second apart
+     */
+    public static double getFreeRate() {
+        updateRates();
+        synchronized (MemoryAccounting.class) {
+            return freeRate;
+        }
+    }
+
+    private static synchronized void updateRates() {
+        long now = System.nanoTime();
+        long allocated = allocatedBytes.sum();
+        long freed = freedBytes.sum();
+        if (rateTime != 0) {
+            long elapsed = now - rateTime;
+            if (elapsed < RATE_INTERVAL) {
+                return;
+            }
+            allocationRate = (allocated - rateAllocated) * 1e9 / elapsed;
+            freeRate = (freed - rateFreed) * 1e9 / elapsed;
+        }
+        rateTime = now;
+        rateAllocated = allocated;
+        rateFreed = freed;
+    }
+
+    /** @return number of native callback trampolines currently allocated */
+    public static long getLiveCallbacks() {
+        return callbacks.sum() - freedCallbacks.sum();
+    }
+
+    /** @return sample one in this many {@link Memory} allocations, or 0 if
+     * sampling is disabled
+     */
+    public static int getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    /** Sample one in <code>interval</code> {@link Memory} allocations;
+     * <code>0</code> disables sampling.
+     */
+    public static void setSamplingInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Sampling interval must not be negative: " + interval);
+        }
+        if (interval > 0) {
+            tracking = true;
+        }
+        samplingInterval = interval;
+    }
+
+    /** @return age in milliseconds beyond which sampled allocations are
+     * reported by {@link #getLongLivedAllocations()}
+     */
+    public static long getSamplingThreshold() {
+        return samplingThreshold;
+    }
+
+    /** Set the age in milliseconds beyond which sampled allocations are
+     * reported by {@link #getLongLivedAllocations()}.
+     */
+    public static void setSamplingThreshold(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Sampling threshold must not be negative: " + millis);
+        }
+        samplingThreshold = millis;
+    }
+
+    /** @return sampled allocations which are still in use and older than the
+     * {@link #getSamplingThreshold() threshold}, oldest first
+     */
+    public static List<Allocation> getLongLivedAllocations() {
+        long limit = System.currentTimeMillis() - samplingThreshold;
+        List<Allocation> result = new ArrayList<>();
+        for (Allocation allocation : samples.values()) {
+            if (allocation.timestamp <= limit) {
+                result.add(allocation);
+            }
+        }
+        Collections.sort(result, (a, b) -> Long.compare(a.timestamp, b.timestamp));
+        return result;
+    }
+
+    /** @return the most recent sampled allocations freed by the cleaner
+     * without having been closed, oldest first
+     */
+    public static List<Allocation> getReclaimedAllocations() {
+        synchronized (reclaimed) {
+            return new ArrayList<>(reclaimed);
+        }
+    }
+
+    /** Forget the allocations reported by {@link #getReclaimedAllocations()}. */
+    public static void clearReclaimedAllocations() {
+        synchronized (reclaimed) {
+            reclaimed.clear();
+        }
+    }
+
+    /** Register the {@link MemoryAccountingMXBean} with the platform MBean
+     * server as {@value #OBJECT_NAME}, unless already registered.
+     * @throws IllegalStateException if the MBean cannot be registered
+     */
+    public static synchronized void registerMBean() {
+        if (!registered) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(new MBean(), new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+            }
+            registered = true;
+        }
+    }
+
+    private static final class MBean implements MemoryAccountingMXBean {
+        @Override public long getLiveBytes() { return MemoryAccounting.getLiveBytes(); }
+        @Override public long getLiveBlocks() { return MemoryAccounting.getLiveBlocks(); }
+        @Override public long getPeakBytes() { return MemoryAccounting.getPeakBytes(); }
+        @Override public long getAllocations() { return MemoryAccounting.getAllocations(); }
+        @Override public long getFrees() { return MemoryAccounting.getFrees(); }
+        @Override public long getAllocatedBytes() { return MemoryAccounting.getAllocatedBytes(); }
+        @Override public long getFreedBytes() { return MemoryAccounting.getFreedBytes(); }
+        @Override public double getAllocationRate() { return MemoryAccounting.getAllocationRate(); }
+        @Override public double getFreeRate() { return MemoryAccounting.getFreeRate(); }
+        @Override public long getLiveCallbacks() { return MemoryAccounting.getLiveCallbacks(); }
+        @Override public int getSamplingInterval() { return MemoryAccounting.getSamplingInterval(); }
+        @Override public void setSamplingInterval(int interval) { MemoryAccounting.setSamplingInterval(interval); }
+        @Override public long getSamplingThreshold() { return MemoryAccounting.getSamplingThreshold(); }
+        @Override public void setSamplingThreshold(long millis) { MemoryAccounting.setSamplingThreshold(millis); }
+        @Override public String[] getLongLivedAllocations() { return format(MemoryAccounting.getLongLivedAllocations()); }
+        @Override public String[] getReclaimedAllocations() { return format(MemoryAccounting.getReclaimedAllocations()); }
+        @Override public void resetPeakBytes() { MemoryAccounting.resetPeakBytes(); }
+        @Override public void clearReclaimedAllocations() { MemoryAccounting.clearReclaimedAllocations(); }
+
+        private static String[] format(List<Allocation> allocations) {
+            String[] result = new String[allocations.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = allocations.get(i).toString();
+            }
+            return result;
+        }
+    }
+}
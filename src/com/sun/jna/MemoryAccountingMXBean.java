@@ -0,0 +1,50 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+/**
+ * Management interface of {@link MemoryAccounting}, registered as
+ * {@value MemoryAccounting#OBJECT_NAME}.  See the corresponding methods of
+ * {@link MemoryAccounting} for details; allocations are reported as their
+ * <code>toString()</code>.
+ */
+public interface MemoryAccountingMXBean {
+    long getLiveBytes();
+    long getLiveBlocks();
+    long getPeakBytes();
+    long getAllocations();
+    long getFrees();
+    long getAllocatedBytes();
+    long getFreedBytes();
+    double getAllocationRate();
+    double getFreeRate();
+    long getLiveCallbacks();
+    int getSamplingInterval();
+    void setSamplingInterval(int interval);
+    long getSamplingThreshold();
+    void setSamplingThreshold(long millis);
+    String[] getLongLivedAllocations();
+    String[] getReclaimedAllocations();
+    void resetPeakBytes();
+    void clearReclaimedAllocations();
+}
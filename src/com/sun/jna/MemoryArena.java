@@ -0,0 +1,303 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import com.sun.jna.internal.Cleaner;
+
+/**
+ * Native memory for a group of allocations with a common lifetime, freed
+ * all at once when the arena is closed.
+ * <p>
+ * Allocations are carved out of large chunks obtained with
+ * <code>malloc</code>, so that building e.g. the arguments of a complex
+ * native call costs a few <code>malloc</code>/<code>free</code> pairs in
+ * total instead of one per object.  The {@link Memory} objects handed out
+ * are bounds-checked like any other, but are neither registered with the
+ * {@link Cleaner} nor tracked for {@link Memory#disposeAll()}; closing the
+ * arena invalidates all of them.  An arena which is never closed frees its
+ * chunks once it (and every memory object obtained from it) is no longer
+ * reachable.
+ * <pre><code>
+ * try (MemoryArena arena = new MemoryArena()) {
+ *     MyStructure s = arena.newStructure(MyStructure.class);
+ *     IntByReference count = arena.create(() -&gt; new IntByReference());
+ *     s.name = "value"; // native string allocated in the arena on write
+ *     lib.fill(s, count);
+ * }
+ * </code></pre>
+ * Objects which allocate memory implicitly ({@link Structure},
+ * {@link com.sun.jna.ptr.ByReference} and native strings) use the arena when
+ * they are constructed within {@link #create(Supplier)}.  The native strings
+ * of <code>String</code> fields of a {@link Structure} using arena memory
+ * are allocated from the same arena.
+ * <p>
+ * Arenas are not thread safe.
+ */
+public class MemoryArena implements Closeable {
+
+    /** Default size of the chunks allocated by an arena. */
+    public static final long DEFAULT_CHUNK_SIZE = 8192;
+
+    /** Default alignment of each allocation, matching that of
+     * <code>malloc</code>.
+     */
+    private static final int ALIGN = 16;
+
+    private static final ThreadLocal<MemoryArena> current = new ThreadLocal<>();
+
+    /** Arena-owned view on part of a chunk; not freed individually. */
+    private static final class Slice extends Memory {
+        // Keeps the arena, and so its chunks, reachable
+        final MemoryArena arena;
+
+        Slice(MemoryArena arena, long peer, long size) {
+            this.arena = arena;
+            this.peer = peer;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return "arena-" + super.toString();
+        }
+    }
+
+    /** Chunks to free, shared with the cleanup action. */
+    private static final class Chunks implements Runnable {
+        private long[] addresses = new long[4];
+        private long[] sizes = new long[4];
+        private int count;
+
+        void add(long address, long size) {
+            if (count == addresses.length) {
+                addresses = Arrays.copyOf(addresses, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            addresses[count] = address;
+            sizes[count++] = size;
+            MemoryAccounting.allocated(0, size);
+        }
+
+        @Override
+        public synchronized void run() {
+            for (int i=0;i < count;i++) {
+                Native.free(addresses[i]);
+                MemoryAccounting.freed(0, sizes[i]);
+            }
+            count = 0;
+        }
+    }
+
+    private final long chunkSize;
+    private final Chunks chunks = new Chunks();
+    private final List<Memory> issued = new ArrayList<>();
+    private Cleaner.Cleanable cleanable;
+    private boolean closed;
+    // Free space of the current chunk
+    private long next;
+    private long limit;
+
+    /** Create an arena allocating chunks of {@link #DEFAULT_CHUNK_SIZE}
+     * bytes.
+     */
+    public MemoryArena() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize size of the chunks allocated by the arena; larger
+     * requests get a chunk of their own
+     */
+    public MemoryArena(long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be greater than zero");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /** @return the arena of the innermost {@link #create(Supplier)} active on
+     * the current thread, or <code>null</code>
+     */
+    public static MemoryArena current() {
+        return current.get();
+    }
+
+    /**
+     * Allocate native memory from the arena, aligned like
+     * <code>malloc</code>.  The contents are not initialized.
+     * @param size number of bytes to allocate
+     * @return memory valid until the arena is closed
+     * @throws IllegalStateException if the arena is closed
+     */
+    public Memory allocate(long size) {
+        return allocate(size, ALIGN);
+    }
+
+    /**
+     * Allocate native memory from the arena.  The contents are not
+     * initialized.
+     * @param size number of bytes to allocate
+     * @param alignment required alignment, a power of two
+     * @return memory valid until the arena is closed
+     * @throws IllegalStateException if the arena is closed
+     */
+    public Memory allocate(long size, int alignment) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Allocation size must be greater than zero");
+        }
+        return track(new Slice(this, reserve(size, alignment), size));
+    }
+
+    /** Copy the given string into the arena as a NUL-terminated
+     * <code>char</code> array in the given encoding.
+     * @return the native string, valid until the arena is closed
+     */
+    public Pointer allocateString(String value, String encoding) {
+        return new NativeString(value, encoding, this).getPointer();
+    }
+
+    /** Copy the given string into the arena as a NUL-terminated
+     * <code>wchar_t</code> array.
+     * @return the native string, valid until the arena is closed
+     */
+    public Pointer allocateWideString(String value) {
+        return new NativeString(value, NativeString.WIDE_STRING, this).getPointer();
+    }
+
+    /** Create a {@link Structure} of the given type (using its no-arg
+     * constructor) with zeroed memory from this arena.
+     */
+    public <T extends Structure> T newStructure(final Class<T> type) {
+        return create(() -> Structure.newInstance(type));
+    }
+
+    /**
+     * Run the given constructor with this arena as the {@link #current()}
+     * arena of the calling thread, so that {@link Structure},
+     * {@link com.sun.jna.ptr.ByReference} and native strings it creates
+     * allocate their memory from the arena.
+     * @param constructor creates the object
+     * @return the object created
+     * @throws IllegalStateException if the arena is closed
+     */
+    public <T> T create(Supplier<T> constructor) {
+        checkOpen();
+        MemoryArena previous = current.get();
+        current.set(this);
+        try {
+            return constructor.get();
+        }
+        finally {
+            if (previous == null) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+        }
+    }
+
+    /** Free all memory allocated from the arena, invalidating the memory
+     * objects handed out.  Further allocations fail.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Memory m : issued) {
+            m.close();
+        }
+        issued.clear();
+        if (cleanable != null) {
+            cleanable.clean();
+        }
+    }
+
+    /** @return false if the arena has been closed */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Arena is closed");
+        }
+    }
+
+    /** Reserve native memory for a memory object which is then passed to
+     * {@link #track(Memory)}.
+     * @return the address of the reserved memory
+     */
+    long reserve(long size, int alignment) {
+        checkOpen();
+        if (alignment <= 0 || (alignment & (alignment - 1)) != 0) {
+            throw new IllegalArgumentException("Alignment must be a power of two: " + alignment);
+        }
+        long mask = alignment - 1;
+        long address = (next + mask) & ~mask;
+        if (next == 0 || address + size > limit) {
+            long needed = size + (alignment > ALIGN ? alignment - 1 : 0);
+            if (needed > chunkSize / 2) {
+                // Large request, keep the rest of the current chunk
+                return (addChunk(needed) + mask) & ~mask;
+            }
+            next = addChunk(chunkSize);
+            limit = next + chunkSize;
+            address = (next + mask) & ~mask;
+        }
+        next = address + size;
+        return address;
+    }
+
+    private long addChunk(long size) {
+        long address = Native.malloc(size);
+        if (address == 0) {
+            throw new OutOfMemoryError("Cannot allocate " + size + " bytes");
+        }
+        if (cleanable == null) {
+            cleanable = Cleaner.getCleaner().register(this, chunks);
+        }
+        chunks.add(address, size);
+        return address;
+    }
+
+    /** Register memory obtained from {@link #reserve(long, int)}, to be
+     * invalidated when the arena is closed.
+     */
+    <T extends Memory> T track(T memory) {
+        issued.add(memory);
+        return memory;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryArena[" + (closed ? "closed" : issued.size() + " allocations") + "]";
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.sun.jna.internal.Cleaner;
+
+/**
+ * Pool of small native memory blocks, for code which allocates many
+ * short-lived buffers.
+ * <p>
+ * Requests of up to {@link #MAX_BLOCK_SIZE} bytes are rounded up to a
+ * power-of-two size class (at least {@link #MIN_BLOCK_SIZE} bytes) and served
+ * from a cache of blocks of that class.  Each thread caches freed blocks in a
+ * per-class magazine; full and empty magazines are exchanged with a depot
+ * shared by all threads, so that most allocations and releases touch no
+ * shared state.  Only when both are exhausted is a block obtained with
+ * <code>malloc</code>.  Larger requests are served by a plain
+ * {@link Memory}.
+ * <p>
+ * Blocks are returned to the pool by {@link Memory#close()}.  Unlike a plain
+ * {@link Memory}, a pooled block is not registered with the global
+ * {@link Cleaner}, nor tracked for {@link Memory#disposeAll()}; blocks which
+ * are never closed are recovered by the pool once they are no longer
+ * reachable.  Blocks cached by a thread are handed back to the depot when
+ * the thread terminates.  Cached blocks are only freed by {@link #trim()},
+ * when the depot exceeds its capacity, or once the pool is no longer
+ * reachable.
+ * <p>
+ * Like any {@link Memory}, a block must not be used after it has been
+ * closed, since its native memory may already be in use by another block.
+ */
+public final class MemoryPool {
+
+    /** Size of the smallest size class. */
+    public static final int MIN_BLOCK_SIZE = 16;
+    /** Size of the largest size class; larger requests are not pooled. */
+    public static final int MAX_BLOCK_SIZE = 4096;
+
+    private static final int MIN_SHIFT = 4;
+    private static final int CLASSES = 9;
+
+    private static final int CHUNK_SIZE = 256;
+    private static final int MAX_PROBES = 8;
+
+    // Indices of the per-thread statistics counters
+    private static final int ALLOCATIONS = 0;
+    private static final int HITS = 1;
+    private static final int RELEASES = 2;
+    private static final int RECLAIMED = 3;
+    private static final int BYTES_IN_USE = 4;
+    private static final int BYTES_CACHED = 5;
+    private static final int COUNTERS = 6;
+
+    private static final int DEFAULT_MAGAZINE_SIZE = 32;
+    private static final int DEFAULT_DEPOT_SIZE = 64;
+
+    private static final MemoryPool DEFAULT = new MemoryPool();
+
+    /** @return the pool shared by default */
+    public static MemoryPool getDefault() {
+        return DEFAULT;
+    }
+
+    /** A snapshot of the statistics of a pool. */
+    public static final class Statistics {
+        private final long allocations;
+        private final long hits;
+        private final long releases;
+        private final long reclaimed;
+        private final long bytesInUse;
+        private final long bytesCached;
+
+        Statistics(long allocations, long hits, long releases, long reclaimed, long bytesInUse, long bytesCached) {
+            this.allocations = allocations;
+            this.hits = hits;
+            this.releases = releases;
+            this.reclaimed = reclaimed;
+            this.bytesInUse = bytesInUse;
+            this.bytesCached = bytesCached;
+        }
+
+        /** @return number of pooled blocks allocated */
+        public long getAllocations() {
+            return allocations;
+        }
+
+        /** @return number of allocations served from the cache */
+        public long getHits() {
+            return hits;
+        }
+
+        /** @return fraction of allocations served from the cache */
+        public double getHitRate() {
+            return allocations == 0 ? 0 : (double) hits / allocations;
+        }
+
+        /** @return number of blocks returned with {@link Memory#close()} */
+        public long getReleases() {
+            return releases;
+        }
+
+        /** @return number of blocks recovered after becoming unreachable
+         * without having been closed
+         */
+        public long getReclaimed() {
+            return reclaimed;
+        }
+
+        /** @return native memory (in size class bytes) of the blocks
+         * currently allocated
+         */
+        public long getBytesInUse() {
+            return bytesInUse;
+        }
+
+        /** @return native memory of the free blocks held by the pool */
+        public long getBytesCached() {
+            return bytesCached;
+        }
+
+        @Override
+        public String toString() {
+            return "allocations=" + allocations + ", hits=" + hits + ", releases=" + releases
+                + ", reclaimed=" + reclaimed + ", bytesInUse=" + bytesInUse + ", bytesCached=" + bytesCached;
+        }
+    }
+
+    /** Tracks an allocated block, so that it is recovered if it becomes
+     * unreachable without being closed.  While the block is in use, the
+     * tracker is kept reachable by a slot in a chunk owned by the allocating
+     * thread; closing the block clears the slot.
+     */
+    private static final class Tracker extends PhantomReference<Block> {
+        final long peer;
+        final int sizeClass;
+        TrackerChunk chunk;
+        int slot;
+
+        Tracker(Block block, ReferenceQueue<Block> queue) {
+            super(block, queue);
+            this.peer = block.peer;
+            this.sizeClass = block.sizeClass;
+        }
+
+        /** @return false if the block was already released */
+        boolean untrack() {
+            return chunk.compareAndSet(slot, this, null);
+        }
+    }
+
+    /** Slots referencing the trackers of blocks in use.  Only the owning
+     * thread fills slots; any thread may clear them.
+     */
+    private static final class TrackerChunk extends AtomicReferenceArray<Tracker> {
+        private static final long serialVersionUID = 1L;
+
+        TrackerChunk() {
+            super(CHUNK_SIZE);
+        }
+
+        boolean isEmpty() {
+            for (int i=0;i < CHUNK_SIZE;i++) {
+                if (get(i) != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** A pooled block, returned to its pool when closed. */
+    private static final class Block extends Memory {
+        private final MemoryPool pool;
+        private final int sizeClass;
+        private Tracker tracker;
+
+        Block(MemoryPool pool, long peer, long size, int sizeClass) {
+            this.pool = pool;
+            this.peer = peer;
+            this.size = size;
+            this.sizeClass = sizeClass;
+        }
+
+        @Override
+        public void close() {
+            peer = 0;
+            pool.release(tracker);
+        }
+    }
+
+    /** Per-thread state: one magazine per size class, the chunks tracking
+     * the blocks allocated by the thread and its share of the statistics.
+     * Everything but the cache object itself is shared with the
+     * {@link Flusher} which hands it back to the pool once the thread (and
+     * therefore this cache) is gone.  The flusher only refers weakly to the
+     * pool, so that threads outliving the pool do not keep it reachable.
+     */
+    private static final class ThreadCache {
+        final long[][] magazines;
+        final int[] counts = new int[CLASSES];
+        final long[] counters = new long[COUNTERS];
+        final List<TrackerChunk> chunks = new ArrayList<>();
+        // Position of the next slot to try
+        int chunk;
+        int slot;
+
+        ThreadCache(int magazineSize) {
+            magazines = new long[CLASSES][magazineSize];
+        }
+    }
+
+    private static final class Flusher implements Runnable {
+        private final WeakReference<MemoryPool> pool;
+        private final long[][] magazines;
+        private final int[] counts;
+        private final long[] counters;
+        private final List<TrackerChunk> chunks;
+
+        Flusher(MemoryPool pool, ThreadCache cache) {
+            this.pool = new WeakReference<>(pool);
+            this.magazines = cache.magazines;
+            this.counts = cache.counts;
+            this.counters = cache.counters;
+            this.chunks = cache.chunks;
+        }
+
+        @Override
+        public void run() {
+            MemoryPool pool = this.pool.get();
+            for (int c=0;c < CLASSES;c++) {
+                if (counts[c] > 0) {
+                    if (pool != null) {
+                        pool.deposit(c, magazines[c], counts[c]);
+                    } else {
+                        freeAll(c, magazines[c], counts[c], counters);
+                    }
+                    counts[c] = 0;
+                }
+            }
+            if (pool != null) {
+                pool.retire(counters, chunks);
+            }
+        }
+    }
+
+    /** Frees the blocks left in the depots of a pool which is no longer
+     * reachable.
+     */
+    private static final class DepotDisposer implements Runnable {
+        private final Depot[] depots;
+
+        DepotDisposer(Depot[] depots) {
+            this.depots = depots;
+        }
+
+        @Override
+        public void run() {
+            long[] stats = new long[COUNTERS];
+            for (int c=0;c < CLASSES;c++) {
+                Depot depot = depots[c];
+                synchronized (depot) {
+                    for (long[] full : depot.full) {
+                        freeAll(c, full, full.length, stats);
+                    }
+                    depot.full.clear();
+                }
+            }
+        }
+    }
+
+    /** Shared store of full magazines for one size class. */
+    private static final class Depot {
+        final ArrayDeque<long[]> full = new ArrayDeque<>();
+        final ArrayDeque<long[]> empty = new ArrayDeque<>();
+    }
+
+    private final int magazineSize;
+    private final int depotSize;
+    private final Depot[] depots = new Depot[CLASSES];
+    private final ReferenceQueue<Block> queue = new ReferenceQueue<>();
+    // Counters of live threads, and the totals of terminated ones
+    private final List<long[]> counters = new ArrayList<>();
+    private final long[] retired = new long[COUNTERS];
+    // Tracker chunks of terminated threads with blocks still in use
+    private final List<TrackerChunk> orphans = new ArrayList<>();
+    private final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            ThreadCache cache = new ThreadCache(magazineSize);
+            synchronized (counters) {
+                counters.add(cache.counters);
+                cache.chunks.addAll(orphans);
+                orphans.clear();
+            }
+            Cleaner.getCleaner().register(cache, new Flusher(MemoryPool.this, cache));
+            return cache;
+        }
+    };
+
+    /** Create a pool with default magazine and depot sizes. */
+    public MemoryPool() {
+        this(DEFAULT_MAGAZINE_SIZE, DEFAULT_DEPOT_SIZE);
+    }
+
+    /**
+     * @param magazineSize number of blocks per size class cached by each
+     * thread
+     * @param depotSize number of full magazines per size class kept in the
+     * shared depot; blocks beyond that are freed
+     */
+    public MemoryPool(int magazineSize, int depotSize) {
+        if (magazineSize <= 0 || depotSize < 0) {
+            throw new IllegalArgumentException("Invalid magazine size " + magazineSize + " or depot size " + depotSize);
+        }
+        this.magazineSize = magazineSize;
+        this.depotSize = depotSize;
+        for (int c=0;c < CLASSES;c++) {
+            depots[c] = new Depot();
+        }
+        Cleaner.getCleaner().register(this, new DepotDisposer(depots));
+    }
+
+    /** @return the size class index for the given size */
+    private static int sizeClass(long size) {
+        if (size <= MIN_BLOCK_SIZE) {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private static long classSize(int sizeClass) {
+        return 1L << (sizeClass + MIN_SHIFT);
+    }
+
+    /**
+     * Allocate native memory, which is returned to the pool when closed.
+     * @param size number of bytes to allocate
+     * @return a pooled block for sizes up to {@link #MAX_BLOCK_SIZE}, a
+     * plain {@link Memory} otherwise
+     */
+    public Memory allocate(long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Allocation size must be greater than zero");
+        }
+        if (size > MAX_BLOCK_SIZE) {
+            return new Memory(size);
+        }
+        ThreadCache cache = caches.get();
+        reclaim(cache);
+        int c = sizeClass(size);
+        long blockSize = classSize(c);
+        long[] stats = cache.counters;
+        int n = cache.counts[c];
+        if (n == 0) {
+            n = refill(c, cache);
+        }
+        long peer;
+        if (n > 0) {
+            peer = cache.magazines[c][--n];
+            cache.counts[c] = n;
+            stats[HITS]++;
+            stats[BYTES_CACHED] -= blockSize;
+        } else {
+            peer = Native.malloc(blockSize);
+            if (peer == 0) {
+                throw new OutOfMemoryError("Cannot allocate " + blockSize + " bytes");
+            }
+            MemoryAccounting.allocated(0, blockSize);
+        }
+        stats[ALLOCATIONS]++;
+        stats[BYTES_IN_USE] += blockSize;
+        Block block = new Block(this, peer, size, c);
+        Tracker tracker = new Tracker(block, queue);
+        block.tracker = tracker;
+        track(cache, tracker);
+        return block;
+    }
+
+    /** Keep the tracker reachable in a free slot of the thread's chunks,
+     * adding a chunk if no free slot is found within a few probes.
+     */
+    private static void track(ThreadCache cache, Tracker tracker) {
+        List<TrackerChunk> chunks = cache.chunks;
+        for (int probe=0;probe < MAX_PROBES && !chunks.isEmpty();probe++) {
+            TrackerChunk chunk = chunks.get(cache.chunk);
+            int slot = cache.slot;
+            if (++cache.slot == CHUNK_SIZE) {
+                cache.slot = 0;
+                if (++cache.chunk == chunks.size()) {
+                    cache.chunk = 0;
+                }
+            }
+            if (chunk.get(slot) == null) {
+                tracker.chunk = chunk;
+                tracker.slot = slot;
+                chunk.lazySet(slot, tracker);
+                return;
+            }
+        }
+        TrackerChunk chunk = new TrackerChunk();
+        chunks.add(chunk);
+        cache.chunk = chunks.size() - 1;
+        cache.slot = 1;
+        tracker.chunk = chunk;
+        tracker.slot = 0;
+        chunk.lazySet(0, tracker);
+    }
+
+    /** Return a closed block to the calling thread's cache. */
+    private void release(Tracker tracker) {
+        if (tracker.untrack()) {
+            ThreadCache cache = caches.get();
+            cache.counters[RELEASES]++;
+            free(cache, tracker.sizeClass, tracker.peer);
+        }
+    }
+
+    /** Recover blocks which became unreachable without being closed. */
+    private void reclaim(ThreadCache cache) {
+        Tracker tracker;
+        while ((tracker = (Tracker) queue.poll()) != null) {
+            if (tracker.untrack()) {
+                cache.counters[RECLAIMED]++;
+                free(cache, tracker.sizeClass, tracker.peer);
+            }
+        }
+    }
+
+    private void free(ThreadCache cache, int c, long peer) {
+        long blockSize = classSize(c);
+        long[] magazine = cache.magazines[c];
+        int n = cache.counts[c];
+        if (n == magazine.length) {
+            // Hand the full magazine to the depot in exchange for an empty one
+            magazine = exchange(c, magazine, cache.counters);
+            cache.magazines[c] = magazine;
+            n = 0;
+        }
+        magazine[n++] = peer;
+        cache.counts[c] = n;
+        cache.counters[BYTES_IN_USE] -= blockSize;
+        cache.counters[BYTES_CACHED] += blockSize;
+    }
+
+    /** Swap the thread's empty magazine for a full one from the depot.
+     * @return number of blocks now in the thread's magazine
+     */
+    private int refill(int c, ThreadCache cache) {
+        Depot depot = depots[c];
+        synchronized (depot) {
+            long[] full = depot.full.poll();
+            if (full == null) {
+                return 0;
+            }
+            depot.empty.push(cache.magazines[c]);
+            cache.magazines[c] = full;
+        }
+        cache.counts[c] = magazineSize;
+        return magazineSize;
+    }
+
+    /** Store a full magazine in the depot, freeing its blocks if the depot
+     * is full.
+     * @return an empty magazine
+     */
+    private long[] exchange(int c, long[] full, long[] stats) {
+        Depot depot = depots[c];
+        synchronized (depot) {
+            if (depot.full.size() < depotSize) {
+                depot.full.push(full);
+                long[] empty = depot.empty.poll();
+                return empty != null ? empty : new long[magazineSize];
+            }
+        }
+        freeAll(c, full, full.length, stats);
+        return full;
+    }
+
+    /** Move the blocks of a terminated thread's magazine into the depot
+     * if it is full, or free them.
+     */
+    private void deposit(int c, long[] magazine, int count) {
+        if (count == magazineSize) {
+            Depot depot = depots[c];
+            synchronized (depot) {
+                if (depot.full.size() < depotSize) {
+                    depot.full.push(magazine);
+                    return;
+                }
+            }
+        }
+        synchronized (counters) {
+            freeAll(c, magazine, count, retired);
+        }
+    }
+
+    private static void freeAll(int c, long[] blocks, int count, long[] stats) {
+        for (int i=0;i < count;i++) {
+            Native.free(blocks[i]);
+            MemoryAccounting.freed(0, classSize(c));
+        }
+        stats[BYTES_CACHED] -= classSize(c) * count;
+    }
+
+    /** Keep the statistics and the trackers of blocks still in use of a
+     * terminated thread.
+     */
+    private void retire(long[] threadCounters, List<TrackerChunk> chunks) {
+        synchronized (counters) {
+            counters.remove(threadCounters);
+            for (int i=0;i < COUNTERS;i++) {
+                retired[i] += threadCounters[i];
+            }
+            for (TrackerChunk chunk : chunks) {
+                if (!chunk.isEmpty()) {
+                    orphans.add(chunk);
+                }
+            }
+        }
+    }
+
+    /** Free the cached blocks of the depot and of the calling thread.
+     * Blocks cached by other threads are not affected.
+     */
+    public void trim() {
+        ThreadCache cache = caches.get();
+        reclaim(cache);
+        for (int c=0;c < CLASSES;c++) {
+            freeAll(c, cache.magazines[c], cache.counts[c], cache.counters);
+            cache.counts[c] = 0;
+            Depot depot = depots[c];
+            while (true) {
+                long[] full;
+                synchronized (depot) {
+                    full = depot.full.poll();
+                }
+                if (full == null) {
+                    break;
+                }
+                freeAll(c, full, full.length, cache.counters);
+            }
+        }
+    }
+
+    /** @return a snapshot of the pool's statistics.  Counts are gathered
+     * from all threads without synchronizing with them, so they may lag
+     * behind their most recent allocations.
+     */
+    public Statistics getStatistics() {
+        reclaim(caches.get());
+        long[] total = new long[COUNTERS];
+        synchronized (counters) {
+            for (long[] c : counters) {
+                for (int i=0;i < COUNTERS;i++) {
+                    total[i] += c[i];
+                }
+            }
+            for (int i=0;i < COUNTERS;i++) {
+                total[i] += retired[i];
+            }
+        }
+        return new Statistics(total[ALLOCATIONS], total[HITS], total[RELEASES], total[RECLAIMED],
+                              total[BYTES_IN_USE], total[BYTES_CACHED]);
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryPool[" + getStatistics() + "]";
+    }
+}
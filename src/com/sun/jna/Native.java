@@ -33,6 +33,7 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.annotation.Annotation;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
@@ -63,6 +64,7 @@ import java.util.WeakHashMap;
 
 import com.sun.jna.Callback.UncaughtExceptionHandler;
 import com.sun.jna.Structure.FFIType;
+import com.sun.jna.internal.MemoryAccess;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -184,6 +186,15 @@ public final class Native implements Version {
     static final int MAX_ALIGNMENT;
     static final int MAX_PADDING;
 
+    /** Accessors for primitive values in native memory which avoid a JNI
+     * transition, or <code>null</code> if not available.
+     */
+    private static final MemoryAccess DIRECT_MEMORY_ACCESS;
+    /** Accessors used by {@link Pointer}, or <code>null</code> to use the
+     * JNI accessors of this class (always the case in protected mode).
+     */
+    static MemoryAccess memoryAccess;
+
     /**
      * Version string must have the structure <major>.<minor>.<revision>
      * a bugfix change in the native code increments revision, the minor is
@@ -246,9 +257,14 @@ public final class Native implements Version {
         // Perform initialization of other JNA classes until *after*
         // initializing the above final fields
         initIDs();
+        DIRECT_MEMORY_ACCESS = createMemoryAccess();
+        memoryAccess = DIRECT_MEMORY_ACCESS;
         if (Boolean.getBoolean("jna.protected")) {
             setProtected(true);
         }
+        if (Boolean.getBoolean("jna.callback_keep_attached")) {
+            setCallbackThreadAttachment(true);
+        }
         MAX_ALIGNMENT = Platform.isSPARC() || Platform.isWindows()
             || (Platform.isLinux() && (Platform.isARM() || Platform.isPPC() || Platform.isMIPS() || Platform.isLoongArch()))
             || Platform.isAIX()
@@ -324,7 +340,62 @@ public final class Native implements Version {
      * (usually ${java.home}/lib/${os.arch}/libjsig.so) before launching your
      * Java application.
      */
-    public static synchronized native void setProtected(boolean enable);
+    public static synchronized void setProtected(boolean enable) {
+        _setProtected(enable);
+        // Direct memory access can't be protected
+        memoryAccess = enable && isProtected() ? null : DIRECT_MEMORY_ACCESS;
+    }
+
+    private static native void _setProtected(boolean enable);
+
+    /** Direct memory access is used on architectures which allow unaligned
+     * loads and stores (as do the JNI accessors), unless disabled with the
+     * system property <code>jna.nounsafe</code>.  The memory access methods
+     * of <code>sun.misc.Unsafe</code> are deprecated for removal as of Java
+     * 23 and print a warning from Java 24 on (JEP 498), so on those versions
+     * direct memory access must be enabled with <code>jna.unsafe=true</code>.
+     */
+    private static MemoryAccess createMemoryAccess() {
+        if (Boolean.getBoolean("jna.nounsafe")
+            || !(Platform.isIntel() || "aarch64".equals(Platform.ARCH))
+            || (getJavaFeatureVersion() >= 23 && !Boolean.getBoolean("jna.unsafe"))) {
+            return null;
+        }
+        MemoryAccess access = MemoryAccess.create();
+        if (access != null) {
+            // Sanity check against the JNI accessors
+            long peer = malloc(16);
+            try {
+                access.setLong(peer, 0x0102030405060708L);
+                access.setAddress(peer + 8, peer);
+                if (getLong(null, peer, 0) != 0x0102030405060708L
+                    || _getPointer(peer + 8) != peer
+                    || access.getInt(peer + 1) != getInt(null, peer, 1)) {
+                    LOG.log(Level.FINE, "Direct memory access disabled: inconsistent with JNI");
+                    access = null;
+                }
+            } finally {
+                free(peer);
+            }
+        }
+        return access;
+    }
+
+    /** @return the major version of the running Java platform, e.g. 8 for
+     * Java 1.8 or 17 for Java 17
+     */
+    private static int getJavaFeatureVersion() {
+        String version = System.getProperty("java.specification.version", "");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            // Unknown, assume a recent version
+            return Integer.MAX_VALUE;
+        }
+    }
 
     /** Returns whether protection is enabled.  Check the result of this method
      * after calling {@link #setProtected setProtected(true)} to determine
@@ -616,8 +687,7 @@ public final class Native implements Version {
         }
 
         Library.Handler handler = new Library.Handler(name, interfaceClass, options);
-        ClassLoader loader = interfaceClass.getClassLoader();
-        Object proxy = Proxy.newProxyInstance(loader, new Class[] {interfaceClass}, handler);
+        Object proxy = newLibraryInstance(handler, interfaceClass, options);
         cacheOptions(interfaceClass, options, proxy);
         return interfaceClass.cast(proxy);
     }
@@ -666,12 +736,24 @@ public final class Native implements Version {
         }
 
         Library.Handler handler = new Library.Handler(name, interfaceClass, options);
-        ClassLoader loader = interfaceClass.getClassLoader();
-        Object proxy = Proxy.newProxyInstance(loader, new Class[] {interfaceClass}, handler);
+        Object proxy = newLibraryInstance(handler, interfaceClass, options);
         cacheOptions(interfaceClass, options, proxy);
         return interfaceClass.cast(proxy);
     }
 
+    /** Create the object implementing the library interface, which is a
+     * generated class if {@link Library#OPTION_GENERATE_IMPLEMENTATION} is
+     * set and the interface supports it, and a {@link Proxy} otherwise.
+     */
+    private static Object newLibraryInstance(Library.Handler handler, Class<?> interfaceClass, Map<String, ?> options) {
+        if (Boolean.TRUE.equals(options.get(Library.OPTION_GENERATE_IMPLEMENTATION))
+            && LibraryGenerator.canGenerate(interfaceClass)) {
+            return LibraryGenerator.newInstance(handler);
+        }
+        ClassLoader loader = interfaceClass.getClassLoader();
+        return Proxy.newProxyInstance(loader, new Class[] {interfaceClass}, handler);
+    }
+
     /** Attempts to force initialization of an instance of the library interface
      * by loading a public static field of the requisite type.
      * Returns whether an instance variable was instantiated.
@@ -1548,6 +1630,41 @@ public final class Native implements Version {
         CallbackReference.setCallbackThreadInitializer(cb, initializer);
     }
 
+    /**
+     * Invoke the given <code>void</code> callback asynchronously through a
+     * queue instead of on the native thread calling it.  This must be set
+     * before the callback is first passed to native code.
+     * @param cb The callback to invoke
+     * @param queue The queue which receives the invocations, or
+     * <code>null</code> to invoke the callback synchronously
+     * @throws IllegalArgumentException if the callback method does not
+     * return <code>void</code>, or the callback is a {@link CallbackProxy}
+     * @see AsyncCallbackQueue
+     */
+    public static void setAsyncCallbackQueue(Callback cb, AsyncCallbackQueue queue) {
+        CallbackReference.setAsyncCallbackQueue(cb, queue);
+    }
+
+    /**
+     * Prepare native closures for callbacks of the given type ahead of time,
+     * for example at startup.  A closure is normally prepared when a
+     * callback is first passed to native code, and is kept for reuse by
+     * later callbacks with the same native signature when its callback is
+     * collected or closed, so that short-lived callbacks (such as
+     * per-request completion handlers) do not pay for closure setup and
+     * teardown.  At least <code>count</code> idle closures are kept for this
+     * signature; see also the <code>jna.callback_pool_size</code> system
+     * property.
+     * @param type The callback interface or class
+     * @param count The number of closures to make available
+     */
+    public static void prepareCallbackClosures(Class<? extends Callback> type, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Closure count must not be negative: " + count);
+        }
+        CallbackReference.prepareClosures(type, count);
+    }
+
     private static final Map<Class<?>, long[]> registeredClasses = new WeakHashMap<>();
     private static final Map<Class<?>, NativeLibrary> registeredLibraries = new WeakHashMap<>();
 
@@ -1668,6 +1785,41 @@ public final class Native implements Version {
     private static final int CVT_SHORT = 28;
     private static final int CVT_BYTE = 29;
 
+    /** Direction and pinning flags of a primitive array argument, derived
+     * from the {@link In}, {@link Out} and {@link Pinned} annotations.
+     */
+    static final int ARRAY_IN = 1;
+    static final int ARRAY_OUT = 2;
+    static final int ARRAY_PINNED = 4;
+    /** Position of the array flags within a conversion passed to registerMethod. */
+    static final int ARRAY_MODE_SHIFT = 8;
+
+    /** Returns the array flags for a parameter with the given annotations.
+     * @throws IllegalArgumentException if the parameter is annotated but is
+     * not a primitive array
+     */
+    static int getArrayMode(Class<?> type, Annotation[] annotations) {
+        int mode = 0;
+        for (Annotation a : annotations) {
+            if (a instanceof In) {
+                mode |= ARRAY_IN;
+            } else if (a instanceof Out) {
+                mode |= ARRAY_OUT;
+            } else if (a instanceof Pinned) {
+                mode |= ARRAY_PINNED;
+            }
+        }
+        if (mode != 0
+            && !(type.isArray() && type.getComponentType().isPrimitive())) {
+            throw new IllegalArgumentException("@In, @Out and @Pinned only apply to primitive array parameters, not " + type);
+        }
+        if ((mode & (ARRAY_IN | ARRAY_OUT)) == (ARRAY_IN | ARRAY_OUT)) {
+            // Same as the default: copy in both directions
+            mode &= ~(ARRAY_IN | ARRAY_OUT);
+        }
+        return mode;
+    }
+
     private static int getConversion(Class<?> type, TypeMapper mapper, boolean allowObjects) {
         if (type == Void.class) type = void.class;
 
@@ -1783,24 +1935,58 @@ public final class Native implements Version {
     public static void register(Class<?> cls, NativeLibrary lib) {
         Method[] methods = cls.getDeclaredMethods();
         List<Method> mlist = new ArrayList<>();
-        Map<String, ?> options = lib.getOptions();
-        TypeMapper mapper = (TypeMapper) options.get(Library.OPTION_TYPE_MAPPER);
-        boolean allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
-        options = cacheOptions(cls, options, null);
-
         for (Method m : methods) {
             if ((m.getModifiers() & Modifier.NATIVE) != 0) {
                 mlist.add(m);
             }
         }
+        Method[] natives = mlist.toArray(new Method[0]);
+        register(cls, lib, natives, natives, true);
+    }
 
-        long[] handles = new long[mlist.size()];
+    /** Returns whether the signature of the given method is supported by
+     * direct mapping, i.e. whether a native method with this signature can be
+     * bound by {@link #register(Class, NativeLibrary)}.  Arbitrary objects
+     * (only permitted with {@link Library#OPTION_ALLOW_OBJECTS}) are not
+     * considered supported.
+     */
+    static boolean isDirectMappable(Method method, TypeMapper mapper, boolean allowObjects) {
+        int rcvt = getConversion(method.getReturnType(), mapper, allowObjects);
+        if (rcvt == CVT_UNSUPPORTED || rcvt == CVT_OBJECT) {
+            return false;
+        }
+        for (Class<?> type : method.getParameterTypes()) {
+            int cvt = getConversion(type, mapper, allowObjects);
+            if (cvt == CVT_UNSUPPORTED || cvt == CVT_OBJECT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Bind the given native methods of <code>cls</code>.  The native function
+     * and the function options for each native method are looked up using the
+     * corresponding entry of <code>mappedMethods</code>, which allows binding
+     * methods of a generated class on behalf of a library interface.  Unless
+     * <code>keepLibrary</code> is set, the library is not kept reachable
+     * and {@link #getNativeLibrary(Class)} does not find it; the caller must
+     * then unregister the class before the library is closed.
+     */
+    static void register(Class<?> cls, NativeLibrary lib, Method[] nativeMethods, Method[] mappedMethods, boolean keepLibrary) {
+        Map<String, ?> options = lib.getOptions();
+        TypeMapper mapper = (TypeMapper) options.get(Library.OPTION_TYPE_MAPPER);
+        boolean allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
+        options = cacheOptions(cls, options, null);
+
+        long[] handles = new long[nativeMethods.length];
         for (int i=0;i < handles.length;i++) {
-            Method method = mlist.get(i);
+            Method method = nativeMethods[i];
+            Method mappedMethod = mappedMethods[i];
             String sig = "(";
             Class<?> rclass = method.getReturnType();
             long rtype, closure_rtype;
             Class<?>[] ptypes = method.getParameterTypes();
+            Annotation[][] paramAnnotations = mappedMethod.getParameterAnnotations();
             long[] atypes = new long[ptypes.length];
             long[] closure_atypes = new long[ptypes.length];
             int[] cvt = new int[ptypes.length];
@@ -1849,6 +2035,7 @@ public final class Native implements Version {
                 if (conversionType == CVT_UNSUPPORTED) {
                     throw new IllegalArgumentException(type + " is not a supported argument type (in method " + method.getName() + " in " + cls + ")");
                 }
+                cvt[t] |= getArrayMode(type, paramAnnotations[t]) << ARRAY_MODE_SHIFT;
                 if ((conversionType == CVT_NATIVE_MAPPED)
                     || (conversionType == CVT_NATIVE_MAPPED_STRING)
                     || (conversionType == CVT_NATIVE_MAPPED_WSTRING)
@@ -1889,7 +2076,7 @@ public final class Native implements Version {
             sig += ")";
             sig += getSignature(rclass);
 
-            Class<?>[] etypes = method.getExceptionTypes();
+            Class<?>[] etypes = mappedMethod.getExceptionTypes();
             for (int e=0;e < etypes.length;e++) {
                 if (LastErrorException.class.isAssignableFrom(etypes[e])) {
                     throwLastError = true;
@@ -1897,7 +2084,7 @@ public final class Native implements Version {
                 }
             }
 
-            Function f = lib.getFunction(method.getName(), method);
+            Function f = lib.getFunction(mappedMethod.getName(), mappedMethod);
             try {
                 handles[i] = registerMethod(cls, method.getName(),
                                             sig, cvt,
@@ -1914,7 +2101,9 @@ public final class Native implements Version {
         }
         synchronized(registeredClasses) {
             registeredClasses.put(cls, handles);
-            registeredLibraries.put(cls, lib);
+            if (keepLibrary) {
+                registeredLibraries.put(cls, lib);
+            }
         }
     }
 
@@ -1930,6 +2119,10 @@ public final class Native implements Version {
         if(library == null) {
             throw new IllegalArgumentException("null passed to getNativeLibrary");
         }
+        final Library.Handler generated = LibraryGenerator.getHandler(library);
+        if (generated != null) {
+            return generated.getNativeLibrary();
+        }
         if(! Proxy.isProxyClass(library.getClass())) {
             throw new IllegalArgumentException("library object passed to getNativeLibrary in not a proxy");
         }
@@ -2074,6 +2267,12 @@ public final class Native implements Version {
     /** Free the given callback trampoline. */
     static synchronized native void freeNativeCallback(long ptr);
 
+    /** Point the given callback trampoline at another callback object, or
+     * none, to reuse it for a callback with the same signature.  Resets the
+     * callback options.
+     */
+    static native void rebindNativeCallback(long ptr, Callback callback);
+
     /** Use direct mapping for callback. */
     static final int CB_OPTION_DIRECT = 1;
     /** Return a DLL-resident fucntion pointer. */
@@ -2089,6 +2288,15 @@ public final class Native implements Version {
                                                          int flags,
                                                          String encoding);
 
+    /** Allocate an empty cache of prepared call interfaces for a
+     * {@link Function}.  Native dispatch reads the cache from the
+     * function's <code>cifCache</code> field.
+     */
+    static native long createCallInterfaceCache();
+
+    /** Free the given call interface cache and all entries in it. */
+    static native void freeCallInterfaceCache(long cache);
+
     /**
      * Call the native function.
      *
@@ -2165,6 +2373,41 @@ public final class Native implements Version {
      */
     static native long invokePointer(Function function, long fp, int callFlags, Object[] args);
 
+    /** Type codes for the signature passed to {@link #invokeRaw}. */
+    static final int RAW_VOID = 0;
+    static final int RAW_INT = 1;
+    static final int RAW_LONG = 2;
+    static final int RAW_POINTER = 3;
+    static final int RAW_FLOAT = 4;
+    static final int RAW_DOUBLE = 5;
+    /** Maximum number of arguments supported by {@link #invokeRaw}. */
+    static final int RAW_MAX_NARGS = 4;
+
+    /**
+     * Call the native function with up to {@link #RAW_MAX_NARGS} primitive
+     * arguments passed as raw 64-bit values, avoiding the argument array and
+     * any boxing.
+     *
+     * @param function  Present to prevent the GC to collect the Function object
+     *                  prematurely
+     * @param fp        function pointer
+     * @param callFlags calling convention to be used
+     * @param signature return type code in bits 0-3, the number of arguments
+     *                  in bits 4-7 and the type code of argument <em>i</em> in
+     *                  bits <em>8+4i</em> to <em>11+4i</em>
+     * @param a0        first argument; <code>float</code> and
+     *                  <code>double</code> values are passed as their raw
+     *                  bits
+     * @param a1        second argument
+     * @param a2        third argument
+     * @param a3        fourth argument
+     *
+     * @return The value returned by the target native function, as raw bits
+     * for <code>float</code> and <code>double</code>
+     */
+    static native long invokeRaw(Function function, long fp, int callFlags, int signature,
+                                 long a0, long a1, long a2, long a3);
+
     /**
      * Call the native function, returning a struct by value.
      *
@@ -2259,6 +2502,12 @@ public final class Native implements Version {
      */
     static native long indexOf(Pointer pointer, long baseaddr, long offset, byte value);
 
+    static native long indexOfRange(Pointer pointer, long baseaddr, long offset, long length, byte value);
+
+    static native void moveMemory(Pointer pointer, long baseaddr, long offset, long dstaddr, long length);
+
+    static native long mismatch(Pointer pointer, long baseaddr, long offset, long otheraddr, long length);
+
     static native void read(Pointer pointer, long baseaddr, long offset, byte[] buf, int index, int length);
 
     static native void read(Pointer pointer, long baseaddr, long offset, short[] buf, int index, int length);
@@ -2302,7 +2551,8 @@ public final class Native implements Version {
     static native double getDouble(Pointer pointer, long baseaddr, long offset);
 
     static Pointer getPointer(long addr) {
-        long peer = _getPointer(addr);
+        MemoryAccess access = memoryAccess;
+        long peer = access != null ? access.getAddress(addr) : _getPointer(addr);
         return peer == 0 ? null : new Pointer(peer);
     }
 
@@ -2365,6 +2615,24 @@ public final class Native implements Version {
      */
     public static native void free(long ptr);
 
+    /**
+     * Allocate native memory aligned to the given boundary, with
+     * <code>posix_memalign</code> (<code>_aligned_malloc</code> on Windows).
+     * @param size size of the memory to be allocated
+     * @param alignment required alignment; a power of two and a multiple of
+     * {@link #POINTER_SIZE}
+     * @return native address of the allocated memory block; zero if the
+     * allocation failed.
+     */
+    public static native long mallocAligned(long size, long alignment);
+
+    /**
+     * Free native memory obtained from {@link #mallocAligned(long, long)}.
+     * @param ptr native address to be freed; a value of zero has no effect,
+     * passing an already-freed pointer will cause pain.
+     */
+    public static native void freeAligned(long ptr);
+
     private static final ThreadLocal<Memory> nativeThreadTerminationFlag =
         new ThreadLocal<Memory>() {
             @Override
@@ -2415,6 +2683,45 @@ public final class Native implements Version {
 
     private static native void setDetachState(boolean detach, long terminationFlag);
 
+    /** <p>Set the default attach policy for native threads which call back
+        into Java.  By default a native thread is attached to the JVM for the
+        duration of each callback and detached afterwards, which is costly for
+        threads calling back frequently.  With <code>keepAttached</code>, such
+        threads stay attached after their first callback and reuse their
+        <code>JNIEnv</code> and {@link Thread} on later callbacks; they are
+        detached when they exit.  Kept threads are attached as daemon
+        threads, so that they do not prevent the JVM from exiting.</p>
+        <p>A {@link CallbackThreadInitializer} or a call to
+        {@link #detach(boolean)} takes precedence over this policy.  The
+        policy may also be enabled with the system property
+        <code>jna.callback_keep_attached=true</code>.</p>
+        @param keepAttached whether to keep native threads attached after a
+        callback
+        @see #getCallbackThreadAttachCount()
+        @see #getCallbackThreadDetachCount()
+     */
+    public static void setCallbackThreadAttachment(boolean keepAttached) {
+        setCallbackAttachPolicy(keepAttached);
+    }
+
+    /** @return the number of times a native thread was attached to the JVM
+        to call back into Java
+     */
+    public static long getCallbackThreadAttachCount() {
+        return getCallbackThreadCount(false);
+    }
+
+    /** @return the number of times a native thread attached to call back
+        was detached from the JVM, after a callback or when the thread exited
+     */
+    public static long getCallbackThreadDetachCount() {
+        return getCallbackThreadCount(true);
+    }
+
+    private static native void setCallbackAttachPolicy(boolean keepAttached);
+
+    private static native long getCallbackThreadCount(boolean detached);
+
     private static class Buffers {
         static boolean isBuffer(Class<?> cls) {
             return Buffer.class.isAssignableFrom(cls);
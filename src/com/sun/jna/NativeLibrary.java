@@ -104,6 +104,8 @@ public class NativeLibrary implements Closeable {
     private final int callFlags;
     private final String encoding;
     private final Map<String, ?> options;
+    // Implementations generated by LibraryGenerator, keyed by interface
+    final Map<Class<?>, LibraryGenerator.Implementation> implementations = new HashMap<>();
 
     private static final Map<String, Reference<NativeLibrary>> libraries = new HashMap<>();
 
@@ -125,7 +127,7 @@ public class NativeLibrary implements Closeable {
         this.libraryName = getLibraryName(libraryName);
         this.libraryPath = libraryPath;
         this.handle = handle;
-        this.cleanable = Cleaner.getCleaner().register(this, new NativeLibraryDisposer(handle));
+        this.cleanable = Cleaner.getCleaner().register(this, new NativeLibraryDisposer(handle, implementations));
         Object option = options.get(Library.OPTION_CALLING_CONVENTION);
         int callingConvention = option instanceof Number ? ((Number)option).intValue() : Function.C_CONVENTION;
         this.callFlags = callingConvention;
@@ -699,6 +701,8 @@ public class NativeLibrary implements Closeable {
             }
         }
 
+        // Cached call interfaces are left to each Function's Cleaner, since
+        // calls through the functions may still be in progress
         synchronized(this) {
             if (handle != 0) {
                 handle = 0;
@@ -1054,14 +1058,18 @@ public class NativeLibrary implements Closeable {
     private static final class NativeLibraryDisposer implements Runnable {
 
         private long handle;
+        private final Map<Class<?>, LibraryGenerator.Implementation> implementations;
 
-        public NativeLibraryDisposer(long handle) {
+        public NativeLibraryDisposer(long handle, Map<Class<?>, LibraryGenerator.Implementation> implementations) {
             this.handle = handle;
+            this.implementations = implementations;
         }
 
         public synchronized void run() {
             if (handle != 0) {
                 try {
+                    // Generated native methods must not outlive the library
+                    LibraryGenerator.dispose(implementations);
                     Native.close(handle);
                 } finally {
                     handle = 0;
@@ -37,7 +37,17 @@ class NativeString implements CharSequence, Comparable {
     private String encoding;
 
     private class StringMemory extends Memory {
-        public StringMemory(long size) { super(size); }
+        // Keeps the arena owning the memory, if any, reachable
+        private final MemoryArena arena;
+        public StringMemory(long size) {
+            super(size);
+            this.arena = null;
+        }
+        StringMemory(MemoryArena arena, long size) {
+            this.peer = arena.reserve(size, 1);
+            this.size = size;
+            this.arena = arena;
+        }
         @Override
         public String toString() {
             return NativeString.this.toString();
@@ -71,9 +81,18 @@ class NativeString implements CharSequence, Comparable {
     }
 
     /** Create a native string (NUL-terminated array of <code>char</code>),
-     * using the requested encoding.
+     * using the requested encoding.  The memory is allocated from the
+     * {@link MemoryArena#current() current arena}, if any.
      */
     public NativeString(String string, String encoding) {
+        this(string, encoding, MemoryArena.current());
+    }
+
+    /** Create a native string (NUL-terminated array of <code>char</code>),
+     * using the requested encoding, in memory allocated from the given arena
+     * (or individually if <code>null</code>).
+     */
+    NativeString(String string, String encoding, MemoryArena arena) {
         if (string == null) {
             throw new NullPointerException("String must not be null");
         }
@@ -83,16 +102,22 @@ class NativeString implements CharSequence, Comparable {
         this.encoding = encoding;
         if (WIDE_STRING.equals(this.encoding)) {
             int len = (string.length() + 1 ) * Native.WCHAR_SIZE;
-            pointer = new StringMemory(len);
+            pointer = allocate(len, arena);
             pointer.setWideString(0, string);
         } else {
             byte[] data = Native.getBytes(string, encoding);
-            pointer = new StringMemory(data.length + 1);
+            pointer = allocate(data.length + 1, arena);
             pointer.write(0, data, 0, data.length);
             pointer.setByte(data.length, (byte)0);
         }
     }
 
+    private Memory allocate(long size, MemoryArena arena) {
+        return arena != null
+            ? arena.track(new StringMemory(arena, size))
+            : new StringMemory(size);
+    }
+
     @Override
     public int hashCode() {
         return toString().hashCode();
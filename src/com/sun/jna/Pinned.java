@@ -0,0 +1,47 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Passes a primitive array parameter to native code without copying, using
+ * JNI <code>GetPrimitiveArrayCritical</code>.  While the native function runs
+ * the VM may block garbage collection (or other threads entering JNI critical
+ * regions), so only use this for short calls which neither block nor call
+ * back into Java.  May be combined with {@link In} to skip writing back any
+ * copy the VM had to make.  Honored by interface mapping and direct mapping
+ * (see {@link Native#register(Class, NativeLibrary)}).
+ *
+ * @see In
+ * @see Out
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Pinned {
+}
@@ -28,9 +28,16 @@ import java.lang.reflect.Array;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.sun.jna.internal.MemoryAccess;
+
 /**
  * An abstraction for a native pointer data type.  A Pointer instance
  * represents, on the Java side, a native pointer.  The native pointer could
@@ -127,6 +134,94 @@ public class Pointer {
         return Native.indexOf(this, this.peer, offset, value);
     }
 
+    /** Returns the offset of the given value in the <code>length</code> bytes
+     * of memory from the given offset, or -1 if the value is not found, as
+     * <code>memchr</code>.  Searching for <code>0</code> yields the length of
+     * a NUL-terminated string with a bounded search.
+     */
+    public long indexOf(long offset, long length, byte value) {
+        checkLength(length);
+        return length == 0 ? -1 : Native.indexOfRange(this, this.peer, offset, length, value);
+    }
+
+    /** Copy <code>length</code> bytes of this memory to the given memory.
+     * The two regions may overlap, as with <code>memmove</code>.
+     */
+    public void copyTo(Pointer dst, long length) {
+        copyTo(0, dst, 0, length);
+    }
+
+    /** Copy <code>length</code> bytes of this memory from the given offset to
+     * the given memory and offset.  The two regions may overlap, as with
+     * <code>memmove</code>.
+     * @throws IndexOutOfBoundsException if <code>dst</code> is a
+     * {@link Memory} and the range is outside its bounds
+     */
+    public void copyTo(long offset, Pointer dst, long dstOffset, long length) {
+        checkLength(length);
+        if (dst instanceof BufferPointer) {
+            ((BufferPointer) dst).copyFrom(dstOffset, this, offset, length);
+            return;
+        }
+        long dstaddr = checkedAddress(dst, dstOffset, length);
+        if (length == 0) {
+            return;
+        }
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            access.copyMemory(null, peer + offset, null, dstaddr, length);
+        } else {
+            Native.moveMemory(this, this.peer, offset, dstaddr, length);
+        }
+    }
+
+    /** Returns the offset of the first byte which differs between
+     * <code>length</code> bytes of this memory from the given offset and of
+     * the given memory from <code>otherOffset</code>, or -1 if they are equal.
+     * @throws IndexOutOfBoundsException if <code>other</code> is a
+     * {@link Memory} and the range is outside its bounds
+     */
+    public long mismatch(long offset, Pointer other, long otherOffset, long length) {
+        checkLength(length);
+        if (other instanceof BufferPointer) {
+            return other.mismatch(otherOffset, this, offset, length);
+        }
+        long otheraddr = checkedAddress(other, otherOffset, length);
+        return length == 0 ? -1 : Native.mismatch(this, this.peer, offset, otheraddr, length);
+    }
+
+    /** Compare <code>length</code> bytes of this memory from the given offset
+     * with the given memory from <code>otherOffset</code> as unsigned bytes,
+     * as <code>memcmp</code>.
+     * @return a negative value, zero or a positive value if this memory is
+     * less than, equal to or greater than the other
+     * @throws IndexOutOfBoundsException if <code>other</code> is a
+     * {@link Memory} and the range is outside its bounds
+     */
+    public int compare(long offset, Pointer other, long otherOffset, long length) {
+        long index = mismatch(offset, other, otherOffset, length);
+        if (index == -1) {
+            return 0;
+        }
+        return (getByte(offset + index) & 0xFF) - (other.getByte(otherOffset + index) & 0xFF);
+    }
+
+    private static void checkLength(long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Length must not be negative: " + length);
+        }
+    }
+
+    /** @return the address of the given range of another pointer, bounds
+     * checked if it is a {@link Memory}
+     */
+    private static long checkedAddress(Pointer p, long offset, long length) {
+        if (p instanceof Memory) {
+            ((Memory) p).boundsCheck(offset, length);
+        }
+        return p.peer + offset;
+    }
+
     /**
      * Indirect the native pointer, copying <em>from</em> memory pointed to by
      * native pointer, into the specified array.
@@ -137,7 +232,12 @@ public class Pointer {
      * @param length number of elements from native pointer that must be copied
      */
     public void read(long offset, byte[] buf, int index, int length) {
-        Native.read(this, this.peer, offset, buf, index, length);
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            access.read(peer + offset, buf, index, length);
+        } else {
+            Native.read(this, this.peer, offset, buf, index, length);
+        }
     }
 
     /**
@@ -254,7 +354,12 @@ public class Pointer {
      *               copied
      */
     public void write(long offset, byte[] buf, int index, int length) {
-        Native.write(this, this.peer, offset, buf, index, length);
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            access.write(peer + offset, buf, index, length);
+        } else {
+            Native.write(this, this.peer, offset, buf, index, length);
+        }
     }
 
     /**
@@ -541,7 +646,8 @@ public class Pointer {
      * @return the <code>byte</code> value being pointed to
      */
     public byte getByte(long offset) {
-        return Native.getByte(this, this.peer, offset);
+        MemoryAccess access = Native.memoryAccess;
+        return access != null ? access.getByte(peer + offset) : Native.getByte(this, this.peer, offset);
     }
 
     /**
@@ -553,6 +659,10 @@ public class Pointer {
      * @return the <code>wchar_t</code> value being pointed to
      */
     public char getChar(long offset) {
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            return Native.WCHAR_SIZE == 2 ? access.getChar(peer + offset) : (char)access.getInt(peer + offset);
+        }
         return Native.getChar(this, this.peer, offset);
     }
 
@@ -565,7 +675,8 @@ public class Pointer {
      * @return the <code>short</code> value being pointed to
      */
     public short getShort(long offset) {
-        return Native.getShort(this, this.peer, offset);
+        MemoryAccess access = Native.memoryAccess;
+        return access != null ? access.getShort(peer + offset) : Native.getShort(this, this.peer, offset);
     }
 
     /**
@@ -577,7 +688,8 @@ public class Pointer {
      * @return the <code>int</code> value being pointed to
      */
     public int getInt(long offset) {
-        return Native.getInt(this, this.peer, offset);
+        MemoryAccess access = Native.memoryAccess;
+        return access != null ? access.getInt(peer + offset) : Native.getInt(this, this.peer, offset);
     }
 
     /**
@@ -589,7 +701,8 @@ public class Pointer {
      * @return the <code>long</code> value being pointed to
      */
     public long getLong(long offset) {
-        return Native.getLong(this, this.peer, offset);
+        MemoryAccess access = Native.memoryAccess;
+        return access != null ? access.getLong(peer + offset) : Native.getLong(this, this.peer, offset);
     }
 
     /**
@@ -613,7 +726,8 @@ public class Pointer {
      * @return the <code>float</code> value being pointed to
      */
     public float getFloat(long offset) {
-        return Native.getFloat(this, this.peer, offset);
+        MemoryAccess access = Native.memoryAccess;
+        return access != null ? access.getFloat(peer + offset) : Native.getFloat(this, this.peer, offset);
     }
 
     /**
@@ -625,7 +739,8 @@ public class Pointer {
      * @return the <code>double</code> value being pointed to
      */
     public double getDouble(long offset) {
-        return Native.getDouble(this, this.peer, offset);
+        MemoryAccess access = Native.memoryAccess;
+        return access != null ? access.getDouble(peer + offset) : Native.getDouble(this, this.peer, offset);
     }
 
     /**
@@ -654,6 +769,74 @@ public class Pointer {
         return Native.getDirectByteBuffer(this, this.peer, offset, length).order(ByteOrder.nativeOrder());
     }
 
+    /**
+     * Get a ShortBuffer mapped to the memory pointed to by the pointer, in
+     * native byte order.  No data is copied.
+     *
+     * @param offset byte offset from pointer to start the buffer
+     * @param length number of <code>short</code> elements in the buffer
+     * @return a direct ShortBuffer that accesses the memory being pointed to
+     */
+    public ShortBuffer getShortBuffer(long offset, long length) {
+        return getByteBuffer(offset, viewLength(length, 2)).asShortBuffer();
+    }
+
+    /**
+     * Get an IntBuffer mapped to the memory pointed to by the pointer, in
+     * native byte order.  No data is copied.
+     *
+     * @param offset byte offset from pointer to start the buffer
+     * @param length number of <code>int</code> elements in the buffer
+     * @return a direct IntBuffer that accesses the memory being pointed to
+     */
+    public IntBuffer getIntBuffer(long offset, long length) {
+        return getByteBuffer(offset, viewLength(length, 4)).asIntBuffer();
+    }
+
+    /**
+     * Get a LongBuffer mapped to the memory pointed to by the pointer, in
+     * native byte order.  No data is copied.
+     *
+     * @param offset byte offset from pointer to start the buffer
+     * @param length number of <code>long</code> elements in the buffer
+     * @return a direct LongBuffer that accesses the memory being pointed to
+     */
+    public LongBuffer getLongBuffer(long offset, long length) {
+        return getByteBuffer(offset, viewLength(length, 8)).asLongBuffer();
+    }
+
+    /**
+     * Get a FloatBuffer mapped to the memory pointed to by the pointer, in
+     * native byte order.  No data is copied.
+     *
+     * @param offset byte offset from pointer to start the buffer
+     * @param length number of <code>float</code> elements in the buffer
+     * @return a direct FloatBuffer that accesses the memory being pointed to
+     */
+    public FloatBuffer getFloatBuffer(long offset, long length) {
+        return getByteBuffer(offset, viewLength(length, 4)).asFloatBuffer();
+    }
+
+    /**
+     * Get a DoubleBuffer mapped to the memory pointed to by the pointer, in
+     * native byte order.  No data is copied.
+     *
+     * @param offset byte offset from pointer to start the buffer
+     * @param length number of <code>double</code> elements in the buffer
+     * @return a direct DoubleBuffer that accesses the memory being pointed to
+     */
+    public DoubleBuffer getDoubleBuffer(long offset, long length) {
+        return getByteBuffer(offset, viewLength(length, 8)).asDoubleBuffer();
+    }
+
+    /** @return the size in bytes of a typed buffer view */
+    private static long viewLength(long length, int elementSize) {
+        if (length < 0 || length > Integer.MAX_VALUE / elementSize) {
+            throw new IllegalArgumentException("Invalid buffer length: " + length);
+        }
+        return length * elementSize;
+    }
+
     /** Read a wide (<code>const wchar_t *</code>) string from memory. */
     public String getWideString(long offset) {
         return Native.getWideString(this, this.peer, offset);
@@ -990,7 +1173,12 @@ public class Pointer {
      * @param value <code>byte</code> value to set
      */
     public void setByte(long offset, byte value) {
-        Native.setByte(this, this.peer, offset, value);
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            access.setByte(peer + offset, value);
+        } else {
+            Native.setByte(this, this.peer, offset, value);
+        }
     }
 
     /**
@@ -1003,7 +1191,12 @@ public class Pointer {
      * @param value <code>short</code> value to set
      */
     public void setShort(long offset, short value) {
-        Native.setShort(this, this.peer, offset, value);
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            access.setShort(peer + offset, value);
+        } else {
+            Native.setShort(this, this.peer, offset, value);
+        }
     }
 
     /**
@@ -1016,7 +1209,14 @@ public class Pointer {
      * @param value <code>char</code> value to set
      */
     public void setChar(long offset, char value) {
-        Native.setChar(this, this.peer, offset, value);
+        MemoryAccess access = Native.memoryAccess;
+        if (access == null) {
+            Native.setChar(this, this.peer, offset, value);
+        } else if (Native.WCHAR_SIZE == 2) {
+            access.setChar(peer + offset, value);
+        } else {
+            access.setInt(peer + offset, value);
+        }
     }
 
     /**
@@ -1029,7 +1229,12 @@ public class Pointer {
      * @param value <code>int</code> value to set
      */
     public void setInt(long offset, int value) {
-        Native.setInt(this, this.peer, offset, value);
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            access.setInt(peer + offset, value);
+        } else {
+            Native.setInt(this, this.peer, offset, value);
+        }
     }
 
     /**
@@ -1042,7 +1247,12 @@ public class Pointer {
      * @param value <code>long</code> value to set
      */
     public void setLong(long offset, long value) {
-        Native.setLong(this, this.peer, offset, value);
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            access.setLong(peer + offset, value);
+        } else {
+            Native.setLong(this, this.peer, offset, value);
+        }
     }
 
     /**
@@ -1072,7 +1282,12 @@ public class Pointer {
      * @param value <code>float</code> value to set
      */
     public void setFloat(long offset, float value) {
-        Native.setFloat(this, this.peer, offset, value);
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            access.setFloat(peer + offset, value);
+        } else {
+            Native.setFloat(this, this.peer, offset, value);
+        }
     }
 
     /**
@@ -1085,7 +1300,12 @@ public class Pointer {
      * @param value <code>double</code> value to set
      */
     public void setDouble(long offset, double value) {
-        Native.setDouble(this, this.peer, offset, value);
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            access.setDouble(peer + offset, value);
+        } else {
+            Native.setDouble(this, this.peer, offset, value);
+        }
     }
 
     /**
@@ -1100,7 +1320,12 @@ public class Pointer {
      * pointer.
      */
     public void setPointer(long offset, Pointer value) {
-        Native.setPointer(this, this.peer, offset, value != null ? value.peer : 0);
+        MemoryAccess access = Native.memoryAccess;
+        if (access != null) {
+            access.setAddress(peer + offset, value != null ? value.peer : 0);
+        } else {
+            Native.setPointer(this, this.peer, offset, value != null ? value.peer : 0);
+        }
     }
 
     /**
@@ -1212,6 +1437,18 @@ public class Pointer {
             throw new UnsupportedOperationException(MSG);
         }
         @Override
+        public long indexOf(long offset, long length, byte value) {
+            throw new UnsupportedOperationException(MSG);
+        }
+        @Override
+        public void copyTo(long offset, Pointer dst, long dstOffset, long length) {
+            throw new UnsupportedOperationException(MSG);
+        }
+        @Override
+        public long mismatch(long offset, Pointer other, long otherOffset, long length) {
+            throw new UnsupportedOperationException(MSG);
+        }
+        @Override
         public void read(long bOff, byte[] buf, int index, int length) {
             throw new UnsupportedOperationException(MSG);
         }
@@ -53,19 +53,45 @@ public class StringArray extends Memory implements Function.PostCallRead {
         this(strings, NativeString.WIDE_STRING);
     }
     private StringArray(Object[] strings, String encoding) {
-        super((strings.length + 1) * Native.POINTER_SIZE);
+        this(strings, encoding, null);
+    }
+    /** Create a native array of strings for the duration of a call, placing
+     * the strings in the given arena where they fit.
+     */
+    StringArray(Object[] strings, String encoding, CallArena arena) {
+        super(size(strings));
+        this.original = strings;
+        this.encoding = encoding;
+        init(arena);
+    }
+    /** Create a native array of strings for the duration of a call, using
+     * memory owned by the given arena for the pointer array.
+     */
+    StringArray(Object[] strings, String encoding, CallArena arena, long peer) {
+        this.peer = peer;
+        this.size = size(strings);
         this.original = strings;
         this.encoding = encoding;
-        for (int i=0;i < strings.length;i++) {
+        init(arena);
+    }
+    static long size(Object[] strings) {
+        return (strings.length + 1) * (long)Native.POINTER_SIZE;
+    }
+    private void init(CallArena arena) {
+        for (int i=0;i < original.length;i++) {
             Pointer p = null;
-            if (strings[i] != null) {
-                NativeString ns = new NativeString(strings[i].toString(), encoding);
-                natives.add(ns);
-                p = ns.getPointer();
+            if (original[i] != null) {
+                String s = original[i].toString();
+                p = arena != null ? arena.string(s, encoding) : null;
+                if (p == null) {
+                    NativeString ns = new NativeString(s, encoding);
+                    natives.add(ns);
+                    p = ns.getPointer();
+                }
             }
             setPointer(Native.POINTER_SIZE * i, p);
         }
-        setPointer(Native.POINTER_SIZE * strings.length, null);
+        setPointer(Native.POINTER_SIZE * original.length, null);
     }
     /** Read back from native memory. */
     @Override
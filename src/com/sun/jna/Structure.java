@@ -34,6 +34,8 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -52,6 +54,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.sun.jna.internal.FieldAccessor;
+
 /**
  * Represents a native structure with a Java peer class.  When used as a
  * function parameter or return value, this class corresponds to
@@ -161,6 +165,8 @@ public abstract class Structure {
     static final Map<Class<?>, List<String>> fieldOrder = new WeakHashMap<>();
     static final Map<Class<?>, List<Field>> fieldList = new WeakHashMap<>();
     static final Map<Class<?>, Boolean> validationMap = new WeakHashMap<>();
+    static final Map<Class<?>, Integer> bulkAccessMap = new WeakHashMap<>();
+    static final Map<Class<?>, Map<Field, FieldAccessor>> fieldAccessorMap = new WeakHashMap<>();
 
     // This field is accessed by native code
     private Pointer memory;
@@ -170,6 +176,9 @@ public abstract class Structure {
     private int actualAlignType;
     private int structAlignment;
     private Map<String, StructField> structFields;
+    // Whether fields may be transferred with a single bulk copy, see
+    // bulkAccess(Class)
+    private int bulkAccess;
     // Keep track of native C strings which have been allocated,
     // corresponding to String fields of this Structure
     private final Map<String, NativeStringTracking> nativeStrings = new HashMap<>(8);
@@ -310,7 +319,20 @@ public abstract class Structure {
      * @return newly-allocated memory
      */
     protected Memory autoAllocate(int size) {
-        return new AutoAllocated(size);
+        MemoryArena arena = arena();
+        return arena != null && arena.isOpen()
+            ? new AutoAllocated(arena, size)
+            : new AutoAllocated(size);
+    }
+
+    /** @return the arena of this structure's auto-allocated memory, or else
+     * the {@link MemoryArena#current() current arena}
+     */
+    private MemoryArena arena() {
+        if (memory instanceof AutoAllocated && ((AutoAllocated) memory).arena != null) {
+            return ((AutoAllocated) memory).arena;
+        }
+        return MemoryArena.current();
     }
 
     /** Set the memory used by this structure.  This method is used to
@@ -377,6 +399,22 @@ public abstract class Structure {
         }
     }
 
+    /** Overlay this structure on memory whose address is updated in place
+     * by {@link StructureArray}, instead of creating a shared view for each
+     * position.  Called after each move of the cursor.
+     * @param cursor Pointer to the current element
+     */
+    void useCursor(Pointer cursor) {
+        if (memory != cursor) {
+            ensureAllocated();
+            this.memory = cursor;
+            this.array = null;
+        }
+        // Native strings read or written belong to the previous position
+        nativeStrings.clear();
+        this.readCalled = false;
+    }
+
     /** Ensure this memory has its size and layout calculated and its
         memory allocated. */
     protected void ensureAllocated() {
@@ -487,6 +525,32 @@ public abstract class Structure {
         }
     };
 
+    /** Largest scratch buffer kept per thread for bulk reads and writes. */
+    private static final int MAX_CACHED_BUFFER = 4096;
+
+    // Per-thread scratch buffer for bulk reads and writes; taken out of the
+    // thread local while in use, so that nested reads get their own
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<>();
+
+    private static ByteBuffer acquireBuffer(int size) {
+        ByteBuffer buffer = buffers.get();
+        if (buffer == null || buffer.capacity() < size) {
+            return ByteBuffer.allocate(Math.max(size, 256)).order(ByteOrder.nativeOrder());
+        }
+        buffers.set(null);
+        return buffer;
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        if (buffer.capacity() <= MAX_CACHED_BUFFER) {
+            ByteBuffer current = buffers.get();
+            if (current == null || current.capacity() < buffer.capacity()) {
+                buffer.clear();
+                buffers.set(buffer);
+            }
+        }
+    }
+
     // Keep track of what is currently being read/written to avoid redundant
     // reads (avoids problems with circular references).
     private static final ThreadLocal<Set<Structure>> busy = new ThreadLocal<Set<Structure>>() {
@@ -597,6 +661,30 @@ public abstract class Structure {
         // allocateMemory in a ctor
         ensureAllocated();
 
+        if (bulkFields()) {
+            // Copy the whole structure at once
+            int size = size();
+            ByteBuffer data = acquireBuffer(size);
+            try {
+                memory.read(0, data.array(), 0, size);
+                read(data, 0);
+            }
+            finally {
+                releaseBuffer(data);
+            }
+        }
+        else {
+            read(null, 0);
+        }
+    }
+
+    /** Read the fields, decoding those with a fixed native representation
+     * from a copy of this structure's memory found at the given offset of
+     * the buffer, if any.  All other fields are read individually from
+     * native memory.
+     */
+    private void read(ByteBuffer data, int base) {
+        readCalled = true;
         // Avoid redundant reads
         if (!busy().add(this)) {
             return;
@@ -606,7 +694,10 @@ public abstract class Structure {
         }
         try {
             for (StructField structField : fields().values()) {
-                readField(structField);
+                if (data == null || structField.bulkType == null
+                    || !readField(structField, data, base + structField.offset)) {
+                    readField(structField);
+                }
             }
         }
         finally {
@@ -617,6 +708,68 @@ public abstract class Structure {
         }
     }
 
+    /** Decode a field from a copy of its native memory.
+     * @return false if the field must be read with {@link #readField(StructField)}
+     */
+    private boolean readField(StructField structField, ByteBuffer data, int offset) {
+        Object value;
+        switch (structField.bulkType) {
+        case BOOLEAN:
+            value = Function.valueOf(data.getInt(offset) != 0);
+            break;
+        case BYTE:
+            value = data.get(offset);
+            break;
+        case SHORT:
+            value = data.getShort(offset);
+            break;
+        case CHAR:
+            value = Native.WCHAR_SIZE == 2 ? data.getChar(offset) : (char) data.getInt(offset);
+            break;
+        case INT:
+            value = data.getInt(offset);
+            break;
+        case LONG:
+            value = data.getLong(offset);
+            break;
+        case FLOAT:
+            value = data.getFloat(offset);
+            break;
+        case DOUBLE:
+            value = data.getDouble(offset);
+            break;
+        case POINTER: {
+            long peer = Native.POINTER_SIZE == 8 ? data.getLong(offset) : data.getInt(offset) & 0xFFFFFFFFL;
+            Object current = getFieldValue(structField);
+            // Keep the existing object if the address is unchanged
+            if (peer != 0 && current instanceof Pointer && ((Pointer) current).peer == peer) {
+                return true;
+            }
+            value = peer == 0 ? null : new Pointer(peer);
+            break;
+        }
+        default: {
+            // Primitive arrays are updated in place
+            Object array = getFieldValue(structField);
+            if (!structField.bulkType.fits(array, structField.size)) {
+                return false;
+            }
+            data.position(offset);
+            switch (structField.bulkType) {
+            case BYTE_ARRAY: data.get((byte[]) array); break;
+            case SHORT_ARRAY: data.asShortBuffer().get((short[]) array); break;
+            case INT_ARRAY: data.asIntBuffer().get((int[]) array); break;
+            case LONG_ARRAY: data.asLongBuffer().get((long[]) array); break;
+            case FLOAT_ARRAY: data.asFloatBuffer().get((float[]) array); break;
+            default: data.asDoubleBuffer().get((double[]) array); break;
+            }
+            return true;
+        }
+        }
+        setFieldValue(structField, value);
+        return true;
+    }
+
     /** Returns the calculated offset of the given field.
      * @param name field to examine
      * @return return offset of the given field
@@ -658,6 +811,50 @@ public abstract class Structure {
         }
     }
 
+    /** Obtain the value currently in the Java field, using the field's
+     * generated accessor if it has one.
+     */
+    private Object getFieldValue(StructField structField) {
+        FieldAccessor accessor = structField.accessor;
+        if (accessor != null) {
+            try {
+                return accessor.get(this);
+            }
+            catch (LinkageError e) {
+                disableAccessor(structField, e);
+            }
+        }
+        return getFieldValue(structField.field);
+    }
+
+    /** Update the Java field from native memory, using the field's
+     * generated accessor if it has one.
+     */
+    private void setFieldValue(StructField structField, Object value) {
+        FieldAccessor accessor = structField.accessor;
+        if (accessor != null) {
+            try {
+                accessor.set(this, value);
+                return;
+            }
+            catch (ClassCastException | NullPointerException e) {
+                // Report a value of the wrong type as reflection would
+            }
+            catch (LinkageError e) {
+                disableAccessor(structField, e);
+            }
+        }
+        setFieldValue(structField.field, value, true);
+    }
+
+    /** Fall back to reflection for a field whose generated accessor cannot
+     * link against it, which is only detected on first use.
+     */
+    private static void disableAccessor(StructField structField, LinkageError e) {
+        LOG.log(Level.FINE, "Generated accessor for field '" + structField.name + "' not usable", e);
+        structField.accessor = null;
+    }
+
     /**
      * @param field field to set
      * @param value value to set
@@ -739,7 +936,7 @@ public abstract class Structure {
                                || Pointer.class.isAssignableFrom(fieldType)
                                || NativeMapped.class.isAssignableFrom(fieldType)
                                || fieldType.isArray())
-            ? getFieldValue(structField.field) : null;
+            ? getFieldValue(structField) : null;
 
         Object result;
         if (fieldType == String.class) {
@@ -773,7 +970,7 @@ public abstract class Structure {
         }
 
         // Update the value on the Java field
-        setFieldValue(structField.field, result, true);
+        setFieldValue(structField, result);
         return result;
     }
 
@@ -801,15 +998,119 @@ public abstract class Structure {
             return;
         }
         try {
-            // Write all fields, except those marked 'volatile'
+            if (bulkFields()) {
+                writeFields();
+            }
+            else {
+                // Write all fields, except those marked 'volatile'
+                for (StructField sf : fields().values()) {
+                    if (!sf.isVolatile) {
+                        writeField(sf);
+                    }
+                }
+            }
+        }
+        finally {
+            busy().remove(this);
+        }
+    }
+
+    /** Write all fields, except those marked 'volatile', encoding those with
+     * a fixed native representation into a buffer which is copied to native
+     * memory in runs of adjacent fields.  Padding and skipped fields are
+     * left untouched.
+     */
+    private void writeFields() {
+        ByteBuffer data = acquireBuffer(size());
+        try {
+            int start = 0;
+            int end = 0;
             for (StructField sf : fields().values()) {
-                if (!sf.isVolatile) {
+                if (sf.isVolatile || sf.isReadOnly) {
+                    continue;
+                }
+                if (sf.bulkType != null && writeField(sf, data)) {
+                    if (sf.offset != end) {
+                        if (end > start) {
+                            memory.write(start, data.array(), start, end - start);
+                        }
+                        start = sf.offset;
+                    }
+                    end = sf.offset + sf.size;
+                }
+                else {
                     writeField(sf);
                 }
             }
+            if (end > start) {
+                memory.write(start, data.array(), start, end - start);
+            }
         }
         finally {
-            busy().remove(this);
+            releaseBuffer(data);
+        }
+    }
+
+    /** Encode a field into the buffer, at the field's offset.
+     * @return false if the field must be written with {@link #writeField(StructField)}
+     */
+    private boolean writeField(StructField structField, ByteBuffer data) {
+        int offset = structField.offset;
+        Object value = getFieldValue(structField);
+        switch (structField.bulkType) {
+        case BOOLEAN:
+            data.putInt(offset, Boolean.TRUE.equals(value) ? -1 : 0);
+            return true;
+        case BYTE:
+            data.put(offset, (Byte) value);
+            return true;
+        case SHORT:
+            data.putShort(offset, (Short) value);
+            return true;
+        case CHAR:
+            if (Native.WCHAR_SIZE == 2) {
+                data.putChar(offset, (Character) value);
+            }
+            else {
+                data.putInt(offset, (Character) value);
+            }
+            return true;
+        case INT:
+            data.putInt(offset, (Integer) value);
+            return true;
+        case LONG:
+            data.putLong(offset, (Long) value);
+            return true;
+        case FLOAT:
+            data.putFloat(offset, (Float) value);
+            return true;
+        case DOUBLE:
+            data.putDouble(offset, (Double) value);
+            return true;
+        case POINTER: {
+            long peer = value == null ? 0 : ((Pointer) value).peer;
+            if (Native.POINTER_SIZE == 8) {
+                data.putLong(offset, peer);
+            }
+            else {
+                data.putInt(offset, (int) peer);
+            }
+            return true;
+        }
+        default:
+            if (!structField.bulkType.fits(value, structField.size)) {
+                return false;
+            }
+            data.position(offset);
+            switch (structField.bulkType) {
+            case BYTE_ARRAY: data.put((byte[]) value); break;
+            case SHORT_ARRAY: data.asShortBuffer().put((short[]) value); break;
+            case INT_ARRAY: data.asIntBuffer().put((int[]) value); break;
+            case LONG_ARRAY: data.asLongBuffer().put((long[]) value); break;
+            case FLOAT_ARRAY: data.asFloatBuffer().put((float[]) value); break;
+            default: data.asDoubleBuffer().put((double[]) value); break;
+            }
+            return true;
         }
     }
 
@@ -851,7 +1152,7 @@ public abstract class Structure {
             return;
 
         // Get the value from the field
-        Object value = getFieldValue(structField.field);
+        Object value = getFieldValue(structField);
 
         writeField(structField, value);
     }
@@ -889,9 +1190,10 @@ public abstract class Structure {
                 }
                 // Allocate a new string in memory
                 boolean wide = fieldType == WString.class;
-                NativeString nativeString = wide
-                    ? new NativeString(value.toString(), true)
-                    : new NativeString(value.toString(), encoding);
+                MemoryArena arena = arena();
+                NativeString nativeString = new NativeString(value.toString(),
+                    wide ? NativeString.WIDE_STRING : encoding,
+                    arena != null && arena.isOpen() ? arena : null);
                 // value is changed, keep the new native string alive
                 current.peer = nativeString;
                 value = nativeString.getPointer();
@@ -1236,6 +1538,7 @@ public abstract class Structure {
         if (info != null) {
             this.structAlignment = info.alignment;
             this.structFields = info.fields;
+            this.bulkAccess = bulkAccess(clazz);
 
             if (!info.variable) {
                 cacheStructureLock.readLock().lock();
@@ -1267,6 +1570,97 @@ public abstract class Structure {
         return size;
     }
 
+    /** @return whether the fields may be transferred with a single bulk
+     * copy; not for Java buffers, which may use a different byte order and
+     * cannot hold pointers
+     */
+    private boolean bulkFields() {
+        return (bulkAccess & BULK_FIELDS) != 0 && !(memory instanceof BufferPointer);
+    }
+
+    /** Fields may be read and written with a single bulk copy. */
+    private static final int BULK_FIELDS = 1;
+    /** Elements of a contiguous array may be read with a single bulk copy. */
+    private static final int BULK_ARRAY = 2;
+
+    /** Bulk copies bypass {@link #readField(StructField)} and
+     * {@link #writeField(StructField)}, so they are only used if the class
+     * does not override those methods; array reads also bypass
+     * {@link #read()} and {@link #autoRead()}.
+     * @return a combination of {@link #BULK_FIELDS} and {@link #BULK_ARRAY}
+     */
+    private static int bulkAccess(Class<?> type) {
+        cacheStructureLock.readLock().lock();
+        try {
+            Integer access = bulkAccessMap.get(type);
+            if (access != null) {
+                return access;
+            }
+        } finally {
+            cacheStructureLock.readLock().unlock();
+        }
+        int access = 0;
+        if (Platform.HAS_BUFFERS
+            && !overrides(type, "readField", StructField.class)
+            && !overrides(type, "writeField", StructField.class)) {
+            access = BULK_FIELDS;
+            if (!overrides(type, "read") && !overrides(type, "autoRead")) {
+                access |= BULK_ARRAY;
+            }
+        }
+        cacheStructureLock.writeLock().lock();
+        try {
+            bulkAccessMap.put(type, access);
+        } finally {
+            cacheStructureLock.writeLock().unlock();
+        }
+        return access;
+    }
+
+    /** Generated accessors replace reflection for reading and writing
+     * fields, see {@link FieldAccessor}.
+     * @return the accessors of the given fields which have one
+     */
+    private static Map<Field, FieldAccessor> fieldAccessors(Class<?> type, List<Field> fields) {
+        cacheStructureLock.readLock().lock();
+        try {
+            Map<Field, FieldAccessor> accessors = fieldAccessorMap.get(type);
+            if (accessors != null) {
+                return accessors;
+            }
+        } finally {
+            cacheStructureLock.readLock().unlock();
+        }
+        Field[] fieldArray = fields.toArray(new Field[0]);
+        FieldAccessor[] generated = FieldAccessor.create(type, fieldArray);
+        Map<Field, FieldAccessor> accessors = new HashMap<>();
+        for (int i=0;i < fieldArray.length;i++) {
+            if (generated[i] != null) {
+                accessors.put(fieldArray[i], generated[i]);
+            }
+        }
+        cacheStructureLock.writeLock().lock();
+        try {
+            Map<Field, FieldAccessor> existing = fieldAccessorMap.putIfAbsent(type, accessors);
+            return existing != null ? existing : accessors;
+        } finally {
+            cacheStructureLock.writeLock().unlock();
+        }
+    }
+
+    private static boolean overrides(Class<?> type, String name, Class<?>... parameterTypes) {
+        for (Class<?> cls = type; cls != Structure.class; cls = cls.getSuperclass()) {
+            try {
+                cls.getDeclaredMethod(name, parameterTypes);
+                return true;
+            }
+            catch (NoSuchMethodException e) {
+                // keep looking
+            }
+        }
+        return false;
+    }
+
     /** Keep track of structure layout information.  Alignment type, type
         mapper, and explicit field order will affect this information.
     */
@@ -1343,6 +1737,7 @@ public abstract class Structure {
         info.alignType = this.alignType;
         info.typeMapper = this.typeMapper;
 
+        Map<Field, FieldAccessor> accessors = fieldAccessors(getClass(), fields);
         boolean firstField = true;
         for (Iterator<Field> i=fields.iterator();i.hasNext();firstField=false) {
             Field field = i.next();
@@ -1365,6 +1760,7 @@ public abstract class Structure {
                 field.setAccessible(true);
             }
             structField.field = field;
+            structField.accessor = accessors.get(field);
             structField.name = field.getName();
             structField.type = type;
 
@@ -1454,6 +1850,10 @@ public abstract class Structure {
                 calculatedSize += structField.size;
             }
 
+            if (structField.readConverter == null && structField.writeConverter == null) {
+                structField.bulkType = BulkType.of(type);
+            }
+
             // Save the field in our list
             info.fields.put(structField.name, structField);
         }
@@ -1997,6 +2397,47 @@ public abstract class Structure {
         return null;
     }
 
+    /** Field types with a fixed native representation, which are
+     * transferred as part of a single copy of the structure's memory.
+     */
+    enum BulkType {
+        BOOLEAN(0), BYTE(0), SHORT(0), CHAR(0), INT(0), LONG(0), FLOAT(0), DOUBLE(0), POINTER(0),
+        BYTE_ARRAY(1), SHORT_ARRAY(2), INT_ARRAY(4), LONG_ARRAY(8), FLOAT_ARRAY(4), DOUBLE_ARRAY(8);
+
+        private final int elementSize;
+
+        BulkType(int elementSize) {
+            this.elementSize = elementSize;
+        }
+
+        /** @return whether the given array exactly fills the field */
+        boolean fits(Object array, int size) {
+            return array != null && (long) Array.getLength(array) * elementSize == size;
+        }
+
+        /** @return the bulk type for the given field type, or
+         * <code>null</code> if the field must be transferred individually
+         */
+        static BulkType of(Class<?> type) {
+            if (type == boolean.class) return BOOLEAN;
+            if (type == byte.class) return BYTE;
+            if (type == short.class) return SHORT;
+            if (type == char.class) return CHAR;
+            if (type == int.class) return INT;
+            if (type == long.class) return LONG;
+            if (type == float.class) return FLOAT;
+            if (type == double.class) return DOUBLE;
+            if (type == Pointer.class) return POINTER;
+            if (type == byte[].class) return BYTE_ARRAY;
+            if (type == short[].class) return SHORT_ARRAY;
+            if (type == int[].class) return INT_ARRAY;
+            if (type == long[].class) return LONG_ARRAY;
+            if (type == float[].class) return FLOAT_ARRAY;
+            if (type == double[].class) return DOUBLE_ARRAY;
+            return null;
+        }
+    }
+
     protected static class StructField extends Object {
         public String name;
         public Class<?> type;
@@ -2008,6 +2449,8 @@ public abstract class Structure {
         public FromNativeConverter readConverter;
         public ToNativeConverter writeConverter;
         public FromNativeContext context;
+        BulkType bulkType;
+        FieldAccessor accessor;
         @Override
         public String toString() {
             return name + "@" + offset + "[" + size + "] (" + type + ")";
@@ -2298,11 +2741,20 @@ public abstract class Structure {
     }
 
     private static class AutoAllocated extends Memory {
+        final MemoryArena arena;
         public AutoAllocated(int size) {
             super(size);
+            this.arena = null;
             // Always clear new structure memory
             super.clear();
         }
+        AutoAllocated(MemoryArena arena, int size) {
+            this.peer = arena.reserve(size, 16);
+            this.size = size;
+            this.arena = arena;
+            arena.track(this);
+            super.clear();
+        }
         @Override
         public String toString() {
             return "auto-" + super.toString();
@@ -2327,7 +2779,9 @@ public abstract class Structure {
     public static void autoRead(Structure[] ss) {
         structureArrayCheck(ss);
         if (ss[0].array == ss) {
-            ss[0].autoRead();
+            if (!readContiguous(ss)) {
+                ss[0].autoRead();
+            }
         }
         else {
             for (int si=0;si < ss.length;si++) {
@@ -2338,6 +2792,44 @@ public abstract class Structure {
         }
     }
 
+    /** Read the elements of an array obtained from {@link #toArray} with a
+     * single copy of the array's native memory.
+     * @return false if the elements must be read individually
+     */
+    private static boolean readContiguous(Structure[] ss) {
+        Structure first = ss[0];
+        if (first.memory == PLACEHOLDER_MEMORY || first.memory instanceof BufferPointer) {
+            return false;
+        }
+        first.ensureAllocated();
+        int size = first.size();
+        long total = (long) size * ss.length;
+        if (total > Integer.MAX_VALUE - 8
+            || (first.memory instanceof Memory && ((Memory) first.memory).size() < total)) {
+            return false;
+        }
+        long base = Pointer.nativeValue(first.memory);
+        for (int i=0;i < ss.length;i++) {
+            Structure s = ss[i];
+            if (!s.getAutoRead() || (s.bulkAccess & BULK_ARRAY) == 0
+                || s.size() != size || s.memory == PLACEHOLDER_MEMORY
+                || Pointer.nativeValue(s.memory) != base + (long) i * size) {
+                return false;
+            }
+        }
+        ByteBuffer data = acquireBuffer((int) total);
+        try {
+            first.memory.read(0, data.array(), 0, (int) total);
+            for (int i=0;i < ss.length;i++) {
+                ss[i].read(data, i * size);
+            }
+        }
+        finally {
+            releaseBuffer(data);
+        }
+        return true;
+    }
+
     public void autoRead() {
         if (getAutoRead()) {
             read();
@@ -2396,7 +2888,7 @@ public abstract class Structure {
     /** Placeholder pointer to help avoid auto-allocation of memory where a
      * Structure needs a valid pointer but want to avoid actually reading from it.
      */
-    private static final Pointer PLACEHOLDER_MEMORY = new Pointer(0) {
+    static final Pointer PLACEHOLDER_MEMORY = new Pointer(0) {
         @Override
         public Pointer share(long offset, long sz) { return this; }
     };
@@ -0,0 +1,304 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.sun.jna.Structure.StructField;
+
+/**
+ * View of a contiguous native array of structures which reuses a single
+ * {@link Structure} (the cursor) for all elements, instead of creating one
+ * object per element like {@link Structure#toArray(int)}.
+ * <p>
+ * Positioning the cursor over an element reads only the fields given to the
+ * constructor (all fields if none are given), so that scanning large
+ * arrays of records costs neither an allocation nor a full read per
+ * element:
+ * <pre><code>
+ * StructureArray&lt;Record&gt; records = new StructureArray&lt;&gt;(Record.class, memory, count, "id", "value");
+ * long total = records.stream().mapToLong(r -&gt; r.value).sum();
+ * </code></pre>
+ * The elements returned by {@link #get(long)}, the iterator and streams are
+ * the cursor itself and are only valid until it is moved again; copy the
+ * values that are needed later.  Other fields may be read with
+ * {@link Structure#readField(String)} and written with
+ * {@link Structure#writeField(String)} or {@link Structure#write()} while
+ * the cursor is positioned.
+ * <p>
+ * {@link #get(long)} and {@link #at(long)} share one cursor and are not
+ * thread safe.  Each {@link Spliterator} has its own cursor, so
+ * {@link #parallelStream()} may process the elements concurrently.  If the
+ * base pointer is {@link Memory}, the array is checked against its bounds
+ * and keeps it reachable.
+ *
+ * @param <T> the structure type
+ */
+public class StructureArray<T extends Structure> implements Iterable<T> {
+
+    /** Ranges smaller than this are not split further. */
+    private static final long MIN_SPLIT = 1024;
+
+    private final Class<T> type;
+    private final Pointer base;
+    private final long count;
+    private final int elementSize;
+    private final String[] fieldNames;
+    private Cursor<T> cursor;
+
+    /** A structure overlaid on a pointer which is moved in place. */
+    private static final class Cursor<T extends Structure> {
+        final Pointer pointer;
+        final T structure;
+        // Fields to read on each move, null to read all of them
+        final StructField[] fields;
+
+        Cursor(Class<T> type, Pointer base, String[] names) {
+            pointer = new Pointer(Pointer.nativeValue(base));
+            // Pointer constructors commonly read the structure, which must
+            // not happen until the cursor is moved to a valid element
+            structure = Structure.newInstance(type, Structure.PLACEHOLDER_MEMORY);
+            structure.useCursor(pointer);
+            if (names.length == 0) {
+                fields = null;
+            } else {
+                fields = new StructField[names.length];
+                for (int i=0;i < names.length;i++) {
+                    fields[i] = structure.fields().get(names[i]);
+                    if (fields[i] == null) {
+                        throw new IllegalArgumentException("No such field: " + names[i]);
+                    }
+                }
+            }
+        }
+
+        T move(long address) {
+            pointer.peer = address;
+            structure.useCursor(pointer);
+            return structure;
+        }
+
+        T read(long address) {
+            move(address);
+            if (fields == null) {
+                structure.read();
+            } else {
+                for (StructField f : fields) {
+                    structure.readField(f);
+                }
+            }
+            return structure;
+        }
+    }
+
+    /** Iterates over a range of elements with its own cursor. */
+    private final class ElementSpliterator implements Spliterator<T> {
+        private long index;
+        private final long fence;
+        private Cursor<T> cursor;
+
+        ElementSpliterator(long index, long fence) {
+            this.index = index;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (index >= fence) {
+                return false;
+            }
+            if (cursor == null) {
+                cursor = newCursor();
+            }
+            action.accept(cursor.read(address(index++)));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            if (index >= fence) {
+                return;
+            }
+            if (cursor == null) {
+                cursor = newCursor();
+            }
+            long address = address(index);
+            for (;index < fence;index++, address += elementSize) {
+                action.accept(cursor.read(address));
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            long mid = (index + fence) >>> 1;
+            if (mid - index < MIN_SPLIT) {
+                return null;
+            }
+            Spliterator<T> prefix = new ElementSpliterator(index, mid);
+            index = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return fence - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL;
+        }
+    }
+
+    /**
+     * @param type the structure type, with a public no-arg or
+     * <code>Pointer</code> constructor
+     * @param base address of the first element
+     * @param count number of elements
+     * @param fields names of the fields to read when moving to an element;
+     * all fields if empty
+     * @throws IllegalArgumentException if a field does not exist, or if the
+     * array exceeds the bounds of <code>base</code>
+     */
+    public StructureArray(Class<T> type, Pointer base, long count, String... fields) {
+        if (base == null) {
+            throw new NullPointerException("Base pointer must not be null");
+        }
+        if (base instanceof BufferPointer) {
+            throw new IllegalArgumentException("Structure arrays require native memory: " + base);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("Invalid element count: " + count);
+        }
+        this.type = type;
+        this.base = base;
+        this.count = count;
+        this.fieldNames = fields.clone();
+        this.elementSize = Structure.size(type);
+        if (base instanceof Memory) {
+            try {
+                ((Memory) base).boundsCheck(0, Math.multiplyExact(count, (long) elementSize));
+            }
+            catch(IndexOutOfBoundsException | ArithmeticException e) {
+                throw new IllegalArgumentException("Structure array exceeds provided memory bounds", e);
+            }
+        }
+        this.cursor = newCursor();
+    }
+
+    private Cursor<T> newCursor() {
+        return new Cursor<>(type, base, fieldNames);
+    }
+
+    private long address(long index) {
+        long peer = base.peer;
+        if (peer == 0) {
+            throw new IllegalStateException("Structure array memory has been freed");
+        }
+        return peer + index * elementSize;
+    }
+
+    private long checkIndex(long index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + count);
+        }
+        return index;
+    }
+
+    /** @return the number of elements */
+    public long size() {
+        return count;
+    }
+
+    /** @return the size in bytes of each element, including padding */
+    public int elementSize() {
+        return elementSize;
+    }
+
+    /** @return the address of the first element */
+    public Pointer getPointer() {
+        return base;
+    }
+
+    /**
+     * Move the shared cursor to the given element and read the selected
+     * fields.
+     * @param index element index
+     * @return the cursor, valid until it is moved again
+     */
+    public T get(long index) {
+        return cursor.read(address(checkIndex(index)));
+    }
+
+    /**
+     * Move the shared cursor to the given element without reading any
+     * field, for example to write fields of the element.
+     * @param index element index
+     * @return the cursor, valid until it is moved again
+     */
+    public T at(long index) {
+        return cursor.move(address(checkIndex(index)));
+    }
+
+    /** Iterate over the elements with a cursor of its own. */
+    @Override
+    public Iterator<T> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    /** Iterate over the elements with a cursor of its own. */
+    @Override
+    public void forEach(Consumer<? super T> action) {
+        spliterator().forEachRemaining(action);
+    }
+
+    /** @return a spliterator with a cursor of its own; splits get
+     * their own cursors as well
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return new ElementSpliterator(0, count);
+    }
+
+    /** @return a sequential stream of the elements */
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /** @return a parallel stream of the elements, each thread using its
+     * own cursor
+     */
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    @Override
+    public String toString() {
+        return "StructureArray<" + type.getName() + ">[" + count + "]@0x" + Long.toHexString(base.peer);
+    }
+}
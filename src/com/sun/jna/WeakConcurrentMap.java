@@ -0,0 +1,231 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe map with weakly referenced keys, compared with
+ * <code>equals</code> like {@link java.util.WeakHashMap}.  Lookups do not
+ * take a lock, and the atomic {@link ConcurrentMap} operations allow
+ * updates without an external monitor.  Entries whose key has been
+ * collected are removed on updates and on {@link #size()}.  Keys and values
+ * must not be <code>null</code>.
+ */
+final class WeakConcurrentMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+    private final ConcurrentHashMap<Object, V> map = new ConcurrentHashMap<>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+
+    /** Stored key, equal to keys with an equal referent. */
+    private static final class WeakKey<K> extends WeakReference<K> {
+        private final int hash;
+
+        WeakKey(K key, ReferenceQueue<? super K> queue) {
+            super(key, queue);
+            this.hash = key.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof WeakKey)) {
+                return false;
+            }
+            Object key = get();
+            return key != null && key.equals(((WeakKey<?>) o).get());
+        }
+    }
+
+    /** Strongly referenced key for lookups. */
+    private static final class LookupKey {
+        private final Object key;
+
+        LookupKey(Object key) {
+            if (key == null) {
+                throw new NullPointerException("Null keys are not supported");
+            }
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            // The map compares lookup keys to stored keys
+            return o instanceof WeakKey && key.equals(((WeakKey<?>) o).get());
+        }
+    }
+
+    private void expunge() {
+        Reference<? extends K> ref;
+        while ((ref = queue.poll()) != null) {
+            map.remove(ref);
+        }
+    }
+
+    @Override
+    public V get(Object key) {
+        return key == null ? null : map.get(new LookupKey(key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        expunge();
+        for (Map.Entry<Object, V> e : map.entrySet()) {
+            if (((WeakKey<?>) e.getKey()).get() != null && e.getValue().equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        expunge();
+        return map.put(new WeakKey<>(key, queue), value);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        expunge();
+        return map.putIfAbsent(new WeakKey<>(key, queue), value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        expunge();
+        return key == null ? null : map.remove(new LookupKey(key));
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        expunge();
+        return key != null && map.remove(new LookupKey(key), value);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean replace(K key, V oldValue, V newValue) {
+        expunge();
+        return ((ConcurrentMap<Object, V>) map).replace(new LookupKey(key), oldValue, newValue);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        expunge();
+        return map.replace(new LookupKey(key), value);
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+        expunge();
+    }
+
+    @Override
+    public int size() {
+        expunge();
+        return map.size();
+    }
+
+    /** Weakly consistent view of the entries whose key is still reachable. */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                final Iterator<Map.Entry<Object, V>> it = map.entrySet().iterator();
+                return new Iterator<Map.Entry<K, V>>() {
+                    private Map.Entry<K, V> next;
+                    private Object nextKey;
+                    private Object lastKey;
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public boolean hasNext() {
+                        while (next == null && it.hasNext()) {
+                            Map.Entry<Object, V> e = it.next();
+                            K key = ((WeakKey<K>) e.getKey()).get();
+                            if (key != null) {
+                                next = new AbstractMap.SimpleImmutableEntry<>(key, e.getValue());
+                                nextKey = e.getKey();
+                            }
+                        }
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<K, V> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<K, V> e = next;
+                        lastKey = nextKey;
+                        next = null;
+                        return e;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (lastKey == null) {
+                            throw new IllegalStateException();
+                        }
+                        map.remove(lastKey);
+                        lastKey = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return WeakConcurrentMap.this.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna.internal;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.jna.internal.ClassFileWriter.Code;
+
+import static com.sun.jna.internal.ClassFileWriter.*;
+
+/**
+ * Invocation of a single callback method, implemented by a class generated
+ * at runtime which unboxes the arguments and calls the method directly,
+ * instead of going through <code>java.lang.reflect.Method</code>.
+ * <p>
+ * Like {@link FieldAccessor}, the generated classes live in their own class
+ * loader, so only public methods of public types with public parameter and
+ * return types, in exported packages for named modules, can be invoked;
+ * {@link #create(Method)} returns
+ * <code>null</code> for other methods and where classes cannot be generated
+ * at runtime, and callers use reflection.  One invoker is generated per
+ * method and shared by all callbacks implementing it.
+ *
+ * <p><strong>This class is intented to be used only be JNA itself.</strong></p>
+ */
+public abstract class CallbackInvoker {
+
+    private static final Logger LOG = Logger.getLogger(CallbackInvoker.class.getName());
+
+    private static final AtomicInteger counter = new AtomicInteger();
+    // See GeneratedClassLoader
+    private static volatile boolean available = true;
+    // Invokers of the methods declared by a class; NONE where reflection
+    // must be used.  Stored with the class, so that it is not kept alive.
+    private static final ClassValue<Map<Method, CallbackInvoker>> invokers =
+        new ClassValue<Map<Method, CallbackInvoker>>() {
+            @Override
+            protected Map<Method, CallbackInvoker> computeValue(Class<?> type) {
+                return new ConcurrentHashMap<>();
+            }
+        };
+    private static final CallbackInvoker NONE = new CallbackInvoker() {
+        @Override
+        public Object invoke(Object target, Object[] args) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    protected CallbackInvoker() {
+    }
+
+    /**
+     * Call the method on the given object.  Exceptions thrown by the method
+     * are propagated as is, not wrapped.
+     * @param target the callback object
+     * @param args the arguments, boxed for primitive parameters
+     * @return the result, boxed for primitive return types, or
+     * <code>null</code> for <code>void</code> methods
+     * @throws ClassCastException if an argument is of the wrong type
+     */
+    public abstract Object invoke(Object target, Object[] args) throws Throwable;
+
+    /** @return whether a generated invoker can call the given method */
+    public static boolean isAccessible(Method method) {
+        if (!Modifier.isPublic(method.getModifiers())
+            || Modifier.isStatic(method.getModifiers())
+            || !ClassFileWriter.isAccessible(method.getDeclaringClass())
+            || !ClassFileWriter.isAccessible(method.getReturnType())) {
+            return false;
+        }
+        for (Class<?> type : method.getParameterTypes()) {
+            if (!ClassFileWriter.isAccessible(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Some access failures are only detected when the generated code first
+     * runs.
+     * @return whether the given error was raised by this invoker failing to
+     * link against the method, rather than thrown by the method itself, in
+     * which case callers should use reflection instead
+     */
+    public boolean isLinkageFailure(LinkageError e) {
+        StackTraceElement[] trace = e.getStackTrace();
+        return trace.length > 0 && trace[0].getClassName().equals(getClass().getName());
+    }
+
+    /**
+     * Get the invoker for the given method, generating it on first use.
+     * @return the invoker, or <code>null</code> if the method is not
+     * {@link #isAccessible(Method) accessible} or no invoker can be
+     * generated
+     */
+    public static CallbackInvoker create(Method method) {
+        Map<Method, CallbackInvoker> map = invokers.get(method.getDeclaringClass());
+        CallbackInvoker invoker = map.get(method);
+        if (invoker == null) {
+            invoker = define(method);
+            CallbackInvoker existing = map.putIfAbsent(method, invoker != null ? invoker : NONE);
+            if (existing != null) {
+                invoker = existing;
+            }
+        }
+        return invoker == NONE ? null : invoker;
+    }
+
+    private static CallbackInvoker define(Method method) {
+        if (!available || !isAccessible(method)) {
+            return null;
+        }
+        Class<?> type = method.getDeclaringClass();
+        try {
+            GeneratedClassLoader loader = new GeneratedClassLoader(type.getClassLoader());
+            String name = type.getName() + "$$JNACallback" + counter.incrementAndGet();
+            Class<?> cls = loader.define(name, generate(name.replace('.', '/'), method));
+            return (CallbackInvoker) cls.getConstructor().newInstance();
+        } catch (Throwable t) {
+            // Not available (e.g. no support for defining JVM classes at
+            // runtime, or this package is not accessible)
+            LOG.log(Level.FINE, "Generated callback invokers not available", t);
+            available = false;
+            return null;
+        }
+    }
+
+    private static byte[] generate(String owner, Method method) {
+        String superName = internalName(CallbackInvoker.class);
+        ClassFileWriter cw = new ClassFileWriter(ACC_PUBLIC | ACC_FINAL | ACC_SUPER, owner, superName);
+        cw.newMethod(ACC_PUBLIC, "<init>", "()V")
+            .load(Object.class, 0)
+            .invokespecial(superName, "<init>", "()V")
+            .returnValue(void.class)
+            .end(1, 1);
+
+        Class<?> declaringClass = method.getDeclaringClass();
+        String target = internalName(declaringClass);
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Class<?> returnType = method.getReturnType();
+
+        Code invoke = cw.newMethod(ACC_PUBLIC | ACC_FINAL, "invoke",
+                                   methodDescriptor(Object.class, Object.class, Object[].class));
+        invoke.load(Object.class, 1).checkcast(target);
+        int argSlots = 1;
+        for (int i = 0; i < parameterTypes.length; i++) {
+            Class<?> type = parameterTypes[i];
+            invoke.load(Object[].class, 2).iconst(i).aaload();
+            Class<?> boxed = boxedType(type);
+            if (boxed != null) {
+                invoke.checkcast(internalName(boxed))
+                    .invokevirtual(internalName(boxed), type.getName() + "Value", methodDescriptor(type));
+            } else if (type != Object.class) {
+                invoke.checkcast(internalName(type));
+            }
+            argSlots += slots(type);
+        }
+        String descriptor = methodDescriptor(returnType, parameterTypes);
+        if (declaringClass.isInterface()) {
+            invoke.invokeinterface(target, method.getName(), descriptor, argSlots);
+        } else {
+            invoke.invokevirtual(target, method.getName(), descriptor);
+        }
+        Class<?> boxed = boxedType(returnType);
+        if (returnType == void.class) {
+            invoke.aconstNull();
+        } else if (boxed != null) {
+            invoke.invokestatic(internalName(boxed), "valueOf", methodDescriptor(boxed, returnType));
+        }
+        invoke.returnValue(Object.class)
+            // receiver and arguments, plus the array and index being loaded
+            .end(Math.max(argSlots + 2, 2), 3);
+        return cw.toByteArray();
+    }
+}
@@ -0,0 +1,588 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal writer for class files consisting of fields and methods without
+ * exception handlers, which is all that is needed for the classes JNA
+ * generates at runtime.  The only branch supported is a single
+ * {@link Code#tableswitch(int) tableswitch} per method whose cases start
+ * with the locals of the method entry and an empty stack, so the
+ * <code>StackMapTable</code> only needs <code>same_frame</code> entries.
+ *
+ * <p><strong>This class is intented to be used only be JNA itself.</strong></p>
+ */
+public final class ClassFileWriter {
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PRIVATE = 0x0002;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+    public static final int ACC_NATIVE = 0x0100;
+
+    private static final int CLASS_FILE_VERSION = 52; // Java 8
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final Method GET_MODULE;
+    private static final Method IS_EXPORTED;
+    static {
+        Method getModule = null;
+        Method isExported = null;
+        try {
+            getModule = Class.class.getMethod("getModule");
+            isExported = getModule.getReturnType().getMethod("isExported", String.class);
+        } catch (NoSuchMethodException e) {
+            getModule = null;
+        }
+        GET_MODULE = getModule;
+        IS_EXPORTED = isExported;
+    }
+
+    private final ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+    private final DataOutputStream constants = new DataOutputStream(constantPool);
+    private final Map<String, Integer> constantIndex = new HashMap<>();
+    private int constantCount = 1;
+
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    /**
+     * @param access class access flags
+     * @param name internal name of the class (e.g. <code>a/b/C</code>)
+     * @param superName internal name of the super class
+     * @param interfaceNames internal names of the implemented interfaces
+     */
+    public ClassFileWriter(int access, String name, String superName, String... interfaceNames) {
+        this.access = access;
+        this.thisClass = classConstant(name);
+        this.superClass = classConstant(superName);
+        this.interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classConstant(interfaceNames[i]);
+        }
+    }
+
+    /** Add a field without attributes. */
+    public void addField(int access, String name, String descriptor) {
+        fields.add(member(access, name, descriptor, null));
+    }
+
+    /** Add a method without code, i.e. an <code>abstract</code> or
+     * <code>native</code> method.
+     */
+    public void addMethod(int access, String name, String descriptor) {
+        methods.add(member(access, name, descriptor, null));
+    }
+
+    /** Start a method with code.  The method is added to the class when
+     * {@link Code#end(int, int)} is called.
+     */
+    public Code newMethod(int access, String name, String descriptor) {
+        return new Code(access, name, descriptor);
+    }
+
+    /** @return the class file contents */
+    public byte[] toByteArray() {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_FILE_VERSION);
+            out.writeShort(constantCount);
+            constants.flush();
+            constantPool.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int iface : interfaces) {
+                out.writeShort(iface);
+            }
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+            out.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @return the internal name of the given class (e.g. <code>a/b/C</code>
+     * or <code>[La/b/C;</code>)
+     */
+    public static String internalName(Class<?> cls) {
+        return cls.getName().replace('.', '/');
+    }
+
+    /** @return the field descriptor of the given type */
+    public static String descriptor(Class<?> type) {
+        if (type.isArray()) {
+            return internalName(type);
+        }
+        if (type.isPrimitive()) {
+            if (type == void.class) return "V";
+            if (type == boolean.class) return "Z";
+            if (type == byte.class) return "B";
+            if (type == char.class) return "C";
+            if (type == short.class) return "S";
+            if (type == int.class) return "I";
+            if (type == long.class) return "J";
+            if (type == float.class) return "F";
+            return "D";
+        }
+        return "L" + internalName(type) + ";";
+    }
+
+    /** @return the method descriptor for the given signature */
+    public static String methodDescriptor(Class<?> returnType, Class<?>... parameterTypes) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Class<?> type : parameterTypes) {
+            sb.append(descriptor(type));
+        }
+        return sb.append(')').append(descriptor(returnType)).toString();
+    }
+
+    /** @return the number of local variable slots occupied by a value of the
+     * given type
+     */
+    public static int slots(Class<?> type) {
+        return type == void.class ? 0 : (type == long.class || type == double.class) ? 2 : 1;
+    }
+
+    /** @return the wrapper class of a primitive type, or <code>null</code> */
+    public static Class<?> boxedType(Class<?> type) {
+        if (type == boolean.class) return Boolean.class;
+        if (type == byte.class) return Byte.class;
+        if (type == char.class) return Character.class;
+        if (type == short.class) return Short.class;
+        if (type == int.class) return Integer.class;
+        if (type == long.class) return Long.class;
+        if (type == float.class) return Float.class;
+        if (type == double.class) return Double.class;
+        return null;
+    }
+
+    /**
+     * Class loader for generated classes.  Each generator uses its own
+     * loader, so that the generated classes can be unloaded along with the
+     * classes they refer to.  Generators disable themselves after the first
+     * failure to define a class, since the reason is typically the
+     * environment (e.g. no support for defining classes at runtime) rather
+     * than the class.
+     */
+    public static final class GeneratedClassLoader extends ClassLoader {
+        /**
+         * @param parent loader of the classes the generated code refers to,
+         * or <code>null</code> to use the loader of JNA
+         */
+        public GeneratedClassLoader(ClassLoader parent) {
+            super(parent != null ? parent : ClassFileWriter.class.getClassLoader());
+        }
+
+        /** Define a class from the output of a {@link ClassFileWriter}. */
+        public Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    /**
+     * Classes generated into their own class loader belong to its unnamed
+     * module, so they can only link against public types of packages which
+     * are exported to everyone.  A package which is merely opened allows
+     * reflection, but fails with an {@link IllegalAccessError} when the
+     * generated code first uses it.
+     * @return whether generated code can access the given type
+     */
+    public static boolean isAccessible(Class<?> cls) {
+        while (cls.isArray()) {
+            cls = cls.getComponentType();
+        }
+        if (cls.isPrimitive()) {
+            return true;
+        }
+        return Modifier.isPublic(cls.getModifiers()) && isExported(cls);
+    }
+
+    private static boolean isExported(Class<?> cls) {
+        if (GET_MODULE == null) {
+            // No modules before Java 9
+            return true;
+        }
+        String name = cls.getName();
+        int dot = name.lastIndexOf('.');
+        try {
+            Object module = GET_MODULE.invoke(cls);
+            return (Boolean) IS_EXPORTED.invoke(module, dot == -1 ? "" : name.substring(0, dot));
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private byte[] member(int access, String name, String descriptor, byte[] code) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeShort(access);
+            out.writeShort(utf8Constant(name));
+            out.writeShort(utf8Constant(descriptor));
+            if (code == null) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.writeShort(utf8Constant("Code"));
+                out.writeInt(code.length);
+                out.write(code);
+            }
+            out.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int constant(String key, int tag, int a, int b, String utf8) {
+        Integer index = constantIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            constants.writeByte(tag);
+            if (utf8 != null) {
+                constants.writeUTF(utf8);
+            } else {
+                constants.writeShort(a);
+                if (b >= 0) {
+                    constants.writeShort(b);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = constantCount++;
+        constantIndex.put(key, index);
+        return index;
+    }
+
+    private int utf8Constant(String value) {
+        return constant("U" + value, CONSTANT_UTF8, 0, 0, value);
+    }
+
+    private int classConstant(String name) {
+        return constant("C" + name, CONSTANT_CLASS, utf8Constant(name), -1, null);
+    }
+
+    private int nameAndTypeConstant(String name, String descriptor) {
+        return constant("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE,
+                        utf8Constant(name), utf8Constant(descriptor), null);
+    }
+
+    private int memberConstant(int tag, String owner, String name, String descriptor) {
+        return constant(tag + owner + "." + name + ":" + descriptor, tag,
+                        classConstant(owner), nameAndTypeConstant(name, descriptor), null);
+    }
+
+    /** Builder for the bytecode of a single method. */
+    public final class Code {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        // Position of the tableswitch opcode and its case offsets
+        private int switchStart = -1;
+        private int[] caseStarts;
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        private void u2(int value) {
+            code.write(value >>> 8);
+            code.write(value);
+        }
+
+        public Code aconstNull() {
+            code.write(0x01);
+            return this;
+        }
+
+        /** Push the given int constant. */
+        public Code iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                code.write(0x03 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.write(0x10);
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(0x11);
+                u2(value);
+            } else {
+                throw new IllegalArgumentException("Constant out of range: " + value);
+            }
+            return this;
+        }
+
+        /** Load a local variable of the given type. */
+        public Code load(Class<?> type, int slot) {
+            int op;
+            if (!type.isPrimitive()) {
+                op = 0x19;
+            } else if (type == long.class) {
+                op = 0x16;
+            } else if (type == float.class) {
+                op = 0x17;
+            } else if (type == double.class) {
+                op = 0x18;
+            } else {
+                op = 0x15;
+            }
+            if (slot > 0xFF) {
+                code.write(0xC4);
+                code.write(op);
+                u2(slot);
+            } else {
+                code.write(op);
+                code.write(slot);
+            }
+            return this;
+        }
+
+        /** Return a value of the given type (or <code>void</code>). */
+        public Code returnValue(Class<?> type) {
+            if (type == void.class) {
+                code.write(0xB1);
+            } else if (!type.isPrimitive()) {
+                code.write(0xB0);
+            } else if (type == long.class) {
+                code.write(0xAD);
+            } else if (type == float.class) {
+                code.write(0xAE);
+            } else if (type == double.class) {
+                code.write(0xAF);
+            } else {
+                code.write(0xAC);
+            }
+            return this;
+        }
+
+        public Code pop() {
+            code.write(0x57);
+            return this;
+        }
+
+        public Code dup() {
+            code.write(0x59);
+            return this;
+        }
+
+        public Code aaload() {
+            code.write(0x32);
+            return this;
+        }
+
+        public Code aastore() {
+            code.write(0x53);
+            return this;
+        }
+
+        public Code anewarray(String type) {
+            code.write(0xBD);
+            u2(classConstant(type));
+            return this;
+        }
+
+        public Code checkcast(String type) {
+            code.write(0xC0);
+            u2(classConstant(type));
+            return this;
+        }
+
+        public Code getfield(String owner, String name, String descriptor) {
+            code.write(0xB4);
+            u2(memberConstant(CONSTANT_FIELDREF, owner, name, descriptor));
+            return this;
+        }
+
+        public Code putfield(String owner, String name, String descriptor) {
+            code.write(0xB5);
+            u2(memberConstant(CONSTANT_FIELDREF, owner, name, descriptor));
+            return this;
+        }
+
+        public Code invokevirtual(String owner, String name, String descriptor) {
+            code.write(0xB6);
+            u2(memberConstant(CONSTANT_METHODREF, owner, name, descriptor));
+            return this;
+        }
+
+        public Code invokespecial(String owner, String name, String descriptor) {
+            code.write(0xB7);
+            u2(memberConstant(CONSTANT_METHODREF, owner, name, descriptor));
+            return this;
+        }
+
+        public Code invokestatic(String owner, String name, String descriptor) {
+            code.write(0xB8);
+            u2(memberConstant(CONSTANT_METHODREF, owner, name, descriptor));
+            return this;
+        }
+
+        /** @param argSlots slots occupied by the arguments, including the receiver */
+        public Code invokeinterface(String owner, String name, String descriptor, int argSlots) {
+            code.write(0xB9);
+            u2(memberConstant(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor));
+            code.write(argSlots);
+            code.write(0);
+            return this;
+        }
+
+        /** Switch on the int on the stack over the cases <code>0</code> to
+         * <code>count-1</code>, the last of which is also the default.
+         * Each case is started with {@link #startCase(int)} and must not
+         * fall through to the next one.
+         */
+        public Code tableswitch(int count) {
+            if (switchStart >= 0 || count <= 0) {
+                throw new IllegalStateException("Only one non-empty switch per method");
+            }
+            switchStart = code.size();
+            caseStarts = new int[count];
+            code.write(0xAA);
+            while (code.size() % 4 != 0) {
+                code.write(0);
+            }
+            // default, low, high and the jump offsets, set in end()
+            for (int i = 0; i < 3 + count; i++) {
+                u2(0);
+                u2(0);
+            }
+            return this;
+        }
+
+        /** Start the code of the given case of the {@link #tableswitch(int)}. */
+        public Code startCase(int index) {
+            caseStarts[index] = code.size();
+            return this;
+        }
+
+        /** Finish the method and add it to the class. */
+        public void end(int maxStack, int maxLocals) {
+            try {
+                byte[] bytecode = code.toByteArray();
+                byte[] stackMap = null;
+                if (switchStart >= 0) {
+                    int table = (switchStart + 4) & ~3;
+                    int count = caseStarts.length;
+                    putInt(bytecode, table, caseStarts[count - 1] - switchStart);
+                    putInt(bytecode, table + 4, 0);
+                    putInt(bytecode, table + 8, count - 1);
+                    for (int i = 0; i < count; i++) {
+                        putInt(bytecode, table + 12 + 4 * i, caseStarts[i] - switchStart);
+                    }
+                    stackMap = stackMap(caseStarts);
+                }
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bos);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(bytecode.length);
+                out.write(bytecode);
+                out.writeShort(0); // exception table
+                if (stackMap == null) {
+                    out.writeShort(0); // attributes
+                } else {
+                    out.writeShort(1);
+                    out.writeShort(utf8Constant("StackMapTable"));
+                    out.writeInt(stackMap.length);
+                    out.write(stackMap);
+                }
+                out.flush();
+                methods.add(member(access, name, descriptor, bos.toByteArray()));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void putInt(byte[] b, int offset, int value) {
+            b[offset] = (byte) (value >>> 24);
+            b[offset + 1] = (byte) (value >>> 16);
+            b[offset + 2] = (byte) (value >>> 8);
+            b[offset + 3] = (byte) value;
+        }
+
+        /** @return <code>same_frame</code> entries for the given distinct
+         * positions
+         */
+        private byte[] stackMap(int[] positions) throws IOException {
+            int[] sorted = positions.clone();
+            Arrays.sort(sorted);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeShort(sorted.length);
+            int previous = -1;
+            for (int position : sorted) {
+                int delta = position - previous - 1;
+                if (delta < 64) {
+                    out.writeByte(delta); // same_frame
+                } else {
+                    out.writeByte(251); // same_frame_extended
+                    out.writeShort(delta);
+                }
+                previous = position;
+            }
+            out.flush();
+            return bos.toByteArray();
+        }
+    }
+}
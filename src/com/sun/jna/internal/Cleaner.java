@@ -27,6 +27,8 @@ package com.sun.jna.internal;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,54 +36,167 @@ import java.util.logging.Logger;
  * Implement ReferenceQueue based cleanup of resources associated with GCed
  * objects. It replaces the {@code Object#finalize} based resource deallocation
  * that is deprecated for removal from the JDK.
+ * <p>
+ * Registrations are kept in striped lists, chosen by the registering thread,
+ * so that threads registering and cleaning objects concurrently rarely contend
+ * on the same lock.  The references of unreachable objects are processed by
+ * daemon threads, started on demand and stopped again after a period without
+ * registrations.  Their number is set with the system property
+ * <code>jna.cleaner_threads</code> (default 1); the stripes are distributed
+ * among them.
  *
  * <p><strong>This class is intented to be used only be JNA itself.</strong></p>
  */
 public class Cleaner {
-    private static final Cleaner INSTANCE = new Cleaner();
+    private static final Cleaner INSTANCE = new Cleaner(
+        Math.max(1, Integer.getInteger("jna.cleaner_threads", 1)));
 
     public static Cleaner getCleaner() {
         return INSTANCE;
     }
 
-    private final ReferenceQueue<Object> referenceQueue;
-    private Thread cleanerThread;
-    private CleanerRef firstCleanable;
+    private final Stripe[] stripes;
+    private final Drainer[] drainers;
 
-    private Cleaner() {
-        referenceQueue = new ReferenceQueue<>();
+    private Cleaner(int threads) {
+        int count = 1;
+        while (count < 2 * Runtime.getRuntime().availableProcessors() && count < 64) {
+            count <<= 1;
+        }
+        drainers = new Drainer[Math.min(threads, count)];
+        for (int i = 0; i < drainers.length; i++) {
+            String name = drainers.length == 1 ? "JNA Cleaner" : "JNA Cleaner " + (i + 1);
+            drainers[i] = new Drainer(name);
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(drainers[i % drainers.length]);
+        }
     }
 
-    public synchronized Cleanable register(Object obj, Runnable cleanupTask) {
+    public Cleanable register(Object obj, Runnable cleanupTask) {
+        long id = Thread.currentThread().getId();
+        Stripe stripe = stripes[(int) (id ^ (id >>> 16)) & (stripes.length - 1)];
         // The important side effect is the PhantomReference, that is yielded
         // after the referent is GCed
-        return add(new CleanerRef(this, obj, referenceQueue, cleanupTask));
+        CleanerRef ref = new CleanerRef(stripe, obj, stripe.drainer.referenceQueue, cleanupTask);
+        stripe.add(ref);
+        stripe.drainer.ensureRunning();
+        return ref;
+    }
+
+    /** @return a snapshot of the cleaner's counters */
+    public Statistics getStatistics() {
+        long registered = 0, cleaned = 0, pending = 0, reclaimed = 0, time = 0, max = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                registered += stripe.count;
+                cleaned += stripe.cleaned;
+            }
+        }
+        for (Drainer drainer : drainers) {
+            pending += drainer.pending;
+            reclaimed += drainer.reclaimed;
+            time += drainer.cleanupNanos;
+            max = Math.max(max, drainer.maxCleanupNanos);
+        }
+        return new Statistics(registered, cleaned, pending, reclaimed, time, max);
+    }
+
+    /** Counters of the objects registered with a {@link Cleaner}. */
+    public static final class Statistics {
+        private final long registered;
+        private final long cleaned;
+        private final long pending;
+        private final long reclaimed;
+        private final long cleanupNanos;
+        private final long maxCleanupNanos;
+
+        Statistics(long registered, long cleaned, long pending, long reclaimed,
+                   long cleanupNanos, long maxCleanupNanos) {
+            this.registered = registered;
+            this.cleaned = cleaned;
+            this.pending = pending;
+            this.reclaimed = reclaimed;
+            this.cleanupNanos = cleanupNanos;
+            this.maxCleanupNanos = maxCleanupNanos;
+        }
+
+        /** @return number of registrations not yet cleaned */
+        public long getRegistered() {
+            return registered;
+        }
+
+        /** @return number of registrations cleaned explicitly with
+         * {@link Cleanable#clean()}
+         */
+        public long getCleaned() {
+            return cleaned;
+        }
+
+        /** @return number of references of unreachable objects dequeued by the
+         * cleanup threads and waiting to be processed
+         */
+        public long getPending() {
+            return pending;
+        }
+
+        /** @return number of registrations cleaned by the cleanup threads
+         * after their object became unreachable
+         */
+        public long getReclaimed() {
+            return reclaimed;
+        }
+
+        /** @return total time spent by the cleanup threads running cleanup
+         * tasks, in nanoseconds
+         */
+        public long getCleanupNanos() {
+            return cleanupNanos;
+        }
+
+        /** @return longest time spent by a cleanup thread on a single cleanup
+         * task, in nanoseconds
+         */
+        public long getMaxCleanupNanos() {
+            return maxCleanupNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Cleaner.Statistics[registered=" + registered + ", cleaned=" + cleaned
+                + ", pending=" + pending + ", reclaimed=" + reclaimed
+                + ", cleanupNanos=" + cleanupNanos + ", maxCleanupNanos=" + maxCleanupNanos + "]";
+        }
     }
 
-    private synchronized CleanerRef add(CleanerRef ref) {
-        synchronized (referenceQueue) {
-            if (firstCleanable == null) {
-                firstCleanable = ref;
-            } else {
+    /** Doubly linked list of registrations, guarded by its own monitor. */
+    private static final class Stripe {
+        final Drainer drainer;
+        private CleanerRef firstCleanable;
+        int count;
+        long cleaned;
+
+        Stripe(Drainer drainer) {
+            this.drainer = drainer;
+        }
+
+        synchronized void add(CleanerRef ref) {
+            if (firstCleanable != null) {
                 ref.setNext(firstCleanable);
                 firstCleanable.setPrevious(ref);
-                firstCleanable = ref;
-            }
-            if (cleanerThread == null) {
-                Logger.getLogger(Cleaner.class.getName()).log(Level.FINE, "Starting CleanerThread");
-                cleanerThread = new CleanerThread();
-                cleanerThread.start();
             }
-            return ref;
+            firstCleanable = ref;
+            ref.linked = true;
+            count++;
         }
-    }
 
-    private synchronized boolean remove(CleanerRef ref) {
-        synchronized (referenceQueue) {
-            boolean inChain = false;
+        synchronized boolean remove(CleanerRef ref, boolean explicit) {
+            if (!ref.linked) {
+                return false;
+            }
             if (ref == firstCleanable) {
                 firstCleanable = ref.getNext();
-                inChain = true;
             }
             if (ref.getPrevious() != null) {
                 ref.getPrevious().setNext(ref.getNext());
@@ -89,32 +204,57 @@ public class Cleaner {
             if (ref.getNext() != null) {
                 ref.getNext().setPrevious(ref.getPrevious());
             }
-            if (ref.getPrevious() != null || ref.getNext() != null) {
-                inChain = true;
-            }
             ref.setNext(null);
             ref.setPrevious(null);
-            return inChain;
+            ref.linked = false;
+            count--;
+            if (explicit) {
+                cleaned++;
+            }
+            return true;
+        }
+
+        synchronized boolean isEmpty() {
+            return firstCleanable == null;
+        }
+
+        synchronized void describe(StringBuilder registeredCleaners) {
+            for(CleanerRef cleanerRef = firstCleanable; cleanerRef != null; cleanerRef = cleanerRef.next) {
+                if(registeredCleaners.length() != 0) {
+                    registeredCleaners.append(", ");
+                }
+                registeredCleaners.append(cleanerRef.cleanupTask.toString());
+            }
         }
     }
 
     private static class CleanerRef extends PhantomReference<Object> implements Cleanable {
-        private final Cleaner cleaner;
+        private final Stripe stripe;
         private final Runnable cleanupTask;
         private CleanerRef previous;
         private CleanerRef next;
+        private boolean linked;
 
-        public CleanerRef(Cleaner cleaner, Object referent, ReferenceQueue<? super Object> q, Runnable cleanupTask) {
+        public CleanerRef(Stripe stripe, Object referent, ReferenceQueue<? super Object> q, Runnable cleanupTask) {
             super(referent, q);
-            this.cleaner = cleaner;
+            this.stripe = stripe;
             this.cleanupTask = cleanupTask;
         }
 
         @Override
         public void clean() {
-            if(cleaner.remove(this)) {
+            if(stripe.remove(this, true)) {
+                cleanupTask.run();
+            }
+        }
+
+        /** Clean up after the referent became unreachable. */
+        boolean reclaim() {
+            if(stripe.remove(this, false)) {
                 cleanupTask.run();
+                return true;
             }
+            return false;
         }
 
         CleanerRef getPrevious() {
@@ -138,12 +278,100 @@ public class Cleaner {
         public void clean();
     }
 
+    /** Reference queue of a group of stripes and the thread processing it. */
+    private final class Drainer {
+        private final String name;
+        final ReferenceQueue<Object> referenceQueue = new ReferenceQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean();
+        private Reference<?>[] batch = new Reference<?>[16];
+        // Written by the cleanup thread only
+        volatile long pending;
+        volatile long reclaimed;
+        volatile long cleanupNanos;
+        volatile long maxCleanupNanos;
+
+        Drainer(String name) {
+            this.name = name;
+        }
+
+        void ensureRunning() {
+            if (!running.get() && running.compareAndSet(false, true)) {
+                Logger.getLogger(Cleaner.class.getName()).log(Level.FINE, "Starting CleanerThread");
+                new CleanerThread(this).start();
+            }
+        }
+
+        /** Called by an idle cleanup thread.
+         * @return whether the thread should stop
+         */
+        boolean shutdown() {
+            Logger logger = Logger.getLogger(Cleaner.class.getName());
+            running.set(false);
+            // A registration added concurrently either sees running == false
+            // and starts a new thread, or is seen here
+            StringBuilder registeredCleaners = new StringBuilder();
+            boolean empty = true;
+            for (Stripe stripe : stripes) {
+                if (stripe.drainer == this && !stripe.isEmpty()) {
+                    empty = false;
+                    if (logger.isLoggable(Level.FINER)) {
+                        stripe.describe(registeredCleaners);
+                    }
+                }
+            }
+            if (empty || !running.compareAndSet(false, true)) {
+                logger.log(Level.FINE, "Shutting down CleanerThread");
+                return true;
+            }
+            if (logger.isLoggable(Level.FINER)) {
+                logger.log(Level.FINER, "Registered Cleaners: {0}", registeredCleaners.toString());
+            }
+            return false;
+        }
+
+        /** Process the given reference and all others already enqueued. */
+        void process(Reference<?> ref) {
+            int count = 0;
+            do {
+                if (count == batch.length) {
+                    batch = Arrays.copyOf(batch, count * 2);
+                }
+                batch[count++] = ref;
+                ref = referenceQueue.poll();
+            } while (ref != null);
+            for (int i = 0; i < count; i++) {
+                pending = count - i;
+                ref = batch[i];
+                batch[i] = null;
+                if (ref instanceof CleanerRef) {
+                    long start = System.nanoTime();
+                    try {
+                        if (((CleanerRef) ref).reclaim()) {
+                            long elapsed = System.nanoTime() - start;
+                            reclaimed++;
+                            cleanupNanos += elapsed;
+                            if (elapsed > maxCleanupNanos) {
+                                maxCleanupNanos = elapsed;
+                            }
+                        }
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(Cleaner.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+            pending = 0;
+        }
+    }
+
     private class CleanerThread extends Thread {
 
         private static final long CLEANER_LINGER_TIME = 30000;
 
-        public CleanerThread() {
-            super("JNA Cleaner");
+        private final Drainer drainer;
+
+        public CleanerThread(Drainer drainer) {
+            super(drainer.name);
+            this.drainer = drainer;
             setDaemon(true);
         }
 
@@ -151,33 +379,18 @@ public class Cleaner {
         public void run() {
             while (true) {
                 try {
-                    Reference<? extends Object> ref = referenceQueue.remove(CLEANER_LINGER_TIME);
-                    if (ref instanceof CleanerRef) {
-                        ((CleanerRef) ref).clean();
-                    } else if (ref == null) {
-                        synchronized (referenceQueue) {
-                            Logger logger = Logger.getLogger(Cleaner.class.getName());
-                            if (firstCleanable == null) {
-                                cleanerThread = null;
-                                logger.log(Level.FINE, "Shutting down CleanerThread");
-                                break;
-                            } else if (logger.isLoggable(Level.FINER)) {
-                                StringBuilder registeredCleaners = new StringBuilder();
-                                for(CleanerRef cleanerRef = firstCleanable; cleanerRef != null; cleanerRef = cleanerRef.next) {
-                                    if(registeredCleaners.length() != 0) {
-                                        registeredCleaners.append(", ");
-                                    }
-                                    registeredCleaners.append(cleanerRef.cleanupTask.toString());
-                                }
-                                logger.log(Level.FINER, "Registered Cleaners: {0}", registeredCleaners.toString());
-                            }
-                        }
+                    Reference<? extends Object> ref = drainer.referenceQueue.remove(CLEANER_LINGER_TIME);
+                    if (ref != null) {
+                        drainer.process(ref);
+                    } else if (drainer.shutdown()) {
+                        break;
                     }
                 } catch (InterruptedException ex) {
                     // Can be raised on shutdown. If anyone else messes with
                     // our reference queue, well, there is no way to separate
                     // the two cases.
                     // https://groups.google.com/g/jna-users/c/j0fw96PlOpM/m/vbwNIb2pBQAJ
+                    drainer.running.set(false);
                     break;
                 } catch (Exception ex) {
                     Logger.getLogger(Cleaner.class.getName()).log(Level.SEVERE, null, ex);
@@ -0,0 +1,184 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna.internal;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.jna.internal.ClassFileWriter.Code;
+
+import static com.sun.jna.internal.ClassFileWriter.*;
+
+/**
+ * Read and write access to a single instance field, implemented by a class
+ * generated at runtime which accesses the field directly, so that the JIT
+ * can inline the access instead of going through
+ * <code>java.lang.reflect.Field</code>.  A single class is generated for
+ * all fields of a structure class; each accessor is an instance of it which
+ * selects its field by index.
+ * <p>
+ * The generated classes live in their own class loader, so only public,
+ * non-final fields of public classes whose type is public can be accessed,
+ * and within named modules only if both classes are in exported packages.
+ * Where classes cannot be generated at runtime (e.g. Android) or this
+ * package is not accessible to them (JNA loaded as a named module),
+ * {@link #create(Class, Field[])} returns no accessors and callers use
+ * reflection.
+ *
+ * <p><strong>This class is intented to be used only be JNA itself.</strong></p>
+ */
+public abstract class FieldAccessor {
+
+    private static final Logger LOG = Logger.getLogger(FieldAccessor.class.getName());
+
+    private static final AtomicInteger counter = new AtomicInteger();
+    // See GeneratedClassLoader
+    private static volatile boolean available = true;
+
+    protected FieldAccessor() {
+    }
+
+    /** @return the value of the field in the given object, boxed for
+     * primitive fields
+     */
+    public abstract Object get(Object target);
+
+    /** Set the value of the field in the given object.
+     * @throws ClassCastException if the value is of the wrong type
+     * @throws NullPointerException if the field is primitive and the value
+     * <code>null</code>
+     */
+    public abstract void set(Object target, Object value);
+
+    /** @return whether a generated accessor can access the given field */
+    public static boolean isAccessible(Field field) {
+        int modifiers = field.getModifiers();
+        return Modifier.isPublic(modifiers)
+            && !Modifier.isStatic(modifiers)
+            && !Modifier.isFinal(modifiers)
+            && ClassFileWriter.isAccessible(field.getDeclaringClass())
+            && ClassFileWriter.isAccessible(field.getType());
+    }
+
+    /**
+     * Generate accessors for the given fields of a class or its super
+     * classes.
+     * @param type class whose loader is used to resolve the fields
+     * @param fields fields to access
+     * @return accessors in the order of the given fields, with
+     * <code>null</code> entries for fields which are not
+     * {@link #isAccessible(Field) accessible} or if no accessors can be
+     * generated
+     */
+    public static FieldAccessor[] create(Class<?> type, Field[] fields) {
+        FieldAccessor[] accessors = new FieldAccessor[fields.length];
+        if (!available) {
+            return accessors;
+        }
+        List<Field> cases = new ArrayList<>();
+        for (Field field : fields) {
+            if (isAccessible(field)) {
+                cases.add(field);
+            }
+        }
+        if (cases.isEmpty()) {
+            return accessors;
+        }
+        try {
+            GeneratedClassLoader loader = new GeneratedClassLoader(type.getClassLoader());
+            String name = type.getName() + "$$JNAFields" + counter.incrementAndGet();
+            Class<?> cls = loader.define(name, generate(name.replace('.', '/'), cases));
+            Constructor<?> constructor = cls.getConstructor(int.class);
+            for (int i = 0; i < fields.length; i++) {
+                int index = cases.indexOf(fields[i]);
+                if (index >= 0) {
+                    accessors[i] = (FieldAccessor) constructor.newInstance(index);
+                }
+            }
+        } catch (Throwable t) {
+            // Not available (e.g. no support for defining JVM classes at
+            // runtime, or this package is not accessible)
+            LOG.log(Level.FINE, "Generated field accessors not available", t);
+            available = false;
+            return new FieldAccessor[fields.length];
+        }
+        return accessors;
+    }
+
+    private static byte[] generate(String owner, List<Field> fields) {
+        String superName = internalName(FieldAccessor.class);
+        ClassFileWriter cw = new ClassFileWriter(ACC_PUBLIC | ACC_FINAL | ACC_SUPER, owner, superName);
+        cw.addField(ACC_PRIVATE | ACC_FINAL, "index", "I");
+        cw.newMethod(ACC_PUBLIC, "<init>", "(I)V")
+            .load(Object.class, 0)
+            .invokespecial(superName, "<init>", "()V")
+            .load(Object.class, 0)
+            .load(int.class, 1)
+            .putfield(owner, "index", "I")
+            .returnValue(void.class)
+            .end(2, 2);
+
+        Code get = cw.newMethod(ACC_PUBLIC | ACC_FINAL, "get", methodDescriptor(Object.class, Object.class));
+        Code set = cw.newMethod(ACC_PUBLIC | ACC_FINAL, "set", methodDescriptor(void.class, Object.class, Object.class));
+        get.load(Object.class, 0).getfield(owner, "index", "I").tableswitch(fields.size());
+        set.load(Object.class, 0).getfield(owner, "index", "I").tableswitch(fields.size());
+        int maxSlots = 1;
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            String declaringClass = internalName(field.getDeclaringClass());
+            Class<?> type = field.getType();
+            String fieldDescriptor = descriptor(type);
+            Class<?> boxed = boxedType(type);
+            maxSlots = Math.max(maxSlots, slots(type));
+
+            get.startCase(i)
+                .load(Object.class, 1).checkcast(declaringClass)
+                .getfield(declaringClass, field.getName(), fieldDescriptor);
+            if (boxed != null) {
+                get.invokestatic(internalName(boxed), "valueOf", methodDescriptor(boxed, type));
+            }
+            get.returnValue(Object.class);
+
+            set.startCase(i)
+                .load(Object.class, 1).checkcast(declaringClass)
+                .load(Object.class, 2);
+            if (boxed != null) {
+                set.checkcast(internalName(boxed))
+                    .invokevirtual(internalName(boxed), type.getName() + "Value", methodDescriptor(type));
+            } else if (type != Object.class) {
+                set.checkcast(internalName(type));
+            }
+            set.putfield(declaringClass, field.getName(), fieldDescriptor)
+                .returnValue(void.class);
+        }
+        get.end(maxSlots, 2);
+        set.end(1 + maxSlots, 3);
+        return cw.toByteArray();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna.internal;
+
+import java.lang.reflect.Field;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.jna.internal.ClassFileWriter.Code;
+
+import static com.sun.jna.internal.ClassFileWriter.*;
+
+/**
+ * Access to primitive values in native memory without a JNI transition.
+ * <p>
+ * The implementation is a class generated at runtime which forwards to
+ * <code>sun.misc.Unsafe</code>, which the JIT compiles to plain loads and
+ * stores.  Generating the class avoids a compile-time dependency on
+ * <code>sun.misc.Unsafe</code>, which is not part of the public API, and keeps
+ * it off platforms that do not provide it (e.g. Android): there,
+ * {@link #create()} returns <code>null</code> and callers use the JNI
+ * accessors of <code>Native</code>.  The same applies when JNA is loaded as a
+ * named module, since this package is not exported to the generated class.
+ * <p>
+ * Unlike the JNI accessors, these methods are never protected against
+ * invalid memory accesses (see <code>Native.setProtected</code>).
+ *
+ * <p><strong>This class is intented to be used only be JNA itself.</strong></p>
+ */
+public abstract class MemoryAccess {
+
+    private static final Logger LOG = Logger.getLogger(MemoryAccess.class.getName());
+
+    private static final String UNSAFE = "sun/misc/Unsafe";
+    private static final String UNSAFE_FIELD = "unsafe";
+    private static final String UNSAFE_DESCRIPTOR = "L" + UNSAFE + ";";
+
+    /** Offset of the first element of a <code>byte[]</code>, as used by
+     * {@link #copyMemory}.
+     */
+    private long byteArrayOffset;
+
+    protected MemoryAccess() {
+    }
+
+    public abstract byte getByte(long address);
+    public abstract char getChar(long address);
+    public abstract short getShort(long address);
+    public abstract int getInt(long address);
+    public abstract long getLong(long address);
+    public abstract float getFloat(long address);
+    public abstract double getDouble(long address);
+    /** Read a native pointer (<code>void*</code>). */
+    public abstract long getAddress(long address);
+
+    public abstract void setByte(long address, byte value);
+    public abstract void setChar(long address, char value);
+    public abstract void setShort(long address, short value);
+    public abstract void setInt(long address, int value);
+    public abstract void setLong(long address, long value);
+    public abstract void setFloat(long address, float value);
+    public abstract void setDouble(long address, double value);
+    /** Write a native pointer (<code>void*</code>). */
+    public abstract void setAddress(long address, long value);
+
+    /** Copy memory between native memory (<code>null</code> base object and
+     * absolute address) and/or Java arrays (array and offset from the array
+     * object), as <code>Unsafe.copyMemory</code>.
+     */
+    public abstract void copyMemory(Object srcBase, long srcOffset, Object destBase, long destOffset, long bytes);
+
+    /** Copy native memory at the given address into the array. */
+    public final void read(long address, byte[] buf, int index, int length) {
+        checkRange(buf, index, length);
+        copyMemory(null, address, buf, byteArrayOffset + index, length);
+    }
+
+    /** Copy the array contents to native memory at the given address. */
+    public final void write(long address, byte[] buf, int index, int length) {
+        checkRange(buf, index, length);
+        copyMemory(buf, byteArrayOffset + index, null, address, length);
+    }
+
+    private static void checkRange(byte[] buf, int index, int length) {
+        if (index < 0 || length < 0 || index > buf.length - length) {
+            throw new ArrayIndexOutOfBoundsException("Array index " + index + " and length " + length
+                                                     + " out of bounds for length " + buf.length);
+        }
+    }
+
+    /**
+     * @return an implementation backed by <code>sun.misc.Unsafe</code>, or
+     * <code>null</code> if none is available on this platform
+     */
+    public static MemoryAccess create() {
+        try {
+            Class<?> unsafeClass = Class.forName(UNSAFE.replace('/', '.'));
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+            String name = MemoryAccess.class.getName() + "$$Unsafe";
+            GeneratedClassLoader loader = new GeneratedClassLoader(MemoryAccess.class.getClassLoader());
+            Class<?> cls = loader.define(name, generate(name.replace('.', '/')));
+            MemoryAccess access = (MemoryAccess) cls.getConstructor(Object.class).newInstance(unsafe);
+            access.byteArrayOffset = ((Number) unsafeClass.getMethod("arrayBaseOffset", Class.class)
+                                      .invoke(unsafe, byte[].class)).longValue();
+            return access;
+        } catch (Throwable t) {
+            // Not available (e.g. no sun.misc.Unsafe, or no support for
+            // defining JVM classes at runtime)
+            LOG.log(Level.FINE, "Direct memory access not available", t);
+            return null;
+        }
+    }
+
+    private static byte[] generate(String owner) {
+        ClassFileWriter cw = new ClassFileWriter(ACC_PUBLIC | ACC_FINAL | ACC_SUPER,
+                                                 owner, internalName(MemoryAccess.class));
+        cw.addField(ACC_PRIVATE | ACC_FINAL, UNSAFE_FIELD, UNSAFE_DESCRIPTOR);
+
+        Code init = cw.newMethod(ACC_PUBLIC, "<init>", methodDescriptor(void.class, Object.class));
+        init.load(Object.class, 0)
+            .invokespecial(internalName(MemoryAccess.class), "<init>", "()V")
+            .load(Object.class, 0).load(Object.class, 1).checkcast(UNSAFE)
+            .putfield(owner, UNSAFE_FIELD, UNSAFE_DESCRIPTOR)
+            .returnValue(void.class)
+            .end(2, 2);
+
+        accessors(cw, owner, byte.class, "Byte");
+        accessors(cw, owner, char.class, "Char");
+        accessors(cw, owner, short.class, "Short");
+        accessors(cw, owner, int.class, "Int");
+        accessors(cw, owner, long.class, "Long");
+        accessors(cw, owner, float.class, "Float");
+        accessors(cw, owner, double.class, "Double");
+        accessors(cw, owner, long.class, "Address");
+
+        String copy = methodDescriptor(void.class, Object.class, long.class, Object.class, long.class, long.class);
+        cw.newMethod(ACC_PUBLIC | ACC_FINAL, "copyMemory", copy)
+            .load(Object.class, 0).getfield(owner, UNSAFE_FIELD, UNSAFE_DESCRIPTOR)
+            .load(Object.class, 1).load(long.class, 2)
+            .load(Object.class, 4).load(long.class, 5)
+            .load(long.class, 7)
+            .invokevirtual(UNSAFE, "copyMemory", copy)
+            .returnValue(void.class)
+            .end(9, 9);
+        return cw.toByteArray();
+    }
+
+    /** Generate <code>get&lt;name&gt;(long)</code> and
+     * <code>set&lt;name&gt;(long, type)</code> forwarding to
+     * <code>Unsafe.get&lt;name&gt;</code> and
+     * <code>Unsafe.put&lt;name&gt;</code>.
+     */
+    private static void accessors(ClassFileWriter cw, String owner, Class<?> type, String name) {
+        String getter = methodDescriptor(type, long.class);
+        cw.newMethod(ACC_PUBLIC | ACC_FINAL, "get" + name, getter)
+            .load(Object.class, 0).getfield(owner, UNSAFE_FIELD, UNSAFE_DESCRIPTOR)
+            .load(long.class, 1)
+            .invokevirtual(UNSAFE, "get" + name, getter)
+            .returnValue(type)
+            .end(3, 3);
+
+        String setter = methodDescriptor(void.class, long.class, type);
+        cw.newMethod(ACC_PUBLIC | ACC_FINAL, "set" + name, setter)
+            .load(Object.class, 0).getfield(owner, UNSAFE_FIELD, UNSAFE_DESCRIPTOR)
+            .load(long.class, 1)
+            .load(type, 3)
+            .invokevirtual(UNSAFE, "put" + name, setter)
+            .returnValue(void.class)
+            .end(1 + 2 + slots(type), 3 + slots(type));
+    }
+}
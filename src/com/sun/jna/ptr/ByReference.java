@@ -26,6 +26,7 @@ package com.sun.jna.ptr;
 import java.lang.reflect.Method;
 
 import com.sun.jna.Memory;
+import com.sun.jna.MemoryArena;
 import com.sun.jna.Pointer;
 import com.sun.jna.PointerType;
 
@@ -52,9 +53,12 @@ public abstract class ByReference extends PointerType {
      *            <code>T</code> in the derived class
      *            <code>setValue(&lt;T&gt;)</code> and
      *            <code>&lt;T&gt; getValue()</code> methods.
+     *            The memory is allocated from the
+     *            {@link MemoryArena#current() current arena}, if any.
      */
     protected ByReference(int dataSize) {
-        setPointer(new Memory(dataSize));
+        MemoryArena arena = MemoryArena.current();
+        setPointer(arena != null ? arena.allocate(dataSize) : new Memory(dataSize));
     }
 
     @Override
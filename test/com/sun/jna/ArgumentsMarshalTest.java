@@ -23,6 +23,7 @@
  */
 package com.sun.jna;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -573,6 +574,75 @@ public class ArgumentsMarshalTest extends TestCase {
         }
     }
 
+    public interface ArrayDirectionLibrary extends Library {
+        int fillInt8Buffer(@Out byte[] buf, int len, byte value);
+        int fillInt8Buffer(@Out byte[] buf, ByteBuffer len, byte value);
+        int fillInt16Buffer(@In short[] buf, int len, short value);
+        int sumInt16Buffer(@In short[] buf, int len);
+        int fillInt32Buffer(@Pinned int[] buf, int len, int value);
+        int fillInt64Buffer(@In @Out long[] buf, int len, long value);
+    }
+    protected ArrayDirectionLibrary loadArrayDirectionLibrary() {
+        return Native.load("testlib", ArrayDirectionLibrary.class);
+    }
+
+    public void testArrayDirectionAnnotations() {
+        ArrayDirectionLibrary lib = loadArrayDirectionLibrary();
+        final int SIZE = 1024;
+
+        byte[] bytes = new byte[SIZE];
+        assertEquals("Wrong return value", SIZE, lib.fillInt8Buffer(bytes, SIZE, (byte)0x5A));
+        for (int i=0;i < SIZE;i++) {
+            assertEquals("@Out array not copied back at index " + i, (byte)0x5A, bytes[i]);
+        }
+
+        short[] shorts = new short[SIZE];
+        Arrays.fill(shorts, (short)3);
+        assertEquals("@In values should reach native code", 3 * SIZE, lib.sumInt16Buffer(shorts, SIZE));
+
+        int[] ints = new int[SIZE];
+        assertEquals("Wrong return value", SIZE, lib.fillInt32Buffer(ints, SIZE, 0x5A5A5A5A));
+        for (int i=0;i < SIZE;i++) {
+            assertEquals("Bad @Pinned value at index " + i, 0x5A5A5A5A, ints[i]);
+        }
+        assertEquals("Null @Pinned array should be passed as NULL", 0, lib.fillInt32Buffer(null, 0, 0));
+
+        long[] longs = new long[SIZE];
+        assertEquals("Wrong return value", SIZE, lib.fillInt64Buffer(longs, SIZE, Long.MIN_VALUE));
+        for (int i=0;i < SIZE;i++) {
+            assertEquals("Bad @In @Out value at index " + i, Long.MIN_VALUE, longs[i]);
+        }
+    }
+
+    public void testOutArrayUnchangedOnFailedCall() {
+        ArrayDirectionLibrary lib = loadArrayDirectionLibrary();
+        byte[] bytes = new byte[1024];
+        Arrays.fill(bytes, (byte)7);
+        try {
+            // Neither direct nor backed by an accessible array
+            lib.fillInt8Buffer(bytes, ByteBuffer.allocate(1).asReadOnlyBuffer(), (byte)0x5A);
+            fail("Buffer argument should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        for (int i=0;i < bytes.length;i++) {
+            assertEquals("@Out array should be unchanged if the call did not run, index " + i, 7, bytes[i]);
+        }
+    }
+
+    public interface InvalidArrayDirectionLibrary extends Library {
+        int returnInt32Argument(@Out int arg);
+    }
+    public void testArrayDirectionAnnotationOnNonArrayArgument() {
+        InvalidArrayDirectionLibrary lib = Native.load("testlib", InvalidArrayDirectionLibrary.class);
+        try {
+            lib.returnInt32Argument(0);
+            fail("@Out should be rejected on a non-array argument");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     public void testLongArrayArgument() {
         long[] buf = new long[1024];
         final long MAGIC = 0x1234567887654321L;
@@ -0,0 +1,229 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class AsyncCallbackQueueTest extends TestCase {
+
+    private static final long TIMEOUT = 5000;
+
+    public interface EventCallback extends Callback {
+        void callback(String name, int value);
+    }
+
+    public interface ValueCallback extends Callback {
+        int callback(int value);
+    }
+
+    /** Records events, blocking until released. */
+    public static class Listener implements EventCallback {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch release = new CountDownLatch(1);
+        @Override
+        public void callback(String name, int value) {
+            try {
+                release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            threads.add(Thread.currentThread());
+            events.add(name + value);
+        }
+    }
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /** Call the callback through its native trampoline. */
+    private static void fire(Callback cb, String name, int value) {
+        Function f = Function.getFunction(CallbackReference.getFunctionPointer(cb));
+        f.invoke(void.class, new Object[] { name, value });
+    }
+
+    private static void waitForEvents(Listener l, int count) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (l.events.size() < count) {
+            Thread.sleep(10);
+            if (System.currentTimeMillis() - start > TIMEOUT) {
+                fail("Timed out waiting for callbacks, got " + l.events);
+            }
+        }
+    }
+
+    public void testDispatchOnExecutor() throws Exception {
+        Listener l = new Listener();
+        AsyncCallbackQueue queue = new AsyncCallbackQueue(executor, 16);
+        Native.setAsyncCallbackQueue(l, queue);
+        fire(l, "a", 1);
+        fire(l, "b", 2);
+        fire(l, "c", 3);
+        assertTrue("Native callers should not wait for the callback", l.events.isEmpty());
+        assertTrue("Wrong peak depth", queue.getPeakQueueDepth() >= 2);
+        l.release.countDown();
+        waitForEvents(l, 3);
+        assertEquals("Events should be delivered in order", "[a1, b2, c3]", l.events.toString());
+        assertNotSame("Callback should run on the executor", Thread.currentThread(), l.threads.get(0));
+        assertEquals("Wrong dispatched count", 3, queue.getDispatchedCount());
+        assertEquals("Queue should be empty", 0, queue.getQueueDepth());
+        assertEquals("No events should be dropped", 0, queue.getDroppedCount());
+    }
+
+    public void testDropOldest() throws Exception {
+        Listener l = new Listener();
+        AsyncCallbackQueue queue = new AsyncCallbackQueue(executor, 1, AsyncCallbackQueue.Backpressure.DROP_OLDEST);
+        Native.setAsyncCallbackQueue(l, queue);
+        fire(l, "a", 1);
+        // Wait until the first event is taken by the blocked listener
+        long start = System.currentTimeMillis();
+        while (queue.getDispatchedCount() < 1) {
+            Thread.sleep(10);
+            assertTrue("Timed out waiting for dispatch", System.currentTimeMillis() - start < TIMEOUT);
+        }
+        fire(l, "b", 2);
+        fire(l, "c", 3);
+        assertEquals("Wrong dropped count", 1, queue.getDroppedCount());
+        assertEquals("Wrong queue depth", 1, queue.getQueueDepth());
+        l.release.countDown();
+        waitForEvents(l, 2);
+        assertEquals("Oldest queued event should be dropped", "[a1, c3]", l.events.toString());
+    }
+
+    /** Runs tasks only when asked to. */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+        @Override
+        public void execute(Runnable r) {
+            tasks.add(r);
+        }
+        void runAll() {
+            for (Runnable r : tasks) {
+                r.run();
+            }
+            tasks.clear();
+        }
+    }
+
+    public void testDropNewest() throws Exception {
+        Listener l = new Listener();
+        l.release.countDown();
+        ManualExecutor manual = new ManualExecutor();
+        AsyncCallbackQueue queue = new AsyncCallbackQueue(manual, 1, AsyncCallbackQueue.Backpressure.DROP_NEWEST);
+        Native.setAsyncCallbackQueue(l, queue);
+        fire(l, "a", 1);
+        fire(l, "b", 2);
+        assertEquals("Wrong dropped count", 1, queue.getDroppedCount());
+        manual.runAll();
+        assertEquals("Newest event should be dropped", "[a1]", l.events.toString());
+    }
+
+    public void testCallerRuns() throws Exception {
+        Listener l = new Listener();
+        l.release.countDown();
+        ManualExecutor manual = new ManualExecutor();
+        AsyncCallbackQueue queue = new AsyncCallbackQueue(manual, 1, AsyncCallbackQueue.Backpressure.CALLER_RUNS);
+        Native.setAsyncCallbackQueue(l, queue);
+        fire(l, "a", 1);
+        fire(l, "b", 2);
+        assertEquals("Overflow should run on the caller", "[b2]", l.events.toString());
+        assertEquals("Wrong caller runs count", 1, queue.getCallerRunsCount());
+        manual.runAll();
+        assertEquals("Queued event should run later", "[b2, a1]", l.events.toString());
+    }
+
+    public void testRejectedByExecutor() throws Exception {
+        Listener l = new Listener();
+        l.release.countDown();
+        executor.shutdown();
+        AsyncCallbackQueue queue = new AsyncCallbackQueue(executor, 1);
+        Native.setAsyncCallbackQueue(l, queue);
+        fire(l, "a", 1);
+        fire(l, "b", 2);
+        fire(l, "c", 3);
+        assertEquals("Events should be drained by the caller", "[a1, b2, c3]", l.events.toString());
+        assertEquals("Wrong rejected count", 3, queue.getRejectedCount());
+        assertEquals("Queue should be empty", 0, queue.getQueueDepth());
+    }
+
+    public void testBlockReentrantEvent() throws Exception {
+        ManualExecutor manual = new ManualExecutor();
+        final AsyncCallbackQueue queue = new AsyncCallbackQueue(manual, 1);
+        final List<String> events = new ArrayList<>();
+        EventCallback cb = new EventCallback() {
+            @Override
+            public void callback(String name, int value) {
+                events.add(name + value);
+                if (value == 1) {
+                    // Fills the queue, then would wait for this thread
+                    fire(this, "b", 2);
+                    fire(this, "c", 3);
+                }
+            }
+        };
+        Native.setAsyncCallbackQueue(cb, queue);
+        fire(cb, "a", 1);
+        manual.runAll();
+        assertEquals("Event raised on the draining thread should run there", "[a1, c3, b2]", events.toString());
+        assertEquals("Wrong caller runs count", 1, queue.getCallerRunsCount());
+    }
+
+    public void testRejectNonVoidCallback() {
+        ValueCallback cb = new ValueCallback() {
+            @Override
+            public int callback(int value) {
+                return value;
+            }
+        };
+        try {
+            Native.setAsyncCallbackQueue(cb, new AsyncCallbackQueue(executor, 1));
+            fail("Non-void callback should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(AsyncCallbackQueueTest.class);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class BufferPointerTest extends TestCase {
+
+    public static class Inner extends Structure {
+        public short kind;
+        public byte[] tag = new byte[6];
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("kind", "tag");
+        }
+    }
+
+    public static class Packet extends Structure {
+        public int length;
+        public Inner inner;
+        public long[] values = new long[2];
+        public double ratio;
+        public Packet() { }
+        public Packet(Pointer p) {
+            super(p);
+        }
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("length", "inner", "values", "ratio");
+        }
+    }
+
+    public static class WithPointer extends Structure {
+        public int value;
+        public Pointer next;
+        public WithPointer(Pointer p) {
+            super(p);
+        }
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("value", "next");
+        }
+    }
+
+    public void testReadMatchesNativeLayout() {
+        Packet reference = new Packet();
+        reference.length = 42;
+        reference.inner = new Inner();
+        reference.inner.kind = 7;
+        reference.inner.tag = "abcdef".getBytes();
+        reference.values = new long[] { 1L << 40, -1 };
+        reference.ratio = 0.75;
+        reference.write();
+        byte[] data = reference.getPointer().getByteArray(0, reference.size());
+
+        Packet p = new Packet(new BufferPointer(data));
+        p.read();
+        assertEquals("Wrong length", 42, p.length);
+        assertEquals("Wrong nested value", 7, p.inner.kind);
+        assertEquals("Wrong nested array", "abcdef", new String(p.inner.tag));
+        assertEquals("Wrong array element", 1L << 40, p.values[0]);
+        assertEquals("Wrong array element", -1, p.values[1]);
+        assertEquals("Wrong value", 0.75, p.ratio);
+    }
+
+    public void testWrite() {
+        byte[] data = new byte[new Packet().size()];
+        Packet p = Structure.newInstance(Packet.class, new BufferPointer(data));
+        p.length = 5;
+        p.inner.kind = 3;
+        p.ratio = 2.5;
+        p.write();
+
+        Packet check = Structure.newInstance(Packet.class, new BufferPointer(data));
+        check.read();
+        assertEquals("Wrong length", 5, check.length);
+        assertEquals("Wrong nested value", 3, check.inner.kind);
+        assertEquals("Wrong value", 2.5, check.ratio);
+        assertEquals("Wrong byte order", 5, ByteBuffer.wrap(data).order(ByteOrder.nativeOrder()).getInt(0));
+    }
+
+    public void testByteOrderAndOffset() {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putInt(0xCAFEBABE).putInt(0x01020304).putInt(0x05060708);
+        buffer.position(4);
+        BufferPointer p = new BufferPointer(buffer, ByteOrder.BIG_ENDIAN);
+        assertEquals("Wrong size", 8, p.size());
+        assertEquals("Wrong big-endian value", 0x01020304, p.getInt(0));
+        assertEquals("Wrong shared value", 0x05060708, p.share(4).getInt(0));
+        try {
+            p.getInt(6);
+            fail("Access beyond the buffer should fail");
+        }
+        catch(IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testBigEndianStructure() {
+        ByteBuffer packet = ByteBuffer.allocate(8);
+        packet.putShort((short) 0x0102).put("header".getBytes());
+        packet.flip();
+        Inner s = Structure.newInstance(Inner.class, new BufferPointer(packet, ByteOrder.BIG_ENDIAN));
+        s.read();
+        assertEquals("Wrong big-endian field", 0x0102, s.kind);
+        assertEquals("Wrong array field", "header", new String(s.tag));
+    }
+
+    public void testDirectBuffer() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(16).order(ByteOrder.nativeOrder());
+        direct.putInt(4, 99);
+        BufferPointer p = new BufferPointer(direct);
+        assertEquals("Wrong value", 99, p.getInt(4));
+        p.setLong(8, 12345L);
+        assertEquals("Write should go to the buffer", 12345L, direct.getLong(8));
+    }
+
+    public void testPointerFields() {
+        int size = Native.POINTER_SIZE * 2;
+        byte[] data = new byte[size];
+        WithPointer s = new WithPointer(new BufferPointer(data));
+        assertNull("NULL pointer should be read", s.next);
+        s.next = new Pointer(1);
+        try {
+            s.write();
+            fail("Non-null pointer should be rejected");
+        }
+        catch(UnsupportedOperationException e) {
+            // expected
+        }
+        data[Native.POINTER_SIZE] = 1;
+        try {
+            s.read();
+            fail("Non-null pointer value should be rejected");
+        }
+        catch(UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testCopyBetweenNativeAndBuffer() {
+        Memory m = new Memory(8);
+        m.setLong(0, 0x1122334455667788L);
+        byte[] data = new byte[8];
+        BufferPointer p = new BufferPointer(data);
+        m.copyTo(p, 8);
+        assertEquals("Wrong copied value", 0x1122334455667788L, p.getLong(0));
+        assertEquals("Copies should be equal", -1, m.mismatch(0, p, 0, 8));
+        p.setByte(3, (byte) 0);
+        assertEquals("Wrong mismatch", 3, p.mismatch(0, m, 0, 8));
+        assertEquals("Wrong mismatch", 3, m.mismatch(0, p, 0, 8));
+        p.setString(0, "str");
+        assertEquals("Wrong string", "str", p.getString(0));
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(BufferPointerTest.class);
+    }
+}
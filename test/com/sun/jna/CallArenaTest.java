@@ -0,0 +1,185 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/** Exercise the per-thread arena used for call-scoped argument memory. */
+public class CallArenaTest extends TestCase {
+
+    public interface TestLibrary extends Library {
+        String returnStringArgument(String arg);
+        WString returnWStringArgument(WString arg);
+        String returnStringArrayElement(String[] args, int which);
+
+        interface StringCallback extends Callback {
+            String callback(String arg, String arg2);
+        }
+        String callStringCallback(StringCallback c, String arg, String arg2);
+    }
+
+    private TestLibrary lib;
+
+    @Override
+    protected void setUp() {
+        lib = Native.load("testlib", TestLibrary.class);
+    }
+
+    @Override
+    protected void tearDown() {
+        lib = null;
+    }
+
+    public void testAllocateAndReset() {
+        CallArena arena = new CallArena(256);
+        long mark = arena.mark();
+        long a = arena.allocate(1);
+        long b = arena.allocate(1);
+        assertTrue("Allocation failed", a != 0 && b != 0);
+        assertEquals("Allocations should be 16-byte aligned", 0, a % 16);
+        assertEquals("Allocations should be 16-byte aligned", 16, b - a);
+        arena.reset(mark);
+        assertEquals("Reset should release the frame", a, arena.allocate(1));
+    }
+
+    public void testBlockAllocatedLazily() {
+        CallArena arena = new CallArena(4096);
+        long mark = arena.mark();
+        assertEquals("Block should not be allocated up front", 0, arena.capacity());
+        arena.reset(mark);
+        assertEquals("Empty frame should not allocate a block", 0, arena.capacity());
+        assertTrue("Allocation failed", arena.allocate(1) != 0);
+        assertEquals("Wrong initial block size", CallArena.INITIAL_SIZE, arena.capacity());
+    }
+
+    public void testBlockGrowsForFrame() {
+        CallArena arena = new CallArena(4096);
+        long mark = arena.mark();
+        assertTrue("Allocation failed", arena.allocate(200) != 0);
+        assertEquals("Block in use should not grow", 0, arena.allocate(300));
+        arena.reset(mark);
+        assertTrue("Allocation failed", arena.allocate(200) != 0);
+        assertTrue("Block should grow to fit the whole frame", arena.allocate(300) != 0);
+        assertTrue("Block should not exceed the limit", arena.capacity() <= 4096);
+        arena.reset(mark);
+        assertTrue("Oversize allocation should grow the block up to the limit", arena.allocate(4096) != 0);
+        assertEquals("Wrong block size", 4096, arena.capacity());
+    }
+
+    public void testNoArenaOnVirtualThread() throws Exception {
+        Method start;
+        try {
+            start = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return;
+        }
+        final CallArena[] arena = { null };
+        Thread t = (Thread) start.invoke(null, new Runnable() {
+            @Override
+            public void run() {
+                arena[0] = CallArena.current();
+                lib.returnStringArgument("magic");
+            }
+        });
+        t.join();
+        assertNull("Virtual threads should not get an arena", arena[0]);
+    }
+
+    public void testOversizeAllocationFails() {
+        CallArena arena = new CallArena(64);
+        assertEquals("Oversize allocation should fail", 0, arena.allocate(65));
+        assertNull("Oversize slice should fail", arena.slice(65));
+        assertNotNull("Allocation should fit", arena.slice(64));
+        assertNull("Arena should be full", arena.slice(1));
+    }
+
+    public void testResetInvalidatesSlices() {
+        CallArena arena = new CallArena(256);
+        long outer = arena.mark();
+        Memory m1 = arena.slice(8);
+        long inner = arena.mark();
+        Memory m2 = arena.slice(8);
+        arena.reset(inner);
+        assertTrue("Outer frame slice should remain valid", m1.valid());
+        assertFalse("Inner frame slice should be invalidated", m2.valid());
+        arena.reset(outer);
+        assertFalse("Outer frame slice should be invalidated", m1.valid());
+    }
+
+    public void testStringConversion() {
+        CallArena arena = new CallArena(256);
+        Pointer p = arena.string("magic", "UTF-8");
+        assertEquals("Wrong native string", "magic", p.getString(0, "UTF-8"));
+        Pointer w = arena.string("wide", NativeString.WIDE_STRING);
+        assertEquals("Wrong native wide string", "wide", w.getWideString(0));
+        char[] big = new char[512];
+        Arrays.fill(big, 'x');
+        assertNull("Oversize string should not fit", arena.string(new String(big), "UTF-8"));
+        Pointer fallback = CallArena.toNative(arena, new String(big), "UTF-8");
+        assertEquals("Oversize string should fall back to the heap", new String(big), fallback.getString(0, "UTF-8"));
+    }
+
+    public void testCallReleasesArena() {
+        CallArena arena = CallArena.current();
+        if (arena == null) {
+            return;
+        }
+        long mark = arena.mark();
+        assertEquals("Wrong string argument", "magic", lib.returnStringArgument("magic"));
+        assertEquals("Wrong wide string argument", new WString("magic"), lib.returnWStringArgument(new WString("magic")));
+        assertEquals("Wrong string array element", "two",
+                     lib.returnStringArrayElement(new String[] {"one", "two", null}, 1));
+        assertEquals("Arena not reset after call", mark, arena.mark());
+    }
+
+    public void testOversizeArguments() {
+        char[] chars = new char[CallArena.SIZE * 2];
+        Arrays.fill(chars, 'a');
+        String big = new String(chars);
+        assertEquals("Wrong oversize string argument", big, lib.returnStringArgument(big));
+        String[] strings = new String[CallArena.SIZE];
+        Arrays.fill(strings, "element");
+        strings[strings.length - 1] = "last";
+        assertEquals("Wrong oversize string array element", "last",
+                     lib.returnStringArrayElement(strings, strings.length - 1));
+    }
+
+    public void testNestedCallsFromCallback() {
+        TestLibrary.StringCallback cb = new TestLibrary.StringCallback() {
+            @Override
+            public String callback(String arg, String arg2) {
+                // Allocates from the arena while the outer call's arguments
+                // are still in use
+                return lib.returnStringArgument(arg + lib.returnStringArgument(arg2));
+            }
+        };
+        assertEquals("Wrong callback result", "outerinner", lib.callStringCallback(cb, "outer", "inner"));
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(CallArenaTest.class);
+    }
+}
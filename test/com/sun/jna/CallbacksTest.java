@@ -27,17 +27,25 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
 
 import com.sun.jna.Callback.UncaughtExceptionHandler;
 import com.sun.jna.CallbacksTest.TestLibrary.CbCallback;
+import com.sun.jna.internal.CallbackInvoker;
 import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.PointerByReference;
 import com.sun.jna.win32.W32APIOptions;
@@ -871,6 +879,68 @@ public class CallbacksTest extends TestCase implements Paths {
 
     // Most Callbacks are wrapped in DefaultCallbackProxy, which catches their
     // exceptions.
+    public interface MixedCallback extends Callback {
+        long callback(int i, String s, double d, boolean b);
+    }
+
+    interface HiddenCallback extends Callback {
+        void callback();
+    }
+
+    public void testGeneratedCallbackInvoker() throws Throwable {
+        final RuntimeException ERROR = new RuntimeException(getName());
+        MixedCallback cb = new MixedCallback() {
+            @Override
+            public long callback(int i, String s, double d, boolean b) {
+                if (s == null) {
+                    throw ERROR;
+                }
+                return b ? i + s.length() + (long) d : 0;
+            }
+        };
+        Method m = MixedCallback.class.getMethod("callback", int.class, String.class, double.class, boolean.class);
+        CallbackInvoker invoker = CallbackInvoker.create(m);
+        assertNotNull("Public callback interface should use a generated invoker", invoker);
+        assertSame("Invoker should be shared by all callbacks of a method", invoker, CallbackInvoker.create(m));
+        assertEquals("Wrong result", 48L, invoker.invoke(cb, new Object[] { 40, "abc", 5.5, Boolean.TRUE }));
+        try {
+            invoker.invoke(cb, new Object[] { 0, null, 0.0, Boolean.FALSE });
+            fail("Callback exception should be thrown");
+        }
+        catch(RuntimeException e) {
+            assertSame("Exception should not be wrapped", ERROR, e);
+        }
+
+        assertNull("Non-public callback interface should use reflection",
+                   CallbackInvoker.create(HiddenCallback.class.getMethod("callback")));
+    }
+
+    public void testGeneratedCallbackInvokerInNamedModule() throws Exception {
+        Map<String, String> sources = new HashMap<>();
+        sources.put("module-info.java", "module jna.test.callbacks { }");
+        sources.put("jna/test/callbacks/ModuleCallback.java",
+                    "package jna.test.callbacks;\n"
+                    + "public interface ModuleCallback extends com.sun.jna.Callback {\n"
+                    + "    int callback(int value);\n"
+                    + "}\n");
+        sources.put("jna/test/callbacks/Increment.java",
+                    "package jna.test.callbacks;\n"
+                    + "public class Increment implements ModuleCallback {\n"
+                    + "    public int callback(int value) { return value + 1; }\n"
+                    + "}\n");
+        ClassLoader loader = NamedModules.load("jna.test.callbacks", sources, "jna.test.callbacks");
+        if (loader == null) {
+            return;
+        }
+        Class<?> cls = loader.loadClass("jna.test.callbacks.ModuleCallback");
+        // The package is open to JNA, but not exported
+        assertNull("Callback in a package which is not exported should use reflection",
+                   CallbackInvoker.create(cls.getMethod("callback", int.class)));
+        Callback cb = (Callback) loader.loadClass("jna.test.callbacks.Increment").getConstructor().newInstance();
+        Function f = Function.getFunction(CallbackReference.getFunctionPointer(cb));
+        assertEquals("Wrong callback result", 42, f.invokeInt(new Object[] { 41 }));
+    }
+
     public void testCallbackExceptionHandler() {
         final RuntimeException ERROR = new RuntimeException(getName());
         final Throwable CAUGHT[] = { null };
@@ -1440,6 +1510,143 @@ public class CallbacksTest extends TestCase implements Paths {
         waitFor(threads.iterator().next());
     }
 
+    public void testConcurrentCallbackLookup() throws Exception {
+        final TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            @Override
+            public void callback() { }
+        };
+        final Pointer fp = new Pointer(getName().hashCode());
+        final int THREADS = 8;
+        final Pointer[] trampolines = new Pointer[THREADS];
+        final Callback[] proxies = new Callback[THREADS];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i=0;i < THREADS;i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    trampolines[index] = CallbackReference.getFunctionPointer(cb);
+                    proxies[index] = CallbackReference.getCallback(TestLibrary.VoidCallback.class, fp);
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join(THREAD_TIMEOUT);
+        }
+        for (int i=0;i < THREADS;i++) {
+            assertEquals("Callback should get a single trampoline", trampolines[0], trampolines[i]);
+            assertSame("Function pointer should get a single proxy", proxies[0], proxies[i]);
+        }
+        assertNotNull("Missing trampoline", trampolines[0]);
+        assertSame("Trampoline should map to the callback", cb,
+                   CallbackReference.getCallback(TestLibrary.VoidCallback.class, trampolines[0]));
+    }
+
+    public interface PooledCallback extends Callback {
+        int callback(String value, double scale, byte offset);
+    }
+
+    public void testCallbackClosureReuse() {
+        Native.prepareCallbackClosures(PooledCallback.class, 2);
+        assertTrue("Closures should be prepared", ClosurePool.size() >= 2);
+        PooledCallback cb = new PooledCallback() {
+            @Override
+            public int callback(String value, double scale, byte offset) {
+                return (int) (value.length() * scale) + offset;
+            }
+        };
+        Pointer fp = CallbackReference.getFunctionPointer(cb);
+        Object[] args = { "abc", 2.0, (byte) 1 };
+        assertEquals("Wrong callback result", 7, Function.getFunction(fp).invokeInt(args));
+        CallbackReference.callbackMap.get(cb).close();
+
+        PooledCallback cb2 = new PooledCallback() {
+            @Override
+            public int callback(String value, double scale, byte offset) {
+                return -value.length();
+            }
+        };
+        Pointer fp2 = CallbackReference.getFunctionPointer(cb2);
+        assertEquals("Closure should be reused", fp, fp2);
+        assertEquals("Reused closure should call the new callback", -3, Function.getFunction(fp2).invokeInt(args));
+        assertSame("Trampoline should map to the new callback", cb2,
+                   CallbackReference.getCallback(PooledCallback.class, fp2));
+    }
+
+    public void testClosurePoolDoesNotPinTypes() throws Exception {
+        String encoding = Native.getDefaultStringEncoding();
+        ClassLoader loader = new URLClassLoader(new URL[0]);
+        Class<?> type = Proxy.getProxyClass(loader, Callback.class);
+        ClosurePool.Signature signature =
+            new ClosurePool.Signature(new Class<?>[] { type }, void.class, Function.C_CONVENTION, 0, encoding);
+        long peer = Native.createNativeCallback(null, CallbackReference.PROXY_CALLBACK_METHOD,
+                                                new Class<?>[] { Pointer.class }, void.class,
+                                                Function.C_CONVENTION, 0, encoding);
+        assertTrue("Closure not created", peer != 0);
+        ClosurePool.release(signature, peer);
+
+        Reference<ClassLoader> ref = new WeakReference<>(loader);
+        loader = null;
+        type = null;
+        signature = null;
+        ClosurePool.Signature other =
+            new ClosurePool.Signature(new Class<?>[0], void.class, Function.C_CONVENTION, 0, encoding);
+        for (int i = 0; i < GCWaits.GC_WAITS && ref.get() != null; i++) {
+            GCWaits.gcRun();
+            ClosurePool.acquire(other, null);
+        }
+        assertNull("Closure pool should not keep its types reachable", ref.get());
+    }
+
+    // Global policy keeps the native thread attached between callbacks
+    // as a daemon and detaches it when the thread exits
+    public void testCallbackThreadKeptAttached() throws Exception {
+        final int[] called = {0};
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final boolean[] daemon = {false};
+        final int COUNT = 5;
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            @Override
+            public void callback() {
+                threads.add(Thread.currentThread());
+                daemon[0] = Thread.currentThread().isDaemon();
+                ++called[0];
+            }
+        };
+        long attached = Native.getCallbackThreadAttachCount();
+        long detached = Native.getCallbackThreadDetachCount();
+        Native.setCallbackThreadAttachment(true);
+        try {
+            callThreadedCallback(cb, null, COUNT, 10, called);
+        }
+        finally {
+            Native.setCallbackThreadAttachment(false);
+        }
+        assertEquals("Callbacks in the same native thread should reuse the attached Thread: "
+                     + threads, 1, threads.size());
+        assertTrue("Kept thread should not block JVM exit", daemon[0]);
+        assertTrue("Attach should be counted", Native.getCallbackThreadAttachCount() > attached);
+
+        waitFor(threads.iterator().next());
+        // The detach is counted after the Thread terminates
+        long start = System.currentTimeMillis();
+        while (Native.getCallbackThreadDetachCount() == detached) {
+            Thread.sleep(10);
+            if (System.currentTimeMillis() - start > THREAD_TIMEOUT) {
+                fail("Detach at thread exit should be counted");
+            }
+        }
+    }
+
     public void testDLLCallback() throws Exception {
         if (!Platform.HAS_DLL_CALLBACKS) {
             return;
@@ -0,0 +1,110 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.jna.internal.Cleaner;
+
+import junit.framework.TestCase;
+
+public class CleanerTest extends TestCase {
+
+    public void testCleanOnce() {
+        final AtomicInteger runs = new AtomicInteger();
+        Object obj = new Object();
+        Cleaner.Cleanable cleanable = Cleaner.getCleaner().register(obj, new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        cleanable.clean();
+        cleanable.clean();
+        assertEquals("Cleanup task should run exactly once", 1, runs.get());
+    }
+
+    public void testCleanFromManyThreads() throws Exception {
+        final Cleaner cleaner = Cleaner.getCleaner();
+        final AtomicInteger runs = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        Cleaner.Statistics before = cleaner.getStatistics();
+        Thread[] threads = new Thread[8];
+        for (int i=0;i < threads.length;i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Cleaner.Cleanable[] cleanables = new Cleaner.Cleanable[100];
+                    Object[] objects = new Object[cleanables.length];
+                    for (int j=0;j < 1000;j++) {
+                        int slot = j % cleanables.length;
+                        if (cleanables[slot] != null) {
+                            cleanables[slot].clean();
+                        }
+                        objects[slot] = new Object();
+                        cleanables[slot] = cleaner.register(objects[slot], task);
+                    }
+                    for (Cleaner.Cleanable c : cleanables) {
+                        c.clean();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals("Each cleanup task should run once", threads.length * 1000, runs.get());
+        Cleaner.Statistics after = cleaner.getStatistics();
+        assertTrue("Explicit cleanups not counted",
+                   after.getCleaned() - before.getCleaned() >= threads.length * 1000);
+    }
+
+    public void testReclaimUnreachable() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Cleaner cleaner = Cleaner.getCleaner();
+        long reclaimed = cleaner.getStatistics().getReclaimed();
+        cleaner.register(new Object(), new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        for (int i=0;i < GCWaits.GC_WAITS && runs.get() == 0;i++) {
+            GCWaits.gcRun();
+        }
+        assertEquals("Cleanup task should run once the object is unreachable", 1, runs.get());
+        Cleaner.Statistics stats = cleaner.getStatistics();
+        assertTrue("Reclaimed registration not counted", stats.getReclaimed() > reclaimed);
+        assertTrue("Cleanup time not recorded", stats.getMaxCleanupNanos() >= 0);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(CleanerTest.class);
+    }
+}
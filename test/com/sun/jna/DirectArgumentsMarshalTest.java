@@ -23,6 +23,8 @@
  */
 package com.sun.jna;
 
+import java.nio.ByteBuffer;
+
 /** Exercise a range of native methods.
  *
  * @author twall@users.sf.net
@@ -157,6 +159,28 @@ public class DirectArgumentsMarshalTest extends ArgumentsMarshalTest {
         return new DirectNativeMappedLibrary();
     }
 
+    public static class DirectArrayDirectionLibrary implements ArrayDirectionLibrary {
+        @Override
+        public native int fillInt8Buffer(@Out byte[] buf, int len, byte value);
+        @Override
+        public native int fillInt8Buffer(@Out byte[] buf, ByteBuffer len, byte value);
+        @Override
+        public native int fillInt16Buffer(@In short[] buf, int len, short value);
+        @Override
+        public native int sumInt16Buffer(@In short[] buf, int len);
+        @Override
+        public native int fillInt32Buffer(@Pinned int[] buf, int len, int value);
+        @Override
+        public native int fillInt64Buffer(@In @Out long[] buf, int len, long value);
+        static {
+            Native.register("testlib");
+        }
+    }
+    @Override
+    protected ArrayDirectionLibrary loadArrayDirectionLibrary() {
+        return new DirectArrayDirectionLibrary();
+    }
+
     // This test crashes on w32 IBM J9 unless -Xint is used
     // (jvmwi3260-20080415_18762)
     @Override
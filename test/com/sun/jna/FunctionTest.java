@@ -24,8 +24,11 @@
 package com.sun.jna;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import junit.framework.TestCase;
 import org.junit.Assert;
 
@@ -151,6 +154,138 @@ public class FunctionTest extends TestCase {
         assertEquals(input, result);
     }
 
+    public void testCachedCallInterfaceSignatures() {
+        // Use more distinct signatures than can be cached for a single
+        // function, and repeat them to exercise cache hits
+        for (int round=0;round < 3;round++) {
+            for (int count=1;count <= 12;count++) {
+                StringBuilder fmt = new StringBuilder();
+                Number[] args = new Number[count];
+                int expected = 0;
+                for (int i=0;i < count;i++) {
+                    switch(i % 3) {
+                    case 0: fmt.append('d'); args[i] = Integer.valueOf(i); break;
+                    case 1: fmt.append('l'); args[i] = Long.valueOf(i); break;
+                    default: fmt.append('g'); args[i] = Double.valueOf(i); break;
+                    }
+                    expected += i;
+                }
+                assertEquals("Wrong result for signature " + fmt, expected,
+                             libUTF8Interface.addVarArgs(fmt.toString(), args));
+            }
+        }
+    }
+
+    public interface VoidCallback extends Callback {
+        void callback();
+    }
+
+    public void testCloseLibraryDuringCall() throws Exception {
+        // A separate instance, so that testlib stays loaded through libUTF8
+        final NativeLibrary lib = NativeLibrary.getInstance("testlib",
+                Collections.singletonMap(Library.OPTION_CALLING_CONVENTION, Function.C_CONVENTION));
+        Function f = lib.getFunction("callVoidCallback");
+        final int[] called = { 0 };
+        VoidCallback cb = new VoidCallback() {
+            @Override
+            public void callback() {
+                ++called[0];
+                lib.close();
+            }
+        };
+        f.invokeVoid(new Object[] { cb });
+        Field field = Function.class.getDeclaredField("cifCache");
+        field.setAccessible(true);
+        assertTrue("Call interfaces in use should not be freed on close", field.getLong(f) != 0);
+        f.invokeVoid(new Object[] { cb });
+        assertEquals("Callback not called", 2, called[0]);
+    }
+
+    public void testConcurrentFirstCallsThroughInterface() throws Exception {
+        final int nthreads = 32;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[nthreads];
+        for (int i=0;i < nthreads;i++) {
+            final byte value = (byte) i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Memory m = new Memory(4);
+                        start.await();
+                        assertEquals("Wrong fill count", 4, libUTF8Interface.fillInt8Buffer(m, 4, value));
+                        assertEquals("Wrong value", value, m.getByte(3));
+                        assertEquals("Wrong sum", value + 1, libUTF8Interface.addVarArgs("dd", (int) value, 1));
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError("Concurrent first call failed", error.get());
+        }
+    }
+
+    public void testPrimitiveFastCalls() {
+        assertEquals("Wrong int result", 0x12345678, libUTF8.getFunction("returnInt32Magic").invokeInt());
+        assertEquals("Wrong int result", -42, libUTF8.getFunction("returnInt32Argument").invokeInt(-42));
+        assertEquals("Wrong long result", Long.MIN_VALUE, libUTF8.getFunction("returnInt64Argument").invokeLong(Long.MIN_VALUE));
+        assertEquals("Wrong double result", Math.E, libUTF8.getFunction("returnDoubleArgument").invokeDouble(Math.E), 0d);
+        assertEquals("Wrong float result", -1.5f, libUTF8.getFunction("returnFloatArgument").invokeFloat(-1.5f), 0f);
+        assertEquals("Wrong float result", 0f, libUTF8.getFunction("returnFloatZero").invokeFloat(), 0f);
+
+        Memory m = new Memory(8);
+        Function f = libUTF8.getFunction("returnPointerArgument");
+        assertEquals("Wrong pointer result", m, f.invokePointer(Pointer.nativeValue(m)));
+        assertNull("Expected null for NULL pointer result", f.invokePointer(0L));
+
+        NativeLibrary math = NativeLibrary.getInstance(Platform.MATH_LIBRARY_NAME);
+        assertEquals("Wrong double result", 1024d, math.getFunction("pow").invokeDouble(2d, 10d), 0d);
+        assertEquals("Wrong double result", 7d, math.getFunction("fma").invokeDouble(2d, 3d, 1d), 0d);
+        assertEquals("Wrong float result", 7f, math.getFunction("fmaf").invokeFloat(2f, 3f, 1f), 0f);
+
+        libUTF8.getFunction("setLastError").invokeVoid(42);
+        assertEquals("Void call not made", 42, Native.getLastError());
+    }
+
+    public void testPrimitiveFastCallLastError() {
+        Function f = NativeLibrary.getInstance("testlib").getFunction("setLastError", Function.THROW_LAST_ERROR);
+        try {
+            f.invokeInt(-1);
+            fail("Expected LastErrorException");
+        } catch (LastErrorException e) {
+            assertEquals("Wrong error code", -1, e.getErrorCode());
+        }
+    }
+
+    public static class ReadCountingMemory extends Memory implements Function.PostCallRead {
+        int reads;
+        byte value;
+        public ReadCountingMemory(long size) {
+            super(size);
+        }
+        @Override
+        public void read() {
+            reads++;
+            value = getByte(0);
+        }
+    }
+
+    public void testPostCallReadArgumentThroughInterface() {
+        ReadCountingMemory m = new ReadCountingMemory(4);
+        m.clear();
+        assertEquals("Wrong fill count", 4, libUTF8Interface.fillInt8Buffer(m, 4, (byte) 7));
+        assertEquals("PostCallRead argument not read after call", 1, m.reads);
+        assertEquals("Wrong value read after call", 7, m.value);
+    }
+
     private byte[] toByteArray(String input, String encoding, int targetLength) throws UnsupportedEncodingException {
         byte[] result = new byte[targetLength];
         byte[] encoded = input.getBytes(encoding);
@@ -188,6 +323,8 @@ public class FunctionTest extends TestCase {
         public String returnStringArgument(Pointer input);
         public SizeT copyString(String input, byte[] output);
         public SizeT copyStringArray(String[] input, byte[] output);
+        public int addVarArgs(String fmt, Number... args);
+        public int fillInt8Buffer(Pointer buf, int len, byte value);
     }
 
     private static class SizeT extends IntegerType {
@@ -35,7 +35,6 @@ public class GCWaits {
         }
         System.gc();
         System.runFinalization();
-        Memory.purge();
     }
 
     /** Amount of time to wait for GC, in ms */
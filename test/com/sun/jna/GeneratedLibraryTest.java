@@ -0,0 +1,147 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/** Exercise library interfaces implemented by generated classes. */
+public class GeneratedLibraryTest extends TestCase {
+
+    public interface TestLibrary extends Library {
+        int returnInt32Argument(int arg);
+        long returnInt64Argument(long arg);
+        double returnDoubleArgument(double arg);
+        boolean returnBooleanArgument(boolean arg);
+        String returnStringArgument(String arg);
+        Pointer returnPointerArgument(Pointer arg);
+        // Not supported by direct mapping
+        String returnStringArrayElement(String[] args, int which);
+        int addVarArgs(String fmt, Number... args);
+
+        default int returnInt32ArgumentPlusOne(int arg) {
+            return returnInt32Argument(arg) + 1;
+        }
+    }
+
+    interface PrivateTestLibrary extends Library {
+        int returnInt32Argument(int arg);
+    }
+
+    private static Map<String, ?> generateOption() {
+        return Collections.singletonMap(Library.OPTION_GENERATE_IMPLEMENTATION, Boolean.TRUE);
+    }
+
+    public void testGeneratedImplementation() {
+        TestLibrary lib = Native.load("testlib", TestLibrary.class, generateOption());
+        assertFalse("Expected a generated class", Proxy.isProxyClass(lib.getClass()));
+        assertEquals(42, lib.returnInt32Argument(42));
+        assertEquals(Long.MAX_VALUE, lib.returnInt64Argument(Long.MAX_VALUE));
+        assertEquals(Math.PI, lib.returnDoubleArgument(Math.PI), 0d);
+        assertTrue(lib.returnBooleanArgument(true));
+        assertFalse(lib.returnBooleanArgument(false));
+        assertEquals("magic", lib.returnStringArgument("magic"));
+        assertNull(lib.returnPointerArgument(null));
+        assertEquals("two", lib.returnStringArrayElement(new String[] {"one", "two"}, 1));
+        assertEquals(6, lib.addVarArgs("dd", 2, 4));
+        assertEquals(43, lib.returnInt32ArgumentPlusOne(42));
+        assertNotNull(Native.getNativeLibrary(lib));
+    }
+
+    public void testGeneratedClassReused() {
+        TestLibrary lib = Native.load("testlib", TestLibrary.class, generateOption());
+        TestLibrary lib2 = Native.load("testlib", TestLibrary.class, generateOption());
+        assertNotSame("Each load should create an instance", lib, lib2);
+        assertSame("Implementation should be generated once per library", lib.getClass(), lib2.getClass());
+        assertEquals(42, lib2.returnInt32Argument(42));
+
+        NativeLibrary nativeLibrary = Native.getNativeLibrary(lib);
+        nativeLibrary.close();
+        TestLibrary reloaded = Native.load("testlib", TestLibrary.class, generateOption());
+        assertNotSame("Closed library should not reuse its implementation", lib.getClass(), reloaded.getClass());
+        assertEquals(42, reloaded.returnInt32Argument(42));
+    }
+
+    public void testUnreachableLibraryCollected() throws Exception {
+        Map<String, Object> options = new HashMap<>(generateOption());
+        // Distinct options, so that the library instance is not shared
+        options.put(Library.OPTION_CALLING_CONVENTION, Function.C_CONVENTION);
+        TestLibrary lib = Native.load("testlib", TestLibrary.class, options);
+        assertEquals(42, lib.returnInt32Argument(42));
+        WeakReference<NativeLibrary> ref = new WeakReference<>(Native.getNativeLibrary(lib));
+        lib = null;
+        for (int i=0;i < GCWaits.GC_WAITS && ref.get() != null;i++) {
+            GCWaits.gcRun();
+        }
+        assertNull("Library should not be kept reachable by its generated implementation", ref.get());
+    }
+
+    public void testObjectMethodsUseHandler() {
+        TestLibrary lib = Native.load("testlib", TestLibrary.class, generateOption());
+        TestLibrary lib2 = Native.load("testlib", TestLibrary.class, generateOption());
+        assertTrue("Wrong toString: " + lib, lib.toString().startsWith("Proxy interface to "));
+        assertTrue("Library should equal itself", lib.equals(lib));
+        assertFalse("Libraries with different handlers should differ", lib.equals(lib2));
+        assertFalse("Library should not equal null", lib.equals(null));
+        assertEquals("Wrong hash code", lib.hashCode(), lib.hashCode());
+    }
+
+    public void testNonPublicInterfaceUsesProxy() {
+        PrivateTestLibrary lib = Native.load("testlib", PrivateTestLibrary.class, generateOption());
+        assertTrue("Expected a proxy", Proxy.isProxyClass(lib.getClass()));
+        assertEquals(42, lib.returnInt32Argument(42));
+    }
+
+    public void testInvocationMapperIsHonored() {
+        Map<String, Object> options = new HashMap<>(generateOption());
+        options.put(Library.OPTION_INVOCATION_MAPPER, new InvocationMapper() {
+            @Override
+            public InvocationHandler getInvocationHandler(NativeLibrary lib, Method m) {
+                if (m.getName().equals("returnInt32Argument")) {
+                    return new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            return Integer.valueOf(((Integer) args[0]).intValue() * 2);
+                        }
+                    };
+                }
+                return null;
+            }
+        });
+        TestLibrary lib = Native.load("testlib", TestLibrary.class, options);
+        assertFalse("Expected a generated class", Proxy.isProxyClass(lib.getClass()));
+        assertEquals(84, lib.returnInt32Argument(42));
+        assertEquals(Long.MIN_VALUE, lib.returnInt64Argument(Long.MIN_VALUE));
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(GeneratedLibraryTest.class);
+    }
+}
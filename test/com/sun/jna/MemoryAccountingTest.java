@@ -0,0 +1,95 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+public class MemoryAccountingTest extends TestCase {
+
+    @Override
+    protected void tearDown() {
+        MemoryAccounting.setSamplingInterval(0);
+        MemoryAccounting.setSamplingThreshold(60000);
+        MemoryAccounting.clearReclaimedAllocations();
+    }
+
+    public void testCountAllocations() {
+        long allocations = MemoryAccounting.getAllocations();
+        long allocated = MemoryAccounting.getAllocatedBytes();
+        long freed = MemoryAccounting.getFreedBytes();
+        Memory m = new Memory(1024);
+        assertTrue("Allocation not counted", MemoryAccounting.getAllocations() > allocations);
+        assertTrue("Allocated bytes not counted", MemoryAccounting.getAllocatedBytes() - allocated >= 1024);
+        assertTrue("Peak should include live memory", MemoryAccounting.getPeakBytes() >= 1024);
+        m.close();
+        assertTrue("Freed bytes not counted", MemoryAccounting.getFreedBytes() - freed >= 1024);
+    }
+
+    public void testLongLivedAllocation() {
+        MemoryAccounting.setSamplingInterval(1);
+        MemoryAccounting.setSamplingThreshold(0);
+        Memory m = new Memory(64);
+        boolean found = false;
+        for (MemoryAccounting.Allocation a : MemoryAccounting.getLongLivedAllocations()) {
+            if (a.getSize() == 64 && a.toString().contains("testLongLivedAllocation")) {
+                found = true;
+            }
+        }
+        assertTrue("Sampled allocation not reported", found);
+        m.close();
+        for (MemoryAccounting.Allocation a : MemoryAccounting.getLongLivedAllocations()) {
+            assertFalse("Closed allocation still reported", a.toString().contains("testLongLivedAllocation"));
+        }
+        assertTrue("Closed allocation reported as reclaimed", MemoryAccounting.getReclaimedAllocations().isEmpty());
+    }
+
+    public void testReclaimedAllocation() throws Exception {
+        MemoryAccounting.setSamplingInterval(1);
+        new Memory(48);
+        List<MemoryAccounting.Allocation> reclaimed = MemoryAccounting.getReclaimedAllocations();
+        for (int i=0;i < GCWaits.GC_WAITS && reclaimed.isEmpty();i++) {
+            GCWaits.gcRun();
+            reclaimed = MemoryAccounting.getReclaimedAllocations();
+        }
+        assertFalse("Allocation freed by the cleaner not reported", reclaimed.isEmpty());
+        assertTrue("Allocation should be marked reclaimed", reclaimed.get(0).isReclaimed());
+    }
+
+    public void testMBean() throws Exception {
+        MemoryAccounting.registerMBean();
+        MemoryAccounting.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Object live = server.getAttribute(new ObjectName(MemoryAccounting.OBJECT_NAME), "LiveBytes");
+        assertTrue("Wrong attribute type", live instanceof Long);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(MemoryAccountingTest.class);
+    }
+}
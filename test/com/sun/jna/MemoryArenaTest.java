@@ -0,0 +1,169 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.jna.ptr.IntByReference;
+
+import junit.framework.TestCase;
+
+public class MemoryArenaTest extends TestCase {
+
+    public static class TestStructure extends Structure {
+        public int value;
+        public String name;
+        public double ratio;
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("value", "name", "ratio");
+        }
+    }
+
+    public void testAllocate() {
+        try (MemoryArena arena = new MemoryArena()) {
+            Memory a = arena.allocate(10);
+            Memory b = arena.allocate(10);
+            assertEquals("Wrong size", 10, a.size());
+            assertTrue("Allocations should not overlap",
+                       Math.abs(Pointer.nativeValue(a) - Pointer.nativeValue(b)) >= 10);
+            assertEquals("Default alignment should be 16", 0, Pointer.nativeValue(b) % 16);
+            Memory c = arena.allocate(8, 64);
+            assertEquals("Requested alignment not honored", 0, Pointer.nativeValue(c) % 64);
+            a.setLong(2, 42);
+            assertEquals("Wrong value", 42, a.getLong(2));
+        }
+    }
+
+    public void testBoundsChecked() {
+        try (MemoryArena arena = new MemoryArena()) {
+            Memory m = arena.allocate(8);
+            try {
+                m.getInt(6);
+                fail("Access beyond the allocation should fail");
+            }
+            catch(IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testLargeAllocation() {
+        try (MemoryArena arena = new MemoryArena(256)) {
+            Memory small = arena.allocate(16);
+            Memory large = arena.allocate(4096);
+            Memory next = arena.allocate(16);
+            large.setByte(4095, (byte) 1);
+            assertEquals("Wrong value", 1, large.getByte(4095));
+            assertEquals("Large allocation should not use the current chunk",
+                         Pointer.nativeValue(small) + 16, Pointer.nativeValue(next));
+        }
+    }
+
+    public void testCloseInvalidatesMemory() {
+        MemoryArena arena = new MemoryArena();
+        Memory m = arena.allocate(16);
+        arena.close();
+        assertFalse("Arena should be closed", arena.isOpen());
+        assertFalse("Memory should be invalid after close", m.valid());
+        arena.close();
+        try {
+            arena.allocate(16);
+            fail("Allocation from a closed arena should fail");
+        }
+        catch(IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testNewStructure() {
+        TestStructure s;
+        try (MemoryArena arena = new MemoryArena()) {
+            s = arena.newStructure(TestStructure.class);
+            Pointer p = s.getPointer();
+            assertEquals("Structure memory should be cleared", 0, p.getInt(0));
+            s.value = 1;
+            s.name = "arena";
+            s.ratio = 0.5;
+            s.write();
+            Pointer name = p.getPointer(Native.POINTER_SIZE);
+            assertEquals("Wrong string value", "arena", name.getString(0));
+            s.read();
+            assertEquals("Wrong value", 1, s.value);
+            assertEquals("Wrong string", "arena", s.name);
+            assertEquals("Wrong value", 0.5, s.ratio);
+        }
+        assertFalse("Structure memory should be invalid after close",
+                    ((Memory) s.getPointer()).valid());
+    }
+
+    public void testByReference() {
+        IntByReference ref;
+        try (MemoryArena arena = new MemoryArena()) {
+            ref = arena.create(() -> new IntByReference(42));
+            assertEquals("Wrong value", 42, ref.getValue());
+            assertNull("Current arena should be reset", MemoryArena.current());
+        }
+        assertFalse("Memory should be invalid after close", ((Memory) ref.getPointer()).valid());
+    }
+
+    public void testStrings() {
+        try (MemoryArena arena = new MemoryArena()) {
+            Pointer p = arena.allocateString("narrow", "UTF-8");
+            assertEquals("Wrong string", "narrow", p.getString(0, "UTF-8"));
+            Pointer w = arena.allocateWideString("wide");
+            assertEquals("Wrong wide string", "wide", w.getWideString(0));
+        }
+    }
+
+    public void testMemoryKeepsArenaReachable() throws Exception {
+        MemoryArena arena = new MemoryArena();
+        Memory m = arena.allocate(4000);
+        m.setInt(3996, 42);
+        Pointer p = arena.allocateString("kept", "UTF-8");
+        WeakReference<MemoryArena> ref = new WeakReference<>(arena);
+        arena = null;
+        for (int i=0;i < 10;i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNotNull("Arena should be reachable through its memory", ref.get());
+        assertTrue("Memory should still be valid", m.valid());
+        assertEquals("Wrong value after GC", 42, m.getInt(3996));
+        assertEquals("Wrong string after GC", "kept", p.getString(0, "UTF-8"));
+
+        m = null;
+        p = null;
+        for (int i=0;i < 100 && ref.get() != null;i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("Arena should be collected with its memory", ref.get());
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(MemoryArenaTest.class);
+    }
+}
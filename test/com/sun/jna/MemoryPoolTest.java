@@ -0,0 +1,159 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MemoryPoolTest extends TestCase {
+
+    public void testReuseClosedBlock() {
+        MemoryPool pool = new MemoryPool();
+        Memory m = pool.allocate(24);
+        assertEquals("Wrong size", 24, m.size());
+        long peer = Pointer.nativeValue(m);
+        m.setLong(16, 42);
+        m.close();
+        assertFalse("Closed block should be invalid", m.valid());
+        Memory m2 = pool.allocate(32);
+        assertEquals("Block of the same size class should be reused", peer, Pointer.nativeValue(m2));
+        MemoryPool.Statistics stats = pool.getStatistics();
+        assertEquals("Wrong allocation count", 2, stats.getAllocations());
+        assertEquals("Wrong hit count", 1, stats.getHits());
+        assertEquals("Wrong hit rate", 0.5, stats.getHitRate());
+        assertEquals("Wrong bytes in use", 32, stats.getBytesInUse());
+        assertEquals("Wrong bytes cached", 0, stats.getBytesCached());
+        m2.close();
+        pool.trim();
+    }
+
+    public void testBoundsChecked() {
+        MemoryPool pool = new MemoryPool();
+        Memory m = pool.allocate(20);
+        try {
+            m.getInt(20);
+            fail("Access beyond the requested size should fail");
+        }
+        catch(IndexOutOfBoundsException e) {
+            // expected
+        }
+        m.close();
+        pool.trim();
+    }
+
+    public void testDoubleClose() {
+        MemoryPool pool = new MemoryPool();
+        Memory m = pool.allocate(8);
+        m.close();
+        m.close();
+        assertEquals("Block should only be released once", 1, pool.getStatistics().getReleases());
+        Memory a = pool.allocate(8);
+        Memory b = pool.allocate(8);
+        assertTrue("Blocks must not be handed out twice", Pointer.nativeValue(a) != Pointer.nativeValue(b));
+        a.close();
+        b.close();
+        pool.trim();
+    }
+
+    public void testLargeAllocationNotPooled() {
+        MemoryPool pool = new MemoryPool();
+        Memory m = pool.allocate(MemoryPool.MAX_BLOCK_SIZE + 1);
+        assertEquals("Wrong size", MemoryPool.MAX_BLOCK_SIZE + 1, m.size());
+        assertEquals("Large allocations should not be pooled", 0, pool.getStatistics().getAllocations());
+        m.close();
+    }
+
+    public void testDepotExchange() {
+        MemoryPool pool = new MemoryPool(4, 2);
+        List<Memory> blocks = new ArrayList<>();
+        for (int i=0;i < 16;i++) {
+            blocks.add(pool.allocate(64));
+        }
+        for (Memory m : blocks) {
+            m.close();
+        }
+        MemoryPool.Statistics stats = pool.getStatistics();
+        assertEquals("Wrong bytes in use", 0, stats.getBytesInUse());
+        // Thread magazine plus two full magazines in the depot
+        assertEquals("Blocks beyond the depot capacity should be freed", 12 * 64, stats.getBytesCached());
+        blocks.clear();
+        for (int i=0;i < 12;i++) {
+            blocks.add(pool.allocate(64));
+        }
+        assertEquals("Cached blocks should be reused", 12, pool.getStatistics().getHits());
+        for (Memory m : blocks) {
+            m.close();
+        }
+        pool.trim();
+        assertEquals("Trim should free cached blocks", 0, pool.getStatistics().getBytesCached());
+    }
+
+    public void testCloseFromOtherThread() throws Exception {
+        final MemoryPool pool = new MemoryPool();
+        final Memory m = pool.allocate(128);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                m.close();
+            }
+        };
+        t.start();
+        t.join();
+        assertEquals("Block closed by another thread should be released", 1, pool.getStatistics().getReleases());
+        assertEquals("Wrong bytes in use", 0, pool.getStatistics().getBytesInUse());
+    }
+
+    public void testReclaimUnreachableBlock() throws Exception {
+        MemoryPool pool = new MemoryPool();
+        Memory m = pool.allocate(256);
+        m.setInt(0, 1);
+        m = null;
+        for (int i=0;i < GCWaits.GC_WAITS && pool.getStatistics().getReclaimed() == 0;i++) {
+            GCWaits.gcRun();
+        }
+        MemoryPool.Statistics stats = pool.getStatistics();
+        assertEquals("Unreachable block should be reclaimed", 1, stats.getReclaimed());
+        assertEquals("Wrong bytes in use", 0, stats.getBytesInUse());
+        assertEquals("Reclaimed block should be cached", 256, stats.getBytesCached());
+        pool.trim();
+    }
+
+    public void testPoolCollectedWhileThreadAlive() throws Exception {
+        MemoryPool pool = new MemoryPool();
+        // Leave a block cached by this thread, which outlives the pool
+        pool.allocate(64).close();
+        WeakReference<MemoryPool> ref = new WeakReference<>(pool);
+        pool = null;
+        for (int i=0;i < GCWaits.GC_WAITS && ref.get() != null;i++) {
+            GCWaits.gcRun();
+        }
+        assertNull("Pool should not be kept reachable by a thread cache", ref.get());
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(MemoryPoolTest.class);
+    }
+}
@@ -30,6 +30,9 @@ import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import junit.framework.TestCase;
 import org.junit.Assert;
 
@@ -53,7 +56,6 @@ public class MemoryTest extends TestCase {
         shared = null;
         long start = System.currentTimeMillis();
         System.gc();
-        Memory.purge();
         for (int i=0;i < GCWaits.GC_WAITS && ref.get() != null;i++) {
             GCWaits.gcRun();
         }
@@ -103,6 +105,29 @@ public class MemoryTest extends TestCase {
         }
     }
 
+    public void testAllocateAligned() {
+        for (int align=1;align <= 4096;align *= 2) {
+            Memory m = Memory.allocateAligned(100, align);
+            assertEquals("Wrong size", 100, m.size());
+            assertEquals("Memory not aligned (" + align + ")", 0, m.peer % align);
+            assertTrue("Alignment not recorded", m.alignment() >= align);
+            assertSame("Alignment request on aligned memory should no-op", m, m.align(align));
+            Memory shared = (Memory) m.share(64);
+            assertEquals("Wrong alignment of shared memory", Math.min(m.alignment(), 64), shared.alignment());
+            m.setInt(96, 42);
+            assertEquals("Wrong value", 42, m.getInt(96));
+            m.close();
+        }
+        Memory page = Memory.allocateAligned(4096, 4096);
+        assertEquals("Memory not page aligned", 0, page.peer % 4096);
+        page.close();
+        try {
+            Memory.allocateAligned(16, 3);
+            fail("Alignment must be a power of two");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
     public void testNegativeAlignment() {
         final int SIZE = 128;
         Memory base = new Memory(SIZE);
@@ -143,7 +168,6 @@ public class MemoryTest extends TestCase {
 
         m = null;
         System.gc();
-        Memory.purge();
         for (int i=0;i < GCWaits.GC_WAITS && ref.get() != null;i++) {
             GCWaits.gcRun();
         }
@@ -154,7 +178,6 @@ public class MemoryTest extends TestCase {
 
         b = null;
         System.gc();
-        Memory.purge();
         for (int i=0;i < GCWaits.GC_WAITS && (bref.get() != null || ref.get() != null);i++) {
             GCWaits.gcRun();
         }
@@ -162,6 +185,54 @@ public class MemoryTest extends TestCase {
         assertNull("Memory not GC'd after buffer GC'd\n", ref.get());
     }
 
+    public void testTypedBuffers() {
+        if (!Platform.HAS_BUFFERS) return;
+
+        Memory m = new Memory(64);
+        m.clear();
+        IntBuffer ib = m.getIntBuffer(4, 3);
+        assertEquals("Wrong capacity", 3, ib.capacity());
+        assertTrue("Buffer should be direct", ib.isDirect());
+        ib.put(1, 42);
+        assertEquals("Buffer should write through", 42, m.getInt(8));
+        m.setLong(16, 1L << 40);
+        LongBuffer lb = m.getLongBuffer(16, 2);
+        assertEquals("Buffer should read through", 1L << 40, lb.get(0));
+        m.setDouble(32, 0.25);
+        DoubleBuffer db = m.getDoubleBuffer(32, 4);
+        assertEquals("Wrong value", 0.25, db.get(0));
+        m.getFloatBuffer(60, 1).put(0, 1.5f);
+        assertEquals("Wrong value", 1.5f, m.getFloat(60));
+        try {
+            m.getIntBuffer(60, 2);
+            fail("View beyond the allocation should fail");
+        }
+        catch(IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testAvoidGCWithExtantTypedBuffer() throws Exception {
+        if (!Platform.HAS_BUFFERS) return;
+
+        Memory m = new Memory(1024);
+        IntBuffer b = m.getIntBuffer(0, 256);
+        Reference<Memory> ref = new WeakReference<>(m);
+
+        m = null;
+        for (int i=0;i < 10 && ref.get() != null;i++) {
+            GCWaits.gcRun();
+        }
+        assertNotNull("Memory GC'd while typed NIO Buffer still exists", ref.get());
+        b.put(0, 1);
+
+        b = null;
+        for (int i=0;i < GCWaits.GC_WAITS && ref.get() != null;i++) {
+            GCWaits.gcRun();
+        }
+        assertNull("Memory not GC'd after buffer GC'd", ref.get());
+    }
+
     public void testDump() {
         // test with 15 bytes so last line has less than 4 bytes
         int n = 15;
@@ -218,6 +289,85 @@ public class MemoryTest extends TestCase {
         Assert.assertThat(pointers[1], not(instanceOf(Memory.class)));
     }
 
+    public void testCopyTo() {
+        Memory src = new Memory(64);
+        Memory dst = new Memory(64);
+        for (int i=0;i < 64;i++) {
+            src.setByte(i, (byte) i);
+        }
+        src.copyTo(8, dst, 16, 32);
+        assertEquals("Wrong byte copied", 8, dst.getByte(16));
+        assertEquals("Wrong byte copied", 39, dst.getByte(47));
+        // Overlapping regions behave like memmove
+        src.copyTo(0, src, 1, 63);
+        for (int i=1;i < 64;i++) {
+            assertEquals("Overlapping copy corrupted data at " + i, i - 1, src.getByte(i));
+        }
+        try {
+            src.copyTo(0, dst, 40, 32);
+            fail("Copy beyond the destination should fail");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            src.copyTo(40, dst, 0, 32);
+            fail("Copy beyond the source should fail");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testMismatchAndCompare() {
+        Memory a = new Memory(1024);
+        Memory b = new Memory(1024);
+        a.clear();
+        b.clear();
+        assertEquals("Equal memory should not mismatch", -1, a.mismatch(0, b, 0, 1024));
+        assertEquals("Equal memory should compare equal", 0, a.compare(0, b, 0, 1024));
+        b.setByte(700, (byte) 0x80);
+        assertEquals("Wrong mismatch index", 700, a.mismatch(0, b, 0, 1024));
+        assertEquals("Wrong mismatch index with offsets", 699, a.mismatch(1, b, 1, 1023));
+        assertEquals("Difference outside the range should not count", -1, a.mismatch(0, b, 0, 700));
+        assertTrue("Bytes should compare unsigned", a.compare(0, b, 0, 1024) < 0);
+        assertTrue("Bytes should compare unsigned", b.compare(0, a, 0, 1024) > 0);
+        try {
+            a.mismatch(0, b, 512, 1024);
+            fail("Comparison beyond the other memory should fail");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testSetMemoryBounds() {
+        Memory m = new Memory(16);
+        m.setMemory(4, 8, (byte) 0x7F);
+        assertEquals("Wrong fill value", 0x7F7F7F7F, m.getInt(4));
+        try {
+            m.setMemory(8, 16, (byte) 0);
+            fail("Fill beyond the memory should fail");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testIndexOf() {
+        Memory m = new Memory(10000);
+        m.setMemory(0, m.size(), (byte) 'a');
+        assertEquals("Value beyond the memory should not be found", -1, m.indexOf(0, (byte) 0));
+        m.setByte(9000, (byte) 0);
+        assertEquals("Wrong index", 9000, m.indexOf(0, (byte) 0));
+        assertEquals("Wrong index from offset", 8000, m.indexOf(1000, (byte) 0));
+        assertEquals("Value outside the range should not be found", -1, m.indexOf(0, 9000, (byte) 0));
+        assertEquals("Wrong index in range", 9000, m.indexOf(0, 9001, (byte) 0));
+        assertEquals("Wrong index of unbounded pointer", 9000, new Pointer(Pointer.nativeValue(m)).indexOf(0, (byte) 0));
+        try {
+            m.indexOf(5000, 6000, (byte) 0);
+            fail("Search beyond the memory should fail");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
     public void testBoundsChecking() throws NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
         // Test the bounds checking of the Memory#read invocations
         testBoundsCheckArray(byte.class, 1);
@@ -0,0 +1,120 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+
+package com.sun.jna;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles and loads a named module at runtime, for tests of code which
+ * behaves differently for classes in named modules.  The tests are built
+ * for Java 8, so the module APIs are used through reflection.
+ */
+public class NamedModules {
+    private NamedModules() {}
+
+    /**
+     * Compile the given sources into a module which reads the unnamed
+     * module JNA is loaded in, and define it in a new layer.
+     * @param name module name
+     * @param sources source code keyed by file name relative to the module
+     * root, including <code>module-info.java</code>
+     * @param openPackages packages opened to JNA only, so that JNA can use
+     * reflection on them while they are neither exported nor open to
+     * other modules
+     * @return the class loader of the module, or <code>null</code> if
+     * modules or the compiler are not available
+     */
+    public static ClassLoader load(String name, Map<String, String> sources, String... openPackages) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Class<?> layerClass;
+        try {
+            layerClass = Class.forName("java.lang.ModuleLayer");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        if (compiler == null) {
+            return null;
+        }
+        Path dir = Files.createTempDirectory("jna-module");
+        Path src = dir.resolve("src");
+        Path out = dir.resolve("classes");
+        List<String> args = new ArrayList<>();
+        args.add("-d");
+        args.add(out.toString());
+        args.add("-classpath");
+        args.add(new File(Structure.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+        args.add("--add-reads");
+        args.add(name + "=ALL-UNNAMED");
+        for (Map.Entry<String, String> e : sources.entrySet()) {
+            Path file = src.resolve(e.getKey());
+            Files.createDirectories(file.getParent());
+            Files.write(file, e.getValue().getBytes(StandardCharsets.UTF_8));
+            args.add(file.toString());
+        }
+        if (compiler.run(null, null, null, args.toArray(new String[0])) != 0) {
+            throw new IOException("Failed to compile module " + name);
+        }
+
+        Class<?> finderClass = Class.forName("java.lang.module.ModuleFinder");
+        Class<?> configurationClass = Class.forName("java.lang.module.Configuration");
+        Method of = finderClass.getMethod("of", Path[].class);
+        Object finder = of.invoke(null, (Object) new Path[] { out });
+        Object none = of.invoke(null, (Object) new Path[0]);
+        Object boot = layerClass.getMethod("boot").invoke(null);
+        Object parent = layerClass.getMethod("configuration").invoke(boot);
+        Object configuration = configurationClass.getMethod("resolve", finderClass, finderClass, Collection.class)
+            .invoke(parent, finder, none, Collections.singleton(name));
+        Object controller = layerClass.getMethod("defineModulesWithOneLoader", configurationClass, List.class, ClassLoader.class)
+            .invoke(null, configuration, Collections.singletonList(boot), NamedModules.class.getClassLoader());
+        Class<?> controllerClass = controller.getClass();
+        Object layer = controllerClass.getMethod("layer").invoke(controller);
+        ClassLoader loader = (ClassLoader) layerClass.getMethod("findLoader", String.class).invoke(layer, name);
+
+        Method getModule = Class.class.getMethod("getModule");
+        Object module = layerClass.getMethod("findModule", String.class).invoke(layer, name);
+        module = module.getClass().getMethod("get").invoke(module);
+        Object jna = getModule.invoke(Structure.class);
+        Class<?> moduleClass = getModule.getReturnType();
+        controllerClass.getMethod("addReads", moduleClass, moduleClass)
+            .invoke(controller, module, jna);
+        Method addOpens = controllerClass.getMethod("addOpens", moduleClass, String.class, moduleClass);
+        for (String pkg : openPackages) {
+            addOpens.invoke(controller, module, pkg, jna);
+        }
+        return loader;
+    }
+}
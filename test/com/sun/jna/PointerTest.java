@@ -239,6 +239,54 @@ public class PointerTest extends TestCase {
         }
     }
 
+    public void testDirectAccessMatchesNative() {
+        Memory m = new Memory(64);
+        m.clear();
+        // Use an unaligned offset; JNI accessors allow any address
+        long off = 3;
+        long addr = Pointer.nativeValue(m) + off;
+
+        m.setByte(off, (byte)0xA5);
+        assertEquals("Wrong byte", (byte)0xA5, Native.getByte(m, addr, 0));
+        m.setShort(off, (short)0xA5B6);
+        assertEquals("Wrong short", (short)0xA5B6, Native.getShort(m, addr, 0));
+        m.setInt(off, 0xA5B6C7D8);
+        assertEquals("Wrong int", 0xA5B6C7D8, Native.getInt(m, addr, 0));
+        m.setLong(off, 0x0102030405060708L);
+        assertEquals("Wrong long", 0x0102030405060708L, Native.getLong(m, addr, 0));
+        assertEquals("Wrong low bytes of long", Native.getInt(m, addr, 0), m.getInt(off));
+        m.setFloat(off, (float)Math.E);
+        assertEquals("Wrong float", (float)Math.E, Native.getFloat(m, addr, 0), 0f);
+        m.setDouble(off, Math.PI);
+        assertEquals("Wrong double", Math.PI, Native.getDouble(m, addr, 0), 0d);
+        m.setChar(off, '\uFEFF');
+        assertEquals("Wrong wchar_t", '\uFEFF', Native.getChar(m, addr, 0));
+        Native.setChar(m, addr, 0, '\uABCD');
+        assertEquals("Wrong wchar_t", '\uABCD', m.getChar(off));
+        m.setPointer(off, m);
+        assertEquals("Wrong pointer", m, m.getPointer(off));
+        assertEquals("Wrong pointer", Pointer.nativeValue(m), Native.POINTER_SIZE == 8
+                     ? Native.getLong(m, addr, 0) : Native.getInt(m, addr, 0));
+        m.setPointer(off, null);
+        assertNull("Wrong NULL pointer", m.getPointer(off));
+    }
+
+    public void testProtectedModeUsesNativeAccess() {
+        boolean saved = Native.isProtected();
+        try {
+            Native.setProtected(true);
+            if (Native.isProtected()) {
+                assertNull("Protected mode requires JNI access", Native.memoryAccess);
+            }
+            Native.setProtected(false);
+            Memory m = new Memory(8);
+            m.setInt(0, 42);
+            assertEquals("Wrong value after leaving protected mode", 42, m.getInt(0));
+        } finally {
+            Native.setProtected(saved);
+        }
+    }
+
     public static void main(String[] args) {
         junit.textui.TestRunner.run(PointerTest.class);
     }
@@ -0,0 +1,190 @@
+/*
+ * The contents of this file is dual-licensed under 2
+ * alternative Open Source/Free licenses: LGPL 2.1 or later and
+ * Apache License 2.0. (starting with JNA version 4.0.0).
+ *
+ * You can freely decide which license you want to apply to
+ * the project.
+ *
+ * You may obtain a copy of the LGPL License at:
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "LGPL2.1".
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code package
+ * containing JNA, in file "AL2.0".
+ */
+package com.sun.jna;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+
+import junit.framework.TestCase;
+
+public class StructureArrayTest extends TestCase {
+
+    public static class Record extends Structure {
+        public int id;
+        public double value;
+        public String name;
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("id", "value", "name");
+        }
+    }
+
+    private static Memory records(int count) {
+        int size = new Record().size();
+        Memory m = new Memory((long) size * count);
+        m.clear();
+        for (int i=0;i < count;i++) {
+            m.setInt((long) i * size, i);
+            m.setDouble((long) i * size + 8, i / 2.0);
+        }
+        return m;
+    }
+
+    public void testGet() {
+        Memory m = records(10);
+        StructureArray<Record> array = new StructureArray<>(Record.class, m, 10);
+        assertEquals("Wrong size", 10, array.size());
+        assertEquals("Wrong element size", new Record().size(), array.elementSize());
+        Record r = array.get(7);
+        assertEquals("Wrong id", 7, r.id);
+        assertEquals("Wrong value", 3.5, r.value);
+        assertSame("Cursor should be reused", r, array.get(3));
+        assertEquals("Wrong id", 3, r.id);
+        assertEquals("Cursor should point to the element",
+                     Pointer.nativeValue(m) + 3L * array.elementSize(),
+                     Pointer.nativeValue(r.getPointer()));
+        try {
+            array.get(10);
+            fail("Index beyond the array should fail");
+        }
+        catch(IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testSelectedFields() {
+        Memory m = records(4);
+        StructureArray<Record> array = new StructureArray<>(Record.class, m, 4, "id");
+        Record r = array.get(2);
+        assertEquals("Wrong id", 2, r.id);
+        assertEquals("Unselected field should not be read", 0.0, r.value);
+        assertEquals("Field should be readable on demand", 1.0, r.readField("value"));
+        try {
+            new StructureArray<>(Record.class, m, 4, "missing");
+            fail("Unknown field should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testWriteThroughCursor() {
+        Memory m = records(4);
+        StructureArray<Record> array = new StructureArray<>(Record.class, m, 4);
+        Record r = array.at(1);
+        r.id = 42;
+        r.writeField("id");
+        r.name = "one";
+        r.writeField("name");
+        r = array.at(2);
+        r.name = "one";
+        r.writeField("name");
+        assertEquals("Write should go to the element", 42, m.getInt(array.elementSize()));
+        assertEquals("Wrong string", "one", array.get(1).name);
+        assertEquals("String should be written at each position", "one", array.get(2).name);
+    }
+
+    public void testBounds() {
+        Memory m = records(4);
+        try {
+            new StructureArray<>(Record.class, m, 5);
+            fail("Array beyond the memory should fail");
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public static class ReadingRecord extends Record {
+        static int reads;
+        public ReadingRecord() {
+        }
+        public ReadingRecord(Pointer p) {
+            super();
+            useMemory(p);
+            read();
+        }
+        @Override
+        public void read() {
+            // Reads of the placeholder used to compute the size are no-ops
+            if (Pointer.nativeValue(getPointer()) != 0) {
+                ++reads;
+            }
+            super.read();
+        }
+    }
+
+    public void testCreateWithoutRead() {
+        Memory m = records(4);
+        ReadingRecord.reads = 0;
+        StructureArray<ReadingRecord> array = new StructureArray<>(ReadingRecord.class, m, 4);
+        Iterator<ReadingRecord> it = array.iterator();
+        assertEquals("No element should be read before it is accessed", 0, ReadingRecord.reads);
+        assertEquals("Wrong id", 2, array.get(2).id);
+        assertEquals("Wrong id", 0, it.next().id);
+        assertEquals("Wrong read count", 2, ReadingRecord.reads);
+    }
+
+    public void testEmptyArrayOverSmallMemory() {
+        Memory m = new Memory(4);
+        StructureArray<Record> array = new StructureArray<>(Record.class, m, 0);
+        assertEquals("Wrong size", 0, array.size());
+        assertFalse("Empty array should have no elements", array.iterator().hasNext());
+        assertEquals("Empty stream should have no elements", 0, array.stream().count());
+    }
+
+    public void testIteration() {
+        Memory m = records(100);
+        StructureArray<Record> array = new StructureArray<>(Record.class, m, 100, "id");
+        int expected = 0;
+        for (Record r : array) {
+            assertEquals("Wrong element", expected++, r.id);
+        }
+        assertEquals("Wrong count", 100, expected);
+        Iterator<Record> it = array.iterator();
+        assertSame("Iterator should reuse its cursor", it.next(), it.next());
+        assertEquals("Wrong sum", 4950, array.stream().mapToLong(r -> r.id).sum());
+    }
+
+    public void testParallelSplit() {
+        int count = 10000;
+        Memory m = records(count);
+        StructureArray<Record> array = new StructureArray<>(Record.class, m, count, "id");
+        Spliterator<Record> right = array.spliterator();
+        Spliterator<Record> left = right.trySplit();
+        assertNotNull("Large ranges should split", left);
+        assertEquals("Wrong split size", count, left.estimateSize() + right.estimateSize());
+        Record[] cursors = new Record[2];
+        left.tryAdvance(r -> cursors[0] = r);
+        right.tryAdvance(r -> cursors[1] = r);
+        assertNotSame("Splits should use their own cursors", cursors[0], cursors[1]);
+        long expected = (long) count * (count - 1) / 2;
+        assertEquals("Wrong parallel sum", expected, array.parallelStream().mapToLong(r -> r.id).sum());
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(StructureArrayTest.class);
+    }
+}
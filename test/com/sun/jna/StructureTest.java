@@ -27,6 +27,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
@@ -1114,6 +1115,216 @@ public class StructureTest extends TestCase {
         assertEquals("Structure equals should leave volatile field unchanged", 1, s.getPointer().getInt(0));
     }
 
+    @FieldOrder({ "b", "z", "c", "s", "i", "l", "f", "d", "p", "ba", "sa", "ia", "la", "fa", "da" })
+    public static class PrimitiveFieldsStructure extends Structure {
+        public byte b;
+        public boolean z;
+        public char c;
+        public short s;
+        public int i;
+        public long l;
+        public float f;
+        public double d;
+        public Pointer p;
+        public byte[] ba = new byte[3];
+        public short[] sa = new short[3];
+        public int[] ia = new int[3];
+        public long[] la = new long[2];
+        public float[] fa = new float[2];
+        public double[] da = new double[2];
+        public PrimitiveFieldsStructure() { }
+        public PrimitiveFieldsStructure(Pointer p) { super(p); }
+    }
+
+    public void testBulkWritePrimitiveFields() {
+        PrimitiveFieldsStructure s = new PrimitiveFieldsStructure();
+        s.b = 1; s.z = true; s.c = 'x'; s.s = 2; s.i = 3; s.l = 4; s.f = 5; s.d = 6;
+        s.p = new Pointer(0x12345678);
+        s.ba[2] = 7; s.sa[2] = 8; s.ia[2] = 9; s.la[1] = 10; s.fa[1] = 11; s.da[1] = 12;
+        s.write();
+        Pointer m = s.getPointer();
+        assertEquals("Wrong byte", 1, m.getByte(s.fieldOffset("b")));
+        assertEquals("Wrong boolean", -1, m.getInt(s.fieldOffset("z")));
+        assertEquals("Wrong char", 'x', m.getChar(s.fieldOffset("c")));
+        assertEquals("Wrong short", 2, m.getShort(s.fieldOffset("s")));
+        assertEquals("Wrong int", 3, m.getInt(s.fieldOffset("i")));
+        assertEquals("Wrong long", 4, m.getLong(s.fieldOffset("l")));
+        assertEquals("Wrong float", 5f, m.getFloat(s.fieldOffset("f")));
+        assertEquals("Wrong double", 6d, m.getDouble(s.fieldOffset("d")));
+        assertEquals("Wrong pointer", s.p, m.getPointer(s.fieldOffset("p")));
+        assertEquals("Wrong byte array", 7, m.getByte(s.fieldOffset("ba") + 2));
+        assertEquals("Wrong short array", 8, m.getShort(s.fieldOffset("sa") + 4));
+        assertEquals("Wrong int array", 9, m.getInt(s.fieldOffset("ia") + 8));
+        assertEquals("Wrong long array", 10, m.getLong(s.fieldOffset("la") + 8));
+        assertEquals("Wrong float array", 11f, m.getFloat(s.fieldOffset("fa") + 4));
+        assertEquals("Wrong double array", 12d, m.getDouble(s.fieldOffset("da") + 8));
+    }
+
+    public void testBulkReadPrimitiveFields() {
+        PrimitiveFieldsStructure s = new PrimitiveFieldsStructure();
+        Pointer m = s.getPointer();
+        m.setByte(s.fieldOffset("b"), (byte) 1);
+        m.setInt(s.fieldOffset("z"), 1);
+        m.setChar(s.fieldOffset("c"), 'x');
+        m.setShort(s.fieldOffset("s"), (short) 2);
+        m.setInt(s.fieldOffset("i"), 3);
+        m.setLong(s.fieldOffset("l"), 4);
+        m.setFloat(s.fieldOffset("f"), 5);
+        m.setDouble(s.fieldOffset("d"), 6);
+        m.setPointer(s.fieldOffset("p"), new Pointer(0x12345678));
+        m.setByte(s.fieldOffset("ba") + 2, (byte) 7);
+        m.setShort(s.fieldOffset("sa") + 4, (short) 8);
+        m.setInt(s.fieldOffset("ia") + 8, 9);
+        m.setLong(s.fieldOffset("la") + 8, 10);
+        m.setFloat(s.fieldOffset("fa") + 4, 11);
+        m.setDouble(s.fieldOffset("da") + 8, 12);
+        int[] ia = s.ia;
+        s.read();
+        assertEquals("Wrong byte", 1, s.b);
+        assertTrue("Wrong boolean", s.z);
+        assertEquals("Wrong char", 'x', s.c);
+        assertEquals("Wrong short", 2, s.s);
+        assertEquals("Wrong int", 3, s.i);
+        assertEquals("Wrong long", 4, s.l);
+        assertEquals("Wrong float", 5f, s.f);
+        assertEquals("Wrong double", 6d, s.d);
+        assertEquals("Wrong pointer", new Pointer(0x12345678), s.p);
+        assertEquals("Wrong byte array", 7, s.ba[2]);
+        assertEquals("Wrong short array", 8, s.sa[2]);
+        assertEquals("Wrong int array", 9, s.ia[2]);
+        assertEquals("Wrong long array", 10, s.la[1]);
+        assertEquals("Wrong float array", 11f, s.fa[1]);
+        assertEquals("Wrong double array", 12d, s.da[1]);
+        assertSame("Array field should be updated in place", ia, s.ia);
+    }
+
+    public void testBulkWriteLeavesPaddingUntouched() {
+        @FieldOrder({ "b", "i" })
+        class PaddedStructure extends Structure {
+            public byte b;
+            public int i;
+            PaddedStructure(Pointer p) { super(p); }
+        }
+        Memory m = new Memory(8);
+        m.setMemory(0, 8, (byte) 0x55);
+        PaddedStructure s = new PaddedStructure(m);
+        s.b = 1;
+        s.i = 2;
+        s.write();
+        assertEquals("Wrong byte", 1, m.getByte(0));
+        assertEquals("Padding should be untouched", 0x55, m.getByte(1));
+        assertEquals("Padding should be untouched", 0x55, m.getByte(3));
+        assertEquals("Wrong int", 2, m.getInt(4));
+    }
+
+    public void testBulkReadStructureArray() {
+        PrimitiveFieldsStructure s = new PrimitiveFieldsStructure();
+        PrimitiveFieldsStructure[] array = (PrimitiveFieldsStructure[]) s.toArray(4);
+        for (int i=0;i < array.length;i++) {
+            array[i].getPointer().setInt(s.fieldOffset("i"), i + 1);
+            array[i].getPointer().setDouble(s.fieldOffset("da") + 8, i + 2);
+        }
+        Structure.autoRead(array);
+        for (int i=0;i < array.length;i++) {
+            assertEquals("Wrong int in element " + i, i + 1, array[i].i);
+            assertEquals("Wrong array value in element " + i, i + 2d, array[i].da[1]);
+        }
+    }
+
+    public void testGeneratedFieldAccessors() {
+        PrimitiveFieldsStructure s = new PrimitiveFieldsStructure();
+        s.ensureAllocated();
+        Class<?> accessorClass = s.fields().get("b").accessor.getClass();
+        for (String name : Arrays.asList("b", "z", "d", "p", "ia")) {
+            assertNotNull("Field '" + name + "' should use a generated accessor", s.fields().get(name).accessor);
+            assertSame("Fields of a structure should share one accessor class",
+                       accessorClass, s.fields().get(name).accessor.getClass());
+        }
+        s.b = 1;
+        s.z = true;
+        s.c = 'c';
+        s.s = 2;
+        s.i = 42;
+        s.l = 3;
+        s.f = 4;
+        s.d = 5;
+        s.p = new Pointer(42);
+        s.write();
+        s.b = 0;
+        s.z = false;
+        s.c = 0;
+        s.s = 0;
+        s.i = 0;
+        s.l = 0;
+        s.f = 0;
+        s.d = 0;
+        s.p = null;
+        s.read();
+        assertEquals("Wrong byte read through accessor", 1, s.b);
+        assertTrue("Wrong boolean read through accessor", s.z);
+        assertEquals("Wrong char read through accessor", 'c', s.c);
+        assertEquals("Wrong short read through accessor", 2, s.s);
+        assertEquals("Wrong int read through accessor", 42, s.i);
+        assertEquals("Wrong long read through accessor", 3, s.l);
+        assertEquals("Wrong float read through accessor", 4f, s.f);
+        assertEquals("Wrong double read through accessor", 5d, s.d);
+        assertEquals("Wrong pointer read through accessor", new Pointer(42), s.p);
+
+        @FieldOrder({ "i" })
+        class LocalStructure extends Structure {
+            public int i;
+        }
+        LocalStructure local = new LocalStructure();
+        local.ensureAllocated();
+        assertNull("Fields of a non-public class should use reflection", local.fields().get("i").accessor);
+        local.getPointer().setInt(0, 42);
+        local.read();
+        assertEquals("Wrong int read through reflection", 42, local.i);
+    }
+
+    public void testGeneratedFieldAccessorsInNamedModule() throws Exception {
+        Map<String, String> sources = new HashMap<>();
+        sources.put("module-info.java", "module jna.test.fields { }");
+        sources.put("jna/test/fields/ModuleStructure.java",
+                    "package jna.test.fields;\n"
+                    + "@com.sun.jna.Structure.FieldOrder({ \"i\" })\n"
+                    + "public class ModuleStructure extends com.sun.jna.Structure {\n"
+                    + "    public int i;\n"
+                    + "}\n");
+        ClassLoader loader = NamedModules.load("jna.test.fields", sources, "jna.test.fields");
+        if (loader == null) {
+            return;
+        }
+        Class<?> cls = loader.loadClass("jna.test.fields.ModuleStructure");
+        Structure s = (Structure) cls.getConstructor().newInstance();
+        s.ensureAllocated();
+        // The package is open to JNA, but not exported
+        assertNull("Fields of a class in a package which is not exported should use reflection",
+                   s.fields().get("i").accessor);
+        s.getPointer().setInt(0, 42);
+        s.read();
+        assertEquals("Wrong int read through reflection", 42, cls.getField("i").getInt(s));
+    }
+
+    public void testOverriddenReadFieldUsedOnRead() {
+        final List<String> fields = new ArrayList<>();
+        @FieldOrder({ "i", "l" })
+        class OverridingStructure extends Structure {
+            public int i;
+            public long l;
+            @Override
+            protected Object readField(StructField structField) {
+                fields.add(structField.name);
+                return super.readField(structField);
+            }
+        }
+        OverridingStructure s = new OverridingStructure();
+        s.getPointer().setInt(0, 42);
+        s.read();
+        assertEquals("Overridden readField should be called for every field", Arrays.asList("i", "l"), fields);
+        assertEquals("Wrong int", 42, s.i);
+    }
+
     public static class StructureWithPointers extends Structure {
         public static final List<String> FIELDS = createFieldsOrder("s1", "s2");
         public PublicTestStructure.ByReference s1;